@@ -9,3 +9,4 @@ sysctl -w net.core.rmem_default=26214400
 # Use high value for high speed cards to prevent loosing packets.
 sysctl -w net.core.netdev_max_backlog=250000
 
+# Check the loss with these values: make runReceiver on a receiver, make runCalibration on the sender.
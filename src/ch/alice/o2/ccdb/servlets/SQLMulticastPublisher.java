@@ -0,0 +1,484 @@
+package ch.alice.o2.ccdb.servlets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import alien.monitoring.Monitor;
+import alien.monitoring.MonitorFactory;
+import ch.alice.o2.ccdb.Options;
+import lazyj.DBFunctions;
+import myjava.com.github.dosarudaniel.gsoc.Blob;
+import myjava.com.github.dosarudaniel.gsoc.GroupMap;
+import myjava.com.github.dosarudaniel.gsoc.PayloadCodec;
+import myjava.com.github.dosarudaniel.gsoc.SendPipeline;
+
+/**
+ * Tails the <code>ccdb</code> table and multicasts every new object, so the
+ * receivers get new calibration objects right after the upload instead of
+ * pulling them.
+ *
+ * The table is polled for the rows after the last one seen, by
+ * <code>(createTime, id)</code>. A row can be committed after rows with a later
+ * <code>createTime</code> (the time is set when the upload starts), so every
+ * <code>multicast.publisher.rescan</code> milliseconds a poll scans again the
+ * last <code>multicast.publisher.lookback</code> milliseconds and skips the
+ * objects that were already published. Such late rows, and the objects that
+ * could not be sent, are published by the next rescan.
+ *
+ * The most recent <code>createTime</code> that was published is persisted in
+ * <code>multicast.publisher.state</code> after every page of rows, and the
+ * publisher resumes from it (minus the lookback) after a restart. The objects
+ * in the lookback window are then sent again: the delivery is at least once.
+ *
+ * At most <code>multicast.publisher.concurrency</code> objects are loaded from
+ * disk and waiting to be sent at the same time, which bounds the memory taken
+ * by a burst of uploads. The objects of at least
+ * <code>multicast.publisher.map.size</code> bytes are not loaded at all but
+ * mapped in memory, see {@link Blob#fromFile(Map, File, String, UUID)}.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ */
+public class SQLMulticastPublisher extends Thread {
+    private static final Monitor monitor = MonitorFactory.getMonitor(SQLMulticastPublisher.class.getCanonicalName());
+
+    private static final UUID MIN_UUID = new UUID(0, 0);
+
+    private final GroupMap groupMap;
+
+    private final int maxPayloadSize;
+
+    /**
+     * One pipeline per multicast group, opened when the first object of the group is sent
+     */
+    private final Map<GroupMap.Group, SendPipeline> pipelines = new HashMap<>();
+
+    private final File stateFile;
+
+    private final long lookback = Options.getIntOption("multicast.publisher.lookback", 60 * 1000);
+
+    private final long pollInterval = Options.getIntOption("multicast.publisher.poll", 100);
+
+    private final long rescanInterval = Options.getIntOption("multicast.publisher.rescan", 10 * 1000);
+
+    private final int pageSize = Options.getIntOption("multicast.publisher.page", 100);
+
+    private final long maxObjectSize = Options.getIntOption("multicast.publisher.max.size", 100 * 1024 * 1024);
+
+    /**
+     * Objects of at least this size are sent uncompressed from a mapping of the file instead of being read on the heap
+     */
+    private final long mapObjectSize = Options.getIntOption("multicast.publisher.map.size", 4 * 1024 * 1024);
+
+    private final Semaphore inFlight;
+
+    private final ExecutorService loaders;
+
+    /**
+     * Objects published in the lookback window, id to createTime
+     */
+    private final Map<UUID, Long> recentlyPublished = new HashMap<>();
+
+    private long highWaterMark;
+
+    /**
+     * The last row seen, the next poll starts after it
+     */
+    private long cursorTime;
+
+    private UUID cursorId = MIN_UUID;
+
+    private long lastRescan = 0;
+
+    private volatile boolean running = true;
+
+    private final AtomicLong objectsPublished = new AtomicLong();
+
+    private final AtomicLong bytesPublished = new AtomicLong();
+
+    /**
+     * @param groupMap       multicast group of every path
+     * @param maxPayloadSize the maximum payload of a fragment
+     * @param stateFile      where to persist the high-water mark
+     */
+    public SQLMulticastPublisher(final GroupMap groupMap, final int maxPayloadSize, final File stateFile) {
+	super("SQLMulticastPublisher");
+
+	this.groupMap = groupMap;
+	this.maxPayloadSize = maxPayloadSize;
+	this.stateFile = stateFile;
+
+	final int concurrency = Math.max(1, Options.getIntOption("multicast.publisher.concurrency", 8));
+
+	inFlight = new Semaphore(concurrency);
+	loaders = Executors.newFixedThreadPool(concurrency);
+
+	highWaterMark = readHighWaterMark();
+	cursorTime = highWaterMark - lookback;
+    }
+
+    @Override
+    public void run() {
+	while (running) {
+	    try {
+		poll();
+
+		Thread.sleep(pollInterval);
+	    } catch (@SuppressWarnings("unused") final InterruptedException ie) {
+		break;
+	    } catch (final Throwable t) {
+		System.err.println("Exception tailing the ccdb table: " + t.getMessage());
+
+		try {
+		    Thread.sleep(pollInterval * 10);
+		} catch (@SuppressWarnings("unused") final InterruptedException ie) {
+		    break;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Publish all the objects created after the last row seen, or since the
+     * high-water mark minus the lookback window when it is time to rescan it,
+     * that were not published yet
+     *
+     * @throws InterruptedException
+     */
+    void poll() throws InterruptedException {
+	final long now = System.currentTimeMillis();
+
+	if (now - lastRescan >= rescanInterval) {
+	    cursorTime = highWaterMark - lookback;
+	    cursorId = MIN_UUID;
+	    lastRescan = now;
+	}
+
+	boolean fullPage;
+
+	do {
+	    final List<SQLObject> page = fetchPage(cursorTime, cursorId);
+
+	    if (page == null)
+		return;
+
+	    fullPage = page.size() == pageSize;
+
+	    final Map<SQLObject, CompletableFuture<Blob>> publications = new LinkedHashMap<>();
+	    final Map<String, CompletableFuture<Blob>> lastPublicationOfPath = new HashMap<>();
+
+	    for (final SQLObject object : page) {
+		cursorTime = object.createTime;
+		cursorId = object.id;
+
+		if (recentlyPublished.containsKey(object.id))
+		    continue;
+
+		// the receivers cache the last version of a path that they got, keep the versions in order
+		final CompletableFuture<Blob> previous = lastPublicationOfPath.get(object.getPath());
+
+		if (previous != null)
+		    try {
+			previous.get();
+		    } catch (@SuppressWarnings("unused") final ExecutionException e) {
+			// reported below
+		    }
+
+		final CompletableFuture<Blob> publication = publish(object);
+
+		publications.put(object, publication);
+		lastPublicationOfPath.put(object.getPath(), publication);
+	    }
+
+	    for (final Map.Entry<SQLObject, CompletableFuture<Blob>> entry : publications.entrySet()) {
+		final SQLObject object = entry.getKey();
+
+		try {
+		    // sent, or skipped for good
+		    entry.getValue().get();
+
+		    recentlyPublished.put(object.id, Long.valueOf(object.createTime));
+		    highWaterMark = Math.max(highWaterMark, object.createTime);
+		} catch (final ExecutionException e) {
+		    // retried by the next polls, as long as it is in the lookback window
+		    System.err.println("Could not publish " + object.id + ": " + e.getCause());
+		}
+	    }
+
+	    if (!publications.isEmpty()) {
+		writeHighWaterMark();
+		prune();
+	    }
+	} while (fullPage && running);
+    }
+
+    private List<SQLObject> fetchPage(final long afterTime, final UUID afterId) {
+	final long lStart = System.nanoTime();
+
+	try (DBFunctions db = SQLObject.getDB()) {
+	    if (!db.query(
+		    "SELECT *,extract(epoch from lower(validity))*1000 as validfrom,extract(epoch from upper(validity))*1000 as validuntil FROM ccdb WHERE (createTime, id) > (?, ?) ORDER BY createTime, id LIMIT ?;",
+		    false, Long.valueOf(afterTime), afterId, Integer.valueOf(pageSize))) {
+		System.err.println("Query execution error");
+		return null;
+	    }
+
+	    final List<SQLObject> ret = new ArrayList<>();
+
+	    while (db.moveNext())
+		ret.add(new SQLObject(db));
+
+	    return ret;
+	} finally {
+	    monitor.addMeasurement("fetchPage_ms", (System.nanoTime() - lStart) / 1000000.);
+	}
+    }
+
+    /**
+     * Load the object from the local replica and queue it for sending. Blocks
+     * while too many objects are in flight.
+     *
+     * @return future completed with the Blob once it was sent, or with
+     *         <code>null</code> if the object was skipped
+     * @throws InterruptedException
+     */
+    private CompletableFuture<Blob> publish(final SQLObject object) throws InterruptedException {
+	inFlight.acquire();
+
+	final CompletableFuture<Blob> ret = new CompletableFuture<>();
+	ret.whenComplete((blob, error) -> inFlight.release());
+
+	loaders.execute(() -> {
+	    try {
+		final Blob blob = toBlob(object);
+
+		if (blob == null) {
+		    ret.complete(null);
+		    return;
+		}
+
+		getPipeline(groupMap.getGroup(blob.getKey())).publish(blob).whenComplete((sent, error) -> {
+		    if (error != null)
+			ret.completeExceptionally(error);
+		    else {
+			objectsPublished.incrementAndGet();
+			bytesPublished.addAndGet(object.size);
+			ret.complete(sent);
+		    }
+		});
+	    } catch (final Throwable t) {
+		ret.completeExceptionally(t);
+	    }
+	});
+
+	return ret;
+    }
+
+    private synchronized SendPipeline getPipeline(final GroupMap.Group group) throws IOException, NoSuchAlgorithmException {
+	SendPipeline pipeline = pipelines.get(group);
+
+	if (pipeline == null) {
+	    pipeline = new SendPipeline(group.getIp(), group.getPort(), maxPayloadSize);
+	    pipelines.put(group, pipeline);
+	}
+
+	return pipeline;
+    }
+
+    private Blob toBlob(final SQLObject object) throws IOException, NoSuchAlgorithmException, InterruptedException {
+	if (object.size > maxObjectSize) {
+	    System.err.println("Not multicasting " + object.id + ", " + object.size + " bytes is above the limit");
+	    return null;
+	}
+
+	final File localFile = object.getLocalFile(false);
+
+	if (localFile == null)
+	    throw new IOException("No local replica of " + object.id);
+
+	final long lStart = System.nanoTime();
+
+	if (object.size >= mapObjectSize) {
+	    final Blob blob = Blob.fromFile(getMetadata(object), localFile, object.getPath(), object.id);
+
+	    monitor.addMeasurement("map_ms", (System.nanoTime() - lStart) / 1000000.);
+
+	    return blob;
+	}
+
+	final byte[] payload = Files.readAllBytes(localFile.toPath());
+
+	monitor.addMeasurement("read_ms", (System.nanoTime() - lStart) / 1000000.);
+
+	final Blob blob = new Blob(getMetadata(object), payload, object.getPath(), object.id);
+	blob.compress(PayloadCodec.DEFAULT_CODEC);
+
+	return blob;
+    }
+
+    /**
+     * @return the same fields as the HTTP headers set by
+     *         {@link SQLBacked#setHeaders(SQLObject, javax.servlet.http.HttpServletResponse)}
+     */
+    private static Map<String, String> getMetadata(final SQLObject object) {
+	final Map<String, String> ret = new HashMap<>();
+
+	ret.put("Valid-From", String.valueOf(object.validFrom));
+	ret.put("Valid-Until", String.valueOf(object.validUntil));
+
+	if (object.initialValidity != object.validUntil)
+	    ret.put("InitialValidityLimit", String.valueOf(object.initialValidity));
+
+	ret.put("Created", String.valueOf(object.createTime));
+	ret.put("Last-Modified", String.valueOf(object.getLastModified()));
+
+	if (object.fileName != null)
+	    ret.put("File-Name", object.fileName);
+
+	if (object.contentType != null)
+	    ret.put("Content-Type", object.contentType);
+
+	if (object.md5 != null && !object.md5.isEmpty())
+	    ret.put("Content-MD5", object.md5);
+
+	for (final Map.Entry<Integer, String> metadataEntry : object.metadata.entrySet()) {
+	    final String mdKey = SQLObject.getMetadataString(metadataEntry.getKey());
+
+	    if (mdKey != null)
+		ret.put(mdKey, metadataEntry.getValue());
+	}
+
+	return ret;
+    }
+
+    private void prune() {
+	final long limit = highWaterMark - lookback;
+
+	final Iterator<Long> it = recentlyPublished.values().iterator();
+
+	while (it.hasNext())
+	    if (it.next().longValue() < limit)
+		it.remove();
+    }
+
+    private long readHighWaterMark() {
+	if (stateFile.exists())
+	    try {
+		return Long.parseLong(new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.UTF_8).trim());
+	    } catch (IOException | NumberFormatException e) {
+		System.err.println("Cannot read the high-water mark from " + stateFile + ": " + e.getMessage());
+	    }
+
+	// first start, only the objects uploaded from now on
+	return System.currentTimeMillis();
+    }
+
+    private void writeHighWaterMark() {
+	final File tmp = new File(stateFile.getPath() + ".tmp");
+
+	try {
+	    Files.write(tmp.toPath(), String.valueOf(highWaterMark).getBytes(StandardCharsets.UTF_8));
+	    Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+		    StandardCopyOption.ATOMIC_MOVE);
+	} catch (final IOException e) {
+	    System.err.println("Cannot persist the high-water mark to " + stateFile + ": " + e.getMessage());
+	}
+    }
+
+    /**
+     * @return the most recent createTime that was published
+     */
+    public long getHighWaterMark() {
+	return highWaterMark;
+    }
+
+    /**
+     * @return number of objects sent since the start
+     */
+    public long getObjectsPublished() {
+	return objectsPublished.get();
+    }
+
+    /**
+     * @return number of bytes (uncompressed payload) sent since the start
+     */
+    public long getBytesPublished() {
+	return bytesPublished.get();
+    }
+
+    /**
+     * Stop polling and persist the high-water mark. The objects that were not
+     * confirmed as sent are published again after the restart.
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException {
+	running = false;
+	interrupt();
+	join();
+	loaders.shutdown();
+	loaders.awaitTermination(1, TimeUnit.MINUTES);
+
+	synchronized (this) {
+	    for (final SendPipeline pipeline : pipelines.values())
+		try {
+		    pipeline.close();
+		} catch (final IOException e) {
+		    System.err.println("Cannot close " + pipeline + ": " + e.getMessage());
+		}
+	}
+
+	writeHighWaterMark();
+    }
+
+    /**
+     * @param args multicast address and port of the keys that are not mapped to
+     *             another group by MULTICAST_GROUPS
+     * @throws Exception
+     */
+    public static void main(final String[] args) throws Exception {
+	if (args.length < 2) {
+	    System.err.println("Usage: SQLMulticastPublisher <IP> <PORT>");
+	    return;
+	}
+
+	final File stateFile = new File(Options.getOption("multicast.publisher.state",
+		SQLBacked.basePath + System.getProperty("file.separator") + "multicast.hwm"));
+
+	final GroupMap groupMap = GroupMap.fromEnv(args[0], Integer.parseInt(args[1]));
+
+	final SQLMulticastPublisher publisher = new SQLMulticastPublisher(groupMap,
+		Options.getIntOption("max.payload.size", 0), stateFile);
+
+	System.err.println("Multicasting new objects to " + groupMap + " from createTime=" + publisher.getHighWaterMark());
+
+	Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+	    try {
+		publisher.shutdown();
+	    } catch (@SuppressWarnings("unused") final InterruptedException ie) {
+		// exiting anyway
+	    }
+	}));
+
+	publisher.start();
+	publisher.join();
+    }
+}
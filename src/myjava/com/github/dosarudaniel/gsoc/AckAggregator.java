@@ -0,0 +1,292 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * AckAggregator class - receiver side of the completion acknowledgements.
+ *
+ * A receiver acknowledges every Blob it completes with ack, which sets its
+ * receiver id in the bitmap of the Blob. The bitmaps are merged during a
+ * short window (starting with the first ACK) and sent as AckReports to the
+ * parent: the sender's AckCollector or a relay. A relay is a receiver whose
+ * aggregator also listens for the reports of its children and merges them
+ * with its own ACKs, so that the sender gets one report per relay and window
+ * instead of one ACK per receiver and Blob.
+ *
+ * The reports are not acknowledged: the ACKs of a window are sent again with
+ * the next NR_REPEATS windows, which follow even if no new ACK comes, so that
+ * a lost report does not leave the Blob incomplete at the sender. The
+ * receivers also acknowledge again the complete Blobs that are announced (see
+ * AnnouncementCarousel). The sender merges the bitmaps, a repeated ACK has no
+ * effect.
+ *
+ * The tree is read from the environment: ACK_PARENT (host:port of the
+ * parent), ACK_RECEIVER_ID (index of the receiver, from 0 to the ACK_RECEIVERS
+ * of the sender) and, on the relays, ACK_PORT (the port the children send
+ * their reports to).
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class AckAggregator implements Closeable {
+    private static SingletonLogger singletonLogger = new SingletonLogger();
+    private static Logger logger = singletonLogger.getLogger();
+
+    public static final long DEFAULT_WINDOW_MILLIS = 50;
+    // larger reports are split, to stay under the MTU
+    public static final int MAX_REPORT_SIZE = 1400;
+    // windows in which the ACKs are sent again
+    public static final int NR_REPEATS = 2;
+
+    private final DatagramSocket socket;
+    private final InetSocketAddress parent;
+    private final long windowMillis;
+
+    // ack is called by the receiver threads, guarded by itself
+    private final Map<UUID, BitSet> pending = new LinkedHashMap<>();
+    // the ACKs of the last NR_REPEATS windows, oldest first
+    private final ArrayDeque<Map<UUID, BitSet>> sentWindows = new ArrayDeque<>();
+    private long windowEnd = 0;
+
+    private final Thread aggregatorThread;
+    private volatile boolean running = true;
+
+    private final AtomicLong acks = new AtomicLong();
+    private final AtomicLong reportsReceived = new AtomicLong();
+    private final AtomicLong reportsSent = new AtomicLong();
+
+    /**
+     * Parameterized constructor - starts the aggregator thread
+     *
+     * @param listenPort   - the UDP port on which the children send their
+     *                     reports, 0 for a receiver without children
+     * @param parent       - where the merged reports go
+     * @param windowMillis - how long ACKs are merged before they are sent
+     * @throws SocketException
+     */
+    public AckAggregator(int listenPort, InetSocketAddress parent, long windowMillis) throws SocketException {
+	this.socket = listenPort > 0 ? new DatagramSocket(listenPort) : new DatagramSocket();
+	this.parent = parent;
+	this.windowMillis = windowMillis;
+
+	this.aggregatorThread = new Thread(this::aggregateLoop, "AckAggregator");
+	this.aggregatorThread.setDaemon(true);
+	this.aggregatorThread.start();
+    }
+
+    /**
+     * @return the aggregator configured by ACK_PARENT and ACK_PORT, null if
+     *         ACK_PARENT is not set
+     * @throws SocketException
+     */
+    public static AckAggregator fromEnv() throws SocketException {
+	String parentEnvValue = System.getenv("ACK_PARENT");
+	if (parentEnvValue == null || parentEnvValue.trim().isEmpty()) {
+	    return null;
+	}
+
+	String entry = parentEnvValue.trim();
+	int colon = entry.lastIndexOf(':');
+	InetSocketAddress parent;
+	int listenPort = 0;
+	try {
+	    if (colon <= 0) {
+		throw new NumberFormatException("expected host:port");
+	    }
+	    parent = new InetSocketAddress(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1)));
+	    String portEnvValue = System.getenv("ACK_PORT");
+	    if (portEnvValue != null) {
+		listenPort = Integer.parseInt(portEnvValue);
+	    }
+	} catch (IllegalArgumentException e) {
+	    logger.log(Level.WARNING, "The ACKs are disabled, ACK_PARENT or ACK_PORT is invalid: " + e.getMessage());
+	    return null;
+	}
+	if (parent.isUnresolved()) {
+	    logger.log(Level.WARNING, "The ACKs are disabled, unknown ACK_PARENT " + entry);
+	    return null;
+	}
+	return new AckAggregator(listenPort, parent, DEFAULT_WINDOW_MILLIS);
+    }
+
+    /**
+     * Acknowledges a complete Blob
+     *
+     * @param uuid       - the Blob
+     * @param receiverId - the index of this receiver
+     */
+    public void ack(UUID uuid, int receiverId) {
+	BitSet receivers = new BitSet();
+	receivers.set(receiverId);
+	merge(uuid, receivers);
+	this.acks.incrementAndGet();
+    }
+
+    private void merge(UUID uuid, BitSet receivers) {
+	synchronized (this.pending) {
+	    if (this.pending.isEmpty() && this.sentWindows.isEmpty()) {
+		this.windowEnd = System.currentTimeMillis() + this.windowMillis;
+	    }
+	    BitSet bitmap = this.pending.get(uuid);
+	    if (bitmap == null) {
+		this.pending.put(uuid, receivers);
+	    } else {
+		bitmap.or(receivers);
+	    }
+	}
+    }
+
+    private void aggregateLoop() {
+	byte[] buf = new byte[Utils.PACKET_MAX_SIZE];
+
+	while (this.running) {
+	    try {
+		long timeout;
+		synchronized (this.pending) {
+		    timeout = this.pending.isEmpty() && this.sentWindows.isEmpty() ? this.windowMillis
+			    : Math.max(1, this.windowEnd - System.currentTimeMillis());
+		}
+		this.socket.setSoTimeout((int) timeout);
+
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		try {
+		    this.socket.receive(packet);
+		    AckReport report = new AckReport(buf, packet.getLength());
+		    this.reportsReceived.incrementAndGet();
+		    for (Map.Entry<UUID, BitSet> entry : report.getEntries().entrySet()) {
+			merge(entry.getKey(), (BitSet) entry.getValue().clone());
+		    }
+		} catch (SocketTimeoutException e) {
+		    // end of the window or nothing to do
+		}
+
+		flush(false);
+	    } catch (IOException e) {
+		if (this.running) {
+		    logger.log(Level.WARNING, "Could not process an ACK report", e);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Sends the ACKs of the window, and again the ones of the previous windows,
+     * to the parent once it is over
+     *
+     * @param force - true to send them before the end of the window
+     */
+    private void flush(boolean force) throws IOException {
+	List<AckReport> reports = new ArrayList<>();
+	synchronized (this.pending) {
+	    if ((this.pending.isEmpty() && this.sentWindows.isEmpty())
+		    || (!force && System.currentTimeMillis() < this.windowEnd)) {
+		return;
+	    }
+	    Map<UUID, BitSet> window = new LinkedHashMap<>();
+	    for (Map<UUID, BitSet> sentWindow : this.sentWindows) {
+		for (Map.Entry<UUID, BitSet> entry : sentWindow.entrySet()) {
+		    window.computeIfAbsent(entry.getKey(), k -> new BitSet()).or(entry.getValue());
+		}
+	    }
+	    for (Map.Entry<UUID, BitSet> entry : this.pending.entrySet()) {
+		window.computeIfAbsent(entry.getKey(), k -> new BitSet()).or(entry.getValue());
+	    }
+
+	    AckReport report = new AckReport();
+	    int reportSize = report.getSerializedSize();
+	    for (Map.Entry<UUID, BitSet> entry : window.entrySet()) {
+		int entrySize = AckReport.getEntrySize(entry.getValue());
+		if (!report.isEmpty() && reportSize + entrySize > MAX_REPORT_SIZE) {
+		    reports.add(report);
+		    report = new AckReport();
+		    reportSize = report.getSerializedSize();
+		}
+		report.add(entry.getKey(), entry.getValue());
+		reportSize += entrySize;
+	    }
+	    reports.add(report);
+
+	    this.sentWindows.addLast(new LinkedHashMap<>(this.pending));
+	    if (this.sentWindows.size() > NR_REPEATS) {
+		this.sentWindows.removeFirst();
+	    }
+	    boolean repeat = false;
+	    for (Map<UUID, BitSet> sentWindow : this.sentWindows) {
+		repeat |= !sentWindow.isEmpty();
+	    }
+	    if (!repeat) {
+		this.sentWindows.clear();
+	    }
+	    this.pending.clear();
+	    this.windowEnd = System.currentTimeMillis() + this.windowMillis;
+	}
+
+	for (AckReport report : reports) {
+	    byte[] serializedReport = report.serialize();
+	    this.socket.send(new DatagramPacket(serializedReport, serializedReport.length, this.parent));
+	    this.reportsSent.incrementAndGet();
+	}
+    }
+
+    /**
+     * @return the ACKs of this receiver, the ones repeated on announcements
+     *         included
+     */
+    public long getAcks() {
+	return this.acks.get();
+    }
+
+    /**
+     * @return the reports received from the children
+     */
+    public long getReportsReceived() {
+	return this.reportsReceived.get();
+    }
+
+    /**
+     * @return the reports sent to the parent
+     */
+    public long getReportsSent() {
+	return this.reportsSent.get();
+    }
+
+    public InetSocketAddress getParent() {
+	return this.parent;
+    }
+
+    /**
+     * Sends the pending ACKs and stops the aggregator
+     */
+    @Override
+    public void close() {
+	this.running = false;
+	try {
+	    this.aggregatorThread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+	try {
+	    flush(true);
+	} catch (IOException e) {
+	    logger.log(Level.WARNING, "Could not send the last ACKs to " + this.parent, e);
+	}
+	this.socket.close();
+    }
+}
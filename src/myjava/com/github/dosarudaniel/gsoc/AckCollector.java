@@ -0,0 +1,257 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * AckCollector class - sender side of the completion acknowledgements: keeps
+ * the bitmap of the receivers that completed each published Blob, from the
+ * AckReports of the AckAggregators (see AckAggregator for the tree).
+ *
+ * A Blob is tracked from expect, called when it is published, until all the
+ * nrReceivers receivers (ids 0 to nrReceivers - 1) acknowledged it; the time
+ * in between is its latency to full coverage. The last MAX_BLOBS Blobs and the
+ * last MAX_LATENCIES latencies are kept.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class AckCollector implements Closeable {
+    private SingletonLogger singletonLogger = new SingletonLogger();
+    private Logger logger = this.singletonLogger.getLogger();
+
+    public static final int MAX_BLOBS = 4096;
+    public static final int MAX_LATENCIES = 10_000;
+
+    private final DatagramSocket socket;
+    private final int nrReceivers;
+
+    /**
+     * The receivers that completed one Blob
+     */
+    private static final class Completion {
+	final long publishedNanos;
+	final BitSet receivers = new BitSet();
+	long completedNanos = 0;
+
+	Completion(long publishedNanos) {
+	    this.publishedNanos = publishedNanos;
+	}
+    }
+
+    // least recently published first, guarded by this
+    private final Map<UUID, Completion> completions = new LinkedHashMap<UUID, Completion>() {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<UUID, Completion> eldest) {
+	    return size() > MAX_BLOBS;
+	}
+    };
+
+    // ring of the last latencies to full coverage, guarded by this
+    private final long[] latenciesNanos = new long[MAX_LATENCIES];
+    private int nrLatencies = 0;
+
+    private long reportsReceived = 0;
+    private long blobsComplete = 0;
+    // ACKs of Blobs that were not expected, or forgotten
+    private long unknownAcks = 0;
+
+    private final Thread collectorThread;
+    private volatile boolean running = true;
+
+    /**
+     * Parameterized constructor - starts listening for ACK reports
+     *
+     * @param ackPort     - the UDP port on which the AckAggregators send
+     * @param nrReceivers - the number of receivers that must acknowledge a Blob
+     * @throws SocketException
+     */
+    public AckCollector(int ackPort, int nrReceivers) throws SocketException {
+	this.socket = new DatagramSocket(ackPort);
+	this.nrReceivers = nrReceivers;
+
+	this.collectorThread = new Thread(this::collectLoop, "AckCollector");
+	this.collectorThread.setDaemon(true);
+	this.collectorThread.start();
+    }
+
+    private void collectLoop() {
+	byte[] buf = new byte[Utils.PACKET_MAX_SIZE];
+
+	while (this.running) {
+	    try {
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		this.socket.receive(packet);
+		AckReport report = new AckReport(buf, packet.getLength());
+		synchronized (this) {
+		    this.reportsReceived++;
+		    for (Map.Entry<UUID, BitSet> entry : report.getEntries().entrySet()) {
+			merge(entry.getKey(), entry.getValue());
+		    }
+		}
+	    } catch (IOException e) {
+		if (this.running) {
+		    this.logger.log(Level.WARNING, "Could not process an ACK report", e);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Starts tracking a Blob, to be called when it is published
+     *
+     * @param uuid - the Blob
+     */
+    public synchronized void expect(UUID uuid) {
+	this.completions.put(uuid, new Completion(System.nanoTime()));
+    }
+
+    private void merge(UUID uuid, BitSet receivers) {
+	Completion completion = this.completions.get(uuid);
+	if (completion == null) {
+	    this.unknownAcks++;
+	    return;
+	}
+	completion.receivers.or(receivers);
+
+	if (completion.completedNanos == 0
+		&& completion.receivers.get(0, this.nrReceivers).cardinality() == this.nrReceivers) {
+	    completion.completedNanos = System.nanoTime();
+	    long latency = completion.completedNanos - completion.publishedNanos;
+	    this.latenciesNanos[this.nrLatencies++ % MAX_LATENCIES] = latency;
+	    this.blobsComplete++;
+	    notifyAll();
+	    this.logger.log(Level.INFO, "Blob " + uuid + " reached all the " + this.nrReceivers + " receivers in "
+		    + String.format("%.2f", Double.valueOf(latency / 1e6)) + " ms");
+	}
+    }
+
+    /**
+     * @param uuid - a published Blob
+     * @return a copy of the bitmap of the receivers that completed the Blob,
+     *         null if it is not tracked
+     */
+    public synchronized BitSet getCompletion(UUID uuid) {
+	Completion completion = this.completions.get(uuid);
+	return completion != null ? (BitSet) completion.receivers.clone() : null;
+    }
+
+    /**
+     * @param uuid - a published Blob
+     * @return the receivers that did not acknowledge the Blob yet, null if it is
+     *         not tracked
+     */
+    public synchronized BitSet getMissingReceivers(UUID uuid) {
+	Completion completion = this.completions.get(uuid);
+	if (completion == null) {
+	    return null;
+	}
+	BitSet missing = new BitSet();
+	missing.set(0, this.nrReceivers);
+	missing.andNot(completion.receivers);
+	return missing;
+    }
+
+    /**
+     * @param uuid - a published Blob
+     * @return true if all the receivers acknowledged the Blob
+     */
+    public synchronized boolean isComplete(UUID uuid) {
+	Completion completion = this.completions.get(uuid);
+	return completion != null && completion.completedNanos != 0;
+    }
+
+    /**
+     * @param percentile - between 0 and 100
+     * @return the latency to full coverage at this percentile in milliseconds,
+     *         over the last MAX_LATENCIES complete Blobs; 0 if none is complete
+     */
+    public synchronized double getLatencyMillis(double percentile) {
+	int count = Math.min(this.nrLatencies, MAX_LATENCIES);
+	if (count == 0) {
+	    return 0;
+	}
+	long[] sorted = Arrays.copyOf(this.latenciesNanos, count);
+	Arrays.sort(sorted);
+	int index = (int) Math.ceil(percentile / 100 * count) - 1;
+	return sorted[Math.max(0, Math.min(index, count - 1))] / 1e6;
+    }
+
+    /**
+     * Waits for all the tracked Blobs to reach all the receivers
+     *
+     * @param timeoutMillis - the longest wait
+     * @return true if no tracked Blob is incomplete
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+	long deadline = System.currentTimeMillis() + timeoutMillis;
+	long remaining;
+	while (getNrIncomplete() > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+	    wait(remaining);
+	}
+	return getNrIncomplete() == 0;
+    }
+
+    private int getNrIncomplete() {
+	int incomplete = 0;
+	for (Completion completion : this.completions.values()) {
+	    if (completion.completedNanos == 0) {
+		incomplete++;
+	    }
+	}
+	return incomplete;
+    }
+
+    public int getNrReceivers() {
+	return this.nrReceivers;
+    }
+
+    public synchronized long getBlobsComplete() {
+	return this.blobsComplete;
+    }
+
+    public synchronized long getReportsReceived() {
+	return this.reportsReceived;
+    }
+
+    public synchronized long getUnknownAcks() {
+	return this.unknownAcks;
+    }
+
+    /**
+     * @return the completions and the latencies to full coverage
+     */
+    public synchronized String getReport() {
+	return String.format(
+		"%d blobs reached all the %d receivers, %d tracked blobs are incomplete, %d ACK reports: latency to full coverage p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+		Long.valueOf(this.blobsComplete), Integer.valueOf(this.nrReceivers), Integer.valueOf(getNrIncomplete()),
+		Long.valueOf(this.reportsReceived), Double.valueOf(getLatencyMillis(50)),
+		Double.valueOf(getLatencyMillis(90)), Double.valueOf(getLatencyMillis(99)),
+		Double.valueOf(getLatencyMillis(100)));
+    }
+
+    @Override
+    public void close() {
+	this.running = false;
+	this.socket.close();
+	try {
+	    this.collectorThread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+}
@@ -0,0 +1,151 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * AckReport class - completion acknowledgements of one or more receivers,
+ * sent by unicast UDP up the tree of AckAggregators to the sender's
+ * AckCollector.
+ *
+ * Serialized structure:
+ *
+ * nrEntries (2) | [ uuid (16) | bitmapLength (2) | bitmap ]* | CRC32C (4)
+ *
+ * Every entry is a Blob and the bitmap of the receivers (by ACK_RECEIVER_ID)
+ * that have it complete, as BitSet.toByteArray.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class AckReport {
+    public static final int SIZE_OF_HEADER = 2;
+    public static final int SIZE_OF_ENTRY_HEADER = Utils.SIZE_OF_UUID + 2;
+    public static final int SIZE_OF_TRAILER = 4;
+
+    private final Map<UUID, BitSet> entries = new LinkedHashMap<>();
+
+    /**
+     * Unparameterized constructor - an empty report
+     */
+    public AckReport() {
+	// entries are added with add
+    }
+
+    /**
+     * Deserializes an ACK report
+     *
+     * @param buffer - the received datagram
+     * @param length - the datagram length
+     * @throws IOException if the report is truncated or corrupted
+     */
+    public AckReport(byte[] buffer, int length) throws IOException {
+	if (length < SIZE_OF_HEADER + SIZE_OF_TRAILER) {
+	    throw new IOException("ACK report of " + length + " bytes is too short");
+	}
+
+	byte[] crc = new byte[4];
+	ChecksumAlgorithm.Hasher hasher = ChecksumAlgorithm.CRC32C.getHasher();
+	hasher.update(buffer, 0, length - SIZE_OF_TRAILER);
+	hasher.digest(crc, 0);
+	for (int i = 0; i < 4; i++) {
+	    if (crc[i] != buffer[length - SIZE_OF_TRAILER + i]) {
+		throw new IOException("ACK report checksum failed!");
+	    }
+	}
+
+	ByteBuffer in = ByteBuffer.wrap(buffer, 0, length - SIZE_OF_TRAILER);
+	try {
+	    int nrEntries = in.getShort() & 0xFFFF;
+	    for (int i = 0; i < nrEntries; i++) {
+		UUID uuid = new UUID(in.getLong(), in.getLong());
+		byte[] bitmap = new byte[in.getShort() & 0xFFFF];
+		in.get(bitmap);
+		add(uuid, BitSet.valueOf(bitmap));
+	    }
+	} catch (BufferUnderflowException e) {
+	    throw new IOException("ACK report truncated", e);
+	}
+    }
+
+    /**
+     * Merges the receivers of a Blob into the report
+     *
+     * @param uuid      - the Blob
+     * @param receivers - the receivers that have it complete
+     */
+    public void add(UUID uuid, BitSet receivers) {
+	BitSet bitmap = this.entries.get(uuid);
+	if (bitmap == null) {
+	    this.entries.put(uuid, (BitSet) receivers.clone());
+	} else {
+	    bitmap.or(receivers);
+	}
+    }
+
+    /**
+     * @param receivers - a bitmap of receivers
+     * @return the size of its entry in a serialized report
+     */
+    public static int getEntrySize(BitSet receivers) {
+	return SIZE_OF_ENTRY_HEADER + (receivers.length() + 7) / 8;
+    }
+
+    /**
+     * @return the size of the serialized report
+     */
+    public int getSerializedSize() {
+	int size = SIZE_OF_HEADER + SIZE_OF_TRAILER;
+	for (BitSet receivers : this.entries.values()) {
+	    size += getEntrySize(receivers);
+	}
+	return size;
+    }
+
+    /**
+     * @return the serialized report
+     */
+    public byte[] serialize() {
+	ByteBuffer out = ByteBuffer.allocate(getSerializedSize());
+	out.putShort((short) this.entries.size());
+	for (Map.Entry<UUID, BitSet> entry : this.entries.entrySet()) {
+	    out.putLong(entry.getKey().getMostSignificantBits());
+	    out.putLong(entry.getKey().getLeastSignificantBits());
+	    byte[] bitmap = entry.getValue().toByteArray();
+	    out.putShort((short) bitmap.length);
+	    out.put(bitmap);
+	}
+
+	ChecksumAlgorithm.Hasher hasher = ChecksumAlgorithm.CRC32C.getHasher();
+	hasher.update(out.array(), 0, out.position());
+	hasher.digest(out.array(), out.position());
+	return out.array();
+    }
+
+    /**
+     * @return the receivers of every Blob in the report
+     */
+    public Map<UUID, BitSet> getEntries() {
+	return Collections.unmodifiableMap(this.entries);
+    }
+
+    public int size() {
+	return this.entries.size();
+    }
+
+    public boolean isEmpty() {
+	return this.entries.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+	return "AckReport [" + this.entries + "]";
+    }
+}
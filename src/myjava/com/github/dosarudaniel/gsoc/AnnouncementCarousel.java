@@ -0,0 +1,209 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * AnnouncementCarousel class - periodically multicasts an ANNOUNCEMENT_CODE
+ * packet for the latest version of every key.
+ *
+ * A receiver that lost all the fragments of a Blob never hears of it, so the
+ * NACK based repair does not start. The announcements (key, UUID, metadata
+ * and payload lengths and checksums) let the receivers detect Blobs they miss
+ * or hold an older version of, and ask for them with a NACK without waiting
+ * for the next publication.
+ *
+ * The announcements have their own RatePacer, so they never take more than
+ * bitsPerSecond of the link. A cycle over all the keys starts at most every
+ * periodMillis; with many keys a cycle lasts longer than the period and the
+ * next one starts right after it. Without multicast the announcements are
+ * sent through the UnicastFanOut, and the budget counts every copy.
+ *
+ * An announcement is paced twice, on purpose: by this pacer, the share of the
+ * announcements, and then by the pacer of the channel or fan-out, the rate of
+ * the link shared with the data. The first keeps the announcements from
+ * crowding out the Blobs, the second keeps the two together under the link
+ * rate.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class AnnouncementCarousel implements Closeable {
+    private SingletonLogger singletonLogger = new SingletonLogger();
+    private Logger logger = this.singletonLogger.getLogger();
+
+    public static final long DEFAULT_BITS_PER_SECOND = 64_000;
+    public static final long DEFAULT_PERIOD_MILLIS = 1000;
+
+    private final Supplier<Collection<Blob>> latestBlobs;
+    private final SenderChannel channel;
+    // the announcement of a Blob goes to the group of its key, if not null
+    private final GroupMap groupMap;
+    // the announcements go to all the unicast receivers, if not null
+    private final UnicastFanOut fanOut;
+    private final RatePacer pacer;
+    private final long periodMillis;
+    private final FragmentEncoder encoder;
+
+    private final Thread carouselThread;
+    private volatile boolean running = true;
+
+    private final AtomicLong announcementsSent = new AtomicLong();
+    private final AtomicLong cycles = new AtomicLong();
+
+    /**
+     * Parameterized constructor - starts the carousel
+     *
+     * @param latestBlobs   - returns the latest version of every key, called once
+     *                      per cycle
+     * @param channel       - the channel to the multicast group
+     * @param bitsPerSecond - the bandwidth budget of the announcements
+     * @param periodMillis  - minimum time between the start of two cycles
+     * @throws NoSuchAlgorithmException
+     */
+    public AnnouncementCarousel(Supplier<Collection<Blob>> latestBlobs, SenderChannel channel, long bitsPerSecond,
+	    long periodMillis) throws NoSuchAlgorithmException {
+	this(latestBlobs, channel, null, null, bitsPerSecond, periodMillis);
+    }
+
+    /**
+     * Parameterized constructor - starts the carousel, every key is announced in
+     * its own multicast group
+     *
+     * @param latestBlobs   - returns the latest version of every key, called once
+     *                      per cycle
+     * @param groupMap      - the multicast group of every key
+     * @param bitsPerSecond - the bandwidth budget of the announcements, shared by
+     *                      all the groups
+     * @param periodMillis  - minimum time between the start of two cycles
+     * @throws NoSuchAlgorithmException
+     */
+    public AnnouncementCarousel(Supplier<Collection<Blob>> latestBlobs, GroupMap groupMap, long bitsPerSecond,
+	    long periodMillis) throws NoSuchAlgorithmException {
+	this(latestBlobs, null, groupMap, null, bitsPerSecond, periodMillis);
+    }
+
+    /**
+     * Parameterized constructor - starts the carousel, the announcements are
+     * sent to all the unicast receivers of the fan-out
+     *
+     * @param latestBlobs   - returns the latest version of every key, called once
+     *                      per cycle
+     * @param fanOut        - the unicast receivers
+     * @param bitsPerSecond - the bandwidth budget of the announcements, shared by
+     *                      all the receivers
+     * @param periodMillis  - minimum time between the start of two cycles
+     * @throws NoSuchAlgorithmException
+     */
+    public AnnouncementCarousel(Supplier<Collection<Blob>> latestBlobs, UnicastFanOut fanOut, long bitsPerSecond,
+	    long periodMillis) throws NoSuchAlgorithmException {
+	this(latestBlobs, null, null, fanOut, bitsPerSecond, periodMillis);
+    }
+
+    private AnnouncementCarousel(Supplier<Collection<Blob>> latestBlobs, SenderChannel channel, GroupMap groupMap,
+	    UnicastFanOut fanOut, long bitsPerSecond, long periodMillis) throws NoSuchAlgorithmException {
+	this.latestBlobs = latestBlobs;
+	this.channel = channel;
+	this.groupMap = groupMap;
+	this.fanOut = fanOut;
+	this.pacer = new RatePacer(bitsPerSecond, 0);
+	this.periodMillis = periodMillis;
+	this.encoder = new FragmentEncoder();
+
+	this.carouselThread = new Thread(this::carouselLoop, "AnnouncementCarousel");
+	this.carouselThread.setDaemon(true);
+	this.carouselThread.start();
+    }
+
+    private void carouselLoop() {
+	while (this.running) {
+	    long cycleStart = System.currentTimeMillis();
+	    for (Blob blob : this.latestBlobs.get()) {
+		if (!this.running) {
+		    return;
+		}
+		try {
+		    if (this.fanOut != null) {
+			this.encoder.encodeAnnouncement(blob, this::send);
+			this.fanOut.flush();
+		    } else {
+			SenderChannel blobChannel = this.groupMap != null ? this.groupMap.getChannel(blob.getKey())
+				: this.channel;
+			this.encoder.encodeAnnouncement(blob, fragment -> send(blobChannel, fragment));
+		    }
+		    this.announcementsSent.incrementAndGet();
+		} catch (IOException | RuntimeException e) {
+		    this.logger.log(Level.WARNING, "Could not announce blob " + blob.getUuid(), e);
+		}
+	    }
+	    this.cycles.incrementAndGet();
+
+	    // not interrupted by close(), that would close the shared channel
+	    synchronized (this) {
+		long sleep;
+		while (this.running && (sleep = cycleStart + this.periodMillis - System.currentTimeMillis()) > 0) {
+		    try {
+			wait(sleep);
+		    } catch (InterruptedException e) {
+			return;
+		    }
+		}
+	    }
+	}
+    }
+
+    private void send(SenderChannel blobChannel, ByteBuffer[] fragment) throws IOException {
+	int length = 0;
+	for (ByteBuffer buffer : fragment) {
+	    length += buffer.remaining();
+	}
+	this.pacer.acquire(length);
+	blobChannel.send(fragment);
+    }
+
+    private void send(ByteBuffer[] fragment) throws IOException {
+	int length = 0;
+	for (ByteBuffer buffer : fragment) {
+	    length += buffer.remaining();
+	}
+	// one datagram per receiver, UnicastFanOut.flush paces them again against
+	// the link rate
+	for (int r = this.fanOut.getReceivers().size(); r > 0; r--) {
+	    this.pacer.acquire(length);
+	}
+	this.fanOut.send(fragment);
+    }
+
+    public long getAnnouncementsSent() {
+	return this.announcementsSent.get();
+    }
+
+    public long getCycles() {
+	return this.cycles.get();
+    }
+
+    public RatePacer getPacer() {
+	return this.pacer;
+    }
+
+    @Override
+    public void close() {
+	synchronized (this) {
+	    this.running = false;
+	    notifyAll();
+	}
+	try {
+	    this.carouselThread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+}
@@ -5,15 +5,24 @@
  */
 package myjava.com.github.dosarudaniel.gsoc;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,22 +45,97 @@ public class Blob {
     public final static byte METADATA_CODE = 0;
     public final static byte DATA_CODE = 1;
     public final static byte SMALL_BLOB_CODE = 2;
+    public final static byte PARITY_CODE = 3;
+    // the latest version of a key, see AnnouncementCarousel
+    public final static byte ANNOUNCEMENT_CODE = 4;
+    // several small Blobs in one packet, see FragmentEncoder.appendToMultiBlob
+    public final static byte MULTI_BLOB_CODE = 5;
+
+    // set in the packet type of the fragments of a compressed payload
+    public final static byte COMPRESSED_FLAG = 0x40;
+    // set in the packet type of the fragments of a delta payload, see DeltaCodec
+    public final static byte DELTA_FLAG = 0x20;
+    // set in the packet type of the v2 packets that carry the descriptor of the
+    // Blob (UUID, key, length and checksum), see FragmentEncoder
+    public final static byte DESCRIPTOR_FLAG = 0x10;
+    public final static byte PACKET_TYPE_MASK = 0x0F;
 
     private final UUID uuid;
     private final String key;
+    // identifies the Blob in the v2 headers sent by this process
+    private static final AtomicLong nextSessionBlobId = new AtomicLong();
+    private long sessionBlobId = nextSessionBlobId.incrementAndGet();
+    // the stream and sequence number of the Blob, 0 until it is published, see
+    // BlobSequence
+    private int sequenceStream = 0;
+    private int sequence = 0;
     private byte[] payloadChecksum = null;
     private byte[] metadataChecksum = null;
+    private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.DEFAULT_BLOB_CHECKSUM;
     private byte[] metadata = null;
     private byte[] payload = null;
+    // used instead of metadata / payload by a Blob kept off-heap, see
+    // RetransmissionStore and fromFile
+    private ByteBuffer offHeapMetadata = null;
+    private ByteBuffer offHeapPayload = null;
     private Timestamp timestamp;
 
+    // the payload as it is sent when compressed (see PayloadCodec); an off-heap
+    // Blob keeps only this form, in offHeapPayload
+    private PayloadCodec payloadCodec = PayloadCodec.NONE;
+    private byte[] compressedPayload = null;
+    private byte[] compressedPayloadChecksum = null;
+    // the payload encoded against a previous version of the key (see
+    // DeltaCodec) as it is sent, compressed if deltaCompressed
+    private byte[] deltaPayload = null;
+    private byte[] deltaPayloadChecksum = null;
+    private boolean deltaCompressed = false;
+
+    // receiver side: the form of the payload being assembled
+    private boolean receivingCompressed = false;
+    private boolean receivingDelta = false;
+    // the received payload was decompressed / rebuilt from its delta
+    private boolean payloadDecoded = false;
+    // the base of the delta is not known, only the full payload is accepted
+    private boolean fullPayloadRequired = false;
+    // finds the base of a received delta by UUID, see setDeltaBases
+    private Function<UUID, Blob> deltaBases = null;
+
+    // one reusable encoder per sending thread
+    private static final ThreadLocal<FragmentEncoder> encoders = new ThreadLocal<>();
+    // MAX_PAYLOAD_SIZE, 0 if not set to size the fragments to the MTU
+    private static final int maxPayloadSizeOverride = readMaxPayloadSize();
+
     private final ArrayList<Pair> metadataByteRanges = new ArrayList<>();
     private final ArrayList<Pair> payloadByteRanges = new ArrayList<>();
 
+    // parity of the received groups that still miss fragments, by group offset
+    private final TreeMap<Integer, ParityGroup> metadataParity = new TreeMap<>();
+    private final TreeMap<Integer, ParityGroup> payloadParity = new TreeMap<>();
+    private int recoveredFragments = 0;
+    // bytes added by the fragments (not parity), bytes that were already there
+    // and bytes rebuilt from the parity, for the loss reports
+    private long receivedBytes = 0;
+    private long duplicateBytes = 0;
+    private long recoveredBytes = 0;
+
+    /**
+     * The XOR of nrFragments consecutive fragments, sent in a PARITY_CODE packet
+     */
+    private static final class ParityGroup {
+	final int nrFragments;
+	final byte[] parity;
+
+	ParityGroup(int nrFragments, byte[] parity) {
+	    this.nrFragments = nrFragments;
+	    this.parity = parity;
+	}
+    }
+
     /**
      * Parameterized constructor - creates a Blob object to be sent that contains a
-     * payload and a checksum. The checksum is the Utils.CHECKSUM_TYPE of the
-     * payload.
+     * payload and a checksum. The checksum is computed with
+     * ChecksumAlgorithm.DEFAULT_BLOB_CHECKSUM.
      *
      * @param payload  - The data byte array
      * @param metadata - The metadata byte array
@@ -65,9 +149,9 @@ public class Blob {
     public Blob(byte[] metadata, byte[] payload, String key, UUID uuid)
 	    throws NoSuchAlgorithmException, SecurityException, IOException {
 	this.metadata = metadata;
-	this.metadataChecksum = Utils.calculateChecksum(this.metadata);
+	this.metadataChecksum = Utils.calculateChecksum(this.metadata, this.checksumAlgorithm);
 	this.payload = payload;
-	this.payloadChecksum = Utils.calculateChecksum(this.payload);
+	this.payloadChecksum = Utils.calculateChecksum(this.payload, this.checksumAlgorithm);
 	this.key = key;
 	this.uuid = uuid;
 	this.metadataByteRanges.add(new Pair(0, this.metadata.length));
@@ -76,8 +160,8 @@ public class Blob {
 
     /**
      * Parameterized constructor - creates a Blob object to be sent that contains a
-     * payload and a checksum. The checksum is the Utils.CHECKSUM_TYPE of the
-     * payload.
+     * payload and a checksum. The checksum is computed with
+     * ChecksumAlgorithm.DEFAULT_BLOB_CHECKSUM.
      *
      * @param metadata - The metadata HaspMap
      * @param payload  - The data byte array
@@ -91,9 +175,9 @@ public class Blob {
     public Blob(Map<String, String> metadataMap, byte[] payload, String key, UUID uuid)
 	    throws NoSuchAlgorithmException, SecurityException, IOException {
 	this.metadata = Utils.serializeMetadata(metadataMap);
-	this.metadataChecksum = Utils.calculateChecksum(this.metadata);
+	this.metadataChecksum = Utils.calculateChecksum(this.metadata, this.checksumAlgorithm);
 	this.payload = payload;
-	this.payloadChecksum = Utils.calculateChecksum(this.payload);
+	this.payloadChecksum = Utils.calculateChecksum(this.payload, this.checksumAlgorithm);
 	this.key = key;
 	this.uuid = uuid;
 	this.metadataByteRanges.add(new Pair(0, this.metadata.length));
@@ -118,6 +202,80 @@ public class Blob {
 	this.uuid = uuid;
     }
 
+    /**
+     * Parameterized constructor - creates a Blob to be sent whose metadata and
+     * payload are kept in (direct) ByteBuffers instead of on the heap. The
+     * checksums are not computed again.
+     *
+     * @param key               - The key string
+     * @param uuid              - The UUID of the Blob
+     * @param metadata          - The metadata, from position 0 to the limit
+     * @param payload           - The payload as it is sent (compressed if
+     *                          payloadCodec is not NONE), from position 0 to the
+     *                          limit
+     * @param metadataChecksum  - The checksum of the metadata
+     * @param payloadChecksum   - The checksum of the payload as it is sent
+     * @param checksumAlgorithm - The algorithm of the two checksums
+     * @param payloadCodec      - The compression of the payload
+     */
+    public Blob(String key, UUID uuid, ByteBuffer metadata, ByteBuffer payload, byte[] metadataChecksum,
+	    byte[] payloadChecksum, ChecksumAlgorithm checksumAlgorithm, PayloadCodec payloadCodec) {
+	this.key = key;
+	this.uuid = uuid;
+	this.offHeapMetadata = metadata;
+	this.offHeapPayload = payload;
+	this.metadataChecksum = metadataChecksum;
+	this.payloadCodec = payloadCodec;
+	if (payloadCodec == PayloadCodec.NONE) {
+	    this.payloadChecksum = payloadChecksum;
+	} else {
+	    this.compressedPayloadChecksum = payloadChecksum;
+	}
+	this.checksumAlgorithm = checksumAlgorithm;
+	this.metadataByteRanges.add(new Pair(0, metadata.limit()));
+	this.payloadByteRanges.add(new Pair(0, payload.limit()));
+    }
+
+    /**
+     * Creates a Blob to be sent whose payload is the content of a file, mapped in
+     * memory instead of read on the heap. The fragments are copied from the
+     * mapping straight to the packets and the checksum is computed from it, so
+     * large files are published without copying them on the heap. The payload is
+     * sent as it is: compress() and encodeDelta() need it on the heap and leave
+     * it unchanged.
+     *
+     * The file must not be modified while the Blob is in use, the mapping stays
+     * valid after the file is deleted.
+     *
+     * @param metadataMap - The metadata HashMap
+     * @param file        - The file with the payload
+     * @param key         - The key string
+     * @param uuid        - The UUID of the Blob
+     * @return the Blob
+     * @throws IOException if the file cannot be mapped or is larger than
+     *                     Integer.MAX_VALUE
+     */
+    public static Blob fromFile(Map<String, String> metadataMap, File file, String key, UUID uuid)
+	    throws IOException {
+	MappedByteBuffer payload;
+	try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+	    long size = channel.size();
+	    if (size > Integer.MAX_VALUE) {
+		throw new IOException(file + " is too large for a Blob: " + size + " bytes");
+	    }
+	    // the mapping outlives the channel
+	    payload = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	}
+
+	ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.DEFAULT_BLOB_CHECKSUM;
+	byte[] metadata = Utils.serializeMetadata(metadataMap);
+	Blob blob = new Blob(key, uuid, ByteBuffer.wrap(metadata), payload,
+		checksumAlgorithm.blobChecksum(metadata), checksumAlgorithm.blobChecksum(payload), checksumAlgorithm,
+		PayloadCodec.NONE);
+	blob.setMetadata(metadata);
+	return blob;
+    }
+
     /**
      * Send method - fragment (if necessary) and send the missingBlock from metadata
      * or payload as packetType parameter specifies
@@ -134,203 +292,291 @@ public class Blob {
      */
     public void send(int maxPayloadSize, Pair missingBlock, byte packetType, String targetIp, int port)
 	    throws IOException, NoSuchAlgorithmException {
+	send(maxPayloadSize, missingBlock, packetType, SenderChannelRegistry.getChannel(targetIp, port));
+    }
 
-	if (packetType == METADATA_CODE) {
-	    // fragment [missingBlock.first, missingBlock.second]
-	    // build packet
-	    // Utils.sendFragmentMulticast(packet, targetIp, port);
-	    byte[] metadataToSend = new byte[missingBlock.second - missingBlock.first];
-	    System.arraycopy(this.metadata, missingBlock.first, metadataToSend, 0,
-		    missingBlock.second - missingBlock.first);
-	    /*
-	     * fragment metadata
-	     */
-	    byte[] commonHeader = new byte[Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER - Utils.SIZE_OF_FRAGMENT_OFFSET
-		    - Utils.SIZE_OF_PAYLOAD_CHECKSUM];
-	    // 2. 1 byte, packet type or flags
-	    commonHeader[0] = METADATA_CODE;
-	    // 3. 16 bytes, uuid
-	    System.arraycopy(Utils.getBytes(this.uuid), 0, commonHeader, Utils.SIZE_OF_PACKET_TYPE, Utils.SIZE_OF_UUID);
-	    // 4. 4 bytes, blob metadata Length
-	    System.arraycopy(Utils.intToByteArray(this.metadata.length), 0, commonHeader,
-		    Utils.SIZE_OF_PACKET_TYPE + Utils.SIZE_OF_UUID, Utils.SIZE_OF_BLOB_PAYLOAD_LENGTH);
-	    // 5. 2 bytes, keyLength
-	    System.arraycopy(Utils.shortToByteArray((short) this.key.getBytes().length), 0, commonHeader,
-		    Utils.SIZE_OF_PACKET_TYPE + Utils.SIZE_OF_UUID + Utils.SIZE_OF_BLOB_PAYLOAD_LENGTH,
-		    Utils.SIZE_OF_KEY_LENGTH);
-
-	    int indexMetadata = 0;
-
-	    while (indexMetadata < metadataToSend.length) {
-		int maxPayloadSize_copy = maxPayloadSize;
-		if (maxPayloadSize_copy + indexMetadata > metadataToSend.length) {
-		    maxPayloadSize_copy = metadataToSend.length - indexMetadata;
-		}
-
-		byte[] packet = new byte[Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER_AND_TRAILER + maxPayloadSize_copy
-			+ this.key.getBytes().length];
-
-		// 1. fragment offset
-		System.arraycopy(Utils.intToByteArray(indexMetadata), 0, packet, Utils.FRAGMENT_OFFSET_START_INDEX,
-			Utils.SIZE_OF_FRAGMENT_OFFSET);
-		// Fields 2,3,4,5 from commonHeader:packet type, uuid, blob metadata Length,
-		// keyLength
-		System.arraycopy(commonHeader, 0, packet, Utils.PACKET_TYPE_START_INDEX, commonHeader.length);
-		// payload checksum
-		System.arraycopy(this.metadataChecksum, 0, packet, Utils.PAYLOAD_CHECKSUM_START_INDEX,
-			Utils.SIZE_OF_PAYLOAD_CHECKSUM);
-		// the key
-		System.arraycopy(this.key.getBytes(), 0, packet, Utils.KEY_START_INDEX, this.key.getBytes().length);
-		// the payload metadata
-		System.arraycopy(metadataToSend, indexMetadata, packet,
-			Utils.KEY_START_INDEX + this.key.getBytes().length, maxPayloadSize_copy);
-		// the packet checksum
-		System.arraycopy(
-			Utils.calculateChecksum(
-				Arrays.copyOfRange(packet, 0, packet.length - Utils.SIZE_OF_PACKET_CHECKSUM)),
-			0, packet, Utils.KEY_START_INDEX + this.key.getBytes().length + maxPayloadSize_copy,
-			Utils.SIZE_OF_PACKET_CHECKSUM);
-		// send the metadata packet
-		Utils.sendFragmentMulticast(packet, targetIp, port);
-
-		indexMetadata = indexMetadata + maxPayloadSize;
-	    }
-
-	} else if (packetType == DATA_CODE) {
-	    // fragment [missingBlock.first, missingBlock.second]
-	    // build packet
-	    // Utils.sendFragmentMulticast(packet, targetIp, port);
-	    byte[] payloadToSend = new byte[missingBlock.second - missingBlock.first];
-	    System.arraycopy(this.payload, missingBlock.first, payloadToSend, 0,
-		    missingBlock.second - missingBlock.first);
-	    /*
-	     * fragment metadata
-	     */
-	    byte[] commonHeader = new byte[Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER - Utils.SIZE_OF_FRAGMENT_OFFSET
-		    - Utils.SIZE_OF_PAYLOAD_CHECKSUM];
-	    // 2. 1 byte, packet type or flags
-	    commonHeader[0] = DATA_CODE;
-	    // 3. 16 bytes, uuid
-	    System.arraycopy(Utils.getBytes(this.uuid), 0, commonHeader, Utils.SIZE_OF_PACKET_TYPE, Utils.SIZE_OF_UUID);
-	    // 4. 4 bytes, blob payload Length
-	    System.arraycopy(Utils.intToByteArray(this.payload.length), 0, commonHeader,
-		    Utils.SIZE_OF_PACKET_TYPE + Utils.SIZE_OF_UUID, Utils.SIZE_OF_BLOB_PAYLOAD_LENGTH);
-	    // 5. 2 bytes, keyLength
-	    System.arraycopy(Utils.shortToByteArray((short) this.key.getBytes().length), 0, commonHeader,
-		    Utils.SIZE_OF_PACKET_TYPE + Utils.SIZE_OF_UUID + Utils.SIZE_OF_BLOB_PAYLOAD_LENGTH,
-		    Utils.SIZE_OF_KEY_LENGTH);
-
-	    int indexPayload = 0;
-
-	    while (indexPayload < payloadToSend.length) {
-		int maxPayloadSize_copy = maxPayloadSize;
-		if (maxPayloadSize_copy + indexPayload > payloadToSend.length) {
-		    maxPayloadSize_copy = payloadToSend.length - indexPayload;
-		}
+    /**
+     * Send method - fragment (if necessary) and send the missingBlock from metadata
+     * or payload as packetType parameter specifies
+     *
+     * @param maxPayloadSize - the maximum payload supported by a fragmented
+     *                       packet, 0 for the largest one that fits in the
+     *                       channel's datagrams
+     * @param missingBlock   - the interval to be sent via multicast from metadata
+     *                       or payload
+     * @param packetType     - specify what kind of data is missing so that it
+     *                       should be send: METADATA_CODE or DATA_CODE
+     * @param channel        - the channel to the destination multicast group
+     * 
+     * @throws NoSuchAlgorithmException, IOException
+     */
+    public void send(int maxPayloadSize, Pair missingBlock, byte packetType, SenderChannel channel)
+	    throws IOException, NoSuchAlgorithmException {
+	FragmentEncoder encoder = getEncoder();
+	int fragmentSize = maxPayloadSize > 0 ? maxPayloadSize
+		: encoder.getMaxPayloadSize(channel.getMaxDatagramSize());
+	encoder.encode(fragmentSize, missingBlock, packetType, channel);
+    }
 
-		byte[] packet = new byte[Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER_AND_TRAILER + maxPayloadSize_copy
-			+ this.key.getBytes().length];
-
-		// 1. fragment offset
-		System.arraycopy(Utils.intToByteArray(indexPayload), 0, packet, Utils.FRAGMENT_OFFSET_START_INDEX,
-			Utils.SIZE_OF_FRAGMENT_OFFSET);
-		// Fields 2,3,4,5 from commonHeader:packet type, uuid, blob metadata Length,
-		// keyLength
-		System.arraycopy(commonHeader, 0, packet, Utils.PACKET_TYPE_START_INDEX, commonHeader.length);
-		// payload checksum
-		System.arraycopy(this.payloadChecksum, 0, packet, Utils.PAYLOAD_CHECKSUM_START_INDEX,
-			Utils.SIZE_OF_PAYLOAD_CHECKSUM);
-		// the key
-		System.arraycopy(this.key.getBytes(), 0, packet, Utils.KEY_START_INDEX, this.key.getBytes().length);
-		// the payload metadata
-		System.arraycopy(payloadToSend, indexPayload, packet,
-			Utils.KEY_START_INDEX + this.key.getBytes().length, maxPayloadSize_copy);
-		// the packet checksum
-		System.arraycopy(
-			Utils.calculateChecksum(
-				Arrays.copyOfRange(packet, 0, packet.length - Utils.SIZE_OF_PACKET_CHECKSUM)),
-			0, packet, Utils.KEY_START_INDEX + this.key.getBytes().length + maxPayloadSize_copy,
-			Utils.SIZE_OF_PACKET_CHECKSUM);
-
-		// send the metadata packet
-		Utils.sendFragmentMulticast(packet, targetIp, port);
-
-		indexPayload = indexPayload + maxPayloadSize;
-	    }
-	} else {
-	    throw new IOException("Packet type not recognized!");
-	}
+    /**
+     * Send method - fragment (if necessary) and send the missingBlock from metadata
+     * or payload to all the unicast receivers of the fan-out
+     *
+     * @param maxPayloadSize - the maximum payload supported by a fragmented
+     *                       packet, 0 for the largest one that reaches all the
+     *                       receivers
+     * @param missingBlock   - the interval to be sent from metadata or payload
+     * @param packetType     - specify what kind of data is missing so that it
+     *                       should be send: METADATA_CODE or DATA_CODE
+     * @param fanOut         - the receivers
+     *
+     * @throws NoSuchAlgorithmException, IOException
+     */
+    public void send(int maxPayloadSize, Pair missingBlock, byte packetType, UnicastFanOut fanOut)
+	    throws IOException, NoSuchAlgorithmException {
+	FragmentEncoder encoder = getEncoder();
+	int fragmentSize = maxPayloadSize > 0 ? maxPayloadSize
+		: encoder.getMaxPayloadSize(fanOut.getMaxDatagramSize());
+	encoder.encode(fragmentSize, missingBlock, packetType, fanOut);
+	fanOut.flush();
     }
 
     /**
      * Send method - fragments a blob into smaller serialized fragmentedBlobs and
-     * sends them via UDP multicast. Reads the maxPayloadSize from a file <--TODO
+     * sends them via UDP multicast
      *
      * @param targetIp - Destination multicast IP
      * @param port     - Socket port number
      * @throws IOException, NoSuchAlgorithmException
      */
     public void send(String targetIp, int port) throws NoSuchAlgorithmException, IOException {
-	String maxPayloadSizeEnvValue = System.getenv("MAX_PAYLOAD_SIZE");
-	int maxPayloadSize = 1200;
-	try {
-	    maxPayloadSize = Integer.parseInt(maxPayloadSizeEnvValue);
-	} catch (NumberFormatException e) {
-	    this.logger.log(Level.WARNING, "Environment variable MAX_PAYLOAD_SIZE was not set or is not a number.");
-	}
+	send(SenderChannelRegistry.getChannel(targetIp, port));
+    }
 
-	if (maxPayloadSize > this.payload.length + this.metadata.length) {
-	    // no need to fragment the Blob
-	    byte[] metadataAndPayload = new byte[this.payload.length + this.metadata.length];
+    /**
+     * Send method - fragments a blob into smaller serialized fragmentedBlobs and
+     * sends them through an already opened channel. The fragment size is
+     * MAX_PAYLOAD_SIZE if set, otherwise the largest one that fits in the
+     * channel's datagrams, so that the fragments are not fragmented again by IP.
+     *
+     * @param channel - the channel to the destination multicast group
+     * @throws IOException, NoSuchAlgorithmException
+     */
+    public void send(SenderChannel channel) throws NoSuchAlgorithmException, IOException {
+	BlobSequence.forDestination(channel.getDestination()).assign(this);
+	FragmentEncoder encoder = getEncoder();
+	int maxPayloadSize = maxPayloadSizeOverride > 0 ? maxPayloadSizeOverride
+		: encoder.getMaxPayloadSize(channel.getMaxDatagramSize());
+	encoder.encodeBlob(maxPayloadSize, channel);
+    }
 
-	    System.arraycopy(this.metadata, 0, metadataAndPayload, 0, this.metadata.length);
-	    System.arraycopy(this.payload, 0, metadataAndPayload, this.metadata.length, this.payload.length);
+    /**
+     * Send method - fragments a blob once and sends every fragment to all the
+     * unicast receivers of the fan-out
+     *
+     * @param fanOut - the receivers
+     * @throws IOException, NoSuchAlgorithmException
+     */
+    public void send(UnicastFanOut fanOut) throws NoSuchAlgorithmException, IOException {
+	fanOut.getSequence().assign(this);
+	FragmentEncoder encoder = getEncoder();
+	int maxPayloadSize = maxPayloadSizeOverride > 0 ? maxPayloadSizeOverride
+		: encoder.getMaxPayloadSize(fanOut.getMaxDatagramSize());
+	encoder.encodeBlob(maxPayloadSize, fanOut);
+	fanOut.flush();
+    }
 
-	    byte[] packet = new byte[Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER_AND_TRAILER + metadataAndPayload.length
-		    + this.key.getBytes().length];
-	    // Fill the fields:
-	    // 1. fragment offset will always be zero
-	    System.arraycopy(Utils.intToByteArray(0), 0, packet, Utils.FRAGMENT_OFFSET_START_INDEX,
-		    Utils.SIZE_OF_FRAGMENT_OFFSET);
+    /**
+     * Send method - queues the Blob in a TransmissionScheduler, which interleaves
+     * its fragments with the ones of the other Blobs being sent
+     *
+     * @param scheduler - the scheduler of the destination multicast group
+     * @param priority  - Blobs with a higher priority are sent first
+     * @param deadline  - among Blobs of the same priority, the ones with an
+     *                  earlier deadline are sent first
+     * @return a future completed once all the fragments were sent
+     */
+    public CompletableFuture<Blob> send(TransmissionScheduler scheduler, int priority, long deadline) {
+	return scheduler.submit(this, priority, deadline);
+    }
 
-	    // 2. 1 byte, packet type
-	    packet[Utils.PACKET_TYPE_START_INDEX] = SMALL_BLOB_CODE;
+    /**
+     * Compresses the payload once, before sending. The compressed form is kept
+     * only if it is smaller than the payload, otherwise the Blob is sent
+     * uncompressed.
+     *
+     * @param codec - the compression to try
+     * @return true if the payload will be sent compressed
+     */
+    public synchronized boolean compress(PayloadCodec codec) {
+	if (this.payload == null || this.payloadCodec != PayloadCodec.NONE) {
+	    return this.payloadCodec != PayloadCodec.NONE;
+	}
+	byte[] compressed = codec.encode(this.payload);
+	if (compressed == null) {
+	    return false;
+	}
+	this.compressedPayload = compressed;
+	this.compressedPayloadChecksum = Utils.calculateChecksum(compressed, this.checksumAlgorithm);
+	this.payloadCodec = codec;
+
+	if (this.deltaPayload != null && !this.deltaCompressed) {
+	    byte[] compressedDelta = codec.encode(this.deltaPayload);
+	    if (compressedDelta != null) {
+		setDeltaPayload(compressedDelta, Utils.calculateChecksum(compressedDelta, this.checksumAlgorithm),
+			true);
+	    }
+	    if (this.deltaPayload.length >= this.compressedPayload.length) {
+		setDeltaPayload(null, null, false);
+	    }
+	}
+	return true;
+    }
 
-	    // 3. 16 bytes, uuid
-	    System.arraycopy(Utils.getBytes(this.uuid), 0, packet, Utils.UUID_START_INDEX, Utils.SIZE_OF_UUID);
+    /**
+     * Encodes the payload against the payload of a previous version of the same
+     * key, which the receivers most probably have in their cache. The delta is
+     * kept only if it is smaller than the payload as it would be sent, and is
+     * then sent instead of it; a receiver without the base asks for the full
+     * payload with a NACK. Call it before compress().
+     *
+     * @param base - the previous version of the Blob
+     * @return true if the delta will be sent
+     */
+    public synchronized boolean encodeDelta(Blob base) {
+	if (this.payload == null || base == null || base.getUuid().equals(this.uuid)) {
+	    return false;
+	}
+	byte[] delta = DeltaCodec.encode(base.getUuid(), base.getPayload(), this.payload, this.payloadChecksum);
+	if (delta == null) {
+	    return false;
+	}
+	boolean compressed = false;
+	if (isCompressed()) {
+	    byte[] compressedDelta = this.payloadCodec.encode(delta);
+	    if (compressedDelta != null) {
+		delta = compressedDelta;
+		compressed = true;
+	    }
+	}
+	if (delta.length >= getTransmittedPayloadLength(DATA_CODE)) {
+	    return false;
+	}
+	setDeltaPayload(delta, Utils.calculateChecksum(delta, this.checksumAlgorithm), compressed);
+	return true;
+    }
 
-	    // 4. 4 bytes, blob payload + metadata Length
-	    System.arraycopy(Utils.intToByteArray(this.payload.length), 0, packet,
-		    Utils.BLOB_PAYLOAD_LENGTH_START_INDEX, Utils.SIZE_OF_BLOB_PAYLOAD_LENGTH);
+    /**
+     * @param deltaPayload  - the delta as it is sent, null to send the full
+     *                      payload
+     * @param checksum      - the checksum of deltaPayload
+     * @param compressed    - deltaPayload is compressed with the payload codec
+     */
+    synchronized void setDeltaPayload(byte[] deltaPayload, byte[] checksum, boolean compressed) {
+	this.deltaPayload = deltaPayload;
+	this.deltaPayloadChecksum = checksum;
+	this.deltaCompressed = compressed;
+    }
 
-	    // 5. 2 bytes, keyLength
-	    System.arraycopy(Utils.shortToByteArray((short) this.key.getBytes().length), 0, packet,
-		    Utils.KEY_LENGTH_START_INDEX, Utils.SIZE_OF_KEY_LENGTH);
+    /**
+     * @param deltaBases - returns the Blob with the given UUID from the
+     *                   receiver's cache, or null, to rebuild a received delta
+     */
+    public void setDeltaBases(Function<UUID, Blob> deltaBases) {
+	this.deltaBases = deltaBases;
+    }
 
-	    // 6. payload checksum
-	    System.arraycopy(this.payloadChecksum, 0, packet, Utils.PAYLOAD_CHECKSUM_START_INDEX,
-		    Utils.SIZE_OF_PAYLOAD_CHECKSUM);
+    /**
+     * Decodes the received payload, once the checksum of the form it was sent in
+     * was verified: decompresses it and rebuilds it from its delta. The Blob
+     * then looks like one that was sent uncompressed. If the base of the delta
+     * is not in the cache anymore, the payload is dropped and only the full
+     * payload is accepted from then on.
+     */
+    private void decodePayload() throws IOException {
+	if (!this.receivingCompressed && !this.receivingDelta) {
+	    this.payloadDecoded = true;
+	    return;
+	}
 
-	    // 7. the key
-	    System.arraycopy(this.key.getBytes(), 0, packet, Utils.KEY_START_INDEX, this.key.getBytes().length);
+	byte[] data = this.receivingCompressed ? PayloadCodec.decode(this.payload) : this.payload;
+	if (this.receivingDelta) {
+	    UUID baseUuid = DeltaCodec.getBaseUuid(data);
+	    Blob base = this.deltaBases != null ? this.deltaBases.apply(baseUuid) : null;
+	    if (base == null) {
+		this.logger.log(Level.INFO,
+			"Base " + baseUuid + " of the delta of " + this.uuid + " is missing, waiting for the full payload");
+		requireFullPayload();
+		return;
+	    }
+	    byte[] checksum = DeltaCodec.getPayloadChecksum(data);
+	    try {
+		data = DeltaCodec.apply(base.getPayload(), data);
+	    } catch (IOException e) {
+		this.logger.log(Level.WARNING, "Delta of " + this.uuid + " does not fit its base " + baseUuid, e);
+		requireFullPayload();
+		return;
+	    }
+	    if (!Arrays.equals(checksum, Utils.calculateChecksum(data, this.checksumAlgorithm))) {
+		this.logger.log(Level.WARNING, "Payload of " + this.uuid + " rebuilt from " + baseUuid
+			+ " failed the checksum, waiting for the full payload");
+		requireFullPayload();
+		return;
+	    }
+	}
 
-	    // 8. the payload and metadata
-	    System.arraycopy(metadataAndPayload, 0, packet, Utils.KEY_START_INDEX + this.key.getBytes().length,
-		    metadataAndPayload.length);
+	this.payload = data;
+	this.payloadChecksum = Utils.calculateChecksum(this.payload, this.checksumAlgorithm);
+	this.payloadByteRanges.clear();
+	this.payloadByteRanges.add(new Pair(0, this.payload.length));
+	this.payloadParity.clear();
+	this.receivingCompressed = false;
+	this.receivingDelta = false;
+	this.payloadDecoded = true;
+    }
 
-	    // 9. the packet checksum
-	    System.arraycopy(
-		    Utils.calculateChecksum(
-			    Arrays.copyOfRange(packet, 0, packet.length - Utils.SIZE_OF_PACKET_CHECKSUM)),
-		    0, packet, Utils.KEY_START_INDEX + this.key.getBytes().length + metadataAndPayload.length,
-		    Utils.SIZE_OF_PACKET_CHECKSUM);
+    /**
+     * Drops the received delta, the NACKs will then ask for the full payload
+     */
+    private void requireFullPayload() {
+	this.payload = null;
+	this.payloadChecksum = null;
+	this.payloadByteRanges.clear();
+	this.payloadParity.clear();
+	this.receivingCompressed = false;
+	this.receivingDelta = false;
+	this.fullPayloadRequired = true;
+    }
 
-	    // send the metadata packet
-	    Utils.sendFragmentMulticast(packet, targetIp, port);
-	} else {
-	    send(maxPayloadSize, new Pair(0, this.metadata.length), METADATA_CODE, targetIp, port);
-	    send(maxPayloadSize, new Pair(0, this.payload.length), DATA_CODE, targetIp, port);
+    /**
+     * @return the maximum fragment payload from MAX_PAYLOAD_SIZE, 0 (sized to the
+     *         MTU of the outgoing interface) if it is not set or not a number
+     */
+    private static int readMaxPayloadSize() {
+	String maxPayloadSizeEnvValue = System.getenv("MAX_PAYLOAD_SIZE");
+	if (maxPayloadSizeEnvValue == null) {
+	    return 0;
+	}
+	try {
+	    return Integer.parseInt(maxPayloadSizeEnvValue);
+	} catch (NumberFormatException e) {
+	    new SingletonLogger().getLogger().log(Level.WARNING,
+		    "Environment variable MAX_PAYLOAD_SIZE is not a number, the fragments are sized to the MTU.");
+	    return 0;
+	}
+    }
+
+    /**
+     * Returns the FragmentEncoder of the current thread, set up for this Blob
+     */
+    private FragmentEncoder getEncoder() throws NoSuchAlgorithmException {
+	FragmentEncoder encoder = encoders.get();
+	if (encoder == null) {
+	    encoder = new FragmentEncoder();
+	    encoders.set(encoder);
 	}
+	encoder.setBlob(this);
+	return encoder;
     }
 
     /**
@@ -340,7 +586,7 @@ public class Blob {
      * 
      * @throws NoSuchAlgorithmException, IOException
      */
-    public boolean isComplete() throws IOException, NoSuchAlgorithmException {
+    public synchronized boolean isComplete() throws IOException, NoSuchAlgorithmException {
 	// Thread t = Thread.currentThread();
 	if (this.metadata == null || this.payload == null) {
 	    // System.out.println(t.getId() + " case 1");
@@ -372,15 +618,22 @@ public class Blob {
 	}
 
 	// Verify checksums
-	if (!Arrays.equals(this.payloadChecksum, Utils.calculateChecksum(this.payload))) {
+	if (!Arrays.equals(this.payloadChecksum, Utils.calculateChecksum(this.payload, this.checksumAlgorithm))) {
 	    // System.out.println(t.getId() + " case 5");
 	    throw new IOException("Payload checksum failed");
 	}
 
-	if (!Arrays.equals(this.metadataChecksum, Utils.calculateChecksum(this.metadata))) {
+	if (!Arrays.equals(this.metadataChecksum, Utils.calculateChecksum(this.metadata, this.checksumAlgorithm))) {
 	    // System.out.println(t.getId() + " case 6");
 	    throw new IOException("Metadata checksum failed");
 	}
+
+	if (!this.payloadDecoded) {
+	    decodePayload();
+	    if (this.payload == null) {
+		return false;
+	    }
+	}
 	// System.out.println(t.getId() + " case 77");
 	return true;
     }
@@ -396,11 +649,39 @@ public class Blob {
      */
     public synchronized void addFragmentedBlob(FragmentedBlob fragmentedBlob)
 	    throws NoSuchAlgorithmException, UnsupportedEncodingException, IOException {
+	if (!fragmentedBlob.isResolved()) {
+	    throw new IOException("v2 fragment without descriptor, resolve it with a BlobDictionary first");
+	}
 	byte[] fragmentedPayload = fragmentedBlob.getPayload();
 	int fragmentOffset = fragmentedBlob.getFragmentOffset();
 	Pair pair = new Pair(fragmentOffset, fragmentOffset + fragmentedPayload.length);
 	Thread t = Thread.currentThread();
-	if (fragmentedBlob.getPachetType() == DATA_CODE) {
+	if (this.metadata == null && this.payload == null) {
+	    // the first fragment, verify the Blob with the sender's algorithm
+	    this.checksumAlgorithm = fragmentedBlob.getChecksumAlgorithm();
+	}
+	byte packetType = fragmentedBlob.getPachetType();
+	if (packetType == DATA_CODE || packetType == SMALL_BLOB_CODE
+		|| (packetType == PARITY_CODE && fragmentedPayload.length > 0 && fragmentedPayload[0] == DATA_CODE)) {
+	    if (this.payloadDecoded) {
+		// a late fragment or a repair of a payload that is already complete
+		if (packetType != PARITY_CODE) {
+		    this.duplicateBytes += fragmentedPayload.length;
+		}
+		return;
+	    }
+	    if (this.payload == null) {
+		if (fragmentedBlob.isDelta() && this.fullPayloadRequired) {
+		    return;
+		}
+		this.receivingCompressed = fragmentedBlob.isCompressed();
+		this.receivingDelta = fragmentedBlob.isDelta();
+	    } else if (fragmentedBlob.isDelta() != this.receivingDelta) {
+		// the other form of the payload (full or delta), sent for another receiver
+		return;
+	    }
+	}
+	if (packetType == DATA_CODE) {
 	    if (this.payload == null) {
 		this.payload = new byte[fragmentedBlob.getblobDataLength()];
 		this.payloadChecksum = fragmentedBlob.getPayloadChecksum();
@@ -409,43 +690,14 @@ public class Blob {
 	    if (this.payload.length != fragmentedBlob.getblobDataLength()) { // Another fragment
 		throw new IOException("payload.length should have size = " + fragmentedBlob.getblobDataLength());
 	    }
+	    countFragment(this.payloadByteRanges, pair);
 	    System.arraycopy(fragmentedPayload, 0, this.payload, fragmentOffset, fragmentedPayload.length);
+	    Utils.addRange(this.payloadByteRanges, pair);
 
-	    int index = -1;
-	    for (int i = 0; i < this.payloadByteRanges.size(); i++) {
-		if (this.payloadByteRanges.get(i).second == pair.first) {
-		    index = i;
-		    this.payloadByteRanges.set(i, new Pair(this.payloadByteRanges.get(i).first, pair.second));
-		    break;
-		} else if (this.payloadByteRanges.get(i).first == pair.second) {
-		    index = i;
-		    this.payloadByteRanges.set(i, new Pair(pair.first, this.payloadByteRanges.get(i).second));
-		    break;
-		}
-	    }
-
-	    if (index == -1) { // a new element at the end
-		this.payloadByteRanges.add(pair);
-	    } else {
-		Pair indexPair = this.payloadByteRanges.get(index);
-		// check if element at index i can be merged with another one
-		for (int i = 0; i < this.payloadByteRanges.size(); i++) {
-		    if (i != index) {
-			if (this.payloadByteRanges.get(i).first == indexPair.second) {
-			    this.payloadByteRanges.set(i,
-				    new Pair(indexPair.first, this.payloadByteRanges.get(i).second));
-			    this.payloadByteRanges.remove(index);
-			    break;
-			} else if (this.payloadByteRanges.get(i).second == indexPair.first) {
-			    this.payloadByteRanges.set(i,
-				    new Pair(this.payloadByteRanges.get(i).first, indexPair.second));
-			    this.payloadByteRanges.remove(index);
-			    break;
-			}
-		    }
-		}
+	    Map.Entry<Integer, ParityGroup> group = this.payloadParity.floorEntry(Integer.valueOf(fragmentOffset));
+	    if (group != null) {
+		recoverFragment(this.payload, this.payloadByteRanges, this.payloadParity, group.getKey());
 	    }
-
 	} else if (fragmentedBlob.getPachetType() == METADATA_CODE) {
 	    if (this.metadata == null) {
 		this.metadata = new byte[fragmentedBlob.getblobDataLength()];
@@ -454,53 +706,63 @@ public class Blob {
 	    if (this.metadata.length != fragmentedBlob.getblobDataLength()) { // Another fragment
 		throw new IOException("metadata.length should have size = " + fragmentedBlob.getblobDataLength());
 	    }
+	    countFragment(this.metadataByteRanges, pair);
 	    System.arraycopy(fragmentedPayload, 0, this.metadata, fragmentOffset, fragmentedPayload.length);
+	    Utils.addRange(this.metadataByteRanges, pair);
 
-	    int index = -1;
-	    for (int i = 0; i < this.metadataByteRanges.size(); i++) {
-		if (this.metadataByteRanges.get(i).second == pair.first) {
-		    index = i;
-		    this.metadataByteRanges.set(i, new Pair(this.metadataByteRanges.get(i).first, pair.second));
-		    break;
-		} else if (this.metadataByteRanges.get(i).first == pair.second) {
-		    index = i;
-		    this.metadataByteRanges.set(i, new Pair(pair.first, this.metadataByteRanges.get(i).second));
-		    break;
-		}
+	    Map.Entry<Integer, ParityGroup> group = this.metadataParity.floorEntry(Integer.valueOf(fragmentOffset));
+	    if (group != null) {
+		recoverFragment(this.metadata, this.metadataByteRanges, this.metadataParity, group.getKey());
 	    }
-
-	    if (index == -1) { // a new element at the end
-		this.metadataByteRanges.add(pair);
-	    } else {
-		// check if element at index i can be merged with another one
-		for (int i = 0; i < this.metadataByteRanges.size() && i != index; i++) {
-		    if (this.metadataByteRanges.get(i).first == this.metadataByteRanges.get(index).second) {
-			this.metadataByteRanges.set(i, new Pair(this.metadataByteRanges.get(index).first,
-				this.metadataByteRanges.get(i).second));
-			this.metadataByteRanges.remove(index);
-			break;
-		    } else if (this.metadataByteRanges.get(i).second == this.metadataByteRanges.get(index).first) {
-			this.metadataByteRanges.set(i, new Pair(this.metadataByteRanges.get(i).first,
-				this.metadataByteRanges.get(index).second));
-			this.metadataByteRanges.remove(index);
-			break;
-		    }
+	} else if (fragmentedBlob.getPachetType() == PARITY_CODE) {
+	    // the parity of a group of fragments, see FragmentEncoder
+	    byte protectedType = fragmentedPayload[0];
+	    int nrFragments = (fragmentedPayload[1] & 0xFF) << 8 | (fragmentedPayload[2] & 0xFF);
+	    ParityGroup parityGroup = new ParityGroup(nrFragments,
+		    Arrays.copyOfRange(fragmentedPayload, Utils.SIZE_OF_PARITY_PREFIX, fragmentedPayload.length));
+	    Integer groupStart = Integer.valueOf(fragmentOffset);
+
+	    if (protectedType == DATA_CODE) {
+		if (this.payload == null) {
+		    this.payload = new byte[fragmentedBlob.getblobDataLength()];
+		    this.payloadChecksum = fragmentedBlob.getPayloadChecksum();
+		}
+		if (this.payload.length != fragmentedBlob.getblobDataLength()) {
+		    throw new IOException("payload.length should have size = " + fragmentedBlob.getblobDataLength());
 		}
+		this.payloadParity.put(groupStart, parityGroup);
+		recoverFragment(this.payload, this.payloadByteRanges, this.payloadParity, groupStart);
+	    } else if (protectedType == METADATA_CODE) {
+		if (this.metadata == null) {
+		    this.metadata = new byte[fragmentedBlob.getblobDataLength()];
+		    this.metadataChecksum = fragmentedBlob.getPayloadChecksum();
+		}
+		if (this.metadata.length != fragmentedBlob.getblobDataLength()) {
+		    throw new IOException("metadata.length should have size = " + fragmentedBlob.getblobDataLength());
+		}
+		this.metadataParity.put(groupStart, parityGroup);
+		recoverFragment(this.metadata, this.metadataByteRanges, this.metadataParity, groupStart);
+	    } else {
+		throw new IOException("Parity of an unknown packet type " + protectedType);
 	    }
 	} else if (fragmentedBlob.getPachetType() == SMALL_BLOB_CODE) {
-	    if (this.metadata == null && this.payload == null) {
+	    if (this.payload == null) {
+		// the metadata may already be there if a delta was dropped
 		int metadataLength = fragmentedPayload.length - fragmentedBlob.getblobDataLength();
 		int payloadLength = fragmentedBlob.getblobDataLength();
-		this.metadata = new byte[metadataLength];
+		if (this.metadata == null) {
+		    this.metadata = new byte[metadataLength];
+		    System.arraycopy(fragmentedPayload, 0, this.metadata, fragmentOffset, metadataLength);
+		    this.metadataChecksum = Utils.calculateChecksum(this.metadata, this.checksumAlgorithm);
+		    this.metadataByteRanges.add(new Pair(0, metadataLength));
+		}
 		this.payload = new byte[payloadLength];
-
-		System.arraycopy(fragmentedPayload, 0, this.metadata, fragmentOffset, metadataLength);
 		System.arraycopy(fragmentedPayload, metadataLength, this.payload, fragmentOffset, payloadLength);
 		this.payloadChecksum = fragmentedBlob.getPayloadChecksum();
-		this.metadataChecksum = Utils.calculateChecksum(this.metadata);
 		this.payloadByteRanges.add(new Pair(0, payloadLength));
-		this.metadataByteRanges.add(new Pair(0, metadataLength));
+		this.receivedBytes += fragmentedPayload.length;
 	    } else {
+		this.duplicateBytes += fragmentedPayload.length;
 		this.logger.log(Level.WARNING,
 			"metadata and payload byte arrays should be null for an empty SMALL BLOB");
 	    }
@@ -509,43 +771,143 @@ public class Blob {
 	}
     }
 
-    public ArrayList<Pair> getMissingMetadataBlocks() {
-	if (this.metadata == null) {
-	    return null;
+    private void countFragment(ArrayList<Pair> ranges, Pair pair) {
+	if (isReceived(ranges, pair.first, pair.second)) {
+	    this.duplicateBytes += pair.second - pair.first;
+	} else {
+	    this.receivedBytes += pair.second - pair.first;
 	}
+    }
 
-	Collections.sort(this.metadataByteRanges, new Utils.PairComparator());
+    /**
+     * @return true if [first, second) is contained in one of the received ranges
+     */
+    private static boolean isReceived(ArrayList<Pair> ranges, int first, int second) {
+	for (Pair range : ranges) {
+	    if (range.first <= first && range.second >= second) {
+		return true;
+	    }
+	}
+	return false;
+    }
 
-	ArrayList<Pair> missingBlocks = new ArrayList<>();
+    /**
+     * Forward error correction - if exactly one fragment of the parity group
+     * starting at groupStart is missing, rebuilds it as the XOR of the parity
+     * and the other fragments of the group. The group is discarded once all its
+     * fragments are there.
+     *
+     * @param data       - metadata or payload
+     * @param ranges     - the received ranges of data
+     * @param groups     - the parity groups of data
+     * @param groupStart - the offset of the first fragment of the group
+     */
+    private void recoverFragment(byte[] data, ArrayList<Pair> ranges, TreeMap<Integer, ParityGroup> groups,
+	    Integer groupStart) {
+	ParityGroup group = groups.get(groupStart);
+	int fragmentSize = group.parity.length;
+	int start = groupStart.intValue();
+	int groupEnd = Math.min(start + group.nrFragments * fragmentSize, data.length);
+
+	int missingStart = -1;
+	for (int fragmentStart = start; fragmentStart < groupEnd; fragmentStart += fragmentSize) {
+	    if (!isReceived(ranges, fragmentStart, Math.min(fragmentStart + fragmentSize, groupEnd))) {
+		if (missingStart >= 0) {
+		    // more than one fragment is missing, wait for more
+		    return;
+		}
+		missingStart = fragmentStart;
+	    }
+	}
 
-	for (int i = 0; i < this.metadataByteRanges.size() - 1; i++) {
-	    if (this.metadataByteRanges.get(i).second != this.metadataByteRanges.get(i + 1).first) {
-		missingBlocks
-			.add(new Pair(this.metadataByteRanges.get(i).second, this.metadataByteRanges.get(i + 1).first));
+	if (missingStart >= 0) {
+	    byte[] rebuilt = group.parity.clone();
+	    for (int fragmentStart = start; fragmentStart < groupEnd; fragmentStart += fragmentSize) {
+		if (fragmentStart != missingStart) {
+		    int fragmentEnd = Math.min(fragmentStart + fragmentSize, groupEnd);
+		    for (int i = fragmentStart; i < fragmentEnd; i++) {
+			rebuilt[i - fragmentStart] ^= data[i];
+		    }
+		}
 	    }
+	    int missingEnd = Math.min(missingStart + fragmentSize, groupEnd);
+	    System.arraycopy(rebuilt, 0, data, missingStart, missingEnd - missingStart);
+	    Utils.addRange(ranges, new Pair(missingStart, missingEnd));
+	    this.recoveredFragments++;
+	    this.recoveredBytes += missingEnd - missingStart;
 	}
 
-	return missingBlocks;
+	groups.remove(groupStart);
+    }
 
+    /**
+     * @return the number of fragments rebuilt from the parity packets
+     */
+    public synchronized int getRecoveredFragments() {
+	return this.recoveredFragments;
     }
 
-    public ArrayList<Pair> getMissingPayloadBlocks() {
-	if (this.payload == null) {
-	    return null;
-	}
+    /**
+     * @return the metadata and payload bytes received for the first time, parity
+     *         packets excluded
+     */
+    public synchronized long getReceivedBytes() {
+	return this.receivedBytes;
+    }
 
-	Collections.sort(this.payloadByteRanges, new Utils.PairComparator());
+    /**
+     * @return the metadata and payload bytes received more than once
+     */
+    public synchronized long getDuplicateBytes() {
+	return this.duplicateBytes;
+    }
 
-	ArrayList<Pair> missingBlocks = new ArrayList<>();
+    /**
+     * @return the bytes of the fragments rebuilt from the parity packets
+     */
+    public synchronized long getRecoveredBytes() {
+	return this.recoveredBytes;
+    }
 
-	for (int i = 0; i < this.payloadByteRanges.size() - 1; i++) {
-	    if (this.payloadByteRanges.get(i).second != this.payloadByteRanges.get(i + 1).first) {
-		missingBlocks
-			.add(new Pair(this.payloadByteRanges.get(i).second, this.payloadByteRanges.get(i + 1).first));
+    /**
+     * @return the bytes of the metadata and payload not received yet, 0 for the
+     *         parts of unknown length
+     */
+    public synchronized long getMissingBytes() {
+	long missingBytes = 0;
+	if (this.metadata != null) {
+	    for (Pair range : Utils.getMissingRanges(this.metadataByteRanges, this.metadata.length)) {
+		missingBytes += range.second - range.first;
+	    }
+	}
+	if (this.payload != null && !this.payloadDecoded) {
+	    for (Pair range : Utils.getMissingRanges(this.payloadByteRanges, this.payload.length)) {
+		missingBytes += range.second - range.first;
 	    }
 	}
+	return missingBytes;
+    }
+
+    /**
+     * @return the byte ranges of the metadata that were not received yet, null if
+     *         no metadata fragment was received (the metadata length is unknown)
+     */
+    public synchronized ArrayList<Pair> getMissingMetadataBlocks() {
+	if (this.metadata == null) {
+	    return null;
+	}
+	return Utils.getMissingRanges(this.metadataByteRanges, this.metadata.length);
+    }
 
-	return missingBlocks;
+    /**
+     * @return the byte ranges of the payload that were not received yet, null if
+     *         no payload fragment was received (the payload length is unknown)
+     */
+    public synchronized ArrayList<Pair> getMissingPayloadBlocks() {
+	if (this.payload == null) {
+	    return null;
+	}
+	return Utils.getMissingRanges(this.payloadByteRanges, this.payload.length);
     }
 
     public void addByteRange(byte[] data, Pair missingBlock) {
@@ -564,22 +926,256 @@ public class Blob {
 	return this.uuid;
     }
 
+    /**
+     * @return the id of the Blob in the v2 headers, unique in this process
+     */
+    public long getSessionBlobId() {
+	return this.sessionBlobId;
+    }
+
+    /**
+     * @param sessionBlobId - the id of the Blob this one is a copy of, so that
+     *                      they are sent with the same id
+     */
+    void setSessionBlobId(long sessionBlobId) {
+	this.sessionBlobId = sessionBlobId;
+    }
+
+    /**
+     * @return true once the Blob was numbered by a BlobSequence
+     */
+    public boolean hasSequence() {
+	return this.sequenceStream != 0;
+    }
+
+    /**
+     * @return the stream of the BlobSequence that numbered the Blob, 0 if none
+     */
+    public int getSequenceStream() {
+	return this.sequenceStream;
+    }
+
+    /**
+     * @return the sequence number of the Blob in its stream
+     */
+    public int getSequence() {
+	return this.sequence;
+    }
+
+    /**
+     * @param stream   - the stream of the BlobSequence, or of the Blob this one
+     *                 is a copy of
+     * @param sequence - the sequence number in the stream
+     */
+    void setSequence(int stream, int sequence) {
+	this.sequenceStream = stream;
+	this.sequence = sequence;
+    }
+
     public Map<String, String> getMetadataMap() {
 	return Utils.deserializeMetadata(this.metadata);
     }
 
+    /**
+     * @return the metadata, copied to the heap if the Blob is kept off-heap
+     */
     public byte[] getMetadata() {
+	if (this.metadata == null && this.offHeapMetadata != null) {
+	    return copy(this.offHeapMetadata);
+	}
 	return this.metadata;
     }
 
+    /**
+     * @return a view on the metadata that does not copy it, positioned at 0
+     */
+    public ByteBuffer getMetadataBuffer() {
+	if (this.metadata == null && this.offHeapMetadata != null) {
+	    return this.offHeapMetadata.duplicate();
+	}
+	return ByteBuffer.wrap(this.metadata);
+    }
+
+    public int getMetadataLength() {
+	if (this.metadata == null && this.offHeapMetadata != null) {
+	    return this.offHeapMetadata.limit();
+	}
+	return this.metadata.length;
+    }
+
+    private static byte[] copy(ByteBuffer buffer) {
+	byte[] data = new byte[buffer.limit()];
+	buffer.duplicate().get(data);
+	return data;
+    }
+
     public void setMetadata(byte[] metadata) {
 	this.metadata = metadata;
     }
 
+    public byte[] getMetadataChecksum() {
+	return this.metadataChecksum;
+    }
+
+    public synchronized byte[] getPayloadChecksum() {
+	if (this.payloadChecksum == null && this.offHeapPayload != null) {
+	    // only the compressed payload is kept off-heap
+	    this.payloadChecksum = Utils.calculateChecksum(getPayload(), this.checksumAlgorithm);
+	}
+	return this.payloadChecksum;
+    }
+
+    public ChecksumAlgorithm getChecksumAlgorithm() {
+	return this.checksumAlgorithm;
+    }
+
+    /**
+     * Changes the algorithm of the metadata and payload checksums of a Blob to be
+     * sent and computes them again
+     *
+     * @param checksumAlgorithm - the Blob checksum algorithm
+     */
+    public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+	this.checksumAlgorithm = checksumAlgorithm;
+	if (this.metadata != null) {
+	    this.metadataChecksum = Utils.calculateChecksum(this.metadata, checksumAlgorithm);
+	}
+	if (this.payload != null) {
+	    this.payloadChecksum = Utils.calculateChecksum(this.payload, checksumAlgorithm);
+	}
+	if (this.compressedPayload != null) {
+	    this.compressedPayloadChecksum = Utils.calculateChecksum(this.compressedPayload, checksumAlgorithm);
+	}
+    }
+
+    /**
+     * @return the payload, copied to the heap if the Blob is kept off-heap
+     */
     public byte[] getPayload() {
+	if (this.payload == null && this.offHeapPayload != null) {
+	    if (isCompressed()) {
+		try {
+		    return PayloadCodec.decode(copy(this.offHeapPayload));
+		} catch (IOException e) {
+		    throw new UncheckedIOException(e);
+		}
+	    }
+	    return copy(this.offHeapPayload);
+	}
 	return this.payload;
     }
 
+    /**
+     * @return a view on the payload that does not copy it, positioned at 0
+     */
+    public ByteBuffer getPayloadBuffer() {
+	if (this.payload == null && this.offHeapPayload != null) {
+	    return isCompressed() ? ByteBuffer.wrap(getPayload()) : this.offHeapPayload.duplicate();
+	}
+	return ByteBuffer.wrap(this.payload);
+    }
+
+    /**
+     * @return the uncompressed length of the payload
+     */
+    public int getPayloadLength() {
+	if (this.payload == null && this.offHeapPayload != null) {
+	    return isCompressed() ? PayloadCodec.getUncompressedLength(this.offHeapPayload)
+		    : this.offHeapPayload.limit();
+	}
+	return this.payload.length;
+    }
+
+    public boolean isCompressed() {
+	return this.payloadCodec != PayloadCodec.NONE;
+    }
+
+    public PayloadCodec getPayloadCodec() {
+	return this.payloadCodec;
+    }
+
+    /**
+     * @return true if the payload is sent as a delta against a previous version
+     */
+    public boolean isDelta() {
+	return this.deltaPayload != null;
+    }
+
+    public boolean isDeltaCompressed() {
+	return this.deltaCompressed;
+    }
+
+    /**
+     * @return true while the payload being received is a delta (the NACKs then
+     *         ask for ranges of the delta)
+     */
+    public synchronized boolean isReceivingDelta() {
+	return this.receivingDelta;
+    }
+
+    /**
+     * @return the packet type of the payload as it is sent first: DATA_CODE, with
+     *         DELTA_FLAG if the delta is sent
+     */
+    public byte getDataCode() {
+	return isDelta() ? (byte) (DATA_CODE | DELTA_FLAG) : DATA_CODE;
+    }
+
+    private static boolean isDelta(byte dataCode) {
+	return (dataCode & DELTA_FLAG) != 0;
+    }
+
+    /**
+     * @param dataCode - DATA_CODE for the full payload, with DELTA_FLAG for the
+     *                 delta
+     * @return the flags of the packet type of that form of the payload
+     */
+    public byte getPayloadFlags(byte dataCode) {
+	if (isDelta(dataCode)) {
+	    return (byte) (DELTA_FLAG | (this.deltaCompressed ? COMPRESSED_FLAG : 0));
+	}
+	return isCompressed() ? COMPRESSED_FLAG : 0;
+    }
+
+    /**
+     * @param dataCode - DATA_CODE for the full payload, with DELTA_FLAG for the
+     *                 delta
+     * @return a view on that form of the payload as it is sent (compressed or
+     *         not) that does not copy it, positioned at 0
+     */
+    public ByteBuffer getTransmittedPayloadBuffer(byte dataCode) {
+	if (isDelta(dataCode)) {
+	    return ByteBuffer.wrap(this.deltaPayload);
+	}
+	if (this.offHeapPayload != null) {
+	    return this.offHeapPayload.duplicate();
+	}
+	if (this.compressedPayload != null) {
+	    return ByteBuffer.wrap(this.compressedPayload);
+	}
+	return ByteBuffer.wrap(this.payload);
+    }
+
+    public int getTransmittedPayloadLength(byte dataCode) {
+	if (isDelta(dataCode)) {
+	    return this.deltaPayload.length;
+	}
+	if (this.offHeapPayload != null) {
+	    return this.offHeapPayload.limit();
+	}
+	if (this.compressedPayload != null) {
+	    return this.compressedPayload.length;
+	}
+	return this.payload.length;
+    }
+
+    public byte[] getTransmittedPayloadChecksum(byte dataCode) {
+	if (isDelta(dataCode)) {
+	    return this.deltaPayloadChecksum;
+	}
+	return isCompressed() ? this.compressedPayloadChecksum : this.payloadChecksum;
+    }
+
     public void setPayload(byte[] payload) {
 	this.payload = payload;
     }
@@ -642,12 +1238,12 @@ public class Blob {
 	}
 
 	// Verify payload
-	if (!Arrays.equals(this.payload, blob.getPayload())) {
+	if (!Arrays.equals(getPayload(), blob.getPayload())) {
 	    return false;
 	}
 
 	// Verify metadata
-	if (!Arrays.equals(this.metadata, blob.getMetadata())) {
+	if (!Arrays.equals(getMetadata(), blob.getMetadata())) {
 	    return false;
 	}
 
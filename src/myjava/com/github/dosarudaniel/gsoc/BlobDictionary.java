@@ -0,0 +1,194 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * BlobDictionary class - receiver side of the v2 header: keeps the descriptors
+ * of the Blobs (UUID, key, and the length and checksum of every form of their
+ * data) by sender, session and blob id, and completes the v2 fragments that
+ * are sent without them.
+ *
+ * A fragment that arrives before any descriptor of its Blob and form (the
+ * fragments with the descriptor were lost, or are still processed by another
+ * thread) is parked, and given back when the descriptor is registered. The
+ * dictionary keeps the last MAX_BLOBS Blobs and at most MAX_PARKED parked
+ * fragments; the parked fragments of a Blob whose descriptor never comes are
+ * dropped, and recovered like lost ones.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class BlobDictionary {
+    public static final int MAX_BLOBS = 4096;
+    public static final int MAX_PARKED = 4096;
+
+    /**
+     * A Blob in the v2 headers of one sender
+     */
+    private static final class Id {
+	final InetAddress source;
+	final int session;
+	final long blobId;
+
+	Id(InetAddress source, int session, long blobId) {
+	    this.source = source;
+	    this.session = session;
+	    this.blobId = blobId;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+	    if (!(obj instanceof Id)) {
+		return false;
+	    }
+	    Id other = (Id) obj;
+	    return this.blobId == other.blobId && this.session == other.session && this.source.equals(other.source);
+	}
+
+	@Override
+	public int hashCode() {
+	    return (this.source.hashCode() * 31 + this.session) * 31 + Long.hashCode(this.blobId);
+	}
+    }
+
+    private static final class Form {
+	final int length;
+	final byte[] checksum;
+
+	Form(int length, byte[] checksum) {
+	    this.length = length;
+	    this.checksum = checksum;
+	}
+    }
+
+    private static final class Descriptor {
+	final UUID uuid;
+	final String key;
+	// by FragmentedBlob.getForm()
+	final Map<Byte, Form> forms = new HashMap<>();
+
+	Descriptor(UUID uuid, String key) {
+	    this.uuid = uuid;
+	    this.key = key;
+	}
+    }
+
+    // least recently used first
+    private final Map<Id, Descriptor> descriptors = new LinkedHashMap<Id, Descriptor>(16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<Id, Descriptor> eldest) {
+	    return size() > MAX_BLOBS;
+	}
+    };
+
+    // oldest first
+    private final Map<Id, List<DatagramPacket>> parked = new LinkedHashMap<>();
+    private int nrParked = 0;
+    private long nrParkedDropped = 0;
+
+    /**
+     * Keeps the descriptor of a v2 METADATA_CODE or DATA_CODE fragment
+     *
+     * @param fragment - a deserialized fragment, ignored if it is not a v2
+     *                 fragment with a descriptor
+     * @param source   - the host that sent it
+     * @return the fragments of the same Blob that were parked, to be processed
+     *         again
+     */
+    public synchronized List<DatagramPacket> register(FragmentedBlob fragment, InetAddress source) {
+	byte packetType = fragment.getPachetType();
+	if (!fragment.isHeaderV2() || !fragment.hasDescriptor()
+		|| (packetType != Blob.METADATA_CODE && packetType != Blob.DATA_CODE)) {
+	    return Collections.emptyList();
+	}
+
+	Id id = new Id(source, fragment.getSession(), fragment.getSessionBlobId());
+	Descriptor descriptor = this.descriptors.get(id);
+	if (descriptor == null || !descriptor.uuid.equals(fragment.getUuid())) {
+	    // a new Blob, or the session was restarted with the same random id
+	    descriptor = new Descriptor(fragment.getUuid(), fragment.getKey());
+	    this.descriptors.put(id, descriptor);
+	}
+	descriptor.forms.put(Byte.valueOf(fragment.getForm()),
+		new Form(fragment.getblobDataLength(), fragment.getPayloadChecksum()));
+
+	List<DatagramPacket> packets = this.parked.remove(id);
+	if (packets == null) {
+	    return Collections.emptyList();
+	}
+	this.nrParked -= packets.size();
+	return packets;
+    }
+
+    /**
+     * Sets the UUID, key, length and checksum of a v2 fragment sent without
+     * descriptor, or parks a copy of the packet if they are not known yet
+     *
+     * @param fragment - a deserialized fragment
+     * @param packet   - the received packet
+     * @return true if the fragment can be processed, false if it was parked
+     */
+    public synchronized boolean resolve(FragmentedBlob fragment, DatagramPacket packet) {
+	if (fragment.isResolved()) {
+	    return true;
+	}
+
+	Id id = new Id(packet.getAddress(), fragment.getSession(), fragment.getSessionBlobId());
+	Descriptor descriptor = this.descriptors.get(id);
+	Form form = descriptor != null ? descriptor.forms.get(Byte.valueOf(fragment.getForm())) : null;
+	if (form != null) {
+	    fragment.setUuid(descriptor.uuid);
+	    fragment.setKey(descriptor.key);
+	    fragment.setblobDataLength(form.length);
+	    fragment.setPayloadChecksum(form.checksum);
+	    return true;
+	}
+
+	park(id, packet);
+	return false;
+    }
+
+    private void park(Id id, DatagramPacket packet) {
+	// make room by dropping the Blobs parked for the longest time
+	Iterator<List<DatagramPacket>> oldest = this.parked.values().iterator();
+	while (this.nrParked >= MAX_PARKED && oldest.hasNext()) {
+	    int dropped = oldest.next().size();
+	    oldest.remove();
+	    this.nrParked -= dropped;
+	    this.nrParkedDropped += dropped;
+	}
+
+	// the receive buffer is much larger than the packet
+	byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+	this.parked.computeIfAbsent(id, k -> new ArrayList<>())
+		.add(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+	this.nrParked++;
+    }
+
+    /**
+     * @return the number of fragments waiting for a descriptor
+     */
+    public synchronized int getNrParked() {
+	return this.nrParked;
+    }
+
+    /**
+     * @return the number of parked fragments dropped to make room
+     */
+    public synchronized long getNrParkedDropped() {
+	return this.nrParkedDropped;
+    }
+}
@@ -0,0 +1,78 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BlobSequence class - numbers the Blobs a sender sends to one destination,
+ * so that the receivers notice the Blobs they lost entirely, e.g. a single
+ * SMALL_BLOB_CODE packet (see SequenceTracker).
+ *
+ * Every destination (multicast group and port, or unicast fan-out) of the
+ * sending process is a stream with a random 16 bit id, so that a receiver that
+ * joined several groups on the same port keeps their sequences apart and a
+ * restarted sender starts a new stream. The Blobs of a stream are numbered
+ * from 1 when they are published; the number is sent in every fragment (in the
+ * descriptor of the v2 header) and kept by the repairs. A Blob keeps the
+ * number of the first stream it is published to.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class BlobSequence {
+    private static final Map<InetSocketAddress, BlobSequence> destinations = new ConcurrentHashMap<>();
+
+    private final int stream;
+    private final AtomicInteger lastSequence = new AtomicInteger();
+
+    /**
+     * Unparameterized constructor - a new stream with a random id
+     */
+    public BlobSequence() {
+	// 0 marks the packets that are not sequenced
+	this.stream = 1 + ThreadLocalRandom.current().nextInt((1 << 16) - 1);
+    }
+
+    /**
+     * @param destination - a multicast group and port
+     * @return the stream of the destination, created on the first call
+     */
+    public static BlobSequence forDestination(InetSocketAddress destination) {
+	return destinations.computeIfAbsent(destination, k -> new BlobSequence());
+    }
+
+    /**
+     * Gives the next sequence number of the stream to the Blob, unless it
+     * already has one
+     *
+     * @param blob - a Blob about to be sent
+     */
+    public void assign(Blob blob) {
+	synchronized (blob) {
+	    if (!blob.hasSequence()) {
+		blob.setSequence(this.stream, this.lastSequence.incrementAndGet());
+	    }
+	}
+    }
+
+    public int getStream() {
+	return this.stream;
+    }
+
+    /**
+     * @return the sequence number of the last Blob of the stream, 0 if none was
+     *         sent
+     */
+    public int getLastSequence() {
+	return this.lastSequence.get();
+    }
+
+    @Override
+    public String toString() {
+	return "BlobSequence [stream " + this.stream + ", last " + this.lastSequence.get() + "]";
+    }
+}
@@ -6,10 +6,29 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * BurstSender class - sends the same payload to a multicast group at a given
+ * packet rate, to measure what the network and the receivers sustain.
+ *
+ * In calibration mode several threads, each with its own socket, send
+ * CalibrationProbes numbered per thread and timestamped, so that the
+ * Receiver reports the loss, the reordering, the duplicates and the jitter of
+ * the run (see CalibrationStats). The rate is shared by the threads.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-03-07
+ *
+ */
 public class BurstSender {
+    private SingletonLogger singletonLogger = new SingletonLogger();
+    private Logger logger = this.singletonLogger.getLogger();
+
     public static final String AB = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
 
     private String ip_address;
@@ -17,7 +36,9 @@ public class BurstSender {
     private int payloadLength;
     private int rate;
     private int timeToRun = 0;
-    public static int nrPacketsSent = 0;
+    private final RatePacer pacer;
+    private int nrCalibrationThreads = 0;
+    public static final AtomicLong nrPacketsSent = new AtomicLong();
     public static boolean counterRunning = false;
 
     private Thread thread = new Thread(new Runnable() {
@@ -26,16 +47,17 @@ public class BurstSender {
 
 	@Override
 	public void run() {
-	    int oldNrPacketsSent = 0;
+	    long oldNrPacketsSent = 0;
 	    while (BurstSender.counterRunning) {
 		try {
 		    Thread.sleep(1000);
 		} catch (InterruptedException e) {
 		    e.printStackTrace();
 		}
-		this.logger2.log(Level.INFO, "Sent " + (BurstSender.nrPacketsSent - oldNrPacketsSent)
-			+ " packets per second. \n" + "Total " + BurstSender.nrPacketsSent);
-		oldNrPacketsSent = BurstSender.nrPacketsSent;
+		long sent = BurstSender.nrPacketsSent.get();
+		this.logger2.log(Level.INFO, "Sent " + (sent - oldNrPacketsSent) + " packets per second. \n" + "Total "
+			+ sent + ", " + BurstSender.this.pacer);
+		oldNrPacketsSent = sent;
 	    }
 	}
     });
@@ -47,6 +69,16 @@ public class BurstSender {
 	this.payloadLength = payloadLength;
 	this.rate = rate;
 	this.timeToRun = timeToRun;
+	this.pacer = new RatePacer(0, rate);
+    }
+
+    /**
+     * Sends CalibrationProbes instead of the plain payload
+     *
+     * @param nrThreads - the number of sender threads, 0 for a plain burst
+     */
+    public void setCalibration(int nrThreads) {
+	this.nrCalibrationThreads = nrThreads;
     }
 
     public void work() {
@@ -54,9 +86,6 @@ public class BurstSender {
 
 	byte[] packet = payload.getBytes(Charset.forName(Utils.CHARSET));
 
-	long milis = 1_000 / this.rate;
-	int nanos = (1_000_000_000 / this.rate) % 1_000_000;
-
 	try (DatagramSocket socket = new DatagramSocket()) {
 	    InetAddress group = InetAddress.getByName(this.ip_address);
 	    DatagramPacket datagramPacket = new DatagramPacket(packet, packet.length, group, this.portNumber);
@@ -65,10 +94,14 @@ public class BurstSender {
 	    long t = System.currentTimeMillis();
 	    long end = t + 1000 * this.timeToRun;
 	    counterRunning = true;
-	    while (System.currentTimeMillis() < end) {
-		Thread.sleep(milis, nanos);
-		socket.send(datagramPacket);
-		nrPacketsSent++;
+	    if (this.nrCalibrationThreads > 0) {
+		calibrate(group, end);
+	    } else {
+		while (System.currentTimeMillis() < end) {
+		    this.pacer.acquire(packet.length);
+		    socket.send(datagramPacket);
+		    nrPacketsSent.incrementAndGet();
+		}
 	    }
 	    counterRunning = false;
 	    this.thread.join();
@@ -80,4 +113,57 @@ public class BurstSender {
 	    e.printStackTrace();
 	}
     }
+
+    /**
+     * Runs the sender threads of a calibration run until the end time
+     */
+    private void calibrate(InetAddress group, long end) throws InterruptedException {
+	long runId = ThreadLocalRandom.current().nextLong();
+	int nrThreads = this.nrCalibrationThreads;
+	// written by each thread at its index
+	long[] probesSent = new long[nrThreads];
+
+	Thread[] senders = new Thread[nrThreads];
+	for (int i = 0; i < nrThreads; i++) {
+	    final int thread = i;
+	    senders[i] = new Thread(() -> probesSent[thread] = sendProbes(group, end, runId, nrThreads, thread),
+		    "BurstSender-" + i);
+	    senders[i].start();
+	}
+	for (Thread sender : senders) {
+	    sender.join();
+	}
+
+	this.logger.log(Level.INFO,
+		String.format("Calibration run %016x: sent %d probes of %d bytes by %d threads %s",
+			Long.valueOf(runId), Long.valueOf(Arrays.stream(probesSent).sum()),
+			Integer.valueOf(Math.max(this.payloadLength, CalibrationProbe.MIN_LENGTH)),
+			Integer.valueOf(nrThreads), Arrays.toString(probesSent)));
+    }
+
+    /**
+     * Sends the probes of one thread
+     *
+     * @return the number of probes sent
+     */
+    private int sendProbes(InetAddress group, long end, long runId, int nrThreads, int thread) {
+	byte[] packet = Arrays.copyOf(
+		Utils.randomString(this.payloadLength).getBytes(Charset.forName(Utils.CHARSET)),
+		Math.max(this.payloadLength, CalibrationProbe.MIN_LENGTH));
+	int sequence = 0;
+
+	try (DatagramSocket socket = new DatagramSocket()) {
+	    DatagramPacket datagramPacket = new DatagramPacket(packet, packet.length, group, this.portNumber);
+	    while (System.currentTimeMillis() < end) {
+		this.pacer.acquire(packet.length);
+		CalibrationProbe.write(packet, runId, nrThreads, thread, sequence, System.nanoTime());
+		socket.send(datagramPacket);
+		sequence++;
+		nrPacketsSent.incrementAndGet();
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
+	return sequence;
+    }
 }
@@ -0,0 +1,124 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CalibrationProbe class - the packets of a network calibration run (see
+ * BurstSender.setCalibration and CalibrationStats).
+ *
+ * Serialized structure:
+ *
+ * magic (4) | runId (8) | nrThreads (2) | thread (2) | sequence (4) |
+ * sendNanos (8) | CRC32C (4) | padding
+ *
+ * Every sender thread numbers its probes from 0. sendNanos is the
+ * System.nanoTime of the sender when the probe was written: it is not
+ * comparable with the clock of the receiver, but the differences of transit
+ * times (the jitter) are. The checksum covers the header only, the padding
+ * (to the probe length) is not read. The magic number is not alphanumeric, so
+ * the probes are never confused with the random payloads of a plain burst.
+ *
+ * A probe is read into a reusable instance, to keep up with the packet rate.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class CalibrationProbe {
+    public static final int MAGIC = 0xCA1B0001;
+    public static final int SIZE_OF_HEADER = 28;
+    public static final int SIZE_OF_CHECKSUM = 4;
+    public static final int MIN_LENGTH = SIZE_OF_HEADER + SIZE_OF_CHECKSUM;
+
+    private long runId;
+    private int nrThreads;
+    private int thread;
+    private int sequence;
+    private long sendNanos;
+
+    /**
+     * Writes the header and the checksum of a probe at the start of the buffer,
+     * the rest of it is the padding
+     *
+     * @param buffer    - at least MIN_LENGTH bytes
+     * @param runId     - the calibration run
+     * @param nrThreads - the sender threads of the run
+     * @param thread    - the sender thread, from 0 to nrThreads - 1
+     * @param sequence  - the number of the probe in its thread
+     * @param sendNanos - the System.nanoTime of the sender
+     */
+    public static void write(byte[] buffer, long runId, int nrThreads, int thread, int sequence, long sendNanos) {
+	ByteBuffer out = ByteBuffer.wrap(buffer);
+	out.putInt(MAGIC);
+	out.putLong(runId);
+	out.putShort((short) nrThreads);
+	out.putShort((short) thread);
+	out.putInt(sequence);
+	out.putLong(sendNanos);
+
+	ChecksumAlgorithm.Hasher hasher = ChecksumAlgorithm.CRC32C.getHasher();
+	hasher.update(buffer, 0, SIZE_OF_HEADER);
+	hasher.digest(buffer, SIZE_OF_HEADER);
+    }
+
+    /**
+     * Reads a received packet into this instance
+     *
+     * @param buffer - the received datagram
+     * @param length - the datagram length
+     * @return false if the packet is not a valid probe, the fields are then
+     *         undefined
+     */
+    public boolean read(byte[] buffer, int length) {
+	if (length < MIN_LENGTH) {
+	    return false;
+	}
+	ByteBuffer in = ByteBuffer.wrap(buffer, 0, SIZE_OF_HEADER);
+	if (in.getInt() != MAGIC) {
+	    return false;
+	}
+
+	byte[] crc = new byte[SIZE_OF_CHECKSUM];
+	ChecksumAlgorithm.Hasher hasher = ChecksumAlgorithm.CRC32C.getHasher();
+	hasher.update(buffer, 0, SIZE_OF_HEADER);
+	hasher.digest(crc, 0);
+	for (int i = 0; i < SIZE_OF_CHECKSUM; i++) {
+	    if (crc[i] != buffer[SIZE_OF_HEADER + i]) {
+		return false;
+	    }
+	}
+
+	this.runId = in.getLong();
+	this.nrThreads = in.getShort() & 0xFFFF;
+	this.thread = in.getShort() & 0xFFFF;
+	this.sequence = in.getInt();
+	this.sendNanos = in.getLong();
+	return this.thread < this.nrThreads && this.sequence >= 0;
+    }
+
+    public long getRunId() {
+	return this.runId;
+    }
+
+    public int getNrThreads() {
+	return this.nrThreads;
+    }
+
+    public int getThread() {
+	return this.thread;
+    }
+
+    public int getSequence() {
+	return this.sequence;
+    }
+
+    public long getSendNanos() {
+	return this.sendNanos;
+    }
+
+    @Override
+    public String toString() {
+	return "CalibrationProbe [run " + Long.toHexString(this.runId) + ", thread " + this.thread + "/"
+		+ this.nrThreads + ", sequence " + this.sequence + "]";
+    }
+}
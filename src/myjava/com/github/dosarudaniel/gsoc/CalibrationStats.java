@@ -0,0 +1,228 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CalibrationStats class - receiver side of the network calibration runs:
+ * counts the CalibrationProbes of every run and sender thread and reports
+ * the loss, the reordering, the duplicates and the jitter of the run, to size
+ * the socket buffers of kernel_configuration.sh.
+ *
+ * A probe whose number was seen before is a duplicate. A probe older than the
+ * highest number of its thread is reordered, by the difference (its depth).
+ * The numbers below the highest one that never arrived are lost; the probes
+ * lost at the end of a thread cannot be told apart from probes not sent, so
+ * the sender logs its own count too. The jitter is computed per thread as in
+ * RFC 3550: D is the difference of the transit times of two consecutive
+ * probes and the jitter is its mean deviation, smoothed by 1/16. Every |D| is
+ * also counted in a histogram of power of 2 microseconds.
+ *
+ * A run is reported once no probe arrived for IDLE_MILLIS.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class CalibrationStats {
+    public static final long IDLE_MILLIS = 2000;
+    // <1 us, then [2^(i-1), 2^i) us, the last one is open
+    public static final int NR_JITTER_BUCKETS = 22;
+
+    private final CalibrationProbe probe = new CalibrationProbe();
+
+    /**
+     * The probes of one sender thread
+     */
+    private static final class Flow {
+	final BitSet seen = new BitSet();
+	int highest = -1;
+	long duplicates = 0;
+	long reordered = 0;
+	int maxReorderDepth = 0;
+	boolean hasTransit = false;
+	long lastTransitNanos;
+	double jitterNanos = 0;
+    }
+
+    /**
+     * The probes of one calibration run
+     */
+    private static final class Run {
+	final long runId;
+	final Flow[] flows;
+	final long[] jitterHistogram = new long[NR_JITTER_BUCKETS];
+	long firstNanos;
+	long lastNanos;
+	long lastMillis;
+	long bytes = 0;
+
+	Run(long runId, int nrThreads) {
+	    this.runId = runId;
+	    this.flows = new Flow[nrThreads];
+	}
+    }
+
+    // guarded by this
+    private final Map<Long, Run> runs = new LinkedHashMap<>();
+    private long runsReported = 0;
+
+    /**
+     * Counts a received packet if it is a probe
+     *
+     * @param buffer        - the received datagram
+     * @param length        - the datagram length
+     * @param receivedNanos - the System.nanoTime when it was received
+     * @return true if the packet is a probe
+     */
+    public synchronized boolean record(byte[] buffer, int length, long receivedNanos) {
+	if (!this.probe.read(buffer, length)) {
+	    return false;
+	}
+
+	Run run = this.runs.get(Long.valueOf(this.probe.getRunId()));
+	if (run == null || run.flows.length != this.probe.getNrThreads()) {
+	    run = new Run(this.probe.getRunId(), this.probe.getNrThreads());
+	    run.firstNanos = receivedNanos;
+	    this.runs.put(Long.valueOf(run.runId), run);
+	}
+	run.lastNanos = receivedNanos;
+	run.lastMillis = System.currentTimeMillis();
+
+	Flow flow = run.flows[this.probe.getThread()];
+	if (flow == null) {
+	    flow = new Flow();
+	    run.flows[this.probe.getThread()] = flow;
+	}
+
+	int sequence = this.probe.getSequence();
+	if (flow.seen.get(sequence)) {
+	    flow.duplicates++;
+	    return true;
+	}
+	flow.seen.set(sequence);
+	run.bytes += length;
+
+	if (sequence > flow.highest) {
+	    flow.highest = sequence;
+	} else {
+	    flow.reordered++;
+	    flow.maxReorderDepth = Math.max(flow.maxReorderDepth, flow.highest - sequence);
+	}
+
+	long transit = receivedNanos - this.probe.getSendNanos();
+	if (flow.hasTransit) {
+	    long d = Math.abs(transit - flow.lastTransitNanos);
+	    flow.jitterNanos += (d - flow.jitterNanos) / 16;
+	    run.jitterHistogram[getJitterBucket(d)]++;
+	}
+	flow.lastTransitNanos = transit;
+	flow.hasTransit = true;
+	return true;
+    }
+
+    /**
+     * @param nanos - the difference of two transit times
+     * @return its bucket in the jitter histogram
+     */
+    static int getJitterBucket(long nanos) {
+	long micros = nanos / 1000;
+	return Math.min(64 - Long.numberOfLeadingZeros(micros), NR_JITTER_BUCKETS - 1);
+    }
+
+    /**
+     * Forgets the runs that ended
+     *
+     * @param now - the current time in milliseconds
+     * @return the reports of the runs that received no probe for IDLE_MILLIS
+     */
+    public synchronized List<String> takeIdleReports(long now) {
+	List<String> reports = new ArrayList<>();
+	Iterator<Run> it = this.runs.values().iterator();
+	while (it.hasNext()) {
+	    Run run = it.next();
+	    if (now - run.lastMillis >= IDLE_MILLIS) {
+		reports.add(getReport(run));
+		it.remove();
+		this.runsReported++;
+	    }
+	}
+	return reports;
+    }
+
+    /**
+     * @param runId - a calibration run that is not reported yet
+     * @return the report of the run so far, null if it is unknown
+     */
+    public synchronized String getReport(long runId) {
+	Run run = this.runs.get(Long.valueOf(runId));
+	return run != null ? getReport(run) : null;
+    }
+
+    /**
+     * @return the runs still receiving
+     */
+    public synchronized List<Long> getRunIds() {
+	return new ArrayList<>(this.runs.keySet());
+    }
+
+    public synchronized long getRunsReported() {
+	return this.runsReported;
+    }
+
+    private static String getReport(Run run) {
+	long expected = 0;
+	long received = 0;
+	long duplicates = 0;
+	long reordered = 0;
+	int maxReorderDepth = 0;
+	double jitterNanos = 0;
+	int nrFlows = 0;
+	for (Flow flow : run.flows) {
+	    if (flow == null) {
+		continue;
+	    }
+	    nrFlows++;
+	    expected += flow.highest + 1;
+	    received += flow.seen.cardinality();
+	    duplicates += flow.duplicates;
+	    reordered += flow.reordered;
+	    maxReorderDepth = Math.max(maxReorderDepth, flow.maxReorderDepth);
+	    jitterNanos += flow.jitterNanos;
+	}
+	long lost = expected - received;
+	double seconds = (run.lastNanos - run.firstNanos) / 1e9;
+
+	StringBuilder histogram = new StringBuilder();
+	for (int i = 0; i < NR_JITTER_BUCKETS; i++) {
+	    if (run.jitterHistogram[i] == 0) {
+		continue;
+	    }
+	    if (histogram.length() > 0) {
+		histogram.append(", ");
+	    }
+	    if (i == 0) {
+		histogram.append("<1");
+	    } else if (i == NR_JITTER_BUCKETS - 1) {
+		histogram.append(">=").append(1L << (i - 1));
+	    } else {
+		histogram.append(1L << (i - 1)).append('-').append(1L << i);
+	    }
+	    histogram.append(" us: ").append(run.jitterHistogram[i]);
+	}
+
+	return String.format(
+		"Calibration run %016x: %d of %d threads, %d packets expected, %d received, %d lost (%.3f %%), %d duplicates, %d reordered (max depth %d), %.0f packets per second, %.2f Mbps, jitter %.1f us; |D| histogram: %s",
+		Long.valueOf(run.runId), Integer.valueOf(nrFlows), Integer.valueOf(run.flows.length),
+		Long.valueOf(expected), Long.valueOf(received), Long.valueOf(lost),
+		Double.valueOf(expected > 0 ? 100.0 * lost / expected : 0), Long.valueOf(duplicates),
+		Long.valueOf(reordered), Integer.valueOf(maxReorderDepth),
+		Double.valueOf(seconds > 0 ? received / seconds : 0),
+		Double.valueOf(seconds > 0 ? run.bytes * 8 / seconds / 1e6 : 0),
+		Double.valueOf(nrFlows > 0 ? jitterNanos / nrFlows / 1000 : 0), histogram);
+    }
+}
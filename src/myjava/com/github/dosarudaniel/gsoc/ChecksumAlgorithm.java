@@ -0,0 +1,213 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.zip.CRC32C;
+
+/**
+ * ChecksumAlgorithm enum - the algorithms that can protect a packet or a Blob.
+ *
+ * The algorithm of the packet checksum and the one of the Blob checksum are
+ * sent in the ChecksumAlgorithms header field of every fragment (packet
+ * algorithm in the high nibble, Blob algorithm in the low nibble), so the
+ * receiver always verifies with the algorithm the sender used. The packet
+ * checksum trailer is getLength() bytes long, the Blob checksum header field
+ * stays Utils.SIZE_OF_PAYLOAD_CHECKSUM bytes and shorter checksums are padded
+ * with zeros.
+ *
+ * CRC32C is computed by the JDK intrinsic and is the default packet checksum,
+ * XXHASH64 is a fast non-cryptographic hash and the default Blob checksum.
+ * The defaults can be changed with the PACKET_CHECKSUM and BLOB_CHECKSUM
+ * environment variables (MD5, CRC32C or XXHASH64).
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public enum ChecksumAlgorithm {
+    MD5(0, 16), CRC32C(1, 4), XXHASH64(2, 8);
+
+    public static final ChecksumAlgorithm DEFAULT_PACKET_CHECKSUM = fromEnv("PACKET_CHECKSUM", CRC32C);
+    public static final ChecksumAlgorithm DEFAULT_BLOB_CHECKSUM = fromEnv("BLOB_CHECKSUM", XXHASH64);
+
+    private final int id;
+    private final int length;
+    private final ThreadLocal<Hasher> hashers = ThreadLocal.withInitial(this::newHasher);
+
+    /**
+     * Incremental computation of a checksum, not thread safe
+     */
+    public interface Hasher {
+	/**
+	 * Adds the remaining bytes of the buffer, the position is moved to the limit
+	 */
+	void update(ByteBuffer buffer);
+
+	void update(byte[] data, int offset, int length);
+
+	/**
+	 * Writes the checksum (getLength() bytes) at output[offset] and resets the
+	 * hasher for the next checksum
+	 */
+	void digest(byte[] output, int offset);
+    }
+
+    private ChecksumAlgorithm(int id, int length) {
+	this.id = id;
+	this.length = length;
+    }
+
+    /**
+     * @return the identifier of the algorithm in the ChecksumAlgorithms header
+     *         field
+     */
+    public int getId() {
+	return this.id;
+    }
+
+    /**
+     * @return the length of the checksum in bytes
+     */
+    public int getLength() {
+	return this.length;
+    }
+
+    /**
+     * @param id - identifier from the ChecksumAlgorithms header field
+     * @return the algorithm with that identifier
+     * @throws IllegalArgumentException if the identifier is not known
+     */
+    public static ChecksumAlgorithm fromId(int id) {
+	for (ChecksumAlgorithm algorithm : values()) {
+	    if (algorithm.id == id) {
+		return algorithm;
+	    }
+	}
+	throw new IllegalArgumentException("Unknown checksum algorithm " + id);
+    }
+
+    private static ChecksumAlgorithm fromEnv(String name, ChecksumAlgorithm defaultAlgorithm) {
+	String envValue = System.getenv(name);
+	if (envValue == null) {
+	    return defaultAlgorithm;
+	}
+	try {
+	    return valueOf(envValue.toUpperCase());
+	} catch (IllegalArgumentException e) {
+	    new SingletonLogger().getLogger().log(Level.WARNING,
+		    "Environment variable " + name + " is not a checksum algorithm, using " + defaultAlgorithm);
+	    return defaultAlgorithm;
+	}
+    }
+
+    /**
+     * @return a new Hasher for this algorithm
+     */
+    public Hasher newHasher() {
+	switch (this) {
+	case MD5:
+	    return new DigestHasher();
+	case CRC32C:
+	    return new Crc32cHasher();
+	default:
+	    return new XxHash64();
+	}
+    }
+
+    /**
+     * @return the Hasher of the current thread for this algorithm
+     */
+    public Hasher getHasher() {
+	return this.hashers.get();
+    }
+
+    /**
+     * Computes the checksum of data, padded with zeros to
+     * Utils.SIZE_OF_PAYLOAD_CHECKSUM bytes as in the Blob checksum header field
+     *
+     * @param data - the metadata or payload of a Blob
+     * @return the padded checksum
+     */
+    public byte[] blobChecksum(byte[] data) {
+	byte[] checksum = new byte[Utils.SIZE_OF_PAYLOAD_CHECKSUM];
+	Hasher hasher = getHasher();
+	hasher.update(data, 0, data.length);
+	hasher.digest(checksum, 0);
+	return checksum;
+    }
+
+    /**
+     * Same as blobChecksum(byte[]), reading the data from a (direct or mapped)
+     * buffer without copying it to the heap
+     *
+     * @param data - the metadata or payload of a Blob, from its position to its
+     *             limit; the position is not changed
+     * @return the padded checksum
+     */
+    public byte[] blobChecksum(ByteBuffer data) {
+	byte[] checksum = new byte[Utils.SIZE_OF_PAYLOAD_CHECKSUM];
+	Hasher hasher = getHasher();
+	hasher.update(data.duplicate());
+	hasher.digest(checksum, 0);
+	return checksum;
+    }
+
+    private static final class DigestHasher implements Hasher {
+	private final MessageDigest digest;
+
+	DigestHasher() {
+	    try {
+		this.digest = MessageDigest.getInstance(Utils.CHECKSUM_TYPE);
+	    } catch (NoSuchAlgorithmException e) {
+		// every Java platform has to support MD5
+		throw new IllegalStateException(e);
+	    }
+	}
+
+	@Override
+	public void update(ByteBuffer buffer) {
+	    this.digest.update(buffer);
+	}
+
+	@Override
+	public void update(byte[] data, int offset, int length) {
+	    this.digest.update(data, offset, length);
+	}
+
+	@Override
+	public void digest(byte[] output, int offset) {
+	    try {
+		this.digest.digest(output, offset, MD5.length);
+	    } catch (DigestException e) {
+		throw new IllegalStateException(e);
+	    }
+	}
+    }
+
+    private static final class Crc32cHasher implements Hasher {
+	private final CRC32C crc = new CRC32C();
+
+	@Override
+	public void update(ByteBuffer buffer) {
+	    this.crc.update(buffer);
+	}
+
+	@Override
+	public void update(byte[] data, int offset, int length) {
+	    this.crc.update(data, offset, length);
+	}
+
+	@Override
+	public void digest(byte[] output, int offset) {
+	    int value = (int) this.crc.getValue();
+	    output[offset] = (byte) (value >>> 24);
+	    output[offset + 1] = (byte) (value >>> 16);
+	    output[offset + 2] = (byte) (value >>> 8);
+	    output[offset + 3] = (byte) value;
+	    this.crc.reset();
+	}
+    }
+}
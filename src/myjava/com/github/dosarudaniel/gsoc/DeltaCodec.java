@@ -0,0 +1,246 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * DeltaCodec class - binary diff of a new version of a payload against the
+ * payload of a previous version of the same key (the base).
+ *
+ * The delta is sent instead of the payload, in DATA_CODE (or SMALL_BLOB_CODE)
+ * packets with Blob.DELTA_FLAG set in the packet type, and starts with a
+ * prefix:
+ *
+ * base uuid (16) | payload length (4) | payload checksum (16) | instructions
+ *
+ * where every instruction is either COPY [op (1) | base offset (4) | length
+ * (4)] or INSERT [op (1) | length (4) | bytes]. The payload checksum is the
+ * checksum of the rebuilt payload, with the Blob's checksum algorithm.
+ *
+ * The base is cut in BLOCK_SIZE blocks indexed by a rolling hash, the new
+ * payload is scanned byte by byte for blocks of the base and every match is
+ * extended in both directions, so insertions and deletions in the new version
+ * only cost the changed bytes.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class DeltaCodec {
+    public static final int BLOCK_SIZE = 32;
+
+    private static final byte COPY = 0;
+    private static final byte INSERT = 1;
+    private static final int SIZE_OF_COPY = 1 + 4 + 4;
+    private static final int SIZE_OF_INSERT_HEADER = 1 + 4;
+    // rolling hash multiplier
+    private static final int PRIME = 0x01000193;
+
+    private DeltaCodec() {
+    }
+
+    /**
+     * Computes the delta of payload against base
+     *
+     * @param baseUuid        - the UUID of the base version
+     * @param base            - the payload of the base version
+     * @param payload         - the payload of the new version
+     * @param payloadChecksum - the checksum of the new payload
+     * @return the prefix followed by the instructions, or null if the delta is
+     *         not smaller than the payload
+     */
+    public static byte[] encode(UUID baseUuid, byte[] base, byte[] payload, byte[] payloadChecksum) {
+	ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(payload.length, 64 * 1024));
+	ByteBuffer prefix = ByteBuffer.allocate(Utils.SIZE_OF_DELTA_PREFIX);
+	prefix.put(Utils.getBytes(baseUuid));
+	prefix.putInt(payload.length);
+	prefix.put(payloadChecksum, 0, Utils.SIZE_OF_PAYLOAD_CHECKSUM);
+	out.write(prefix.array(), 0, prefix.position());
+
+	int[] index = indexBlocks(base);
+	int mask = index.length - 1;
+	int pow = 1;
+	for (int i = 1; i < BLOCK_SIZE; i++) {
+	    pow *= PRIME;
+	}
+
+	// bytes of the payload from literalStart to i are not covered yet
+	int literalStart = 0;
+	int i = 0;
+	int hash = payload.length >= BLOCK_SIZE ? hash(payload, 0) : 0;
+	while (i + BLOCK_SIZE <= payload.length) {
+	    int candidate = index[mix(hash) & mask] - 1;
+	    if (candidate >= 0 && equals(base, candidate, payload, i, BLOCK_SIZE)) {
+		// extend the match backwards over the literal, then forwards
+		int start = i;
+		int baseStart = candidate;
+		while (start > literalStart && baseStart > 0 && base[baseStart - 1] == payload[start - 1]) {
+		    start--;
+		    baseStart--;
+		}
+		int end = i + BLOCK_SIZE;
+		int baseEnd = candidate + BLOCK_SIZE;
+		while (end < payload.length && baseEnd < base.length && base[baseEnd] == payload[end]) {
+		    end++;
+		    baseEnd++;
+		}
+
+		writeInsert(out, payload, literalStart, start);
+		writeCopy(out, baseStart, end - start);
+		if (out.size() >= payload.length) {
+		    return null;
+		}
+		literalStart = end;
+		i = end;
+		if (i + BLOCK_SIZE <= payload.length) {
+		    hash = hash(payload, i);
+		}
+		continue;
+	    }
+
+	    if (i + BLOCK_SIZE < payload.length) {
+		hash = (hash - payload[i] * pow) * PRIME + payload[i + BLOCK_SIZE];
+	    }
+	    i++;
+	}
+	writeInsert(out, payload, literalStart, payload.length);
+
+	if (out.size() >= payload.length) {
+	    return null;
+	}
+	return out.toByteArray();
+    }
+
+    /**
+     * Rebuilds the payload from the base and a delta produced by encode(). The
+     * checksum of the result is not verified.
+     *
+     * @param base  - the payload of the base version
+     * @param delta - the prefix followed by the instructions
+     * @return the payload of the new version
+     * @throws IOException if the delta is corrupted, does not fit the base or
+     *                     its payload is longer than
+     *                     Utils.MAX_BLOB_PAYLOAD_LENGTH
+     */
+    public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+	if (delta.length < Utils.SIZE_OF_DELTA_PREFIX) {
+	    throw new IOException("Delta too short: " + delta.length + " bytes");
+	}
+	ByteBuffer in = ByteBuffer.wrap(delta);
+	in.position(Utils.SIZE_OF_UUID);
+	int length = in.getInt();
+	if (length < 0 || length > Utils.MAX_BLOB_PAYLOAD_LENGTH) {
+	    throw new IOException("Delta of an invalid payload length " + length);
+	}
+	in.position(Utils.SIZE_OF_DELTA_PREFIX);
+
+	byte[] payload = new byte[length];
+	int offset = 0;
+	while (in.hasRemaining()) {
+	    byte op = in.get();
+	    if (op == COPY && in.remaining() >= SIZE_OF_COPY - 1) {
+		int baseOffset = in.getInt();
+		int copyLength = in.getInt();
+		if (baseOffset < 0 || copyLength < 0 || baseOffset > base.length - copyLength
+			|| copyLength > length - offset) {
+		    throw new IOException("Delta copies outside of the base or payload");
+		}
+		System.arraycopy(base, baseOffset, payload, offset, copyLength);
+		offset += copyLength;
+	    } else if (op == INSERT && in.remaining() >= SIZE_OF_INSERT_HEADER - 1) {
+		int insertLength = in.getInt();
+		if (insertLength < 0 || insertLength > in.remaining() || insertLength > length - offset) {
+		    throw new IOException("Delta inserts outside of the payload");
+		}
+		in.get(payload, offset, insertLength);
+		offset += insertLength;
+	    } else {
+		throw new IOException("Delta instruction " + op + " not recognized or truncated");
+	    }
+	}
+	if (offset != length) {
+	    throw new IOException("Delta rebuilt " + offset + " bytes instead of " + length);
+	}
+	return payload;
+    }
+
+    /**
+     * @param delta - the prefix followed by the instructions
+     * @return the UUID of the base version
+     */
+    public static UUID getBaseUuid(byte[] delta) {
+	return Utils.getUuid(Arrays.copyOfRange(delta, 0, Utils.SIZE_OF_UUID));
+    }
+
+    /**
+     * @param delta - the prefix followed by the instructions
+     * @return the checksum of the rebuilt payload
+     */
+    public static byte[] getPayloadChecksum(byte[] delta) {
+	int start = Utils.SIZE_OF_UUID + 4;
+	return Arrays.copyOfRange(delta, start, start + Utils.SIZE_OF_PAYLOAD_CHECKSUM);
+    }
+
+    /**
+     * Open addressing table of the first offset of every block hash, offset + 1
+     * (0 is an empty slot)
+     */
+    private static int[] indexBlocks(byte[] base) {
+	int nrBlocks = base.length / BLOCK_SIZE;
+	int size = Integer.highestOneBit(Math.max(1, nrBlocks) * 2 - 1) << 1;
+	int[] index = new int[size];
+	for (int block = 0; block < nrBlocks; block++) {
+	    int slot = mix(hash(base, block * BLOCK_SIZE)) & (size - 1);
+	    if (index[slot] == 0) {
+		index[slot] = block * BLOCK_SIZE + 1;
+	    }
+	}
+	return index;
+    }
+
+    private static int hash(byte[] data, int offset) {
+	int hash = 0;
+	for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+	    hash = hash * PRIME + data[i];
+	}
+	return hash;
+    }
+
+    private static int mix(int hash) {
+	return hash ^ (hash >>> 15) ^ (hash >>> 7);
+    }
+
+    private static boolean equals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+	for (int i = 0; i < length; i++) {
+	    if (a[aOffset + i] != b[bOffset + i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static void writeCopy(ByteArrayOutputStream out, int baseOffset, int length) {
+	out.write(COPY);
+	writeInt(out, baseOffset);
+	writeInt(out, length);
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] payload, int start, int end) {
+	if (start >= end) {
+	    return;
+	}
+	out.write(INSERT);
+	writeInt(out, end - start);
+	out.write(payload, start, end - start);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+	out.write(value >>> 24);
+	out.write(value >>> 16);
+	out.write(value >>> 8);
+	out.write(value);
+    }
+}
@@ -0,0 +1,705 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+
+import myjava.com.github.dosarudaniel.gsoc.Utils.Pair;
+
+/**
+ * FragmentEncoder class - serializes the fragments of one Blob without
+ * copying its metadata or payload.
+ *
+ * The fixed part of the header (packet type, uuid, blob data length, key
+ * length, blob checksum and key) is built once per Blob in a direct
+ * ByteBuffer, one template per packet type. For every fragment only the
+ * fragment offset is patched in the template, the payload is a view on the
+ * Blob's data and the packet checksum is written into a reusable buffer, so
+ * the FragmentSink gets the fragment as a gather array:
+ *
+ * [ header + key ] [ metadata / payload slice ] [ packet checksum ]
+ *
+ * Encoding a fragment does not allocate any object. An encoder is not thread
+ * safe, use one instance per sending thread and call setBlob for each Blob.
+ *
+ * The packet checksum is computed with the encoder's packet checksum algorithm
+ * (ChecksumAlgorithm.DEFAULT_PACKET_CHECKSUM unless changed), the trailer is
+ * as long as that algorithm's checksum.
+ *
+ * If the FEC group size k is not 0, a PARITY_CODE packet with the XOR of
+ * every k consecutive fragments is sent after them, so that a receiver can
+ * rebuild one lost fragment per group without a retransmission. The default
+ * k is read from the FEC_GROUP_SIZE environment variable (0, disabled, if
+ * not set); the overhead is 1/k of the packets.
+ *
+ * Blobs that fit in a SMALL_BLOB_CODE packet can instead be packed, several
+ * per datagram, in a MULTI_BLOB_CODE packet with appendToMultiBlob and
+ * flushMultiBlob. Every entry is the SMALL_BLOB_CODE packet of one Blob
+ * without its packet checksum, the packet has a single checksum for all of
+ * them.
+ *
+ * With the v2 header (HEADER_VERSION=2, see Utils for the layout) a fragment
+ * carries the session of the sending process and a short id of the Blob
+ * instead of its UUID, key, length and checksum, and varints instead of fixed
+ * size integers. These fields, the descriptor, are sent only in the first and
+ * last fragment of every block, every DESCRIPTOR_INTERVAL fragments and in
+ * the single packet Blobs; the receiver keeps them by session and blob id
+ * (see BlobDictionary). The v2 header is built from the v1 template of the
+ * same packet type.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class FragmentEncoder {
+    public static final int DEFAULT_FEC_GROUP_SIZE = readFecGroupSize();
+    public static final int DEFAULT_HEADER_VERSION = readHeaderVersion();
+    // a v2 descriptor is repeated in every DESCRIPTOR_INTERVAL fragments
+    public static final int DESCRIPTOR_INTERVAL = 16;
+    // identifies this process in the v2 headers
+    public static final short SESSION = (short) ThreadLocalRandom.current().nextInt(1 << 16);
+
+    private ChecksumAlgorithm packetChecksumAlgorithm;
+    private ChecksumAlgorithm.Hasher packetHasher;
+
+    private ByteBuffer metadataHeader;
+    private ByteBuffer dataHeader;
+    private ByteBuffer smallBlobHeader;
+    private ByteBuffer metadataParityHeader;
+    private ByteBuffer dataParityHeader;
+    private ByteBuffer deltaHeader;
+    private ByteBuffer deltaParityHeader;
+    private ByteBuffer announcementHeader;
+    private final ByteBuffer announcementPayload = ByteBuffer.allocate(Utils.SIZE_OF_ANNOUNCEMENT);
+
+    private int fecGroupSize = DEFAULT_FEC_GROUP_SIZE;
+    private byte[] parity = new byte[0];
+    private ByteBuffer paritySlice = ByteBuffer.wrap(this.parity);
+    private final ByteBuffer parityPrefix = ByteBuffer.allocate(Utils.SIZE_OF_PARITY_PREFIX);
+    private final ByteBuffer[] parityFragment = new ByteBuffer[4];
+
+    private int headerVersion = DEFAULT_HEADER_VERSION;
+    // the v2 header of the packet being encoded
+    private ByteBuffer v2Header = ByteBuffer.allocateDirect(0);
+    // the v2 id of the current Blob
+    private long blobId;
+
+    private final byte[] packetChecksum = new byte[Utils.SIZE_OF_PACKET_CHECKSUM];
+    private final ByteBuffer trailer = ByteBuffer.wrap(this.packetChecksum);
+    private int packetChecksumLength;
+
+    private ByteBuffer metadataSlice;
+    private ByteBuffer payloadSlice;
+    // null if the Blob is not sent as a delta
+    private ByteBuffer deltaSlice;
+    // the payload sent by encodeBlob: DATA_CODE, with DELTA_FLAG for the delta
+    private byte dataCode;
+
+    private final ByteBuffer[] fragment = new ByteBuffer[3];
+    private final ByteBuffer[] smallBlobFragment = new ByteBuffer[4];
+
+    // the MULTI_BLOB_CODE packet being packed: entries are copied, the Blobs
+    // change with setBlob
+    private ByteBuffer multiBlobHeader;
+    private ByteBuffer multiBlobEntries = ByteBuffer.allocate(0);
+    private int multiBlobCount = 0;
+    private final byte[] noUuid = new byte[Utils.SIZE_OF_UUID];
+    private final byte[] noKey = new byte[0];
+    private final byte[] noChecksum = new byte[Utils.SIZE_OF_PAYLOAD_CHECKSUM];
+    private final ByteBuffer[] multiBlobFragment = new ByteBuffer[3];
+    private final ByteBuffer[] singleEntryFragment = new ByteBuffer[2];
+
+    private static int readFecGroupSize() {
+	String fecGroupSizeEnvValue = System.getenv("FEC_GROUP_SIZE");
+	if (fecGroupSizeEnvValue == null) {
+	    return 0;
+	}
+	try {
+	    return Integer.parseInt(fecGroupSizeEnvValue);
+	} catch (NumberFormatException e) {
+	    new SingletonLogger().getLogger().log(Level.WARNING,
+		    "Environment variable FEC_GROUP_SIZE is not a number.");
+	    return 0;
+	}
+    }
+
+    private static int readHeaderVersion() {
+	String headerVersionEnvValue = System.getenv("HEADER_VERSION");
+	if (headerVersionEnvValue == null) {
+	    return 1;
+	}
+	if (headerVersionEnvValue.trim().equals("1") || headerVersionEnvValue.trim().equals("2")) {
+	    return Integer.parseInt(headerVersionEnvValue.trim());
+	}
+	new SingletonLogger().getLogger().log(Level.WARNING, "Environment variable HEADER_VERSION is not 1 or 2.");
+	return 1;
+    }
+
+    /**
+     * Unparameterized constructor - creates an encoder without a Blob, call
+     * setBlob before encoding
+     *
+     * @throws NoSuchAlgorithmException
+     */
+    public FragmentEncoder() throws NoSuchAlgorithmException {
+	setPacketChecksumAlgorithm(ChecksumAlgorithm.DEFAULT_PACKET_CHECKSUM);
+    }
+
+    /**
+     * Parameterized constructor - creates an encoder for the given Blob
+     *
+     * @param blob - the Blob to be fragmented
+     * @throws NoSuchAlgorithmException
+     */
+    public FragmentEncoder(Blob blob) throws NoSuchAlgorithmException {
+	this();
+	setBlob(blob);
+    }
+
+    /**
+     * Builds the header templates of a new Blob. The direct buffers are reused
+     * if they are large enough for the new key.
+     *
+     * @param blob - the Blob to be fragmented
+     */
+    public void setBlob(Blob blob) {
+	byte[] keyBytes = blob.getKey().getBytes(StandardCharsets.UTF_8);
+	byte[] uuidBytes = Utils.getBytes(blob.getUuid());
+	int headerLength = Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER + keyBytes.length;
+	byte algorithms = Utils.checksumAlgorithms(this.packetChecksumAlgorithm, blob.getChecksumAlgorithm());
+
+	this.metadataHeader = buildHeader(this.metadataHeader, headerLength, Blob.METADATA_CODE, algorithms,
+		blob.getSequenceStream(), blob.getSequence(), uuidBytes, blob.getMetadataLength(), keyBytes,
+		blob.getMetadataChecksum());
+	// the payload is described as it is sent, the flags tell it is compressed
+	// or a delta; the first transmission (and a small blob) sends the delta if
+	// there is one, the full payload only goes to receivers that ask for it
+	this.dataCode = blob.getDataCode();
+	this.dataHeader = buildDataHeader(this.dataHeader, headerLength, Blob.DATA_CODE, blob, Blob.DATA_CODE,
+		algorithms, uuidBytes, keyBytes);
+	this.dataParityHeader = buildDataHeader(this.dataParityHeader, headerLength, Blob.PARITY_CODE, blob,
+		Blob.DATA_CODE, algorithms, uuidBytes, keyBytes);
+	// a small blob carries the payload length, metadata length is deduced
+	this.smallBlobHeader = buildDataHeader(this.smallBlobHeader, headerLength, Blob.SMALL_BLOB_CODE, blob,
+		this.dataCode, algorithms, uuidBytes, keyBytes);
+	// parity packets describe the metadata or payload they protect
+	this.metadataParityHeader = buildHeader(this.metadataParityHeader, headerLength, Blob.PARITY_CODE,
+		algorithms, blob.getSequenceStream(), blob.getSequence(), uuidBytes, blob.getMetadataLength(),
+		keyBytes, blob.getMetadataChecksum());
+
+	this.blobId = blob.getSessionBlobId();
+	this.metadataSlice = blob.getMetadataBuffer();
+	this.payloadSlice = blob.getTransmittedPayloadBuffer(Blob.DATA_CODE);
+	if (blob.isDelta()) {
+	    this.deltaHeader = buildDataHeader(this.deltaHeader, headerLength, Blob.DATA_CODE, blob, this.dataCode,
+		    algorithms, uuidBytes, keyBytes);
+	    this.deltaParityHeader = buildDataHeader(this.deltaParityHeader, headerLength, Blob.PARITY_CODE, blob,
+		    this.dataCode, algorithms, uuidBytes, keyBytes);
+	    this.deltaSlice = blob.getTransmittedPayloadBuffer(this.dataCode);
+	} else {
+	    this.deltaSlice = null;
+	}
+    }
+
+    /**
+     * Builds the header of a packet that carries (or protects) one form of the
+     * payload, with the flags of that form in the packet type
+     */
+    private static ByteBuffer buildDataHeader(ByteBuffer reuse, int headerLength, byte packetType, Blob blob,
+	    byte dataCode, byte algorithms, byte[] uuidBytes, byte[] keyBytes) {
+	return buildHeader(reuse, headerLength, (byte) (packetType | blob.getPayloadFlags(dataCode)), algorithms,
+		blob.getSequenceStream(), blob.getSequence(), uuidBytes, blob.getTransmittedPayloadLength(dataCode),
+		keyBytes, blob.getTransmittedPayloadChecksum(dataCode));
+    }
+
+    private static ByteBuffer buildHeader(ByteBuffer reuse, int headerLength, byte packetType, byte algorithms,
+	    int stream, int sequence, byte[] uuidBytes, int blobDataLength, byte[] keyBytes, byte[] blobChecksum) {
+	ByteBuffer header = reuse;
+	if (header == null || header.capacity() < headerLength) {
+	    header = ByteBuffer.allocateDirect(headerLength);
+	}
+	header.clear();
+	// 1. fragment offset, patched for every fragment
+	header.putInt(0);
+	// 2. 1 byte, packet type
+	header.put(packetType);
+	// 3. 1 byte, packet and blob checksum algorithms
+	header.put(algorithms);
+	// 4. 2 bytes, stream, and 4 bytes, sequence number of the Blob
+	header.putShort((short) stream);
+	header.putInt(sequence);
+	// 5. 16 bytes, uuid
+	header.put(uuidBytes);
+	// 6. 4 bytes, blob metadata or payload length
+	header.putInt(blobDataLength);
+	// 7. 2 bytes, keyLength
+	header.putShort((short) keyBytes.length);
+	// 8. 16 bytes, metadata or payload checksum
+	header.put(blobChecksum, 0, Utils.SIZE_OF_PAYLOAD_CHECKSUM);
+	// 9. the key
+	header.put(keyBytes);
+	header.flip();
+	return header;
+    }
+
+    /**
+     * @return the header of a packet from its v1 template: the template itself
+     *         with the fragment offset patched, or the v2 header made of the
+     *         template fields, with the descriptor if descriptor is set
+     */
+    private ByteBuffer header(ByteBuffer template, int fragmentOffset, boolean descriptor, long id) {
+	if (this.headerVersion < 2) {
+	    template.putInt(Utils.FRAGMENT_OFFSET_START_INDEX, fragmentOffset);
+	    template.rewind();
+	    return template;
+	}
+
+	ByteBuffer header = v2Header(template.limit());
+	byte packetType = template.get(Utils.PACKET_TYPE_START_INDEX);
+	byte algorithms = template.get(Utils.CHECKSUM_ALGORITHMS_START_INDEX);
+	putV2Prefix(header, descriptor ? (byte) (packetType | Blob.DESCRIPTOR_FLAG) : packetType, algorithms, id,
+		fragmentOffset);
+	if (descriptor) {
+	    copy(template, Utils.UUID_START_INDEX, Utils.SIZE_OF_UUID, header);
+	    header.putShort(template.getShort(Utils.STREAM_START_INDEX));
+	    Utils.putVarint(header, template.getInt(Utils.SEQUENCE_START_INDEX) & 0xFFFFFFFFL);
+	    Utils.putVarint(header, template.getInt(Utils.BLOB_PAYLOAD_LENGTH_START_INDEX));
+	    int keyLength = template.getShort(Utils.KEY_LENGTH_START_INDEX) & 0xFFFF;
+	    Utils.putVarint(header, keyLength);
+	    copy(template, Utils.KEY_START_INDEX, keyLength, header);
+	    // the checksum without the padding of the v1 field
+	    copy(template, Utils.PAYLOAD_CHECKSUM_START_INDEX, ChecksumAlgorithm.fromId(algorithms & 0x0F).getLength(),
+		    header);
+	}
+	header.flip();
+	return header;
+    }
+
+    /**
+     * @return the cleared v2 header buffer, large enough for the v2 header of a
+     *         v1 header of v1Length bytes
+     */
+    private ByteBuffer v2Header(int v1Length) {
+	int capacity = v1Length + 4 * Utils.MAX_SIZE_OF_VARINT;
+	if (this.v2Header.capacity() < capacity) {
+	    this.v2Header = ByteBuffer.allocateDirect(capacity);
+	}
+	this.v2Header.clear();
+	return this.v2Header;
+    }
+
+    private static void putV2Prefix(ByteBuffer header, byte packetType, byte algorithms, long id, int offset) {
+	header.put(Utils.HEADER_V2);
+	header.put(packetType);
+	header.put(algorithms);
+	header.putShort(SESSION);
+	Utils.putVarint(header, id);
+	Utils.putVarint(header, offset);
+    }
+
+    private static void copy(ByteBuffer from, int index, int length, ByteBuffer to) {
+	for (int i = index; i < index + length; i++) {
+	    to.put(from.get(i));
+	}
+    }
+
+    /**
+     * @param maxDatagramSize - the largest datagram sent without IP
+     *                        fragmentation, see SenderChannel
+     * @return the largest maxPayloadSize for which no packet of the current Blob
+     *         is longer than maxDatagramSize: header and key (with the v2
+     *         descriptor at the last offset), parity prefix and packet checksum
+     *         included
+     */
+    public int getMaxPayloadSize(int maxDatagramSize) {
+	int headerLength = Math.max(
+		header(this.metadataHeader, this.metadataSlice.capacity(), true, this.blobId).remaining(),
+		header(this.dataHeader, this.payloadSlice.capacity(), true, this.blobId).remaining());
+	if (this.deltaSlice != null) {
+	    headerLength = Math.max(headerLength,
+		    header(this.deltaHeader, this.deltaSlice.capacity(), true, this.blobId).remaining());
+	}
+	int overhead = headerLength + (this.fecGroupSize > 0 ? Utils.SIZE_OF_PARITY_PREFIX : 0)
+		+ this.packetChecksumLength;
+	return Math.max(1, maxDatagramSize - overhead);
+    }
+
+    /**
+     * Encodes the whole Blob: as a single SMALL_BLOB_CODE packet if it fits in
+     * maxPayloadSize, otherwise as metadata fragments followed by payload
+     * fragments
+     *
+     * @param maxPayloadSize - the maximum payload supported by a fragmented packet
+     * @param sink           - where the fragments go
+     * @throws IOException
+     */
+    public void encodeBlob(int maxPayloadSize, FragmentSink sink) throws IOException {
+	int metadataLength = this.metadataSlice.capacity();
+	int payloadLength = (this.deltaSlice != null ? this.deltaSlice : this.payloadSlice).capacity();
+
+	if (maxPayloadSize > payloadLength + metadataLength) {
+	    // no need to fragment the Blob
+	    encodeSmallBlob(sink);
+	} else {
+	    encode(maxPayloadSize, new Pair(0, metadataLength), Blob.METADATA_CODE, sink);
+	    encode(maxPayloadSize, new Pair(0, payloadLength), this.dataCode, sink);
+	}
+    }
+
+    /**
+     * Fragments the missingBlock of the metadata or payload and gives every
+     * fragment to the sink
+     *
+     * @param maxPayloadSize - the maximum payload supported by a fragmented packet
+     * @param missingBlock   - the interval [first, second) to be sent
+     * @param packetType     - METADATA_CODE or DATA_CODE, DATA_CODE | DELTA_FLAG
+     *                       for the delta of the payload
+     * @param sink           - where the fragments go
+     * @throws IOException
+     */
+    public void encode(int maxPayloadSize, Pair missingBlock, byte packetType, FragmentSink sink)
+	    throws IOException {
+	ByteBuffer header;
+	ByteBuffer parityHeader;
+	ByteBuffer slice;
+	if (packetType == Blob.METADATA_CODE) {
+	    header = this.metadataHeader;
+	    parityHeader = this.metadataParityHeader;
+	    slice = this.metadataSlice;
+	} else if (packetType == Blob.DATA_CODE) {
+	    header = this.dataHeader;
+	    parityHeader = this.dataParityHeader;
+	    slice = this.payloadSlice;
+	} else if (packetType == (byte) (Blob.DATA_CODE | Blob.DELTA_FLAG) && this.deltaSlice != null) {
+	    header = this.deltaHeader;
+	    parityHeader = this.deltaParityHeader;
+	    slice = this.deltaSlice;
+	} else {
+	    throw new IOException("Packet type not recognized!");
+	}
+
+	if (this.fecGroupSize > 0 && this.parity.length < maxPayloadSize) {
+	    this.parity = new byte[maxPayloadSize];
+	    this.paritySlice = ByteBuffer.wrap(this.parity);
+	}
+
+	int groupStart = missingBlock.first;
+	int groupFragments = 0;
+	int index = missingBlock.first;
+	int fragmentIndex = 0;
+	while (index < missingBlock.second) {
+	    int fragmentLength = Math.min(maxPayloadSize, missingBlock.second - index);
+	    boolean descriptor = fragmentIndex % DESCRIPTOR_INTERVAL == 0
+		    || index + fragmentLength >= missingBlock.second;
+	    encodeFragment(header, slice, index, fragmentLength, descriptor, sink);
+	    fragmentIndex++;
+
+	    if (this.fecGroupSize > 0) {
+		xorIntoParity(slice, index, fragmentLength, groupFragments == 0);
+		groupFragments++;
+	    }
+	    index += fragmentLength;
+
+	    if (groupFragments > 0 && (groupFragments == this.fecGroupSize || index >= missingBlock.second)) {
+		int parityLength = Math.min(maxPayloadSize, missingBlock.second - groupStart);
+		encodeParity(parityHeader, (byte) (packetType & Blob.PACKET_TYPE_MASK), groupStart, groupFragments,
+			parityLength, sink);
+		groupStart = index;
+		groupFragments = 0;
+	    }
+	}
+    }
+
+    /**
+     * parity[0, maxPayloadSize) ^= slice[offset, offset + length), the missing
+     * bytes of a shorter fragment count as zeros
+     */
+    private void xorIntoParity(ByteBuffer slice, int offset, int length, boolean firstInGroup) {
+	if (firstInGroup) {
+	    Arrays.fill(this.parity, (byte) 0);
+	}
+	if (slice.hasArray()) {
+	    byte[] data = slice.array();
+	    int base = slice.arrayOffset() + offset;
+	    for (int i = 0; i < length; i++) {
+		this.parity[i] ^= data[base + i];
+	    }
+	} else {
+	    for (int i = 0; i < length; i++) {
+		this.parity[i] ^= slice.get(offset + i);
+	    }
+	}
+    }
+
+    private void encodeParity(ByteBuffer header, byte protectedType, int groupStart, int groupFragments,
+	    int parityLength, FragmentSink sink) throws IOException {
+	// which data is protected and by how many fragments the group is made of
+	this.parityPrefix.clear();
+	this.parityPrefix.put(protectedType);
+	this.parityPrefix.putShort((short) groupFragments);
+	this.parityPrefix.flip();
+
+	this.parityFragment[0] = header(header, groupStart, false, this.blobId);
+	this.parityFragment[1] = this.parityPrefix;
+	this.paritySlice.limit(parityLength).position(0);
+	this.parityFragment[2] = this.paritySlice;
+	this.parityFragment[3] = this.trailer;
+	checksum(this.parityFragment, 3);
+
+	sink.send(this.parityFragment);
+    }
+
+    public int getHeaderVersion() {
+	return this.headerVersion;
+    }
+
+    /**
+     * @param headerVersion - 1 for the full header in every packet, 2 for the
+     *                      compact header; the receivers of the v2 packets must
+     *                      be MulticastReceivers, which keep the descriptors
+     */
+    public void setHeaderVersion(int headerVersion) {
+	this.headerVersion = headerVersion;
+    }
+
+    public int getFecGroupSize() {
+	return this.fecGroupSize;
+    }
+
+    /**
+     * @param fecGroupSize - number of fragments protected by one parity packet, 0
+     *                     to disable the forward error correction
+     */
+    public void setFecGroupSize(int fecGroupSize) {
+	this.fecGroupSize = fecGroupSize;
+    }
+
+    /**
+     * Encodes one fragment [fragmentOffset, fragmentOffset + fragmentLength) of
+     * the metadata or payload
+     *
+     * @param packetType     - METADATA_CODE or DATA_CODE, DATA_CODE | DELTA_FLAG
+     *                       for the delta of the payload
+     * @param fragmentOffset - start index of the fragment in the Blob's data
+     * @param fragmentLength - number of data bytes in the fragment
+     * @param sink           - where the fragment goes
+     * @throws IOException
+     */
+    public void encodeFragment(byte packetType, int fragmentOffset, int fragmentLength, FragmentSink sink)
+	    throws IOException {
+	ByteBuffer header;
+	ByteBuffer slice;
+	if (packetType == Blob.METADATA_CODE) {
+	    header = this.metadataHeader;
+	    slice = this.metadataSlice;
+	} else if (packetType == Blob.DATA_CODE) {
+	    header = this.dataHeader;
+	    slice = this.payloadSlice;
+	} else if (packetType == (byte) (Blob.DATA_CODE | Blob.DELTA_FLAG) && this.deltaSlice != null) {
+	    header = this.deltaHeader;
+	    slice = this.deltaSlice;
+	} else {
+	    throw new IOException("Packet type not recognized!");
+	}
+
+	// the fragments are sent one by one, in any order: the descriptor goes with
+	// the first, the last and every DESCRIPTOR_INTERVAL fragments of the data
+	boolean descriptor = fragmentOffset == 0 || fragmentOffset + fragmentLength >= slice.capacity()
+		|| fragmentLength == 0 || (fragmentOffset / fragmentLength) % DESCRIPTOR_INTERVAL == 0;
+	encodeFragment(header, slice, fragmentOffset, fragmentLength, descriptor, sink);
+    }
+
+    private void encodeFragment(ByteBuffer header, ByteBuffer slice, int fragmentOffset, int fragmentLength,
+	    boolean descriptor, FragmentSink sink) throws IOException {
+	slice.limit(fragmentOffset + fragmentLength).position(fragmentOffset);
+
+	this.fragment[0] = header(header, fragmentOffset, descriptor, this.blobId);
+	this.fragment[1] = slice;
+	this.fragment[2] = this.trailer;
+	checksum(this.fragment, 2);
+
+	sink.send(this.fragment);
+    }
+
+    /**
+     * Encodes the whole Blob (metadata followed by payload) as a single
+     * SMALL_BLOB_CODE packet
+     *
+     * @param sink - where the packet goes
+     * @throws IOException
+     */
+    public void encodeSmallBlob(FragmentSink sink) throws IOException {
+	ByteBuffer header = header(this.smallBlobHeader, 0, true, this.blobId);
+	ByteBuffer payloadSlice = this.deltaSlice != null ? this.deltaSlice : this.payloadSlice;
+	this.metadataSlice.clear();
+	payloadSlice.clear();
+
+	this.smallBlobFragment[0] = header;
+	this.smallBlobFragment[1] = this.metadataSlice;
+	this.smallBlobFragment[2] = payloadSlice;
+	this.smallBlobFragment[3] = this.trailer;
+	checksum(this.smallBlobFragment, 3);
+
+	sink.send(this.smallBlobFragment);
+    }
+
+    /**
+     * Appends the current Blob to the MULTI_BLOB_CODE packet being packed. The
+     * entries of a packet take at most maxPayloadSize bytes, like the data of a
+     * fragment, so only Blobs sent as a single SMALL_BLOB_CODE packet can be
+     * packed.
+     *
+     * @param maxPayloadSize - the maximum payload supported by a fragmented packet
+     * @return false if the Blob does not fit in the rest of the packet, or in an
+     *         empty packet; the packet is then unchanged
+     */
+    public boolean appendToMultiBlob(int maxPayloadSize) {
+	ByteBuffer payloadSlice = this.deltaSlice != null ? this.deltaSlice : this.payloadSlice;
+	int dataLength = this.metadataSlice.capacity() + payloadSlice.capacity();
+	if (maxPayloadSize <= dataLength) {
+	    // fragmented by encodeBlob
+	    return false;
+	}
+
+	if (this.multiBlobCount == 0) {
+	    if (this.multiBlobEntries.capacity() < maxPayloadSize) {
+		this.multiBlobEntries = ByteBuffer.allocate(maxPayloadSize);
+	    }
+	    this.multiBlobEntries.clear().limit(maxPayloadSize);
+	}
+
+	ByteBuffer header = header(this.smallBlobHeader, 0, true, this.blobId);
+	int entryLength = header.remaining() + dataLength;
+	if (Utils.SIZE_OF_MULTI_BLOB_ENTRY_LENGTH + entryLength > this.multiBlobEntries.remaining()) {
+	    return false;
+	}
+
+	this.multiBlobEntries.putShort((short) entryLength);
+	this.multiBlobEntries.put(header);
+	this.multiBlobEntries.put(this.metadataSlice.duplicate().clear());
+	this.multiBlobEntries.put(payloadSlice.duplicate().clear());
+	this.multiBlobCount++;
+	return true;
+    }
+
+    /**
+     * @return the number of Blobs in the MULTI_BLOB_CODE packet being packed
+     */
+    public int getMultiBlobCount() {
+	return this.multiBlobCount;
+    }
+
+    /**
+     * Sends the MULTI_BLOB_CODE packet being packed and starts a new one. A
+     * single Blob is sent as a plain SMALL_BLOB_CODE packet instead.
+     *
+     * @param sink - where the packet goes
+     * @throws IOException
+     */
+    public void flushMultiBlob(FragmentSink sink) throws IOException {
+	if (this.multiBlobCount == 0) {
+	    return;
+	}
+	this.multiBlobEntries.flip();
+
+	if (this.multiBlobCount == 1) {
+	    // the entry is the SMALL_BLOB_CODE packet without its checksum
+	    this.multiBlobEntries.position(Utils.SIZE_OF_MULTI_BLOB_ENTRY_LENGTH);
+	    this.singleEntryFragment[0] = this.multiBlobEntries;
+	    this.singleEntryFragment[1] = this.trailer;
+	    checksum(this.singleEntryFragment, 1);
+	    this.multiBlobCount = 0;
+	    sink.send(this.singleEntryFragment);
+	    return;
+	}
+
+	byte algorithms = Utils.checksumAlgorithms(this.packetChecksumAlgorithm,
+		ChecksumAlgorithm.DEFAULT_BLOB_CHECKSUM);
+	ByteBuffer header;
+	if (this.headerVersion < 2) {
+	    this.multiBlobHeader = buildHeader(this.multiBlobHeader, Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER,
+		    Blob.MULTI_BLOB_CODE, algorithms, 0, 0, this.noUuid, this.multiBlobCount, this.noKey,
+		    this.noChecksum);
+	    header = this.multiBlobHeader;
+	} else {
+	    // no blob id, the number of Blobs instead of the fragment offset
+	    header = v2Header(Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER);
+	    putV2Prefix(header, Blob.MULTI_BLOB_CODE, algorithms, 0, this.multiBlobCount);
+	    header.flip();
+	}
+
+	this.multiBlobFragment[0] = header;
+	this.multiBlobFragment[1] = this.multiBlobEntries;
+	this.multiBlobFragment[2] = this.trailer;
+	checksum(this.multiBlobFragment, 2);
+	this.multiBlobCount = 0;
+
+	sink.send(this.multiBlobFragment);
+    }
+
+    /**
+     * Encodes an ANNOUNCEMENT_CODE packet for the Blob: its key, UUID, payload
+     * length and checksum in the header, its metadata length and checksum as
+     * payload. Does not need setBlob and does not change the current Blob.
+     *
+     * @param blob - the latest version of a key
+     * @param sink - where the packet goes
+     * @throws IOException
+     */
+    public void encodeAnnouncement(Blob blob, FragmentSink sink) throws IOException {
+	byte[] keyBytes = blob.getKey().getBytes(StandardCharsets.UTF_8);
+	int headerLength = Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER + keyBytes.length;
+	byte algorithms = Utils.checksumAlgorithms(this.packetChecksumAlgorithm, blob.getChecksumAlgorithm());
+	// not sequenced, the announced Blob was numbered when it was sent
+	this.announcementHeader = buildHeader(this.announcementHeader, headerLength, Blob.ANNOUNCEMENT_CODE,
+		algorithms, 0, 0, Utils.getBytes(blob.getUuid()), blob.getPayloadLength(), keyBytes,
+		blob.getPayloadChecksum());
+
+	this.announcementPayload.clear();
+	this.announcementPayload.putInt(blob.getMetadataLength());
+	this.announcementPayload.put(blob.getMetadataChecksum(), 0, Utils.SIZE_OF_PAYLOAD_CHECKSUM);
+	this.announcementPayload.flip();
+
+	this.fragment[0] = header(this.announcementHeader, 0, true, blob.getSessionBlobId());
+	this.fragment[1] = this.announcementPayload;
+	this.fragment[2] = this.trailer;
+	checksum(this.fragment, 2);
+
+	sink.send(this.fragment);
+    }
+
+    public ChecksumAlgorithm getPacketChecksumAlgorithm() {
+	return this.packetChecksumAlgorithm;
+    }
+
+    /**
+     * Changes the algorithm of the packet checksum, effective from the next
+     * setBlob
+     *
+     * @param packetChecksumAlgorithm - the algorithm of the packet checksum
+     */
+    public void setPacketChecksumAlgorithm(ChecksumAlgorithm packetChecksumAlgorithm) {
+	this.packetChecksumAlgorithm = packetChecksumAlgorithm;
+	this.packetHasher = packetChecksumAlgorithm.newHasher();
+	this.packetChecksumLength = packetChecksumAlgorithm.getLength();
+    }
+
+    /**
+     * Computes the packet checksum of the first count buffers into the trailer,
+     * leaving the positions of all buffers unchanged
+     */
+    private void checksum(ByteBuffer[] buffers, int count) {
+	for (int i = 0; i < count; i++) {
+	    ByteBuffer buffer = buffers[i];
+	    int position = buffer.position();
+	    this.packetHasher.update(buffer);
+	    buffer.position(position);
+	}
+	this.packetHasher.digest(this.packetChecksum, 0);
+	this.trailer.limit(this.packetChecksumLength).position(0);
+    }
+}
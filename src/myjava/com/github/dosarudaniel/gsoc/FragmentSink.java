@@ -0,0 +1,24 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * FragmentSink interface - destination of the fragments produced by a
+ * FragmentEncoder. A fragment is given as a gather array (header, payload
+ * slices, packet checksum) that together form one datagram.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public interface FragmentSink {
+    /**
+     * Sends (or stores) one fragment. The buffers are reused by the encoder
+     * after this call returns, so they must be consumed or copied before.
+     *
+     * @param fragment - the buffers that make up the serialized fragment
+     * @throws IOException
+     */
+    void send(ByteBuffer[] fragment) throws IOException;
+}
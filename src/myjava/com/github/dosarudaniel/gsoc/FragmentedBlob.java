@@ -1,9 +1,13 @@
 package myjava.com.github.dosarudaniel.gsoc;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -14,9 +18,18 @@ public class FragmentedBlob {
 
     private int fragmentOffset;
     private byte packetType;
+    // the payload of the Blob is compressed, see PayloadCodec
+    private boolean compressed;
+    // the payload of the Blob is a delta, see DeltaCodec
+    private boolean delta;
     private UUID uuid;
+    // stream and sequence number of the Blob, see BlobSequence; stream is 0 if
+    // the packet is not sequenced or is a v2 packet without descriptor
+    private int stream;
+    private int sequence;
     // Total length of the Blob's payload if packetType is DATA or SMALL_BLOB
     // Total length of the Blob's metadata if packetType is METADATA
+    // Number of Blobs if packetType is MULTI_BLOB
     private int blobDataLength;
 
     // private short keyLength; // <-- key.length()
@@ -24,6 +37,14 @@ public class FragmentedBlob {
     private String key;
     private byte[] payload;
     private byte[] packetChecksum;
+    private ChecksumAlgorithm checksumAlgorithm;
+
+    // v2 header: the Blob is identified by the session of the sender and its
+    // blob id, its UUID, key, length and checksum are only in the descriptor
+    private boolean v2 = false;
+    private boolean descriptor = false;
+    private int session;
+    private long sessionBlobId;
 
     /*
      * Manual deserialization of a serialisedFragmentedBlob
@@ -31,18 +52,145 @@ public class FragmentedBlob {
      */
     public FragmentedBlob(byte[] serialisedFragmentedBlob, int packetLength)
 	    throws NoSuchAlgorithmException, IOException {
+	this.v2 = isHeaderV2(serialisedFragmentedBlob, packetLength);
+	int minHeaderLength = this.v2 ? Utils.SIZE_OF_V2_FIXED_HEADER : Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER;
+	if (packetLength < minHeaderLength) {
+	    throw new IOException("Packet too short: " + packetLength + " bytes");
+	}
+	if (this.v2 && serialisedFragmentedBlob[0] != Utils.HEADER_V2) {
+	    throw new IOException("Unknown header version " + (serialisedFragmentedBlob[0] & 0x7F));
+	}
 
-	// Field 9: Packet Checksum
-	this.packetChecksum = Arrays.copyOfRange(serialisedFragmentedBlob, packetLength - Utils.SIZE_OF_PACKET_CHECKSUM,
+	// Field 3: Checksum algorithms, packet (high nibble) and Blob (low nibble)
+	byte algorithms = serialisedFragmentedBlob[this.v2 ? Utils.V2_CHECKSUM_ALGORITHMS_INDEX
+		: Utils.CHECKSUM_ALGORITHMS_START_INDEX];
+	ChecksumAlgorithm packetChecksumAlgorithm;
+	try {
+	    packetChecksumAlgorithm = ChecksumAlgorithm.fromId((algorithms >> 4) & 0x0F);
+	    this.checksumAlgorithm = ChecksumAlgorithm.fromId(algorithms & 0x0F);
+	} catch (IllegalArgumentException e) {
+	    throw new IOException(e.getMessage());
+	}
+	int packetChecksumLength = packetChecksumAlgorithm.getLength();
+	if (packetLength - packetChecksumLength < minHeaderLength) {
+	    throw new IOException("Packet too short: " + packetLength + " bytes");
+	}
+
+	// Field 11: Packet Checksum
+	this.packetChecksum = Arrays.copyOfRange(serialisedFragmentedBlob, packetLength - packetChecksumLength,
 		packetLength);
 
-	// Check packet checksum:
-	if (!Arrays.equals(this.packetChecksum, Utils.calculateChecksum(
-		Arrays.copyOfRange(serialisedFragmentedBlob, 0, packetLength - Utils.SIZE_OF_PACKET_CHECKSUM)))) {
+	// Check packet checksum, directly on the received buffer:
+	byte[] computedChecksum = new byte[packetChecksumLength];
+	ChecksumAlgorithm.Hasher hasher = packetChecksumAlgorithm.getHasher();
+	hasher.update(serialisedFragmentedBlob, 0, packetLength - packetChecksumLength);
+	hasher.digest(computedChecksum, 0);
+	if (!Arrays.equals(this.packetChecksum, computedChecksum)) {
 	    this.logger.log(Level.SEVERE, "Packet checksum failed!");
 	    throw new IOException("Packet checksum failed!");
 	}
 
+	if (this.v2) {
+	    parseV2Fields(serialisedFragmentedBlob, packetLength - packetChecksumLength);
+	} else {
+	    parseFields(serialisedFragmentedBlob, packetLength - packetChecksumLength);
+	}
+    }
+
+    /*
+     * Deserialization of one entry of a MULTI_BLOB packet: a SMALL_BLOB packet
+     * without the packet checksum, which was checked on the whole packet
+     */
+    private FragmentedBlob(byte[] entry) throws IOException {
+	this.v2 = isHeaderV2(entry, entry.length);
+	if (entry.length < (this.v2 ? Utils.SIZE_OF_V2_FIXED_HEADER : Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER)) {
+	    throw new IOException("Multi blob entry too short: " + entry.length + " bytes");
+	}
+	try {
+	    this.checksumAlgorithm = ChecksumAlgorithm.fromId(
+		    entry[this.v2 ? Utils.V2_CHECKSUM_ALGORITHMS_INDEX : Utils.CHECKSUM_ALGORITHMS_START_INDEX] & 0x0F);
+	} catch (IllegalArgumentException e) {
+	    throw new IOException(e.getMessage());
+	}
+	this.packetChecksum = new byte[0];
+
+	if (this.v2) {
+	    parseV2Fields(entry, entry.length);
+	} else {
+	    parseFields(entry, entry.length);
+	}
+	if (this.packetType != Blob.SMALL_BLOB_CODE || this.uuid == null) {
+	    throw new IOException("Multi blob entry of packet type " + this.packetType);
+	}
+    }
+
+    /*
+     * Reads the fields of a v2 header (see Utils), the descriptor if there is one
+     * and the payload, which ends at payloadEnd. Without the descriptor, the UUID,
+     * key, length and checksum stay null until set by a BlobDictionary.
+     */
+    private void parseV2Fields(byte[] serialisedFragmentedBlob, int payloadEnd) throws IOException {
+	ByteBuffer in = ByteBuffer.wrap(serialisedFragmentedBlob, 0, payloadEnd);
+	try {
+	    in.position(Utils.V2_PACKET_TYPE_INDEX);
+	    byte type = in.get();
+	    this.packetType = (byte) (type & Blob.PACKET_TYPE_MASK);
+	    this.compressed = (type & Blob.COMPRESSED_FLAG) != 0;
+	    this.delta = (type & Blob.DELTA_FLAG) != 0;
+	    this.descriptor = (type & Blob.DESCRIPTOR_FLAG) != 0;
+
+	    in.position(Utils.V2_SESSION_INDEX);
+	    this.session = in.getShort() & 0xFFFF;
+	    this.sessionBlobId = Utils.getVarint(in);
+	    this.fragmentOffset = toInt(Utils.getVarint(in));
+
+	    if (this.packetType == Blob.MULTI_BLOB_CODE) {
+		// the number of Blobs instead of the fragment offset
+		this.blobDataLength = this.fragmentOffset;
+		this.fragmentOffset = 0;
+		this.uuid = new UUID(0, 0);
+		this.key = "";
+		this.payloadChecksum = new byte[Utils.SIZE_OF_PAYLOAD_CHECKSUM];
+	    } else if (this.descriptor) {
+		byte[] uuid_byte_array = new byte[Utils.SIZE_OF_UUID];
+		in.get(uuid_byte_array);
+		this.uuid = Utils.getUuid(uuid_byte_array);
+		this.stream = in.getShort() & 0xFFFF;
+		this.sequence = (int) Utils.getVarint(in);
+		this.blobDataLength = toInt(Utils.getVarint(in));
+		int keyLength = toInt(Utils.getVarint(in));
+		if (keyLength > in.remaining()) {
+		    throw new IOException("Key of " + keyLength + " bytes does not fit in the packet");
+		}
+		this.key = new String(serialisedFragmentedBlob, in.position(), keyLength, StandardCharsets.UTF_8);
+		in.position(in.position() + keyLength);
+		// padded as in the v1 header
+		this.payloadChecksum = new byte[Utils.SIZE_OF_PAYLOAD_CHECKSUM];
+		in.get(this.payloadChecksum, 0, this.checksumAlgorithm.getLength());
+	    }
+
+	    this.payload = new byte[in.remaining()];
+	    in.get(this.payload);
+	} catch (BufferUnderflowException e) {
+	    throw new IOException("Packet truncated", e);
+	}
+    }
+
+    private static int toInt(long value) throws IOException {
+	if (value > Integer.MAX_VALUE) {
+	    throw new IOException("Header field too large: " + value);
+	}
+	return (int) value;
+    }
+
+    public static boolean isHeaderV2(byte[] serialisedFragmentedBlob, int packetLength) {
+	return packetLength > 0 && (serialisedFragmentedBlob[0] & 0x80) != 0;
+    }
+
+    /*
+     * Reads the header fields, the key and the payload, which ends at payloadEnd
+     */
+    private void parseFields(byte[] serialisedFragmentedBlob, int payloadEnd) throws IOException {
 	// Field 1: Fragment Offset
 	byte[] fragmentOffset_byte_array = Arrays.copyOfRange(serialisedFragmentedBlob,
 		Utils.FRAGMENT_OFFSET_START_INDEX, Utils.FRAGMENT_OFFSET_START_INDEX + Utils.SIZE_OF_FRAGMENT_OFFSET);
@@ -52,35 +200,195 @@ public class FragmentedBlob {
 	// Field 2: Packet type
 	byte[] packetType_byte_array = Arrays.copyOfRange(serialisedFragmentedBlob, Utils.PACKET_TYPE_START_INDEX,
 		Utils.PACKET_TYPE_START_INDEX + Utils.SIZE_OF_PACKET_TYPE);
-	this.packetType = packetType_byte_array[0];
+	this.packetType = (byte) (packetType_byte_array[0] & Blob.PACKET_TYPE_MASK);
+	this.compressed = (packetType_byte_array[0] & Blob.COMPRESSED_FLAG) != 0;
+	this.delta = (packetType_byte_array[0] & Blob.DELTA_FLAG) != 0;
 
-	// Field 3: UUID
+	// Field 4: Stream and sequence number
+	this.stream = Utils.shortFromByteArray(Arrays.copyOfRange(serialisedFragmentedBlob, Utils.STREAM_START_INDEX,
+		Utils.STREAM_START_INDEX + Utils.SIZE_OF_STREAM)) & 0xFFFF;
+	this.sequence = Utils.intFromByteArray(Arrays.copyOfRange(serialisedFragmentedBlob,
+		Utils.SEQUENCE_START_INDEX, Utils.SEQUENCE_START_INDEX + Utils.SIZE_OF_SEQUENCE));
+	// Field 5: UUID
 	byte[] uuid_byte_array = Arrays.copyOfRange(serialisedFragmentedBlob, Utils.UUID_START_INDEX,
 		Utils.UUID_START_INDEX + Utils.SIZE_OF_UUID);
 	this.uuid = Utils.getUuid(uuid_byte_array);
-	// Field 4: Blob Payload Length
+	// Field 6: Blob Payload Length
 	byte[] blobDataLength_byte_array = Arrays.copyOfRange(serialisedFragmentedBlob,
 		Utils.BLOB_PAYLOAD_LENGTH_START_INDEX,
 		Utils.BLOB_PAYLOAD_LENGTH_START_INDEX + Utils.SIZE_OF_BLOB_PAYLOAD_LENGTH);
 	// Get the blob payload length:
 	this.blobDataLength = Utils.intFromByteArray(blobDataLength_byte_array);
 
-	// Field 5: Key length
+	// Field 7: Key length
 	byte[] keyLength_byte_array = Arrays.copyOfRange(serialisedFragmentedBlob, Utils.KEY_LENGTH_START_INDEX,
 		Utils.KEY_LENGTH_START_INDEX + Utils.SIZE_OF_KEY_LENGTH);
 	// Get the key length:
-	short keyLength = Utils.shortFromByteArray(keyLength_byte_array);
+	int keyLength = Utils.shortFromByteArray(keyLength_byte_array) & 0xFFFF;
+	if (Utils.KEY_START_INDEX + keyLength > payloadEnd) {
+	    throw new IOException("Key of " + keyLength + " bytes does not fit in the packet");
+	}
 
-	// Field 6: Payload checksum
+	// Field 8: Payload checksum
 	this.payloadChecksum = Arrays.copyOfRange(serialisedFragmentedBlob, Utils.PAYLOAD_CHECKSUM_START_INDEX,
 		Utils.PAYLOAD_CHECKSUM_START_INDEX + Utils.SIZE_OF_PAYLOAD_CHECKSUM);
-	// Field 7: Key
+	// Field 9: Key
 	byte[] key_byte_array = Arrays.copyOfRange(serialisedFragmentedBlob, Utils.KEY_START_INDEX,
 		Utils.KEY_START_INDEX + keyLength);
 	this.key = new String(key_byte_array, StandardCharsets.UTF_8);
-	// Field 8: Payload
-	this.payload = Arrays.copyOfRange(serialisedFragmentedBlob, Utils.KEY_START_INDEX + keyLength,
-		packetLength - Utils.SIZE_OF_PACKET_CHECKSUM);
+	// Field 10: Payload
+	this.payload = Arrays.copyOfRange(serialisedFragmentedBlob, Utils.KEY_START_INDEX + keyLength, payloadEnd);
+    }
+
+    /**
+     * Checks the packet type of a serialized packet without deserializing it, the
+     * key of a MULTI_BLOB packet (see peekKey) is empty
+     *
+     * @param serialisedFragmentedBlob - the received packet
+     * @param packetLength             - length of the packet
+     * @return true if it is a MULTI_BLOB_CODE packet
+     */
+    public static boolean isMultiBlob(byte[] serialisedFragmentedBlob, int packetLength) {
+	int packetTypeIndex = isHeaderV2(serialisedFragmentedBlob, packetLength) ? Utils.V2_PACKET_TYPE_INDEX
+		: Utils.PACKET_TYPE_START_INDEX;
+	return packetLength > packetTypeIndex
+		&& (serialisedFragmentedBlob[packetTypeIndex] & Blob.PACKET_TYPE_MASK) == Blob.MULTI_BLOB_CODE;
+    }
+
+    /**
+     * Unpacks the small Blobs of a MULTI_BLOB_CODE packet
+     *
+     * @return one SMALL_BLOB_CODE fragment per Blob, in the order they were packed
+     * @throws IOException if this is not a MULTI_BLOB_CODE packet or an entry is
+     *                     malformed
+     */
+    public List<FragmentedBlob> unpack() throws IOException {
+	if (this.packetType != Blob.MULTI_BLOB_CODE) {
+	    throw new IOException("Not a multi blob packet");
+	}
+
+	List<FragmentedBlob> fragments = new ArrayList<>();
+	int index = 0;
+	while (index < this.payload.length) {
+	    if (index + Utils.SIZE_OF_MULTI_BLOB_ENTRY_LENGTH > this.payload.length) {
+		throw new IOException("Multi blob packet truncated");
+	    }
+	    int entryLength = Utils.shortFromByteArray(
+		    Arrays.copyOfRange(this.payload, index, index + Utils.SIZE_OF_MULTI_BLOB_ENTRY_LENGTH)) & 0xFFFF;
+	    index += Utils.SIZE_OF_MULTI_BLOB_ENTRY_LENGTH;
+	    if (index + entryLength > this.payload.length) {
+		throw new IOException("Multi blob packet truncated");
+	    }
+	    fragments.add(new FragmentedBlob(Arrays.copyOfRange(this.payload, index, index + entryLength)));
+	    index += entryLength;
+	}
+
+	if (fragments.size() != this.blobDataLength) {
+	    throw new IOException(
+		    "Multi blob packet with " + fragments.size() + " blobs instead of " + this.blobDataLength);
+	}
+	return fragments;
+    }
+
+    /**
+     * Reads the key of a serialized fragment without deserializing it or checking
+     * its checksum, to drop the fragments of unwanted keys cheaply
+     *
+     * @param serialisedFragmentedBlob - the received packet
+     * @param packetLength             - length of the packet
+     * @return the key, or null if the packet is too short to hold one or is a v2
+     *         packet without descriptor
+     */
+    public static String peekKey(byte[] serialisedFragmentedBlob, int packetLength) {
+	if (isHeaderV2(serialisedFragmentedBlob, packetLength)) {
+	    return peekV2Key(serialisedFragmentedBlob, packetLength);
+	}
+	if (packetLength < Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER) {
+	    return null;
+	}
+	int keyLength = Utils.shortFromByteArray(Arrays.copyOfRange(serialisedFragmentedBlob,
+		Utils.KEY_LENGTH_START_INDEX, Utils.KEY_LENGTH_START_INDEX + Utils.SIZE_OF_KEY_LENGTH)) & 0xFFFF;
+	if (Utils.KEY_START_INDEX + keyLength > packetLength) {
+	    return null;
+	}
+	return new String(serialisedFragmentedBlob, Utils.KEY_START_INDEX, keyLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the stream of a serialized v1 fragment without deserializing it or
+     * checking its checksum, to track the sequence of the fragments that are
+     * dropped by peekKey
+     *
+     * @param serialisedFragmentedBlob - the received packet
+     * @param packetLength             - length of the packet
+     * @return the stream, 0 if the packet is not sequenced, too short or a v2
+     *         packet
+     */
+    public static int peekStream(byte[] serialisedFragmentedBlob, int packetLength) {
+	if (isHeaderV2(serialisedFragmentedBlob, packetLength) || packetLength < Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER) {
+	    return 0;
+	}
+	return ByteBuffer.wrap(serialisedFragmentedBlob).getShort(Utils.STREAM_START_INDEX) & 0xFFFF;
+    }
+
+    /**
+     * @param serialisedFragmentedBlob - the received v1 packet, see peekStream
+     * @param packetLength             - length of the packet
+     * @return the sequence number of the Blob in its stream
+     */
+    public static int peekSequence(byte[] serialisedFragmentedBlob, int packetLength) {
+	if (packetLength < Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER) {
+	    return 0;
+	}
+	return ByteBuffer.wrap(serialisedFragmentedBlob).getInt(Utils.SEQUENCE_START_INDEX);
+    }
+
+    private static String peekV2Key(byte[] serialisedFragmentedBlob, int packetLength) {
+	ByteBuffer in = ByteBuffer.wrap(serialisedFragmentedBlob, 0, packetLength);
+	try {
+	    in.position(Utils.V2_PACKET_TYPE_INDEX);
+	    byte type = in.get();
+	    if ((type & Blob.DESCRIPTOR_FLAG) == 0 || (type & Blob.PACKET_TYPE_MASK) == Blob.MULTI_BLOB_CODE) {
+		return null;
+	    }
+	    in.position(Utils.SIZE_OF_V2_FIXED_HEADER);
+	    // blob id, fragment offset, UUID, stream, sequence number and length
+	    Utils.getVarint(in);
+	    Utils.getVarint(in);
+	    in.position(in.position() + Utils.SIZE_OF_UUID + Utils.SIZE_OF_STREAM);
+	    Utils.getVarint(in);
+	    Utils.getVarint(in);
+	    long keyLength = Utils.getVarint(in);
+	    if (keyLength > in.remaining()) {
+		return null;
+	    }
+	    return new String(serialisedFragmentedBlob, in.position(), (int) keyLength, StandardCharsets.UTF_8);
+	} catch (IOException | RuntimeException e) {
+	    // truncated or malformed
+	    return null;
+	}
+    }
+
+    /**
+     * @return true if the packet carries the stream and sequence number of its
+     *         Blob
+     */
+    public boolean hasSequence() {
+	return this.stream != 0;
+    }
+
+    /**
+     * @return the stream of the sender, see BlobSequence
+     */
+    public int getStream() {
+	return this.stream;
+    }
+
+    /**
+     * @return the sequence number of the Blob in the stream
+     */
+    public int getSequence() {
+	return this.sequence;
     }
 
     public int getFragmentOffset() {
@@ -115,6 +423,13 @@ public class FragmentedBlob {
 	this.payloadChecksum = payloadChecksum;
     }
 
+    /**
+     * @return the algorithm of the Blob's metadata and payload checksums
+     */
+    public ChecksumAlgorithm getChecksumAlgorithm() {
+	return this.checksumAlgorithm;
+    }
+
     public int getblobDataLength() {
 	return this.blobDataLength;
     }
@@ -131,6 +446,64 @@ public class FragmentedBlob {
 	this.packetType = packetType;
     }
 
+    public boolean isCompressed() {
+	return this.compressed;
+    }
+
+    public boolean isDelta() {
+	return this.delta;
+    }
+
+    /**
+     * @return true if the packet has the compact v2 header
+     */
+    public boolean isHeaderV2() {
+	return this.v2;
+    }
+
+    /**
+     * @return true if the packet carries the UUID, key, length and checksum of
+     *         the Blob: always for v1 packets
+     */
+    public boolean hasDescriptor() {
+	return !this.v2 || this.descriptor || this.packetType == Blob.MULTI_BLOB_CODE;
+    }
+
+    /**
+     * @return false for a v2 packet without descriptor until a BlobDictionary
+     *         sets its UUID, key, length and checksum
+     */
+    public boolean isResolved() {
+	return this.uuid != null;
+    }
+
+    /**
+     * @return the session of the sender of a v2 packet
+     */
+    public int getSession() {
+	return this.session;
+    }
+
+    /**
+     * @return the id of the Blob in the session of the sender of a v2 packet
+     */
+    public long getSessionBlobId() {
+	return this.sessionBlobId;
+    }
+
+    /**
+     * @return the packet type and flags of the data the packet carries, or
+     *         protects for a PARITY_CODE packet: the fragments of one form share
+     *         the same length and checksum
+     */
+    public byte getForm() {
+	byte type = this.packetType;
+	if (type == Blob.PARITY_CODE && this.payload.length > 0) {
+	    type = (byte) (this.payload[0] & Blob.PACKET_TYPE_MASK);
+	}
+	return (byte) (type | (this.compressed ? Blob.COMPRESSED_FLAG : 0) | (this.delta ? Blob.DELTA_FLAG : 0));
+    }
+
     public byte[] getPayload() {
 	return this.payload;
     }
@@ -148,12 +521,18 @@ public class FragmentedBlob {
 	    output += "Data ";
 	} else if (this.packetType == Blob.SMALL_BLOB_CODE) {
 	    output += "Small Blob ";
+	} else if (this.packetType == Blob.PARITY_CODE) {
+	    output += "Parity ";
+	} else if (this.packetType == Blob.ANNOUNCEMENT_CODE) {
+	    output += "Announcement ";
+	} else if (this.packetType == Blob.MULTI_BLOB_CODE) {
+	    output += "Multi Blob ";
 	}
 	output += "fragmentedBlob with \n";
 	output += "fragmentOffset = " + Integer.toString(this.fragmentOffset) + "\n";
 	output += "key = " + this.key + "\n";
-	output += "uuid = " + this.uuid.toString() + "\n";
-	output += "payloadChecksum = " + new String(this.payloadChecksum) + "\n";
+	output += "uuid = " + this.uuid + "\n";
+	output += "payloadChecksum = " + (this.payloadChecksum != null ? new String(this.payloadChecksum) : null) + "\n";
 	output += "payload = " + new String(this.payload) + "\n";
 	output += "packetChecksum = " + new String(this.packetChecksum) + "\n";
 
@@ -0,0 +1,234 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * GroupMap class - maps the keys to multicast groups by key prefix, so that a
+ * receiver only joins the groups of the keys it uses.
+ *
+ * A key is sent to the group of its longest matching prefix, or to the default
+ * group (the one given on the command line) if no prefix matches. The
+ * prefixes are read from the MULTICAST_GROUPS environment variable, as
+ * "prefix=ip:port" entries separated by ';', e.g.
+ * "TPC/=230.0.0.1:5001;ITS/=230.0.0.2:5001".
+ *
+ * The receivers read the prefixes they use from MULTICAST_SUBSCRIPTIONS, as a
+ * ',' separated list. The sender and the receivers must use the same
+ * MULTICAST_GROUPS.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class GroupMap {
+    private static SingletonLogger singletonLogger = new SingletonLogger();
+    private static Logger logger = singletonLogger.getLogger();
+
+    /**
+     * A multicast group and port
+     */
+    public static final class Group {
+	private final String ip;
+	private final int port;
+
+	public Group(String ip, int port) {
+	    this.ip = ip;
+	    this.port = port;
+	}
+
+	public String getIp() {
+	    return this.ip;
+	}
+
+	public int getPort() {
+	    return this.port;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+	    if (!(obj instanceof Group)) {
+		return false;
+	    }
+	    Group other = (Group) obj;
+	    return this.port == other.port && this.ip.equals(other.ip);
+	}
+
+	@Override
+	public int hashCode() {
+	    return this.ip.hashCode() * 31 + this.port;
+	}
+
+	@Override
+	public String toString() {
+	    return this.ip + ":" + this.port;
+	}
+    }
+
+    private final Group defaultGroup;
+    private final Map<String, Group> prefixes = new LinkedHashMap<>();
+
+    /**
+     * Parameterized constructor - all the keys go to the default group until
+     * prefixes are added
+     *
+     * @param defaultIp   - multicast group of the keys without a prefix
+     * @param defaultPort - port of the default group
+     */
+    public GroupMap(String defaultIp, int defaultPort) {
+	this.defaultGroup = new Group(defaultIp, defaultPort);
+    }
+
+    /**
+     * @param defaultIp   - multicast group of the keys without a prefix
+     * @param defaultPort - port of the default group
+     * @return the map with the prefixes from MULTICAST_GROUPS
+     */
+    public static GroupMap fromEnv(String defaultIp, int defaultPort) {
+	GroupMap groupMap = new GroupMap(defaultIp, defaultPort);
+	String envValue = System.getenv("MULTICAST_GROUPS");
+	if (envValue == null) {
+	    return groupMap;
+	}
+
+	for (String entry : envValue.split(";")) {
+	    entry = entry.trim();
+	    if (entry.isEmpty()) {
+		continue;
+	    }
+	    int equals = entry.lastIndexOf('=');
+	    int colon = entry.lastIndexOf(':');
+	    try {
+		if (equals <= 0 || colon < equals) {
+		    throw new NumberFormatException("expected prefix=ip:port");
+		}
+		groupMap.addPrefix(entry.substring(0, equals), entry.substring(equals + 1, colon),
+			Integer.parseInt(entry.substring(colon + 1)));
+	    } catch (NumberFormatException e) {
+		logger.log(Level.WARNING, "Ignoring the MULTICAST_GROUPS entry " + entry + ": " + e.getMessage());
+	    }
+	}
+	return groupMap;
+    }
+
+    /**
+     * @return the prefixes from MULTICAST_SUBSCRIPTIONS, null to receive all the
+     *         keys
+     */
+    public static List<String> subscriptionsFromEnv() {
+	String envValue = System.getenv("MULTICAST_SUBSCRIPTIONS");
+	if (envValue == null || envValue.trim().isEmpty()) {
+	    return null;
+	}
+
+	List<String> subscriptions = new ArrayList<>();
+	for (String prefix : envValue.split(",")) {
+	    if (!prefix.trim().isEmpty()) {
+		subscriptions.add(prefix.trim());
+	    }
+	}
+	return subscriptions;
+    }
+
+    /**
+     * Sends the keys starting with prefix to ip:port
+     *
+     * @param prefix - key prefix
+     * @param ip     - multicast group
+     * @param port   - port number
+     */
+    public void addPrefix(String prefix, String ip, int port) {
+	this.prefixes.put(prefix, new Group(ip, port));
+    }
+
+    /**
+     * @param key - the key of a Blob
+     * @return the group of the longest prefix of the key, or the default group
+     */
+    public Group getGroup(String key) {
+	Group group = this.defaultGroup;
+	int matchLength = -1;
+	for (Map.Entry<String, Group> entry : this.prefixes.entrySet()) {
+	    String prefix = entry.getKey();
+	    if (prefix.length() > matchLength && key.startsWith(prefix)) {
+		group = entry.getValue();
+		matchLength = prefix.length();
+	    }
+	}
+	return group;
+    }
+
+    /**
+     * @param key - the key of a Blob
+     * @return the shared channel to the group of the key
+     * @throws IOException
+     */
+    public SenderChannel getChannel(String key) throws IOException {
+	Group group = getGroup(key);
+	return SenderChannelRegistry.getChannel(group.getIp(), group.getPort());
+    }
+
+    /**
+     * @return all the groups, the default one first
+     */
+    public Set<Group> getGroups() {
+	Set<Group> groups = new LinkedHashSet<>();
+	groups.add(this.defaultGroup);
+	groups.addAll(this.prefixes.values());
+	return groups;
+    }
+
+    /**
+     * @param subscriptions - key prefixes, null for all the keys
+     * @return the groups that carry the keys starting with any of the
+     *         subscriptions
+     */
+    public Set<Group> getGroups(Collection<String> subscriptions) {
+	if (subscriptions == null) {
+	    return getGroups();
+	}
+
+	Set<Group> groups = new LinkedHashSet<>();
+	for (String subscription : subscriptions) {
+	    // the keys that do not match a longer prefix
+	    groups.add(getGroup(subscription));
+	    // and the ones that do
+	    for (Map.Entry<String, Group> entry : this.prefixes.entrySet()) {
+		if (entry.getKey().startsWith(subscription)) {
+		    groups.add(entry.getValue());
+		}
+	    }
+	}
+	return groups;
+    }
+
+    /**
+     * @param key           - the key of a Blob
+     * @param subscriptions - key prefixes, null for all the keys
+     * @return true if the key starts with one of the subscriptions
+     */
+    public static boolean isSubscribed(String key, Collection<String> subscriptions) {
+	if (subscriptions == null) {
+	    return true;
+	}
+	for (String subscription : subscriptions) {
+	    if (key.startsWith(subscription)) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    @Override
+    public String toString() {
+	return "GroupMap [default=" + this.defaultGroup + ", prefixes=" + this.prefixes + "]";
+    }
+}
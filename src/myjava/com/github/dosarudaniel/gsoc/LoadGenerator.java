@@ -0,0 +1,232 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * LoadGenerator class - publishes synthetic Blobs at a fixed rate, to
+ * benchmark the protocol and not the generation of the data.
+ *
+ * The payloads are slices of a pool of random alphanumeric bytes generated
+ * once, so building a Blob costs one copy. Their sizes follow a lognormal
+ * distribution (median and sigma), the keys are taken at random among
+ * nrKeys keys and every Blob has its own UUID.
+ *
+ * The publications are scheduled open loop every 1 / blobsPerSecond seconds.
+ * The send latency of a Blob runs from its scheduled time to the moment its
+ * last fragment was written to the network, so a sender that falls behind
+ * shows up in the latencies instead of lowering the publication rate.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class LoadGenerator {
+    private SingletonLogger singletonLogger = new SingletonLogger();
+    private Logger logger = this.singletonLogger.getLogger();
+
+    public static final String KEY_PREFIX = "load/key-";
+    public static final int METADATA_LENGTH = 1000;
+    // the largest payload, larger draws of the distribution are cut
+    public static final int DEFAULT_POOL_SIZE = 64 * 1024 * 1024;
+    // the publications are scheduled with a period in nanoseconds
+    public static final double MAX_BLOBS_PER_SECOND = 1e9;
+
+    private final String ip_address;
+    private final int portNumber;
+    private final int maxPayloadSize;
+    private final int medianSize;
+    private final double sigma;
+    private final int nrKeys;
+    private final double blobsPerSecond;
+    private final int durationSeconds;
+    private RatePacer pacer = null;
+
+    private final byte[] pool;
+    private final byte[] metadata;
+    private final Random random = new Random();
+
+    // results of the last run
+    private long blobsSent = 0;
+    private long bytesSent = 0;
+    private double elapsedSeconds = 0;
+    private long[] latenciesNanos = new long[0];
+
+    /**
+     * Parameterized constructor - generates the payload pool
+     *
+     * @param ip_address      - Destination multicast IP
+     * @param portNumber      - Destination port number
+     * @param maxPayloadSize  - the maximum payload supported by a fragmented
+     *                        packet
+     * @param medianSize      - median payload size in bytes
+     * @param sigma           - standard deviation of the log of the payload
+     *                        size, 0 for constant sizes
+     * @param nrKeys          - number of distinct keys
+     * @param blobsPerSecond  - publication rate, above 0 and at most
+     *                        MAX_BLOBS_PER_SECOND
+     * @param durationSeconds - how long to publish
+     * @throws IllegalArgumentException if the rate has no period of at least 1 ns
+     */
+    public LoadGenerator(String ip_address, int portNumber, int maxPayloadSize, int medianSize, double sigma,
+	    int nrKeys, double blobsPerSecond, int durationSeconds) {
+	// also rejects NaN
+	if (!(blobsPerSecond > 0 && blobsPerSecond <= MAX_BLOBS_PER_SECOND)) {
+	    throw new IllegalArgumentException("The rate must be above 0 and at most " + MAX_BLOBS_PER_SECOND
+		    + " blobs per second: " + blobsPerSecond);
+	}
+	this.ip_address = ip_address;
+	this.portNumber = portNumber;
+	this.maxPayloadSize = maxPayloadSize;
+	this.medianSize = medianSize;
+	this.sigma = sigma;
+	this.nrKeys = Math.max(1, nrKeys);
+	this.blobsPerSecond = blobsPerSecond;
+	this.durationSeconds = durationSeconds;
+
+	this.pool = randomAlphanumeric(Math.max(DEFAULT_POOL_SIZE, medianSize), this.random);
+	this.metadata = randomAlphanumeric(METADATA_LENGTH, this.random);
+    }
+
+    private static byte[] randomAlphanumeric(int length, Random random) {
+	byte[] alphabet = Utils.AB.getBytes(StandardCharsets.US_ASCII);
+	byte[] data = new byte[length];
+	random.nextBytes(data);
+	for (int i = 0; i < length; i++) {
+	    data[i] = alphabet[(data[i] & 0xFF) % alphabet.length];
+	}
+	return data;
+    }
+
+    /**
+     * @param pacer - paces the fragments to a target rate, null for no pacing
+     */
+    public void setPacer(RatePacer pacer) {
+	this.pacer = pacer;
+    }
+
+    /**
+     * @return a size drawn from the lognormal distribution, between 1 and the
+     *         pool size
+     */
+    int nextPayloadSize() {
+	double size = this.medianSize * Math.exp(this.sigma * this.random.nextGaussian());
+	return (int) Math.max(1, Math.min(this.pool.length, Math.round(size)));
+    }
+
+    /**
+     * Publishes for durationSeconds, waits for the queued Blobs to be sent and
+     * logs the results
+     *
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void work() throws NoSuchAlgorithmException, IOException, InterruptedException {
+	// completion times only, the sent Blobs are not kept
+	List<CompletableFuture<Long>> completions = new ArrayList<>();
+	List<Long> scheduledTimes = new ArrayList<>();
+	long payloadBytes = 0;
+
+	long periodNanos = (long) (1_000_000_000 / this.blobsPerSecond);
+	long start;
+	long end;
+	long[] latenciesNanos;
+	try (SendPipeline pipeline = new SendPipeline(this.ip_address, this.portNumber, this.maxPayloadSize)) {
+	    pipeline.setPacer(this.pacer);
+
+	    start = System.nanoTime();
+	    long deadline = start + this.durationSeconds * 1_000_000_000L;
+	    for (long scheduled = start; scheduled < deadline; scheduled += periodNanos) {
+		long wait;
+		while ((wait = scheduled - System.nanoTime()) > 0) {
+		    LockSupport.parkNanos(wait);
+		}
+
+		int size = nextPayloadSize();
+		int offset = this.random.nextInt(this.pool.length - size + 1);
+		byte[] payload = Arrays.copyOfRange(this.pool, offset, offset + size);
+		String key = KEY_PREFIX + this.random.nextInt(this.nrKeys);
+		Blob blob = new Blob(this.metadata, payload, key, UUID.randomUUID());
+		blob.compress(PayloadCodec.DEFAULT_CODEC);
+
+		completions.add(pipeline.publish(blob).thenApply(sent -> Long.valueOf(System.nanoTime())));
+		scheduledTimes.add(Long.valueOf(scheduled));
+		payloadBytes += size;
+	    }
+
+	    long[] latencies = new long[completions.size()];
+	    int nrLatencies = 0;
+	    for (int i = 0; i < completions.size(); i++) {
+		try {
+		    long completed = completions.get(i).get().longValue();
+		    latencies[nrLatencies++] = completed - scheduledTimes.get(i).longValue();
+		} catch (ExecutionException e) {
+		    this.logger.log(Level.WARNING, "Blob was not sent", e);
+		}
+	    }
+	    end = System.nanoTime();
+	    latenciesNanos = Arrays.copyOf(latencies, nrLatencies);
+	}
+
+	Arrays.sort(latenciesNanos);
+	this.latenciesNanos = latenciesNanos;
+	this.blobsSent = latenciesNanos.length;
+	this.bytesSent = payloadBytes;
+	this.elapsedSeconds = (end - start) / 1e9;
+
+	this.logger.log(Level.INFO, getReport());
+    }
+
+    /**
+     * @param percentile - between 0 and 100
+     * @return the send latency at this percentile in milliseconds, 0 if nothing
+     *         was sent
+     */
+    public double getLatencyMillis(double percentile) {
+	if (this.latenciesNanos.length == 0) {
+	    return 0;
+	}
+	int index = (int) Math.ceil(percentile / 100 * this.latenciesNanos.length) - 1;
+	return this.latenciesNanos[Math.max(0, Math.min(index, this.latenciesNanos.length - 1))] / 1e6;
+    }
+
+    /**
+     * @return the uncompressed payload bits sent per second
+     */
+    public double getGoodputBitsPerSecond() {
+	return this.elapsedSeconds > 0 ? this.bytesSent * 8 / this.elapsedSeconds : 0;
+    }
+
+    public long getBlobsSent() {
+	return this.blobsSent;
+    }
+
+    public long getBytesSent() {
+	return this.bytesSent;
+    }
+
+    /**
+     * @return the results of the last run
+     */
+    public String getReport() {
+	return String.format(
+		"Sent %d blobs, %d bytes in %.2f s (%.2f blobs/s): goodput %.2f Mbit/s, send latency p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+		Long.valueOf(this.blobsSent), Long.valueOf(this.bytesSent), Double.valueOf(this.elapsedSeconds),
+		Double.valueOf(this.elapsedSeconds > 0 ? this.blobsSent / this.elapsedSeconds : 0),
+		Double.valueOf(getGoodputBitsPerSecond() / 1e6), Double.valueOf(getLatencyMillis(50)),
+		Double.valueOf(getLatencyMillis(90)), Double.valueOf(getLatencyMillis(99)),
+		Double.valueOf(getLatencyMillis(99.9)), Double.valueOf(getLatencyMillis(100)));
+    }
+}
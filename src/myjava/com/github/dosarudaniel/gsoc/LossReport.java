@@ -0,0 +1,135 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * LossReport class - periodic report of a receiver to the sender (by unicast
+ * UDP) of the bytes it lost and received twice, see RateController.
+ *
+ * Serialized structure:
+ *
+ * intervalMillis (4) | expectedBytes (8) | lostBytes (8) | duplicateBytes (8) |
+ * CRC32C (4)
+ *
+ * The counters cover the Blobs the receiver accounted during the last
+ * intervalMillis: expectedBytes are the metadata and payload bytes sent to it,
+ * lostBytes the ones that did not arrive with the first transmission (missing
+ * when the Blob stalled, or rebuilt from the parity packets) and
+ * duplicateBytes the ones that arrived more than once, e.g. repairs asked by
+ * other receivers.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class LossReport {
+    public static final int SIZE_OF_LOSS_REPORT = 4 + 8 + 8 + 8 + 4;
+
+    private final int intervalMillis;
+    private final long expectedBytes;
+    private final long lostBytes;
+    private final long duplicateBytes;
+
+    /**
+     * Parameterized constructor
+     *
+     * @param intervalMillis - the time covered by the report
+     * @param expectedBytes  - bytes that should have been received
+     * @param lostBytes      - expected bytes that did not arrive the first time
+     * @param duplicateBytes - bytes received more than once
+     */
+    public LossReport(int intervalMillis, long expectedBytes, long lostBytes, long duplicateBytes) {
+	this.intervalMillis = intervalMillis;
+	this.expectedBytes = expectedBytes;
+	this.lostBytes = lostBytes;
+	this.duplicateBytes = duplicateBytes;
+    }
+
+    /**
+     * Deserializes a loss report
+     *
+     * @param buffer - the received datagram
+     * @param length - the datagram length
+     * @throws IOException if the report is truncated or corrupted
+     */
+    public LossReport(byte[] buffer, int length) throws IOException {
+	if (length != SIZE_OF_LOSS_REPORT) {
+	    throw new IOException("Loss report of " + length + " bytes instead of " + SIZE_OF_LOSS_REPORT);
+	}
+
+	byte[] crc = new byte[4];
+	ChecksumAlgorithm.Hasher hasher = ChecksumAlgorithm.CRC32C.getHasher();
+	hasher.update(buffer, 0, length - 4);
+	hasher.digest(crc, 0);
+	for (int i = 0; i < 4; i++) {
+	    if (crc[i] != buffer[length - 4 + i]) {
+		throw new IOException("Loss report checksum failed!");
+	    }
+	}
+
+	ByteBuffer in = ByteBuffer.wrap(buffer, 0, length - 4);
+	try {
+	    this.intervalMillis = in.getInt();
+	    this.expectedBytes = in.getLong();
+	    this.lostBytes = in.getLong();
+	    this.duplicateBytes = in.getLong();
+	} catch (BufferUnderflowException e) {
+	    throw new IOException("Loss report truncated", e);
+	}
+    }
+
+    /**
+     * @return the serialized report
+     */
+    public byte[] serialize() {
+	ByteBuffer out = ByteBuffer.allocate(SIZE_OF_LOSS_REPORT);
+	out.putInt(this.intervalMillis);
+	out.putLong(this.expectedBytes);
+	out.putLong(this.lostBytes);
+	out.putLong(this.duplicateBytes);
+
+	ChecksumAlgorithm.Hasher hasher = ChecksumAlgorithm.CRC32C.getHasher();
+	hasher.update(out.array(), 0, out.position());
+	hasher.digest(out.array(), out.position());
+	return out.array();
+    }
+
+    public int getIntervalMillis() {
+	return this.intervalMillis;
+    }
+
+    public long getExpectedBytes() {
+	return this.expectedBytes;
+    }
+
+    public long getLostBytes() {
+	return this.lostBytes;
+    }
+
+    public long getDuplicateBytes() {
+	return this.duplicateBytes;
+    }
+
+    /**
+     * @return lostBytes / expectedBytes, 0 if nothing was expected
+     */
+    public double getLossRate() {
+	return this.expectedBytes > 0 ? (double) this.lostBytes / this.expectedBytes : 0;
+    }
+
+    /**
+     * @return duplicateBytes / expectedBytes, 0 if nothing was expected
+     */
+    public double getDuplicateRate() {
+	return this.expectedBytes > 0 ? (double) this.duplicateBytes / this.expectedBytes : 0;
+    }
+
+    @Override
+    public String toString() {
+	return String.format("LossReport [%d ms, expected %d B, loss %.2f%%, duplicates %.2f%%]",
+		Integer.valueOf(this.intervalMillis), Long.valueOf(this.expectedBytes),
+		Double.valueOf(getLossRate() * 100), Double.valueOf(getDuplicateRate() * 100));
+    }
+}
@@ -4,18 +4,36 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,9 +48,28 @@ public class MulticastReceiver {
     static final int DELTA_T = 1000;
     static final int HTTP_RESPONSE_CODE_OK = 200;
     static final int HTTP_RESPONSE_CODE_PARTIAL_CONTENT = 206;
+    // time without new fragments before an incomplete Blob is NACKed
+    static final int NACK_DELAY = 100;
+    // time between two loss reports to every sender
+    static final int FEEDBACK_INTERVAL = 1000;
+    // NACKs sent for a Blob before falling back to the HTTP recovery
+    static final int MAX_NACKS = 5;
+    // HTTP recoveries of a Blob before it is dropped from inFlight
+    static final int MAX_HTTP_RECOVERIES = 5;
 
     private String ip_address;
     private int portNumber;
+    // the sender's NACK port, 0 if the NACK based repair is disabled
+    private int nackPort = 0;
+    // the sender's loss report port, 0 if the congestion control is disabled
+    private int feedbackPort = 0;
+    // sends the NACKs and the loss reports
+    private DatagramSocket nackSocket;
+    // the index of this receiver in the completion bitmaps of the sender, -1 if
+    // ACK_RECEIVER_ID is not set
+    private int receiverId = -1;
+    // sends the completion ACKs, null if they are disabled
+    private AckAggregator ackAggregator;
 
     public static int nrPacketsReceived = 0;
 
@@ -41,10 +78,84 @@ public class MulticastReceiver {
     // completa a tuturor fragmentelor
     public static Map<String, Blob> currentCacheContent; // Blob-uri complete
 
+    // the host that multicast each in flight Blob, where its NACKs go
+    private Map<UUID, InetAddress> blobSources = new ConcurrentHashMap<>();
+    private Map<UUID, Integer> nacksSent = new ConcurrentHashMap<>();
+    private Map<UUID, Integer> httpRecoveries = new ConcurrentHashMap<>();
+
+    // the groups joined and the key prefixes kept, null to keep all the keys
+    private GroupMap groupMap;
+    private List<String> subscriptions;
+    private AtomicLong nrPacketsFiltered = new AtomicLong();
+
+    // resolves the v2 fragments sent without descriptor
+    private final BlobDictionary blobDictionary = new BlobDictionary();
+
+    /**
+     * Bytes expected from, lost and duplicated by one sender since the last loss
+     * report
+     */
+    private static final class LossCounters {
+	long expectedBytes = 0;
+	long lostBytes = 0;
+	long duplicateBytes = 0;
+
+	synchronized void add(long expected, long lost, long duplicate) {
+	    this.expectedBytes += expected;
+	    this.lostBytes += lost;
+	    this.duplicateBytes += duplicate;
+	}
+
+	synchronized LossReport getAndReset(int intervalMillis) {
+	    LossReport report = new LossReport(intervalMillis, this.expectedBytes, this.lostBytes,
+		    this.duplicateBytes);
+	    this.expectedBytes = 0;
+	    this.lostBytes = 0;
+	    this.duplicateBytes = 0;
+	    return report;
+	}
+    }
+
+    private Map<InetAddress, LossCounters> lossCounters = new ConcurrentHashMap<>();
+    // in flight Blobs whose loss was accounted when they stalled
+    private Set<UUID> stalledBlobs = ConcurrentHashMap.newKeySet();
+    // the Blobs lost entirely, by sender and stream (see BlobSequence)
+    private Map<InetAddress, Map<Integer, SequenceTracker>> sequenceTrackers = new ConcurrentHashMap<>();
+
     public MulticastReceiver(String ip_address, int portNumber) throws SecurityException {
 	this.ip_address = ip_address;
 	this.portNumber = portNumber;
 	this.currentCacheContent = new ConcurrentHashMap<>();
+
+	String nackPortEnvValue = System.getenv("NACK_PORT");
+	if (nackPortEnvValue != null) {
+	    try {
+		this.nackPort = Integer.parseInt(nackPortEnvValue);
+	    } catch (NumberFormatException e) {
+		this.logger.log(Level.WARNING, "Environment variable NACK_PORT is not a number.");
+	    }
+	}
+
+	String feedbackPortEnvValue = System.getenv("FEEDBACK_PORT");
+	if (feedbackPortEnvValue != null) {
+	    try {
+		this.feedbackPort = Integer.parseInt(feedbackPortEnvValue);
+	    } catch (NumberFormatException e) {
+		this.logger.log(Level.WARNING, "Environment variable FEEDBACK_PORT is not a number.");
+	    }
+	}
+
+	String receiverIdEnvValue = System.getenv("ACK_RECEIVER_ID");
+	if (receiverIdEnvValue != null) {
+	    try {
+		this.receiverId = Integer.parseInt(receiverIdEnvValue);
+	    } catch (NumberFormatException e) {
+		this.logger.log(Level.WARNING, "Environment variable ACK_RECEIVER_ID is not a number.");
+	    }
+	}
+
+	this.groupMap = GroupMap.fromEnv(ip_address, portNumber);
+	this.subscriptions = GroupMap.subscriptionsFromEnv();
     }
 
     private Thread counterThread = new Thread(new Runnable() {
@@ -67,123 +178,412 @@ public class MulticastReceiver {
 				    + " packets per second. \n" + "Total " + MulticastReceiver.nrPacketsReceived);
 		    oldNrPacketsReceived = MulticastReceiver.nrPacketsReceived;
 		}
+
+		for (InetAddress source : sequenceTrackers.keySet()) {
+		    long lost = getBlobsLost(source);
+		    if (lost != lostBlobs.getOrDefault(source, Long.valueOf(0)).longValue()) {
+			this.logger2.log(Level.INFO, "Lost " + lost + " of " + getBlobsExpected(source) + " blobs from "
+				+ source.getHostAddress() + ", " + getBlobsRecovered(source) + " recovered");
+			lostBlobs.put(source, Long.valueOf(lost));
+		    }
+		}
 	    }
 	}
+
+	// the loss of every sender at the last log
+	private Map<InetAddress, Long> lostBlobs = new HashMap<>();
     });
 
     private Thread incompleteBlobRecovery = new Thread(new Runnable() {
 	@Override
 	public void run() {
+	    while (true) {
+		try {
+		    Thread.sleep(NACK_DELAY);
+		} catch (InterruptedException e) {
+		    return;
+		}
 
-	    for (Map.Entry<UUID, Blob> entry : inFlight.entrySet()) {
-		UUID uuid = entry.getKey();
-		Blob blob = entry.getValue();
-		Timestamp timestamp = blob.getTimestamp();
+		long now = System.currentTimeMillis();
+		for (Map.Entry<UUID, Blob> entry : inFlight.entrySet()) {
+		    UUID uuid = entry.getKey();
+		    Blob blob = entry.getValue();
+		    Timestamp timestamp = blob.getTimestamp();
+		    if (timestamp == null) {
+			continue;
+		    }
+		    long lastActivity = timestamp.getTime();
 
-		Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
+		    if (now <= lastActivity + NACK_DELAY) {
+			// fragments are still arriving
+			continue;
+		    }
 
-		if (currentTimestamp.getTime() > blob.getTimestamp().getTime() + DELTA_T) {
-		    // ArrayList<Pair> metadataMissingBlocks = blob.getMissingMetadataBlocks();
-		    // TODO: Metadata recovery
+		    if (stalledBlobs.add(uuid)) {
+			// what is missing now was lost by the first transmission
+			long missingBytes = blob.getMissingBytes();
+			long recoveredBytes = blob.getRecoveredBytes();
+			countLoss(blobSources.get(uuid), blob.getReceivedBytes() + recoveredBytes + missingBytes,
+				missingBytes + recoveredBytes, 0);
+		    }
+		    if (nackPort <= 0) {
+			continue;
+		    }
 
-		    ArrayList<Pair> payloadMissingBlocks = blob.getMissingPayloadBlocks();
-		    if (payloadMissingBlocks == null) {
-			// Recover the entire Blob
+		    int nrNacks = nacksSent.getOrDefault(uuid, Integer.valueOf(0)).intValue();
+		    if (nrNacks < MAX_NACKS) {
+			// ask the sender to multicast the missing ranges again
 			try {
-			    URL url = new URL("http://localhost:8080/Task/Detector/1/" + blob.getUuid().toString());
-			    HttpURLConnection con = (HttpURLConnection) url.openConnection();
-			    con.setRequestMethod("GET");
-
-			    con.setConnectTimeout(5000); // server should be fast (< 5 sec)
-			    con.setReadTimeout(5000);
-
-			    int status = con.getResponseCode();
-			    if (status == HTTP_RESPONSE_CODE_OK) {
-				BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-				String inputLine;
-				StringBuffer content = new StringBuffer();
-				while ((inputLine = in.readLine()) != null) {
-				    content.append(inputLine);
-				}
-				blob.addByteRange(content.toString().getBytes(),
-					new Pair(0, content.toString().getBytes().length));
-
-				in.close();
-			    } else {
-				// TODO retry?
-			    }
-			} catch (Exception e) {
-			    e.printStackTrace();
+			    sendNack(blob);
+			} catch (IOException e) {
+			    logger.log(Level.WARNING, "Could not send a NACK for blob " + uuid, e);
 			}
-
-		    } else {
-			String ranges = "";
-			int i = 0;
-			for (i = 0; i < payloadMissingBlocks.size() - 1; i++) {
-			    ranges += payloadMissingBlocks.get(i).first;
-			    ranges += "-";
-			    ranges += payloadMissingBlocks.get(i).second;
-			    ranges += ",";
+			nacksSent.put(uuid, Integer.valueOf(nrNacks + 1));
+			blob.setTimestamp(new Timestamp(now));
+		    } else if (now > lastActivity + DELTA_T) {
+			int nrRecoveries = httpRecoveries.getOrDefault(uuid, Integer.valueOf(0)).intValue();
+			if (nrRecoveries >= MAX_HTTP_RECOVERIES) {
+			    // neither the sender nor the repository has it any more
+			    removeInFlight(uuid);
+			    stalledBlobs.remove(uuid);
+			    logger.log(Level.WARNING, "Gave up blob " + uuid + " with key " + blob.getKey() + " after "
+				    + nrNacks + " NACKs and " + nrRecoveries + " HTTP recoveries");
+			    continue;
 			}
-			ranges += payloadMissingBlocks.get(i).first;
-			ranges += "-";
-			ranges += payloadMissingBlocks.get(i).second;
+			// the multicast repair did not work, fall back to HTTP
+			recoverOverHttp(blob);
+			httpRecoveries.put(uuid, Integer.valueOf(nrRecoveries + 1));
+			blob.setTimestamp(new Timestamp(now));
+		    }
+		}
 
-			try {
-			    URL url = new URL("http://localhost:8080/Task/Detector/1/" + blob.getUuid().toString());
-			    HttpURLConnection con = (HttpURLConnection) url.openConnection();
-			    con.setRequestProperty("Range", "bytes=" + ranges);
-			    con.setRequestMethod("GET");
-
-			    con.setConnectTimeout(5000); // server should be fast (< 5 sec)
-			    con.setReadTimeout(5000);
-
-			    int status = con.getResponseCode();
-			    if (status == HTTP_RESPONSE_CODE_PARTIAL_CONTENT) {
-				BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-				String inputLine;
-				StringBuffer content = new StringBuffer();
-				while ((inputLine = in.readLine()) != null) {
-				    content.append(inputLine);
-				}
+		if (nackPort > 0) {
+		    nackLostBlobs(now);
+		}
+	    }
+	}
+    });
 
-				// blob.setPayload(System.arraycopy(blob.getPayload(), ));
-				// Parse de response and get only the byte ranges without
-				// "--THIS_STRING_SEPARATES_5f8a3c40-8e7a-11e9-8e66-112233445566"
+    /**
+     * Sends a NACK by sequence number for the Blobs lost entirely to their
+     * sender
+     *
+     * @param now - the current time in milliseconds
+     */
+    private void nackLostBlobs(long now) {
+	for (Map.Entry<InetAddress, Map<Integer, SequenceTracker>> source : this.sequenceTrackers.entrySet()) {
+	    for (Map.Entry<Integer, SequenceTracker> stream : source.getValue().entrySet()) {
+		List<Integer> repairs = stream.getValue().getRepairs(now);
+		for (int i = 0; i < repairs.size(); i += Nack.MAX_RANGES) {
+		    byte[] nack = new Nack(stream.getKey().intValue(),
+			    repairs.subList(i, Math.min(i + Nack.MAX_RANGES, repairs.size()))).serialize();
+		    try {
+			this.nackSocket.send(new DatagramPacket(nack, nack.length, source.getKey(), this.nackPort));
+		    } catch (IOException e) {
+			this.logger.log(Level.WARNING, "Could not send a NACK to " + source.getKey(), e);
+		    }
+		}
+	    }
+	}
+    }
 
-				// blob.addByteRange(content.toString().getBytes(), new Pair(0,
-				// content.toString().getBytes().length));
-				// System.out.println(content.toString());
+    /**
+     * Records the sequence number of the Blob of a fragment
+     *
+     * @param source   - the host that sent the fragment
+     * @param stream   - the stream of the fragment, 0 if it is not sequenced
+     * @param sequence - the sequence number of the Blob in the stream
+     */
+    private void recordSequence(InetAddress source, int stream, int sequence) {
+	if (stream == 0 || source == null) {
+	    return;
+	}
+	this.sequenceTrackers.computeIfAbsent(source, k -> new ConcurrentHashMap<>())
+		.computeIfAbsent(Integer.valueOf(stream), k -> new SequenceTracker(NACK_DELAY, MAX_NACKS))
+		.record(sequence, System.currentTimeMillis());
+    }
 
-				in.close();
-			    } else {
-				// TODO: retry?
-			    }
+    private Thread lossReporter = new Thread(new Runnable() {
+	@Override
+	public void run() {
+	    while (true) {
+		try {
+		    Thread.sleep(FEEDBACK_INTERVAL);
+		} catch (InterruptedException e) {
+		    return;
+		}
 
-			} catch (Exception e) {
-			    e.printStackTrace();
-			}
+		for (Map.Entry<InetAddress, LossCounters> entry : lossCounters.entrySet()) {
+		    LossReport report = entry.getValue().getAndReset(FEEDBACK_INTERVAL);
+		    if (report.getExpectedBytes() == 0 && report.getDuplicateBytes() == 0) {
+			continue;
+		    }
+		    byte[] serializedReport = report.serialize();
+		    try {
+			nackSocket.send(new DatagramPacket(serializedReport, serializedReport.length, entry.getKey(),
+				feedbackPort));
+		    } catch (IOException e) {
+			logger.log(Level.WARNING, "Could not send a loss report to " + entry.getKey(), e);
 		    }
 		}
 	    }
 	}
     });
 
+    /**
+     * Adds to the counters of the next loss report to the sender
+     *
+     * @param source    - the host that multicast the Blob, null if unknown
+     * @param expected  - bytes that should have been received
+     * @param lost      - expected bytes that did not arrive the first time
+     * @param duplicate - bytes received more than once
+     */
+    private void countLoss(InetAddress source, long expected, long lost, long duplicate) {
+	if (this.feedbackPort <= 0 || source == null) {
+	    return;
+	}
+	this.lossCounters.computeIfAbsent(source, k -> new LossCounters()).add(expected, lost, duplicate);
+    }
+
+    /**
+     * Sends a NACK with the missing metadata and payload ranges of the Blob to the
+     * host that multicast it
+     *
+     * @param blob - an incomplete Blob
+     * @throws IOException
+     */
+    private void sendNack(Blob blob) throws IOException {
+	InetAddress source = this.blobSources.get(blob.getUuid());
+	if (source == null) {
+	    return;
+	}
+
+	ArrayList<Pair> metadataMissingBlocks = blob.getMissingMetadataBlocks();
+	if (metadataMissingBlocks == null) {
+	    // the length is not known yet, ask for everything
+	    metadataMissingBlocks = new ArrayList<>();
+	    metadataMissingBlocks.add(new Pair(0, Integer.MAX_VALUE));
+	}
+	ArrayList<Pair> payloadMissingBlocks = blob.getMissingPayloadBlocks();
+	if (payloadMissingBlocks == null) {
+	    payloadMissingBlocks = new ArrayList<>();
+	    payloadMissingBlocks.add(new Pair(0, Integer.MAX_VALUE));
+	}
+
+	byte[] nack = new Nack(blob.getUuid(), metadataMissingBlocks, payloadMissingBlocks, blob.isReceivingDelta())
+		.serialize();
+	this.nackSocket.send(new DatagramPacket(nack, nack.length, source, this.nackPort));
+    }
+
+    /**
+     * Recovers the missing part of the Blob from the repository
+     *
+     * @param blob - an incomplete Blob
+     */
+    private void recoverOverHttp(Blob blob) {
+	// ArrayList<Pair> metadataMissingBlocks = blob.getMissingMetadataBlocks();
+	// TODO: Metadata recovery
+
+	ArrayList<Pair> payloadMissingBlocks = blob.getMissingPayloadBlocks();
+	if (payloadMissingBlocks == null) {
+	    // Recover the entire Blob
+	    try {
+		URL url = new URL("http://localhost:8080/Task/Detector/1/" + blob.getUuid().toString());
+		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		con.setRequestMethod("GET");
+
+		con.setConnectTimeout(5000); // server should be fast (< 5 sec)
+		con.setReadTimeout(5000);
+
+		int status = con.getResponseCode();
+		if (status == HTTP_RESPONSE_CODE_OK) {
+		    BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
+		    String inputLine;
+		    StringBuffer content = new StringBuffer();
+		    while ((inputLine = in.readLine()) != null) {
+			content.append(inputLine);
+		    }
+		    blob.addByteRange(content.toString().getBytes(),
+			    new Pair(0, content.toString().getBytes().length));
+
+		    in.close();
+		} else {
+		    // TODO retry?
+		}
+	    } catch (Exception e) {
+		e.printStackTrace();
+	    }
+
+	} else if (!payloadMissingBlocks.isEmpty()) {
+	    String ranges = "";
+	    int i = 0;
+	    for (i = 0; i < payloadMissingBlocks.size() - 1; i++) {
+		ranges += payloadMissingBlocks.get(i).first;
+		ranges += "-";
+		ranges += payloadMissingBlocks.get(i).second;
+		ranges += ",";
+	    }
+	    ranges += payloadMissingBlocks.get(i).first;
+	    ranges += "-";
+	    ranges += payloadMissingBlocks.get(i).second;
+
+	    try {
+		URL url = new URL("http://localhost:8080/Task/Detector/1/" + blob.getUuid().toString());
+		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		con.setRequestProperty("Range", "bytes=" + ranges);
+		con.setRequestMethod("GET");
+
+		con.setConnectTimeout(5000); // server should be fast (< 5 sec)
+		con.setReadTimeout(5000);
+
+		int status = con.getResponseCode();
+		if (status == HTTP_RESPONSE_CODE_PARTIAL_CONTENT) {
+		    BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
+		    String inputLine;
+		    StringBuffer content = new StringBuffer();
+		    while ((inputLine = in.readLine()) != null) {
+			content.append(inputLine);
+		    }
+
+		    // blob.setPayload(System.arraycopy(blob.getPayload(), ));
+		    // Parse de response and get only the byte ranges without
+		    // "--THIS_STRING_SEPARATES_5f8a3c40-8e7a-11e9-8e66-112233445566"
+
+		    // blob.addByteRange(content.toString().getBytes(), new Pair(0,
+		    // content.toString().getBytes().length));
+		    // System.out.println(content.toString());
+
+		    in.close();
+		} else {
+		    // TODO: retry?
+		}
+
+	    } catch (Exception e) {
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    /**
+     * @param key  - the key of a Blob
+     * @param uuid - the UUID of the wanted version
+     * @return the cached Blob with that key if it is that version, null otherwise
+     */
+    private Blob getCachedBlob(String key, UUID uuid) {
+	Blob cachedBlob = currentCacheContent.get(key);
+	return cachedBlob != null && cachedBlob.getUuid().equals(uuid) ? cachedBlob : null;
+    }
+
+    /**
+     * Forgets an in flight Blob and its repair state
+     *
+     * @param uuid - the UUID of the Blob
+     * @return the Blob removed from inFlight, null if it was not there
+     */
+    private Blob removeInFlight(UUID uuid) {
+	this.blobSources.remove(uuid);
+	this.nacksSent.remove(uuid);
+	this.httpRecoveries.remove(uuid);
+	return this.inFlight.remove(uuid);
+    }
+
+    private Blob newInFlightBlob(String key, UUID uuid) {
+	Blob blob = new Blob(key, uuid);
+	blob.setDeltaBases(baseUuid -> getCachedBlob(key, baseUuid));
+	return blob;
+    }
+
+    /**
+     * An announcement of the latest version of a key: if this receiver does not
+     * have it and is not receiving it, the Blob is added to inFlight without any
+     * fragment, so that the next NACK round asks the sender for all of it
+     *
+     * @param announcement - the ANNOUNCEMENT_CODE packet
+     * @param source       - the host that sent it
+     */
+    private void processAnnouncement(FragmentedBlob announcement, InetAddress source) {
+	UUID uuid = announcement.getUuid();
+	Blob cachedBlob = currentCacheContent.get(announcement.getKey());
+	if (cachedBlob != null && cachedBlob.getUuid().equals(uuid)) {
+	    if (Arrays.equals(cachedBlob.getPayloadChecksum(), announcement.getPayloadChecksum())) {
+		// the ACK may have been lost, the announcements repeat it
+		if (this.ackAggregator != null) {
+		    this.ackAggregator.ack(uuid, this.receiverId);
+		}
+		return;
+	    }
+	    // same version, different content: fetch it again
+	    currentCacheContent.remove(announcement.getKey(), cachedBlob);
+	}
+	if (this.nackPort <= 0 || this.inFlight.containsKey(uuid)) {
+	    return;
+	}
+
+	Blob blob = newInFlightBlob(announcement.getKey(), uuid);
+	// old enough to be NACKed right away
+	blob.setTimestamp(new Timestamp(0));
+	if (this.inFlight.putIfAbsent(uuid, blob) == null) {
+	    this.blobSources.put(uuid, source);
+	    this.logger.log(Level.INFO, "Announced blob " + uuid + " with key " + announcement.getKey()
+		    + (cachedBlob == null ? " is missing" : " replaces the cached " + cachedBlob.getUuid()));
+	}
+    }
+
     public void processPacket(byte[] buf, DatagramPacket packet) throws NoSuchAlgorithmException, IOException {
 	Thread t = Thread.currentThread();
 	FragmentedBlob fragmentedBlob = new FragmentedBlob(buf, packet.getLength());
+	if (!this.blobDictionary.resolve(fragmentedBlob, packet)) {
+	    // v2 fragment sent before its descriptor arrived, processed again by register
+	    return;
+	}
+	List<DatagramPacket> unparked = this.blobDictionary.register(fragmentedBlob, packet.getAddress());
+	recordSequence(packet.getAddress(), fragmentedBlob.getStream(), fragmentedBlob.getSequence());
 
 	System.out.println("Fragment payload " + new String(fragmentedBlob.getPayload()));
+	if (fragmentedBlob.getPachetType() == Blob.MULTI_BLOB_CODE) {
+	    // several small Blobs, the subscriptions are checked for each of them
+	    for (FragmentedBlob smallBlob : fragmentedBlob.unpack()) {
+		recordSequence(packet.getAddress(), smallBlob.getStream(), smallBlob.getSequence());
+		if (GroupMap.isSubscribed(smallBlob.getKey(), this.subscriptions)) {
+		    processFragment(smallBlob, packet.getAddress());
+		} else {
+		    this.nrPacketsFiltered.incrementAndGet();
+		}
+	    }
+	    return;
+	}
+	if (fragmentedBlob.isHeaderV2() && !GroupMap.isSubscribed(fragmentedBlob.getKey(), this.subscriptions)) {
+	    // the key of a v2 fragment is only known once resolved
+	    this.nrPacketsFiltered.incrementAndGet();
+	} else {
+	    processFragment(fragmentedBlob, packet.getAddress());
+	}
+
+	for (DatagramPacket parked : unparked) {
+	    processPacket(parked.getData(), parked);
+	}
+    }
+
+    private void processFragment(FragmentedBlob fragmentedBlob, InetAddress source)
+	    throws NoSuchAlgorithmException, IOException {
+	if (fragmentedBlob.getPachetType() == Blob.ANNOUNCEMENT_CODE) {
+	    processAnnouncement(fragmentedBlob, source);
+	    return;
+	}
 	if (this.currentCacheContent != null) {
-	    // Possible double remove actions?
-	    if (this.currentCacheContent.remove(fragmentedBlob.getKey()) != null) {
-		this.logger.log(Level.INFO,
-			"Blob with key " + fragmentedBlob.getKey() + " was removed from the cache.");
+	    Blob cachedBlob = this.currentCacheContent.get(fragmentedBlob.getKey());
+	    if (this.nackPort > 0 && cachedBlob != null && cachedBlob.getUuid().equals(fragmentedBlob.getUuid())) {
+		// repair of a Blob that this receiver already has complete
+		countLoss(source, 0, 0, fragmentedBlob.getPayload().length);
+		return;
 	    }
+	    // the previous version stays in the cache until the new one is complete,
+	    // it is the base of a delta
 	}
 
 	Blob blob = this.inFlight.computeIfAbsent(fragmentedBlob.getUuid(),
-		k -> new Blob(fragmentedBlob.getKey(), fragmentedBlob.getUuid()));
+		k -> newInFlightBlob(fragmentedBlob.getKey(), fragmentedBlob.getUuid()));
+	this.blobSources.put(blob.getUuid(), source);
 	// System.out.println(fragmentedBlob.getKey());
 	blob.addFragmentedBlob(fragmentedBlob);
 
@@ -196,11 +596,24 @@ public class MulticastReceiver {
 	    Timestamp timestamp = new Timestamp(System.currentTimeMillis());
 	    blob.setTimestamp(timestamp);
 
-	    this.currentCacheContent.put(blob.getKey(), blob);
+	    if (this.currentCacheContent.put(blob.getKey(), blob) != null) {
+		this.logger.log(Level.INFO, "Blob with key " + blob.getKey() + " was replaced in the cache.");
+	    }
 	    this.logger.log(Level.INFO, "Complete blob with key " + blob.getKey() + " was added to the cache.");
+	    if (this.ackAggregator != null) {
+		this.ackAggregator.ack(blob.getUuid(), this.receiverId);
+	    }
+
+	    long recoveredBytes = blob.getRecoveredBytes();
+	    if (this.stalledBlobs.remove(blob.getUuid())) {
+		countLoss(source, 0, 0, blob.getDuplicateBytes());
+	    } else {
+		countLoss(source, blob.getReceivedBytes() + recoveredBytes, recoveredBytes,
+			blob.getDuplicateBytes());
+	    }
 
 	    // Remove the blob from inFlight
-	    if (this.inFlight.remove(blob.getUuid()) == null) {
+	    if (removeInFlight(blob.getUuid()) == null) {
 		// If you get a SMALL_BLOB this statement will be logged
 		this.logger.log(Level.WARNING, "Complete blob " + blob.getUuid() + " was not added to the inFlight");
 	    }
@@ -215,32 +628,210 @@ public class MulticastReceiver {
 
     }
 
+    /**
+     * @return the interface from MULTICAST_INTERFACE, or the first multicast
+     *         capable one
+     * @throws IOException
+     */
+    private static NetworkInterface getNetworkInterface() throws IOException {
+	String name = System.getenv("MULTICAST_INTERFACE");
+	if (name != null && !name.isEmpty()) {
+	    NetworkInterface networkInterface = NetworkInterface.getByName(name);
+	    if (networkInterface == null) {
+		throw new IOException("Network interface " + name + " not found");
+	    }
+	    return networkInterface;
+	}
+
+	NetworkInterface loopback = null;
+	for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+	    if (!networkInterface.isUp() || !networkInterface.supportsMulticast()) {
+		continue;
+	    }
+	    if (!networkInterface.isLoopback()) {
+		return networkInterface;
+	    }
+	    loopback = networkInterface;
+	}
+	if (loopback == null) {
+	    throw new IOException("No multicast capable network interface");
+	}
+	return loopback;
+    }
+
+    /**
+     * Checks the key of a v1 fragment before it is deserialized. The MULTI_BLOB_CODE
+     * packets and the v2 fragments are checked once deserialized, the
+     * descriptors of the v2 fragments are needed to resolve the fragments sent
+     * without them, even for keys that are not subscribed. The sequence number of
+     * a dropped fragment is still recorded, its Blob is not lost.
+     *
+     * @return true if the packet can be dropped
+     */
+    private boolean isFiltered(byte[] buf, int length, SocketAddress source) {
+	if (this.subscriptions == null || FragmentedBlob.isMultiBlob(buf, length)
+		|| FragmentedBlob.isHeaderV2(buf, length)) {
+	    return false;
+	}
+	if (GroupMap.isSubscribed(String.valueOf(FragmentedBlob.peekKey(buf, length)), this.subscriptions)) {
+	    return false;
+	}
+	if (source instanceof InetSocketAddress) {
+	    recordSequence(((InetSocketAddress) source).getAddress(), FragmentedBlob.peekStream(buf, length),
+		    FragmentedBlob.peekSequence(buf, length));
+	}
+	return true;
+    }
+
+    /**
+     * @param source - a sender
+     * @return the Blobs of all the streams of the sender that should have
+     *         arrived, see SequenceTracker
+     */
+    public long getBlobsExpected(InetAddress source) {
+	long expected = 0;
+	for (SequenceTracker tracker : getSequenceTrackers(source)) {
+	    expected += tracker.getExpected();
+	}
+	return expected;
+    }
+
+    /**
+     * @param source - a sender
+     * @return the Blobs of the sender that were lost entirely
+     */
+    public long getBlobsLost(InetAddress source) {
+	long lost = 0;
+	for (SequenceTracker tracker : getSequenceTrackers(source)) {
+	    lost += tracker.getLost();
+	}
+	return lost;
+    }
+
+    /**
+     * @param source - a sender
+     * @return the Blobs of the sender that were lost entirely and arrived later
+     */
+    public long getBlobsRecovered(InetAddress source) {
+	long recovered = 0;
+	for (SequenceTracker tracker : getSequenceTrackers(source)) {
+	    recovered += tracker.getRecovered();
+	}
+	return recovered;
+    }
+
+    /**
+     * @param source - a sender
+     * @return the trackers of the streams of the sender, empty if none was seen
+     */
+    public Collection<SequenceTracker> getSequenceTrackers(InetAddress source) {
+	Map<Integer, SequenceTracker> trackers = this.sequenceTrackers.get(source);
+	return trackers != null ? trackers.values() : Collections.<SequenceTracker>emptyList();
+    }
+
+    /**
+     * @return the v2 fragments waiting for a descriptor
+     */
+    public BlobDictionary getBlobDictionary() {
+	return this.blobDictionary;
+    }
+
+    /**
+     * Number of fragments (or small Blobs of MULTI_BLOB_CODE packets) dropped
+     * because their key is not in MULTICAST_SUBSCRIPTIONS
+     */
+    public long getNrPacketsFiltered() {
+	return this.nrPacketsFiltered.get();
+    }
+
+    /**
+     * Joins the groups of the subscribed keys (all the groups if there is no
+     * subscription) and processes their fragments. The groups are received by a
+     * single thread with one Selector, and with one channel per port. Fragments
+     * of keys out of the subscriptions are dropped before deserializing them:
+     * the default group, or other groups on the same port joined on this host,
+     * carry keys of any prefix.
+     *
+     * @throws IOException
+     */
     public void work() throws IOException {
 
 	System.out.println("Hello, it;s me");
 	final ExecutorService executorService = Executors
 		.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
-	try (MulticastSocket socket = new MulticastSocket(this.portNumber)) {
-	    InetAddress group = InetAddress.getByName(this.ip_address);
-	    socket.joinGroup(group);
+	Map<Integer, DatagramChannel> channels = new HashMap<>();
+	try (Selector selector = Selector.open()) {
+	    NetworkInterface networkInterface = getNetworkInterface();
+	    for (GroupMap.Group group : this.groupMap.getGroups(this.subscriptions)) {
+		DatagramChannel channel = channels.get(Integer.valueOf(group.getPort()));
+		if (channel == null) {
+		    channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		    channels.put(Integer.valueOf(group.getPort()), channel);
+		    channel.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+		    channel.bind(new InetSocketAddress(group.getPort()));
+		    channel.configureBlocking(false);
+		    channel.register(selector, SelectionKey.OP_READ);
+		}
+		channel.join(InetAddress.getByName(group.getIp()), networkInterface);
+		this.logger.log(Level.INFO, "Joined " + group + " on " + networkInterface.getName());
+	    }
+
 	    this.counterThread.start();
+	    if (this.nackPort > 0 || this.feedbackPort > 0) {
+		this.nackSocket = new DatagramSocket();
+		this.incompleteBlobRecovery.setDaemon(true);
+		this.incompleteBlobRecovery.start();
+	    }
+	    if (this.feedbackPort > 0) {
+		this.lossReporter.setDaemon(true);
+		this.lossReporter.start();
+	    }
+	    if (this.receiverId >= 0) {
+		try {
+		    this.ackAggregator = AckAggregator.fromEnv();
+		} catch (SocketException e) {
+		    this.logger.log(Level.WARNING, "The ACKs are disabled, could not open the ACK socket", e);
+		}
+	    } else if (System.getenv("ACK_PARENT") != null) {
+		this.logger.log(Level.WARNING, "The ACKs are disabled, ACK_PARENT is set but ACK_RECEIVER_ID is not");
+	    }
 
+	    byte[] buf = new byte[Utils.PACKET_MAX_SIZE];
 	    while (true) {
 		try {
-		    final byte[] buf = new byte[Utils.PACKET_MAX_SIZE];
-		    // Receive object
-		    final DatagramPacket packet = new DatagramPacket(buf, buf.length);
-		    socket.receive(packet);
+		    selector.select();
+		    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+		    while (selectedKeys.hasNext()) {
+			DatagramChannel channel = (DatagramChannel) selectedKeys.next().channel();
+			selectedKeys.remove();
+
+			SocketAddress source;
+			ByteBuffer buffer = ByteBuffer.wrap(buf);
+			// Receive objects
+			while ((source = channel.receive(buffer)) != null) {
+			    if (isFiltered(buf, buffer.position(), source)) {
+				// the buffer is reused for the next packet
+				this.nrPacketsFiltered.incrementAndGet();
+				buffer.clear();
+				continue;
+			    }
 
-		    System.out.println("Received one fragment");
-		    executorService.submit(() -> {
-			try {
-			    processPacket(buf, packet);
-			} catch (NoSuchAlgorithmException | IOException e) {
-			    e.printStackTrace();
+			    final byte[] packetBuf = buf;
+			    final DatagramPacket packet = new DatagramPacket(packetBuf, buffer.position(), source);
+			    buf = new byte[Utils.PACKET_MAX_SIZE];
+			    buffer = ByteBuffer.wrap(buf);
+
+			    System.out.println("Received one fragment");
+			    executorService.submit(() -> {
+				try {
+				    processPacket(packetBuf, packet);
+				} catch (NoSuchAlgorithmException | IOException e) {
+				    e.printStackTrace();
+				}
+			    });
 			}
-		    });
+		    }
 		    if (!currentCacheContent.isEmpty()) {
 			System.out.println("cacheContent: is not empty");
 			System.out.println("cacheContent: " + currentCacheContent);
@@ -253,7 +844,10 @@ public class MulticastReceiver {
 		    e.printStackTrace();
 		}
 	    }
-	    // socket.leaveGroup(group);
+	} finally {
+	    for (DatagramChannel channel : channels.values()) {
+		channel.close();
+	    }
 	}
     }
 }
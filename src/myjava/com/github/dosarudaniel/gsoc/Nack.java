@@ -0,0 +1,212 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import myjava.com.github.dosarudaniel.gsoc.Utils.Pair;
+
+/**
+ * Nack class - negative acknowledgement sent by a receiver to the sender (by
+ * unicast UDP) for the byte ranges of a Blob it did not receive.
+ *
+ * Serialized structure:
+ *
+ * uuid (16) | nrRanges (2) | nrRanges x [packetType (1) | first (4) | second
+ * (4)] | CRC32C (4)
+ *
+ * packetType is METADATA_CODE or DATA_CODE, DATA_CODE | DELTA_FLAG if the
+ * receiver is assembling the delta of the payload. A receiver that did not get
+ * any fragment of the metadata or payload does not know its length and asks
+ * for [0, Integer.MAX_VALUE), the sender cuts the range to the real length.
+ *
+ * A receiver that lost whole Blobs (see SequenceTracker) does not know their
+ * UUIDs, it asks for them by sequence number: the NACK has the nil UUID and
+ * one SEQUENCE_RANGE per Blob, with first the stream and second the sequence
+ * number of the Blob (see BlobSequence).
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class Nack {
+    // keeps a NACK in a single unfragmented datagram
+    public static final int MAX_RANGES = 128;
+    private static final int SIZE_OF_RANGE = 1 + 4 + 4;
+    // range type of a whole Blob asked by its sequence number
+    public static final byte SEQUENCE_RANGE = Blob.PACKET_TYPE_MASK;
+    // the UUID of a NACK by sequence number
+    public static final UUID NO_UUID = new UUID(0, 0);
+
+    private final UUID uuid;
+    private final ArrayList<Pair> metadataRanges;
+    private final ArrayList<Pair> payloadRanges;
+    // (stream, sequence number) of the whole Blobs asked for
+    private final ArrayList<Pair> sequences;
+    // the payload ranges are ranges of the delta of the payload
+    private boolean delta;
+
+    /**
+     * Parameterized constructor
+     *
+     * @param uuid           - the UUID of the incomplete Blob
+     * @param metadataRanges - missing metadata ranges, null if none
+     * @param payloadRanges  - missing payload ranges, null if none
+     */
+    public Nack(UUID uuid, ArrayList<Pair> metadataRanges, ArrayList<Pair> payloadRanges) {
+	this(uuid, metadataRanges, payloadRanges, false);
+    }
+
+    /**
+     * Parameterized constructor
+     *
+     * @param uuid           - the UUID of the incomplete Blob
+     * @param metadataRanges - missing metadata ranges, null if none
+     * @param payloadRanges  - missing payload ranges, null if none
+     * @param delta          - the payload ranges are ranges of the delta
+     */
+    public Nack(UUID uuid, ArrayList<Pair> metadataRanges, ArrayList<Pair> payloadRanges, boolean delta) {
+	this.uuid = uuid;
+	this.metadataRanges = metadataRanges != null ? metadataRanges : new ArrayList<>();
+	this.payloadRanges = payloadRanges != null ? payloadRanges : new ArrayList<>();
+	this.sequences = new ArrayList<>();
+	this.delta = delta;
+    }
+
+    /**
+     * Parameterized constructor - NACK of whole Blobs by sequence number
+     *
+     * @param stream    - the stream of the sender
+     * @param sequences - the sequence numbers of the missing Blobs
+     */
+    public Nack(int stream, List<Integer> sequences) {
+	this(NO_UUID, null, null, false);
+	for (Integer sequence : sequences) {
+	    this.sequences.add(new Pair(stream, sequence.intValue()));
+	}
+    }
+
+    /**
+     * Deserializes a NACK
+     *
+     * @param buffer - the received datagram
+     * @param length - the datagram length
+     * @throws IOException if the NACK is truncated or corrupted
+     */
+    public Nack(byte[] buffer, int length) throws IOException {
+	if (length < Utils.SIZE_OF_UUID + 2 + 4) {
+	    throw new IOException("NACK too short: " + length + " bytes");
+	}
+
+	byte[] crc = new byte[4];
+	ChecksumAlgorithm.Hasher hasher = ChecksumAlgorithm.CRC32C.getHasher();
+	hasher.update(buffer, 0, length - 4);
+	hasher.digest(crc, 0);
+	for (int i = 0; i < 4; i++) {
+	    if (crc[i] != buffer[length - 4 + i]) {
+		throw new IOException("NACK checksum failed!");
+	    }
+	}
+
+	ByteBuffer in = ByteBuffer.wrap(buffer, 0, length - 4);
+	try {
+	    this.uuid = new UUID(in.getLong(), in.getLong());
+	    int nrRanges = in.getShort() & 0xFFFF;
+	    this.metadataRanges = new ArrayList<>();
+	    this.payloadRanges = new ArrayList<>();
+	    this.sequences = new ArrayList<>();
+	    for (int i = 0; i < nrRanges; i++) {
+		byte packetType = in.get();
+		Pair range = new Pair(in.getInt(), in.getInt());
+		if (packetType == Blob.METADATA_CODE) {
+		    this.metadataRanges.add(range);
+		} else if (packetType == Blob.DATA_CODE) {
+		    this.payloadRanges.add(range);
+		} else if (packetType == (byte) (Blob.DATA_CODE | Blob.DELTA_FLAG)) {
+		    this.payloadRanges.add(range);
+		    this.delta = true;
+		} else if (packetType == SEQUENCE_RANGE) {
+		    this.sequences.add(range);
+		} else {
+		    throw new IOException("NACK for an unknown packet type " + packetType);
+		}
+	    }
+	} catch (BufferUnderflowException e) {
+	    throw new IOException("NACK truncated", e);
+	}
+    }
+
+    /**
+     * @return the serialized NACK, with at most MAX_RANGES ranges (metadata
+     *         first, sequence numbers last)
+     */
+    public byte[] serialize() {
+	int nrRanges = Math.min(MAX_RANGES,
+		this.metadataRanges.size() + this.payloadRanges.size() + this.sequences.size());
+	ByteBuffer out = ByteBuffer.allocate(Utils.SIZE_OF_UUID + 2 + nrRanges * SIZE_OF_RANGE + 4);
+	out.putLong(this.uuid.getMostSignificantBits());
+	out.putLong(this.uuid.getLeastSignificantBits());
+	out.putShort((short) nrRanges);
+
+	int written = 0;
+	for (int i = 0; i < this.metadataRanges.size() && written < nrRanges; i++, written++) {
+	    putRange(out, Blob.METADATA_CODE, this.metadataRanges.get(i));
+	}
+	for (int i = 0; i < this.payloadRanges.size() && written < nrRanges; i++, written++) {
+	    putRange(out, getDataCode(), this.payloadRanges.get(i));
+	}
+	for (int i = 0; i < this.sequences.size() && written < nrRanges; i++, written++) {
+	    putRange(out, SEQUENCE_RANGE, this.sequences.get(i));
+	}
+
+	ChecksumAlgorithm.Hasher hasher = ChecksumAlgorithm.CRC32C.getHasher();
+	hasher.update(out.array(), 0, out.position());
+	hasher.digest(out.array(), out.position());
+	return out.array();
+    }
+
+    private static void putRange(ByteBuffer out, byte packetType, Pair range) {
+	out.put(packetType);
+	out.putInt(range.first);
+	out.putInt(range.second);
+    }
+
+    public UUID getUuid() {
+	return this.uuid;
+    }
+
+    public ArrayList<Pair> getMetadataRanges() {
+	return this.metadataRanges;
+    }
+
+    public ArrayList<Pair> getPayloadRanges() {
+	return this.payloadRanges;
+    }
+
+    /**
+     * @return the (stream, sequence number) of the whole Blobs asked for
+     */
+    public ArrayList<Pair> getSequences() {
+	return this.sequences;
+    }
+
+    public boolean isDelta() {
+	return this.delta;
+    }
+
+    /**
+     * @return the packet type of the payload ranges
+     */
+    public byte getDataCode() {
+	return this.delta ? (byte) (Blob.DATA_CODE | Blob.DELTA_FLAG) : Blob.DATA_CODE;
+    }
+
+    @Override
+    public String toString() {
+	return "NACK " + this.uuid + " metadata " + this.metadataRanges + (this.delta ? " delta " : " payload ")
+		+ this.payloadRanges + (this.sequences.isEmpty() ? "" : " sequences " + this.sequences);
+    }
+}
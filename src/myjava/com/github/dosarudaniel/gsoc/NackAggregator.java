@@ -0,0 +1,307 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import myjava.com.github.dosarudaniel.gsoc.Utils.Pair;
+
+/**
+ * NackAggregator class - sender side of the NACK based repair.
+ *
+ * Receivers send a Nack (unicast UDP) to the sender's NACK port for the byte
+ * ranges of a Blob they miss. The aggregator collects the NACKs of all the
+ * receivers during a short window (starting with the first NACK), merges the
+ * ranges asked for the same Blob, so that a range lost by many receivers is
+ * only repaired once, and then multicasts every merged range again with
+ * Blob.send(maxPayloadSize, range, packetType, channel). One multicast repair
+ * replaces a unicast recovery per receiver. The ranges of the delta of a Blob
+ * (see DeltaCodec) and of its full payload, asked by receivers that miss the
+ * base of the delta, are merged separately.
+ *
+ * Without multicast (see UnicastFanOut) the repairs are sent through the
+ * fan-out, to all the unicast receivers.
+ *
+ * A NACK by sequence number (see Nack) asks for whole Blobs; they are found
+ * with the sequence lookup, if one is set, and repaired in full.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class NackAggregator implements Closeable {
+    private SingletonLogger singletonLogger = new SingletonLogger();
+    private Logger logger = this.singletonLogger.getLogger();
+
+    public static final long DEFAULT_WINDOW_MILLIS = 20;
+    // receive timeout while no NACK is pending
+    private static final int IDLE_TIMEOUT_MILLIS = 100;
+
+    private final DatagramSocket socket;
+    private final Function<UUID, Blob> blobLookup;
+    // null if the NACKs by sequence number are ignored
+    private volatile BiFunction<Integer, Integer, Blob> sequenceLookup = null;
+    private final SenderChannel channel;
+    // the repairs of a Blob go to the group of its key, if not null
+    private final GroupMap groupMap;
+    // the repairs go to all the unicast receivers, if not null
+    private final UnicastFanOut fanOut;
+    private final int maxPayloadSize;
+    private final long windowMillis;
+
+    // only used by the aggregator thread
+    private final Map<UUID, PendingRepair> pending = new HashMap<>();
+
+    private final Thread aggregatorThread;
+    private volatile boolean running = true;
+
+    private final AtomicLong nacksReceived = new AtomicLong();
+    private final AtomicLong rangesRepaired = new AtomicLong();
+    private final AtomicLong bytesRepaired = new AtomicLong();
+    private final AtomicLong sequencesRepaired = new AtomicLong();
+
+    /**
+     * The merged ranges asked for one Blob during the current window
+     */
+    private static final class PendingRepair {
+	final ArrayList<Pair> metadataRanges = new ArrayList<>();
+	final ArrayList<Pair> payloadRanges = new ArrayList<>();
+	// receivers that have the base of the delta ask for delta ranges
+	final ArrayList<Pair> deltaRanges = new ArrayList<>();
+    }
+
+    /**
+     * Parameterized constructor - starts listening for NACKs
+     *
+     * @param nackPort       - the UDP port on which the receivers send NACKs
+     * @param blobLookup     - returns the sent Blob with the given UUID, or null
+     *                       if it is not known anymore
+     * @param channel        - the channel to the multicast group, for the repairs
+     * @param maxPayloadSize - the maximum payload supported by a fragmented packet,
+     *                       0 for the largest one that fits in the MTU
+     * @param windowMillis   - how long NACKs are aggregated before the repair
+     * @throws SocketException
+     */
+    public NackAggregator(int nackPort, Function<UUID, Blob> blobLookup, SenderChannel channel, int maxPayloadSize,
+	    long windowMillis) throws SocketException {
+	this(nackPort, blobLookup, channel, null, null, maxPayloadSize, windowMillis);
+    }
+
+    /**
+     * Parameterized constructor - starts listening for NACKs, the repairs are
+     * multicast to the group of the key of each Blob
+     *
+     * @param nackPort       - the UDP port on which the receivers send NACKs
+     * @param blobLookup     - returns the sent Blob with the given UUID, or null
+     *                       if it is not known anymore
+     * @param groupMap       - the multicast group of every key
+     * @param maxPayloadSize - the maximum payload supported by a fragmented packet,
+     *                       0 for the largest one that fits in the MTU
+     * @param windowMillis   - how long NACKs are aggregated before the repair
+     * @throws SocketException
+     */
+    public NackAggregator(int nackPort, Function<UUID, Blob> blobLookup, GroupMap groupMap, int maxPayloadSize,
+	    long windowMillis) throws SocketException {
+	this(nackPort, blobLookup, null, groupMap, null, maxPayloadSize, windowMillis);
+    }
+
+    /**
+     * Parameterized constructor - starts listening for NACKs, the repairs are
+     * sent to all the unicast receivers of the fan-out
+     *
+     * @param nackPort       - the UDP port on which the receivers send NACKs
+     * @param blobLookup     - returns the sent Blob with the given UUID, or null
+     *                       if it is not known anymore
+     * @param fanOut         - the unicast receivers
+     * @param maxPayloadSize - the maximum payload supported by a fragmented packet,
+     *                       0 for the largest one that reaches all the receivers
+     * @param windowMillis   - how long NACKs are aggregated before the repair
+     * @throws SocketException
+     */
+    public NackAggregator(int nackPort, Function<UUID, Blob> blobLookup, UnicastFanOut fanOut, int maxPayloadSize,
+	    long windowMillis) throws SocketException {
+	this(nackPort, blobLookup, null, null, fanOut, maxPayloadSize, windowMillis);
+    }
+
+    private NackAggregator(int nackPort, Function<UUID, Blob> blobLookup, SenderChannel channel, GroupMap groupMap,
+	    UnicastFanOut fanOut, int maxPayloadSize, long windowMillis) throws SocketException {
+	this.socket = new DatagramSocket(nackPort);
+	this.blobLookup = blobLookup;
+	this.channel = channel;
+	this.groupMap = groupMap;
+	this.fanOut = fanOut;
+	this.maxPayloadSize = maxPayloadSize;
+	this.windowMillis = windowMillis;
+
+	this.aggregatorThread = new Thread(this::aggregateLoop, "NackAggregator");
+	this.aggregatorThread.setDaemon(true);
+	this.aggregatorThread.start();
+    }
+
+    private void aggregateLoop() {
+	byte[] buf = new byte[Utils.PACKET_MAX_SIZE];
+	long windowEnd = 0;
+
+	while (this.running) {
+	    try {
+		long now = System.currentTimeMillis();
+		int timeout = this.pending.isEmpty() ? IDLE_TIMEOUT_MILLIS : (int) Math.max(1, windowEnd - now);
+		this.socket.setSoTimeout(timeout);
+
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		try {
+		    this.socket.receive(packet);
+		    Nack nack = new Nack(buf, packet.getLength());
+		    this.nacksReceived.incrementAndGet();
+		    if (this.pending.isEmpty()) {
+			windowEnd = System.currentTimeMillis() + this.windowMillis;
+		    }
+		    merge(nack);
+		} catch (SocketTimeoutException e) {
+		    // end of the window or nothing to do
+		}
+
+		if (!this.pending.isEmpty() && System.currentTimeMillis() >= windowEnd) {
+		    repair();
+		}
+	    } catch (IOException e) {
+		if (this.running) {
+		    this.logger.log(Level.WARNING, "Could not process a NACK", e);
+		}
+	    }
+	}
+    }
+
+    private void merge(Nack nack) {
+	mergeSequences(nack);
+	if (nack.getMetadataRanges().isEmpty() && nack.getPayloadRanges().isEmpty()) {
+	    return;
+	}
+	PendingRepair repair = this.pending.computeIfAbsent(nack.getUuid(), uuid -> new PendingRepair());
+	for (Pair range : nack.getMetadataRanges()) {
+	    Utils.addRange(repair.metadataRanges, range);
+	}
+	ArrayList<Pair> payloadRanges = nack.isDelta() ? repair.deltaRanges : repair.payloadRanges;
+	for (Pair range : nack.getPayloadRanges()) {
+	    Utils.addRange(payloadRanges, range);
+	}
+    }
+
+    /**
+     * Turns the whole Blobs asked by sequence number into full ranges of their
+     * metadata and payload, as first sent (the delta if there is one)
+     */
+    private void mergeSequences(Nack nack) {
+	BiFunction<Integer, Integer, Blob> lookup = this.sequenceLookup;
+	for (Pair sequence : nack.getSequences()) {
+	    Blob blob = lookup != null ? lookup.apply(Integer.valueOf(sequence.first), Integer.valueOf(sequence.second))
+		    : null;
+	    if (blob == null) {
+		this.logger.log(Level.WARNING,
+			"NACK for the unknown sequence number " + sequence.second + " of stream " + sequence.first);
+		continue;
+	    }
+	    PendingRepair repair = this.pending.computeIfAbsent(blob.getUuid(), uuid -> new PendingRepair());
+	    Utils.addRange(repair.metadataRanges, new Pair(0, Integer.MAX_VALUE));
+	    Utils.addRange(blob.isDelta() ? repair.deltaRanges : repair.payloadRanges, new Pair(0, Integer.MAX_VALUE));
+	    this.sequencesRepaired.incrementAndGet();
+	}
+    }
+
+    /**
+     * Multicasts every range asked during the window once
+     */
+    private void repair() {
+	for (Map.Entry<UUID, PendingRepair> entry : this.pending.entrySet()) {
+	    Blob blob = this.blobLookup.apply(entry.getKey());
+	    if (blob == null) {
+		this.logger.log(Level.WARNING, "NACK for the unknown blob " + entry.getKey());
+		continue;
+	    }
+	    try {
+		repair(blob, entry.getValue().metadataRanges, Blob.METADATA_CODE, blob.getMetadataLength());
+		repair(blob, entry.getValue().payloadRanges, Blob.DATA_CODE,
+			blob.getTransmittedPayloadLength(Blob.DATA_CODE));
+		if (blob.isDelta()) {
+		    repair(blob, entry.getValue().deltaRanges, blob.getDataCode(),
+			    blob.getTransmittedPayloadLength(blob.getDataCode()));
+		} else if (!entry.getValue().deltaRanges.isEmpty()) {
+		    this.logger.log(Level.WARNING, "Delta NACK for blob " + entry.getKey() + " that has no delta");
+		}
+	    } catch (IOException | NoSuchAlgorithmException e) {
+		this.logger.log(Level.WARNING, "Could not repair blob " + entry.getKey(), e);
+	    }
+	}
+	this.pending.clear();
+    }
+
+    private void repair(Blob blob, ArrayList<Pair> ranges, byte packetType, int length)
+	    throws IOException, NoSuchAlgorithmException {
+	SenderChannel repairChannel = this.groupMap != null ? this.groupMap.getChannel(blob.getKey()) : this.channel;
+	for (Pair range : ranges) {
+	    // a receiver without any fragment does not know the length
+	    Pair missingBlock = new Pair(Math.max(0, range.first), Math.min(length, range.second));
+	    if (missingBlock.first >= missingBlock.second) {
+		continue;
+	    }
+	    if (this.fanOut != null) {
+		blob.send(this.maxPayloadSize, missingBlock, packetType, this.fanOut);
+	    } else {
+		blob.send(this.maxPayloadSize, missingBlock, packetType, repairChannel);
+	    }
+	    this.rangesRepaired.incrementAndGet();
+	    this.bytesRepaired.addAndGet(missingBlock.second - missingBlock.first);
+	}
+    }
+
+    /**
+     * @param sequenceLookup - returns the sent Blob with the given stream and
+     *                       sequence number, or null if it is not known anymore
+     */
+    public void setSequenceLookup(BiFunction<Integer, Integer, Blob> sequenceLookup) {
+	this.sequenceLookup = sequenceLookup;
+    }
+
+    /**
+     * @return the whole Blobs repaired for NACKs by sequence number
+     */
+    public long getSequencesRepaired() {
+	return this.sequencesRepaired.get();
+    }
+
+    public long getNacksReceived() {
+	return this.nacksReceived.get();
+    }
+
+    public long getRangesRepaired() {
+	return this.rangesRepaired.get();
+    }
+
+    public long getBytesRepaired() {
+	return this.bytesRepaired.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+	this.running = false;
+	this.socket.close();
+	try {
+	    this.aggregatorThread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+}
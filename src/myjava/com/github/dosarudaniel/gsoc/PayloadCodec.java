@@ -0,0 +1,155 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * PayloadCodec enum - compression of a Blob's payload on the wire.
+ *
+ * A compressed payload is sent in the DATA_CODE (or SMALL_BLOB_CODE) packets
+ * with Blob.COMPRESSED_FLAG set in the packet type and starts with a prefix:
+ *
+ * codec id (1) | uncompressed length (4) | compressed payload
+ *
+ * The blob data length and the payload checksum of the header describe this
+ * compressed form, the receiver decompresses the payload once, when the Blob
+ * is complete. The default codec of the Sender is read from the COMPRESSION
+ * environment variable (NONE or DEFLATE, DEFLATE if not set).
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public enum PayloadCodec {
+    NONE(0), DEFLATE(1);
+
+    public static final PayloadCodec DEFAULT_CODEC = fromEnv();
+
+    private final int id;
+
+    private PayloadCodec(int id) {
+	this.id = id;
+    }
+
+    public int getId() {
+	return this.id;
+    }
+
+    /**
+     * @param id - codec id from the compression prefix
+     * @return the codec with that id
+     * @throws IOException if the id is not known
+     */
+    public static PayloadCodec fromId(int id) throws IOException {
+	for (PayloadCodec codec : values()) {
+	    if (codec.id == id) {
+		return codec;
+	    }
+	}
+	throw new IOException("Unknown payload codec " + id);
+    }
+
+    private static PayloadCodec fromEnv() {
+	String envValue = System.getenv("COMPRESSION");
+	if (envValue == null) {
+	    return DEFLATE;
+	}
+	try {
+	    return valueOf(envValue.toUpperCase());
+	} catch (IllegalArgumentException e) {
+	    new SingletonLogger().getLogger().log(Level.WARNING,
+		    "Environment variable COMPRESSION is not a payload codec, using " + DEFLATE);
+	    return DEFLATE;
+	}
+    }
+
+    /**
+     * Compresses the payload
+     *
+     * @param payload - the uncompressed payload
+     * @return the prefix followed by the compressed payload, or null if the
+     *         compressed form is not smaller than the payload
+     */
+    public byte[] encode(byte[] payload) {
+	if (this == NONE) {
+	    return null;
+	}
+
+	// not worth it if it does not save at least the prefix
+	byte[] compressed = new byte[payload.length];
+	Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+	try {
+	    deflater.setInput(payload);
+	    deflater.finish();
+	    int length = Utils.SIZE_OF_COMPRESSION_PREFIX;
+	    while (!deflater.finished() && length < compressed.length) {
+		length += deflater.deflate(compressed, length, compressed.length - length);
+	    }
+	    if (!deflater.finished()) {
+		return null;
+	    }
+
+	    ByteBuffer prefix = ByteBuffer.wrap(compressed, 0, Utils.SIZE_OF_COMPRESSION_PREFIX);
+	    prefix.put((byte) this.id);
+	    prefix.putInt(payload.length);
+	    return Arrays.copyOf(compressed, length);
+	} finally {
+	    deflater.end();
+	}
+    }
+
+    /**
+     * @param transmitted - the prefix followed by the compressed payload
+     * @return the uncompressed length, from the prefix
+     */
+    public static int getUncompressedLength(ByteBuffer transmitted) {
+	return transmitted.getInt(transmitted.position() + 1);
+    }
+
+    /**
+     * Decompresses a payload encoded by encode()
+     *
+     * @param transmitted - the prefix followed by the compressed payload
+     * @return the uncompressed payload
+     * @throws IOException if the compressed payload is corrupted or longer than
+     *                     Utils.MAX_BLOB_PAYLOAD_LENGTH once decompressed
+     */
+    public static byte[] decode(byte[] transmitted) throws IOException {
+	if (transmitted.length < Utils.SIZE_OF_COMPRESSION_PREFIX) {
+	    throw new IOException("Compressed payload too short: " + transmitted.length + " bytes");
+	}
+	PayloadCodec codec = fromId(transmitted[0]);
+	int uncompressedLength = getUncompressedLength(ByteBuffer.wrap(transmitted));
+	if (codec != DEFLATE || uncompressedLength < 0 || uncompressedLength > Utils.MAX_BLOB_PAYLOAD_LENGTH) {
+	    throw new IOException("Cannot decode a " + codec + " payload of " + uncompressedLength + " bytes");
+	}
+
+	byte[] payload = new byte[uncompressedLength];
+	Inflater inflater = new Inflater(true);
+	try {
+	    inflater.setInput(transmitted, Utils.SIZE_OF_COMPRESSION_PREFIX,
+		    transmitted.length - Utils.SIZE_OF_COMPRESSION_PREFIX);
+	    int length = 0;
+	    while (length < payload.length && !inflater.finished()) {
+		int inflated = inflater.inflate(payload, length, payload.length - length);
+		if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+		    break;
+		}
+		length += inflated;
+	    }
+	    if (length != payload.length) {
+		throw new IOException("Compressed payload decoded to " + length + " bytes instead of " + payload.length);
+	    }
+	} catch (DataFormatException e) {
+	    throw new IOException("Compressed payload corrupted", e);
+	} finally {
+	    inflater.end();
+	}
+	return payload;
+    }
+}
@@ -0,0 +1,197 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * RateController class - sender side of the congestion control: adapts the
+ * target of a RatePacer to the LossReports of the receivers.
+ *
+ * Every controlMillis the loss rates of the receivers that reported since the
+ * previous step are sorted, and the one at LOSS_PERCENTILE is compared to the
+ * target loss, so that a few broken receivers do not throttle all the others.
+ * Above the target the rate is multiplied by DECREASE_FACTOR, otherwise it
+ * grows by INCREASE_FRACTION of the maximum rate (AIMD), always between
+ * minimum and maximum. Without fresh reports the rate does not change.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class RateController implements Closeable {
+    private SingletonLogger singletonLogger = new SingletonLogger();
+    private Logger logger = this.singletonLogger.getLogger();
+
+    public static final double DEFAULT_TARGET_LOSS = 0.01;
+    public static final long DEFAULT_CONTROL_MILLIS = 1000;
+    public static final double DECREASE_FACTOR = 0.7;
+    public static final double INCREASE_FRACTION = 0.05;
+    // the worst receivers above this percentile are ignored
+    public static final double LOSS_PERCENTILE = 0.9;
+    // reports with less traffic do not give a meaningful loss rate
+    public static final long MIN_REPORT_BYTES = 64 * 1024;
+
+    private final DatagramSocket socket;
+    private final RatePacer pacer;
+    private final long minBitsPerSecond;
+    private final long maxBitsPerSecond;
+    private final double targetLoss;
+    private final long controlMillis;
+
+    // the last report of every receiver since the previous control step, only
+    // used by the controller thread
+    private final Map<SocketAddress, LossReport> reports = new HashMap<>();
+
+    private final Thread controllerThread;
+    private volatile boolean running = true;
+
+    private volatile long bitsPerSecond;
+    private volatile double controlledLoss = 0;
+    private volatile long reportsReceived = 0;
+    private volatile long decreases = 0;
+
+    /**
+     * Parameterized constructor - starts listening for loss reports
+     *
+     * @param feedbackPort     - the UDP port on which the receivers send reports
+     * @param pacer            - the pacer of the sender, its bit rate is changed
+     * @param minBitsPerSecond - the rate never goes below
+     * @param maxBitsPerSecond - the rate never goes above, also the initial rate
+     * @param targetLoss       - the loss rate to stay under (0.01 = 1%)
+     * @param controlMillis    - time between two rate changes
+     * @throws SocketException
+     */
+    public RateController(int feedbackPort, RatePacer pacer, long minBitsPerSecond, long maxBitsPerSecond,
+	    double targetLoss, long controlMillis) throws SocketException {
+	this.socket = new DatagramSocket(feedbackPort);
+	this.pacer = pacer;
+	this.minBitsPerSecond = minBitsPerSecond;
+	this.maxBitsPerSecond = maxBitsPerSecond;
+	this.targetLoss = targetLoss;
+	this.controlMillis = controlMillis;
+	this.bitsPerSecond = maxBitsPerSecond;
+	setRate(maxBitsPerSecond);
+
+	this.controllerThread = new Thread(this::controlLoop, "RateController");
+	this.controllerThread.setDaemon(true);
+	this.controllerThread.start();
+    }
+
+    private void controlLoop() {
+	byte[] buf = new byte[Utils.PACKET_MAX_SIZE];
+	long nextControl = System.currentTimeMillis() + this.controlMillis;
+
+	while (this.running) {
+	    try {
+		this.socket.setSoTimeout((int) Math.max(1, nextControl - System.currentTimeMillis()));
+
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		try {
+		    this.socket.receive(packet);
+		    LossReport report = new LossReport(buf, packet.getLength());
+		    this.reports.put(packet.getSocketAddress(), report);
+		    this.reportsReceived++;
+		} catch (SocketTimeoutException e) {
+		    // time to control
+		}
+
+		if (System.currentTimeMillis() >= nextControl) {
+		    control();
+		    nextControl = System.currentTimeMillis() + this.controlMillis;
+		}
+	    } catch (IOException e) {
+		if (this.running) {
+		    this.logger.log(Level.WARNING, "Could not receive a loss report", e);
+		}
+	    }
+	}
+    }
+
+    /**
+     * One AIMD step on the loss reported since the previous one
+     */
+    private void control() {
+	List<Double> lossRates = new ArrayList<>();
+	for (LossReport report : this.reports.values()) {
+	    if (report.getExpectedBytes() >= MIN_REPORT_BYTES) {
+		lossRates.add(Double.valueOf(report.getLossRate()));
+	    }
+	}
+	// every report counts once
+	this.reports.clear();
+
+	if (lossRates.isEmpty()) {
+	    return;
+	}
+
+	Collections.sort(lossRates);
+	int index = (int) Math.ceil(LOSS_PERCENTILE * lossRates.size()) - 1;
+	double loss = lossRates.get(Math.max(0, index)).doubleValue();
+	this.controlledLoss = loss;
+
+	long newRate;
+	if (loss > this.targetLoss) {
+	    newRate = Math.max(this.minBitsPerSecond, (long) (this.bitsPerSecond * DECREASE_FACTOR));
+	    this.decreases++;
+	} else {
+	    newRate = Math.min(this.maxBitsPerSecond,
+		    this.bitsPerSecond + (long) (this.maxBitsPerSecond * INCREASE_FRACTION));
+	}
+	if (newRate != this.bitsPerSecond) {
+	    this.logger.log(Level.INFO, String.format("Loss %.2f%% of %d receivers, rate %d -> %d bits/s",
+		    Double.valueOf(loss * 100), Integer.valueOf(lossRates.size()), Long.valueOf(this.bitsPerSecond),
+		    Long.valueOf(newRate)));
+	    setRate(newRate);
+	}
+    }
+
+    private void setRate(long newBitsPerSecond) {
+	this.bitsPerSecond = newBitsPerSecond;
+	this.pacer.setRate(newBitsPerSecond, this.pacer.getTargetPacketsPerSecond());
+    }
+
+    /**
+     * @return the current bit rate of the pacer
+     */
+    public long getBitsPerSecond() {
+	return this.bitsPerSecond;
+    }
+
+    /**
+     * @return the loss rate used by the last control step
+     */
+    public double getControlledLoss() {
+	return this.controlledLoss;
+    }
+
+    public long getReportsReceived() {
+	return this.reportsReceived;
+    }
+
+    public long getDecreases() {
+	return this.decreases;
+    }
+
+    @Override
+    public void close() {
+	this.running = false;
+	this.socket.close();
+	try {
+	    this.controllerThread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+}
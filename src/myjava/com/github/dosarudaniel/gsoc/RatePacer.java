@@ -0,0 +1,165 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * RatePacer class - token bucket pacing of outgoing datagrams, with a target
+ * in bits per second and/or packets per second.
+ *
+ * Every packet reserves its transmission slot on a virtual clock (one per
+ * target), so the bucket refills continuously instead of once per
+ * millisecond. The bucket depth is BURST_NANOS worth of traffic. The caller
+ * parks with LockSupport.parkNanos while the slot is far away and spins for
+ * the last SPIN_THRESHOLD_NANOS, which keeps the pacing precise well above
+ * the ~1 kHz that Thread.sleep can do. A single pacer can be shared by several
+ * sending threads, the targets then apply to their aggregated traffic.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class RatePacer {
+    // IPv4 + UDP headers, counted in the bit rate so that the target is the line
+    // rate and not the goodput
+    public static final int IP_UDP_OVERHEAD = 28;
+    public static final long BURST_NANOS = 500_000;
+    public static final long SPIN_THRESHOLD_NANOS = 100_000;
+
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+    // busy spinning only makes sense if another core can run the other threads
+    private static final boolean SPIN = Runtime.getRuntime().availableProcessors() > 1;
+
+    private long targetBitsPerSecond;
+    private long targetPacketsPerSecond;
+    private double nanosPerBit;
+    private double nanosPerPacket;
+
+    // virtual clocks: earliest time the next packet may leave
+    private double bitsClock;
+    private double packetsClock;
+
+    private long startTime = -1;
+    private long totalBytes = 0;
+    private long totalPackets = 0;
+
+    /**
+     * Parameterized constructor
+     *
+     * @param targetBitsPerSecond    - the bit rate to pace to, 0 for no limit
+     * @param targetPacketsPerSecond - the packet rate to pace to, 0 for no limit
+     */
+    public RatePacer(long targetBitsPerSecond, long targetPacketsPerSecond) {
+	setRate(targetBitsPerSecond, targetPacketsPerSecond);
+    }
+
+    /**
+     * Changes the targets, effective from the next packet
+     *
+     * @param bitsPerSecond    - the bit rate to pace to, 0 for no limit
+     * @param packetsPerSecond - the packet rate to pace to, 0 for no limit
+     */
+    public synchronized void setRate(long bitsPerSecond, long packetsPerSecond) {
+	this.targetBitsPerSecond = bitsPerSecond;
+	this.targetPacketsPerSecond = packetsPerSecond;
+	this.nanosPerBit = bitsPerSecond > 0 ? NANOS_PER_SECOND / bitsPerSecond : 0;
+	this.nanosPerPacket = packetsPerSecond > 0 ? NANOS_PER_SECOND / packetsPerSecond : 0;
+    }
+
+    /**
+     * Waits until a datagram of packetLength bytes may be sent
+     *
+     * @param packetLength - UDP payload length of the datagram
+     */
+    public void acquire(int packetLength) {
+	long sendTime = reserve(packetLength);
+
+	long remaining;
+	while ((remaining = sendTime - System.nanoTime()) > 0) {
+	    if (remaining > SPIN_THRESHOLD_NANOS) {
+		LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+	    } else if (SPIN) {
+		Thread.onSpinWait();
+	    } else {
+		Thread.yield();
+	    }
+	}
+    }
+
+    /**
+     * Reserves the slot of one packet on the virtual clocks
+     *
+     * @return the time (System.nanoTime) at which the packet may be sent
+     */
+    private synchronized long reserve(int packetLength) {
+	long now = System.nanoTime();
+	if (this.startTime < 0) {
+	    this.startTime = now;
+	}
+	this.totalBytes += packetLength;
+	this.totalPackets++;
+
+	// an idle bucket fills up to BURST_NANOS, not more
+	double floor = now - BURST_NANOS;
+	double sendTime = now;
+
+	if (this.nanosPerBit > 0) {
+	    this.bitsClock = Math.max(this.bitsClock, floor);
+	    sendTime = Math.max(sendTime, this.bitsClock);
+	    this.bitsClock += (packetLength + IP_UDP_OVERHEAD) * 8 * this.nanosPerBit;
+	}
+	if (this.nanosPerPacket > 0) {
+	    this.packetsClock = Math.max(this.packetsClock, floor);
+	    sendTime = Math.max(sendTime, this.packetsClock);
+	    this.packetsClock += this.nanosPerPacket;
+	}
+	return (long) sendTime;
+    }
+
+    public synchronized long getTargetBitsPerSecond() {
+	return this.targetBitsPerSecond;
+    }
+
+    public synchronized long getTargetPacketsPerSecond() {
+	return this.targetPacketsPerSecond;
+    }
+
+    public synchronized long getTotalBytes() {
+	return this.totalBytes;
+    }
+
+    public synchronized long getTotalPackets() {
+	return this.totalPackets;
+    }
+
+    /**
+     * @return the average bit rate (including IP/UDP headers) since the first
+     *         packet
+     */
+    public synchronized double getAchievedBitsPerSecond() {
+	double seconds = elapsedSeconds();
+	return seconds > 0 ? (this.totalBytes + this.totalPackets * IP_UDP_OVERHEAD) * 8 / seconds : 0;
+    }
+
+    /**
+     * @return the average packet rate since the first packet
+     */
+    public synchronized double getAchievedPacketsPerSecond() {
+	double seconds = elapsedSeconds();
+	return seconds > 0 ? this.totalPackets / seconds : 0;
+    }
+
+    private double elapsedSeconds() {
+	if (this.startTime < 0) {
+	    return 0;
+	}
+	return (System.nanoTime() - this.startTime) / NANOS_PER_SECOND;
+    }
+
+    @Override
+    public synchronized String toString() {
+	return String.format("achieved %.3f Mbps / %.0f pps, target %s / %s", getAchievedBitsPerSecond() / 1e6,
+		getAchievedPacketsPerSecond(),
+		this.targetBitsPerSecond > 0 ? String.format("%.3f Mbps", this.targetBitsPerSecond / 1e6) : "unlimited",
+		this.targetPacketsPerSecond > 0 ? this.targetPacketsPerSecond + " pps" : "unlimited");
+    }
+}
@@ -10,6 +10,7 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -19,6 +20,10 @@ import java.util.logging.Logger;
  * Receiver class waits for DatagramPacket from the Sender and prints the
  * timestamp and the content of the packet is the checksum is correct
  *
+ * The probes of a BurstSender calibration run are also counted, and the loss,
+ * reordering, duplicates and jitter of the run are logged when it ends (see
+ * CalibrationStats).
+ *
  * @author dosarudaniel@gmail.com
  * @since 2019-03-07
  *
@@ -32,6 +37,7 @@ public class Receiver {
     private int portNumber;
 
     public static int nrPacketsReceived = 0;
+    private final CalibrationStats calibrationStats = new CalibrationStats();
 
     private Thread thread = new Thread(new Runnable() {
 	SingletonLogger singletonLogger2 = new SingletonLogger();
@@ -51,6 +57,10 @@ public class Receiver {
 			    + " packets per second. \n" + "Total " + Receiver.nrPacketsReceived);
 		    oldNrPacketsReceived = Receiver.nrPacketsReceived;
 		}
+		List<String> reports = Receiver.this.calibrationStats.takeIdleReports(System.currentTimeMillis());
+		for (String report : reports) {
+		    this.logger2.log(Level.INFO, report);
+		}
 	    }
 	}
     });
@@ -92,11 +102,13 @@ public class Receiver {
 	    socket.joinGroup(group);
 	    int nr_packets_received = 0;
 	    DatagramPacket packet = new DatagramPacket(this.buf, this.buf.length);
+	    this.logger.log(Level.INFO, "Receive buffer of " + socket.getReceiveBufferSize() + " bytes");
 	    this.thread.start();
 	    while (true) {
 		// Receive object
 		socket.receive(packet);
 		this.nrPacketsReceived++;
+		this.calibrationStats.record(this.buf, packet.getLength(), System.nanoTime());
 	    }
 	} catch (Exception e) {
 	    this.logger.log(Level.SEVERE, "Could not create a MulticastSocket.");
@@ -104,6 +116,10 @@ public class Receiver {
 	}
     }
 
+    public CalibrationStats getCalibrationStats() {
+	return this.calibrationStats;
+    }
+
     // Create a new thread that reads once per second nrPacketsReceived variable
     // syso(nrPacketsReceived) and reset it: nrPacketsReceived = 0
 }
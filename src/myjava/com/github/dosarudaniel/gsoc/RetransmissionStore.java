@@ -0,0 +1,207 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * RetransmissionStore class - the retransmission window of the sender.
+ *
+ * Keeps a copy of the recently sent Blobs off the Java heap, in one direct
+ * ByteBuffer per Blob, indexed by UUID, so that repairs (NACKs) and late
+ * joiners can be served without keeping the byte[] of every Blob on the heap
+ * or asking the database again. The store is bounded both by the total size
+ * of the stored Blobs and by their age; the oldest Blobs are evicted first.
+ *
+ * An evicted Blob's memory is released by the garbage collector once nobody
+ * uses it anymore, so a repair that got the Blob just before its eviction
+ * still sends valid data. An eviction listener lets the users of the stored
+ * copies forget them too.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class RetransmissionStore {
+    private SingletonLogger singletonLogger = new SingletonLogger();
+    private Logger logger = this.singletonLogger.getLogger();
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+    private final long maxBytes;
+    private final long maxAgeMillis;
+
+    // insertion order == age order
+    private final LinkedHashMap<UUID, Entry> entries = new LinkedHashMap<>();
+    // the UUID of the stored Blobs by stream and sequence number
+    private final Map<Long, UUID> sequences = new HashMap<>();
+    private long totalBytes = 0;
+    private long evictedBlobs = 0;
+    // called with every evicted Blob, null if nobody listens
+    private Consumer<Blob> evictionListener = null;
+
+    private static final class Entry {
+	final Blob blob;
+	final int size;
+	final long storeTime;
+
+	Entry(Blob blob, int size, long storeTime) {
+	    this.blob = blob;
+	    this.size = size;
+	    this.storeTime = storeTime;
+	}
+    }
+
+    /**
+     * Parameterized constructor
+     *
+     * @param maxBytes     - the maximum total size of the metadata and payload of
+     *                     the stored Blobs
+     * @param maxAgeMillis - Blobs stored for longer than this are evicted
+     */
+    public RetransmissionStore(long maxBytes, long maxAgeMillis) {
+	this.maxBytes = maxBytes;
+	this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Copies the metadata and payload of the Blob off-heap and stores it (the
+     * payload as it is sent, so compressed if the Blob is compressed; the delta
+     * of the payload, if any, is kept too),
+     * replacing a previous Blob with the same UUID. A Blob larger than the whole
+     * store is not stored.
+     *
+     * @param blob - a Blob that was sent
+     * @return the off-heap copy of the Blob, or null if it was not stored
+     */
+    public Blob put(Blob blob) {
+	ByteBuffer metadata = blob.getMetadataBuffer();
+	ByteBuffer payload = blob.getTransmittedPayloadBuffer(Blob.DATA_CODE);
+	int size = metadata.remaining() + payload.remaining();
+	int deltaLength = blob.isDelta() ? blob.getTransmittedPayloadLength(blob.getDataCode()) : 0;
+	if (size > this.maxBytes) {
+	    this.logger.log(Level.WARNING, "Blob " + blob.getUuid() + " (" + size
+		    + " bytes) is larger than the retransmission store, it cannot be repaired");
+	    return null;
+	}
+
+	// one allocation for both, metadata first
+	ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+	buffer.put(metadata);
+	buffer.put(payload);
+	buffer.flip();
+
+	buffer.limit(blob.getMetadataLength());
+	ByteBuffer offHeapMetadata = buffer.slice();
+	buffer.limit(size).position(blob.getMetadataLength());
+	ByteBuffer offHeapPayload = buffer.slice();
+
+	Blob offHeapBlob = new Blob(blob.getKey(), blob.getUuid(), offHeapMetadata, offHeapPayload,
+		blob.getMetadataChecksum(), blob.getTransmittedPayloadChecksum(Blob.DATA_CODE), blob.getChecksumAlgorithm(),
+		blob.getPayloadCodec());
+	// the repairs use the same v2 blob id as the first transmission
+	offHeapBlob.setSessionBlobId(blob.getSessionBlobId());
+	offHeapBlob.setSequence(blob.getSequenceStream(), blob.getSequence());
+	if (blob.isDelta()) {
+	    // the delta is small and not modified anymore, it stays on the heap
+	    byte dataCode = blob.getDataCode();
+	    offHeapBlob.setDeltaPayload(blob.getTransmittedPayloadBuffer(dataCode).array(),
+		    blob.getTransmittedPayloadChecksum(dataCode), blob.isDeltaCompressed());
+	}
+
+	synchronized (this) {
+	    Entry previous = this.entries.remove(blob.getUuid());
+	    if (previous != null) {
+		this.totalBytes -= previous.size;
+		removeSequence(previous.blob);
+	    }
+	    this.entries.put(blob.getUuid(), new Entry(offHeapBlob, size + deltaLength, System.currentTimeMillis()));
+	    if (offHeapBlob.hasSequence()) {
+		long sequenceKey = sequenceKey(offHeapBlob.getSequenceStream(), offHeapBlob.getSequence());
+		this.sequences.put(Long.valueOf(sequenceKey), offHeapBlob.getUuid());
+	    }
+	    this.totalBytes += size + deltaLength;
+	    evict();
+	}
+	return offHeapBlob;
+    }
+
+    /**
+     * @param evictionListener - called with the off-heap copy of every evicted
+     *                         Blob, with the store locked, so it must not block
+     */
+    public synchronized void setEvictionListener(Consumer<Blob> evictionListener) {
+	this.evictionListener = evictionListener;
+    }
+
+    /**
+     * @param uuid - the UUID of a sent Blob
+     * @return the stored Blob, or null if it was never stored or was evicted
+     */
+    public synchronized Blob get(UUID uuid) {
+	evict();
+	Entry entry = this.entries.get(uuid);
+	return entry != null ? entry.blob : null;
+    }
+
+    /**
+     * @param stream   - the stream of a sent Blob, see BlobSequence
+     * @param sequence - its sequence number
+     * @return the stored Blob, or null if it was never stored or was evicted
+     */
+    public synchronized Blob getBySequence(int stream, int sequence) {
+	evict();
+	UUID uuid = this.sequences.get(Long.valueOf(sequenceKey(stream, sequence)));
+	return uuid != null ? get(uuid) : null;
+    }
+
+    private static long sequenceKey(int stream, int sequence) {
+	return ((long) stream << 32) | (sequence & 0xFFFFFFFFL);
+    }
+
+    private void removeSequence(Blob blob) {
+	if (blob.hasSequence()) {
+	    this.sequences.remove(Long.valueOf(sequenceKey(blob.getSequenceStream(), blob.getSequence())));
+	}
+    }
+
+    /**
+     * Removes the oldest Blobs while the store is too large or they are too old
+     */
+    private void evict() {
+	long oldest = System.currentTimeMillis() - this.maxAgeMillis;
+	Iterator<Map.Entry<UUID, Entry>> it = this.entries.entrySet().iterator();
+	while (it.hasNext()) {
+	    Entry entry = it.next().getValue();
+	    if (this.totalBytes <= this.maxBytes && entry.storeTime >= oldest) {
+		break;
+	    }
+	    it.remove();
+	    removeSequence(entry.blob);
+	    this.totalBytes -= entry.size;
+	    this.evictedBlobs++;
+	    if (this.evictionListener != null) {
+		this.evictionListener.accept(entry.blob);
+	    }
+	}
+    }
+
+    public synchronized int getNrBlobs() {
+	return this.entries.size();
+    }
+
+    public synchronized long getTotalBytes() {
+	return this.totalBytes;
+    }
+
+    public synchronized long getEvictedBlobs() {
+	return this.evictedBlobs;
+    }
+}
@@ -0,0 +1,420 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SendPipeline class - asynchronous publishing of Blobs.
+ *
+ * publish(Blob) only queues the Blob. An encoder thread fragments the queued
+ * Blobs into a bounded ring of preallocated direct buffers and one or more
+ * network threads drain the ring in batches, writing the fragments with
+ * non-blocking DatagramChannels. Encoding and network I/O therefore run on
+ * different cores. When the ring is full the encoder waits for free slots, and
+ * when the publish queue is full publish() waits, so a fast producer is slowed
+ * down to the network speed.
+ *
+ * Small Blobs (sent as a single packet) that are queued together are packed
+ * several per datagram in MULTI_BLOB_CODE packets, which divides the packet
+ * rate of a burst of small objects; see setPackSmallBlobs.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class SendPipeline implements Closeable {
+    private SingletonLogger singletonLogger = new SingletonLogger();
+    private Logger logger = this.singletonLogger.getLogger();
+
+    public static final int DEFAULT_RING_SIZE = 1024;
+    public static final int DEFAULT_PUBLISH_QUEUE_SIZE = 64;
+    public static final int BATCH_SIZE = 32;
+    // extra room in a ring slot for the key, larger fragments grow the slot
+    private static final int SLOT_KEY_ALLOWANCE = 256;
+    // initial ring slot size when the fragments are sized to the MTU, the
+    // slots of a jumbo or loopback MTU grow on the first larger fragment
+    private static final int MAX_INITIAL_SLOT_CAPACITY = 16 * 1024;
+    // wait time when the socket buffer is full
+    private static final long FULL_SOCKET_PARK_NANOS = 10_000;
+
+    // 0 to size the fragments of every Blob to maxDatagramSize
+    private final int maxPayloadSize;
+    private final int maxDatagramSize;
+    // numbers the published Blobs
+    private final BlobSequence sequence;
+
+    private final BlockingQueue<Publication> publishQueue;
+    private final BlockingQueue<Slot> freeSlots;
+    private final BlockingQueue<Slot> filledSlots;
+
+    private final Thread encoderThread;
+    private final List<Thread> networkThreads = new ArrayList<>();
+    private final List<SenderChannel> channels = new ArrayList<>();
+
+    private volatile boolean running = true;
+    private volatile RatePacer pacer = null;
+    private volatile boolean packSmallBlobs = true;
+
+    /**
+     * A Blob waiting to be sent, completed when its last fragment was written
+     */
+    private static final class Publication {
+	final Blob blob;
+	final CompletableFuture<Blob> future = new CompletableFuture<>();
+	// fragments in the ring + 1 while the encoder is still working on it
+	final AtomicInteger pending = new AtomicInteger(1);
+
+	Publication(Blob blob) {
+	    this.blob = blob;
+	}
+
+	void fragmentDone() {
+	    if (this.pending.decrementAndGet() == 0) {
+		this.future.complete(this.blob);
+	    }
+	}
+    }
+
+    /**
+     * One preallocated ring entry holding a serialized fragment
+     */
+    private static final class Slot {
+	ByteBuffer buffer;
+	// more than one for a MULTI_BLOB_CODE packet
+	final List<Publication> publications = new ArrayList<>(1);
+
+	Slot(int capacity) {
+	    this.buffer = ByteBuffer.allocateDirect(capacity);
+	}
+    }
+
+    /**
+     * Parameterized constructor - creates a pipeline with the default ring size
+     * and one network thread
+     *
+     * @param ip_address     - Destination multicast IP
+     * @param portNumber     - Destination port number
+     * @param maxPayloadSize - the maximum payload supported by a fragmented
+     *                       packet, 0 for the largest one that fits in the MTU
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public SendPipeline(String ip_address, int portNumber, int maxPayloadSize)
+	    throws IOException, NoSuchAlgorithmException {
+	this(ip_address, portNumber, maxPayloadSize, DEFAULT_RING_SIZE, 1);
+    }
+
+    /**
+     * Parameterized constructor
+     *
+     * @param ip_address       - Destination multicast IP
+     * @param portNumber       - Destination port number
+     * @param maxPayloadSize   - the maximum payload supported by a fragmented
+     *                         packet, 0 for the largest one that fits in the
+     *                         MTU of the outgoing interface
+     * @param ringSize         - number of preallocated fragment buffers
+     * @param nrNetworkThreads - number of threads writing to the network, each
+     *                         with its own channel
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public SendPipeline(String ip_address, int portNumber, int maxPayloadSize, int ringSize, int nrNetworkThreads)
+	    throws IOException, NoSuchAlgorithmException {
+	this.maxPayloadSize = maxPayloadSize;
+	this.publishQueue = new ArrayBlockingQueue<>(DEFAULT_PUBLISH_QUEUE_SIZE);
+	this.freeSlots = new ArrayBlockingQueue<>(ringSize);
+	this.filledSlots = new ArrayBlockingQueue<>(ringSize);
+
+	for (int i = 0; i < nrNetworkThreads; i++) {
+	    final SenderChannel channel = SenderChannelRegistry.openChannel(ip_address, portNumber);
+	    channel.configureBlocking(false);
+	    this.channels.add(channel);
+
+	    Thread networkThread = new Thread(() -> networkLoop(channel), "SendPipeline-network-" + i);
+	    networkThread.setDaemon(true);
+	    this.networkThreads.add(networkThread);
+	}
+	// all the channels go to the same destination
+	this.maxDatagramSize = this.channels.isEmpty() ? SenderChannel.DEFAULT_MTU
+		: this.channels.get(0).getMaxDatagramSize();
+	this.sequence = this.channels.isEmpty() ? new BlobSequence()
+		: BlobSequence.forDestination(this.channels.get(0).getDestination());
+
+	int slotCapacity = maxPayloadSize > 0
+		? maxPayloadSize + Utils.SIZE_OF_FRAGMENTED_BLOB_HEADER_AND_TRAILER + SLOT_KEY_ALLOWANCE
+		: Math.min(this.maxDatagramSize, MAX_INITIAL_SLOT_CAPACITY);
+	for (int i = 0; i < ringSize; i++) {
+	    this.freeSlots.add(new Slot(slotCapacity));
+	}
+
+	final FragmentEncoder encoder = new FragmentEncoder();
+	this.encoderThread = new Thread(() -> encodeLoop(encoder), "SendPipeline-encoder");
+	this.encoderThread.setDaemon(true);
+
+	this.encoderThread.start();
+	for (Thread networkThread : this.networkThreads) {
+	    networkThread.start();
+	}
+    }
+
+    /**
+     * Queues a Blob to be sent. Blocks only while the publish queue is full.
+     *
+     * @param blob - the Blob to send
+     * @return a future completed with the Blob once all its fragments were
+     *         written to the network
+     * @throws InterruptedException
+     */
+    public CompletableFuture<Blob> publish(Blob blob) throws InterruptedException {
+	Publication publication = new Publication(blob);
+	if (!this.running) {
+	    publication.future.completeExceptionally(new IOException("SendPipeline is closed"));
+	    return publication.future;
+	}
+	// numbered in the publishing order, before the repairs can ask for it; not
+	// when closed, the receivers would NACK a number that is never sent
+	this.sequence.assign(blob);
+	this.publishQueue.put(publication);
+	return publication.future;
+    }
+
+    private void encodeLoop(FragmentEncoder encoder) {
+	final List<Publication> packed = new ArrayList<>();
+	// taken from the queue but did not fit in the last MULTI_BLOB_CODE packet
+	Publication next = null;
+
+	while (this.running) {
+	    final Publication publication;
+	    if (next != null) {
+		publication = next;
+		next = null;
+	    } else {
+		try {
+		    publication = this.publishQueue.poll(100, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+		    return;
+		}
+		if (publication == null) {
+		    continue;
+		}
+	    }
+
+	    try {
+		encoder.setBlob(publication.blob);
+		if (this.packSmallBlobs && encoder.appendToMultiBlob(getMaxPayloadSize(encoder))) {
+		    // pack the small Blobs that are already waiting, without waiting for more
+		    packed.add(publication);
+		    while ((next = this.publishQueue.poll()) != null) {
+			encoder.setBlob(next.blob);
+			if (!encoder.appendToMultiBlob(getMaxPayloadSize(encoder))) {
+			    break;
+			}
+			packed.add(next);
+			next = null;
+		    }
+		    encoder.flushMultiBlob(fragment -> enqueue(packed, fragment));
+		    for (Publication packedPublication : packed) {
+			packedPublication.fragmentDone();
+		    }
+		} else {
+		    encoder.encodeBlob(getMaxPayloadSize(encoder), fragment -> enqueue(publication, fragment));
+		    // release the encoder's own reference
+		    publication.fragmentDone();
+		}
+	    } catch (IOException e) {
+		this.logger.log(Level.WARNING, "Could not encode blob " + publication.blob.getUuid(), e);
+		publication.future.completeExceptionally(e);
+		for (Publication packedPublication : packed) {
+		    packedPublication.future.completeExceptionally(e);
+		}
+	    } finally {
+		packed.clear();
+	    }
+	}
+    }
+
+    /**
+     * @return the fragment size of the encoder's current Blob
+     */
+    private int getMaxPayloadSize(FragmentEncoder encoder) {
+	return this.maxPayloadSize > 0 ? this.maxPayloadSize : encoder.getMaxPayloadSize(this.maxDatagramSize);
+    }
+
+    /**
+     * Copies a fragment into a free ring slot, waiting if the ring is full
+     */
+    private void enqueue(Publication publication, ByteBuffer[] fragment) throws IOException {
+	Slot slot = fill(fragment);
+	slot.publications.add(publication);
+	publication.pending.incrementAndGet();
+	this.filledSlots.add(slot);
+    }
+
+    /**
+     * Copies a MULTI_BLOB_CODE packet into a free ring slot, waiting if the ring
+     * is full
+     */
+    private void enqueue(List<Publication> publications, ByteBuffer[] fragment) throws IOException {
+	Slot slot = fill(fragment);
+	for (Publication publication : publications) {
+	    slot.publications.add(publication);
+	    publication.pending.incrementAndGet();
+	}
+	this.filledSlots.add(slot);
+    }
+
+    private Slot fill(ByteBuffer[] fragment) throws IOException {
+	Slot slot;
+	try {
+	    slot = this.freeSlots.take();
+	} catch (InterruptedException e) {
+	    throw new IOException("Interrupted while waiting for a free slot", e);
+	}
+
+	int length = 0;
+	for (ByteBuffer buffer : fragment) {
+	    length += buffer.remaining();
+	}
+	if (slot.buffer.capacity() < length) {
+	    slot.buffer = ByteBuffer.allocateDirect(length);
+	}
+
+	slot.buffer.clear();
+	for (ByteBuffer buffer : fragment) {
+	    slot.buffer.put(buffer);
+	}
+	slot.buffer.flip();
+	return slot;
+    }
+
+    private void networkLoop(SenderChannel channel) {
+	List<Slot> batch = new ArrayList<>(BATCH_SIZE);
+
+	while (this.running) {
+	    try {
+		Slot first = this.filledSlots.poll(100, TimeUnit.MILLISECONDS);
+		if (first == null) {
+		    continue;
+		}
+		batch.add(first);
+		this.filledSlots.drainTo(batch, BATCH_SIZE - 1);
+
+		for (Slot slot : batch) {
+		    RatePacer currentPacer = this.pacer;
+		    if (currentPacer != null) {
+			currentPacer.acquire(slot.buffer.remaining());
+		    }
+		    while (!channel.trySend(slot.buffer)) {
+			if (!this.running) {
+			    // a socket that stays full must not block close
+			    throw new IOException("SendPipeline was closed");
+			}
+			// socket buffer full, let the NIC catch up
+			LockSupport.parkNanos(FULL_SOCKET_PARK_NANOS);
+		    }
+		    for (Publication publication : slot.publications) {
+			publication.fragmentDone();
+		    }
+		    slot.publications.clear();
+		    this.freeSlots.add(slot);
+		}
+	    } catch (InterruptedException e) {
+		return;
+	    } catch (IOException e) {
+		if (this.running) {
+		    this.logger.log(Level.WARNING, "Could not send fragment", e);
+		}
+		for (Slot slot : batch) {
+		    if (!slot.publications.isEmpty()) {
+			for (Publication publication : slot.publications) {
+			    publication.future.completeExceptionally(e);
+			}
+			slot.publications.clear();
+			this.freeSlots.add(slot);
+		    }
+		}
+	    } finally {
+		batch.clear();
+	    }
+	}
+    }
+
+    public RatePacer getPacer() {
+	return this.pacer;
+    }
+
+    /**
+     * @param pacer - the rate limit shared by all the network threads, null to
+     *              send as fast as possible
+     */
+    public void setPacer(RatePacer pacer) {
+	this.pacer = pacer;
+    }
+
+    public boolean isPackSmallBlobs() {
+	return this.packSmallBlobs;
+    }
+
+    /**
+     * @param packSmallBlobs - pack the queued small Blobs in MULTI_BLOB_CODE
+     *                       packets (the default), false to send every Blob in
+     *                       its own packets
+     */
+    public void setPackSmallBlobs(boolean packSmallBlobs) {
+	this.packSmallBlobs = packSmallBlobs;
+    }
+
+    /**
+     * @return the number of ring slots currently holding fragments to be sent
+     */
+    public int getQueuedFragments() {
+	return this.filledSlots.size();
+    }
+
+    /**
+     * Stops the pipeline threads and closes the channels. Blobs that were not
+     * completely sent yet have their future completed exceptionally.
+     */
+    @Override
+    public void close() throws IOException {
+	this.running = false;
+	this.encoderThread.interrupt();
+	for (Thread networkThread : this.networkThreads) {
+	    networkThread.interrupt();
+	}
+	try {
+	    this.encoderThread.join();
+	    for (Thread networkThread : this.networkThreads) {
+		networkThread.join();
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+
+	IOException closed = new IOException("SendPipeline was closed");
+	for (Publication publication : this.publishQueue) {
+	    publication.future.completeExceptionally(closed);
+	}
+	for (Slot slot : this.filledSlots) {
+	    for (Publication publication : slot.publications) {
+		publication.future.completeExceptionally(closed);
+	    }
+	}
+
+	for (SenderChannel channel : this.channels) {
+	    channel.close();
+	}
+    }
+}
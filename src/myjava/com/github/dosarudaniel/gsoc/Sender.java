@@ -6,11 +6,18 @@
 package myjava.com.github.dosarudaniel.gsoc;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,7 +40,6 @@ import ch.alice.o2.ccdb.webserver.EmbeddedTomcat;
  *
  */
 public class Sender {
-    private Map<String, Blob> blobMap = new HashMap<>();
 
     private SingletonLogger singletonLogger = new SingletonLogger();
     private Logger logger = this.singletonLogger.getLogger();
@@ -55,6 +61,39 @@ public class Sender {
 
     private int maxPayloadSize;
     private int nrOfPacketsToBeSent;
+    // null if the fragments are not paced
+    private RatePacer pacer = null;
+    // Blobs with a payload of at least STRIPING_THRESHOLD bytes are sent by
+    // stripeWorkers threads in parallel, if stripeWorkers > 1
+    public static final int STRIPING_THRESHOLD = 1024 * 1024;
+    private int stripeWorkers = 0;
+    // UDP port of the NackAggregator, 0 if the NACK based repair is disabled
+    private int nackPort = 0;
+    // off-heap copies of the recently sent Blobs, for the repairs
+    private RetransmissionStore retransmissionStore;
+    // the last version sent of every key, base of the delta of the next one
+    // and announced by the AnnouncementCarousel; only the stored copies, they
+    // are forgotten when the store evicts them
+    private Map<String, Blob> lastVersions = new ConcurrentHashMap<>();
+    // UDP port of the RateController, 0 if the rate is not adapted to the loss
+    private int feedbackPort = 0;
+    // loss rate the RateController keeps the receivers under, in per mille
+    private int targetLossPermille = 0;
+    // bandwidth budget of the announcements, 0 to disable them
+    private int announcementBitrate = 0;
+    private int announcementPeriodMillis = 0;
+    // the multicast group of every key, from MULTICAST_GROUPS
+    private GroupMap groupMap;
+    private Map<GroupMap.Group, SendPipeline> pipelines = new HashMap<>();
+    private Map<GroupMap.Group, StripedSender> stripedSenders = new HashMap<>();
+    // the receivers from UNICAST_RECEIVERS, null to multicast
+    private UnicastFanOut fanOut = null;
+    // UDP port of the AckCollector and number of receivers that acknowledge
+    // the complete Blobs, 0 if the ACKs are disabled
+    private int ackPort = 0;
+    private int ackReceivers = 0;
+    // how long the sender waits for the last ACKs before it reports
+    public static final long ACK_WAIT_MILLIS = 2000;
 
     public static int nrPacketsSent = 0;
     public static boolean counterRunning = false;
@@ -110,6 +149,9 @@ public class Sender {
 		if (Sender.nrPacketsSent - oldNrPacketsSent > 0) {
 		    this.logger2.log(Level.INFO, "Sent " + (Sender.nrPacketsSent - oldNrPacketsSent)
 			    + " packets per second. \n" + "Total " + Sender.nrPacketsSent);
+		    if (Sender.this.pacer != null) {
+			this.logger2.log(Level.INFO, "Pacing: " + Sender.this.pacer);
+		    }
 
 		    oldNrPacketsSent = Sender.nrPacketsSent;
 		}
@@ -135,6 +177,110 @@ public class Sender {
 	this.keyLength = keyLength;
 	this.metadataLength = metadataLength;
 	this.payloadLength = payloadLength;
+
+	this.stripeWorkers = getIntEnv("STRIPE_WORKERS", 0);
+	this.nackPort = getIntEnv("NACK_PORT", 0);
+	this.feedbackPort = getIntEnv("FEEDBACK_PORT", 0);
+	this.ackPort = getIntEnv("ACK_PORT", 0);
+	this.ackReceivers = getIntEnv("ACK_RECEIVERS", 0);
+	this.targetLossPermille = getIntEnv("TARGET_LOSS_PERMILLE", (int) (RateController.DEFAULT_TARGET_LOSS * 1000));
+	this.announcementBitrate = getIntEnv("ANNOUNCEMENT_BITRATE",
+		(int) AnnouncementCarousel.DEFAULT_BITS_PER_SECOND);
+	this.announcementPeriodMillis = getIntEnv("ANNOUNCEMENT_PERIOD_MS",
+		(int) AnnouncementCarousel.DEFAULT_PERIOD_MILLIS);
+
+	long storeBytes = getIntEnv("RETRANSMISSION_STORE_MB",
+		(int) (RetransmissionStore.DEFAULT_MAX_BYTES / (1024 * 1024))) * 1024L * 1024L;
+	long storeMillis = getIntEnv("RETRANSMISSION_STORE_SECONDS",
+		(int) (RetransmissionStore.DEFAULT_MAX_AGE_MILLIS / 1000)) * 1000L;
+	this.retransmissionStore = new RetransmissionStore(storeBytes, storeMillis);
+	this.retransmissionStore.setEvictionListener(
+		evicted -> this.lastVersions.computeIfPresent(evicted.getKey(), (k, v) -> v == evicted ? null : v));
+
+	this.groupMap = GroupMap.fromEnv(ip_address, portNumber);
+
+	List<InetSocketAddress> unicastReceivers = UnicastFanOut.receiversFromEnv();
+	if (!unicastReceivers.isEmpty()) {
+	    this.fanOut = new UnicastFanOut(unicastReceivers, SenderChannelRegistry.getSendBufferSize());
+	    this.logger.log(Level.INFO, "Sending by unicast to " + unicastReceivers);
+	}
+    }
+
+    /**
+     * Parameterized constructor - sender that paces the fragments to a target bit
+     * rate
+     *
+     * @param ip_address
+     * @param portNumber
+     * @param bitsPerSecond - the target line rate, 0 for no pacing
+     * @throws IOException
+     * @throws SecurityException
+     */
+    public Sender(String ip_address, int portNumber, int maxPayloadSize, int keyLength, int metadataLength,
+	    int payloadLength, int nrOfPacketsToBeSent, long bitsPerSecond) throws SecurityException, IOException {
+	this(ip_address, portNumber, maxPayloadSize, keyLength, metadataLength, payloadLength, nrOfPacketsToBeSent);
+	if (bitsPerSecond > 0) {
+	    this.pacer = new RatePacer(bitsPerSecond, 0);
+	}
+    }
+
+    private int getIntEnv(String name, int defaultValue) {
+	String envValue = System.getenv(name);
+	if (envValue != null) {
+	    try {
+		return Integer.parseInt(envValue);
+	    } catch (NumberFormatException e) {
+		this.logger.log(Level.WARNING, "Environment variable " + name + " is not a number.");
+	    }
+	}
+	return defaultValue;
+    }
+
+    /**
+     * @return the last version of every key that the NackAggregator can still
+     *         repair, the others would be NACKed by late joiners in vain
+     */
+    private Collection<Blob> getAnnouncedVersions() {
+	List<Blob> announced = new ArrayList<>();
+	for (Blob blob : this.lastVersions.values()) {
+	    // evicts the Blobs that are too old, and forgets them
+	    if (this.retransmissionStore.get(blob.getUuid()) != null) {
+		announced.add(blob);
+	    }
+	}
+	return announced;
+    }
+
+    /**
+     * @param group - a multicast group
+     * @return the pipeline to that group, opened on the first call
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    private SendPipeline getPipeline(GroupMap.Group group) throws NoSuchAlgorithmException, IOException {
+	SendPipeline pipeline = this.pipelines.get(group);
+	if (pipeline == null) {
+	    pipeline = new SendPipeline(group.getIp(), group.getPort(), this.maxPayloadSize);
+	    pipeline.setPacer(this.pacer);
+	    this.pipelines.put(group, pipeline);
+	}
+	return pipeline;
+    }
+
+    /**
+     * @param group - a multicast group
+     * @return the striped sender to that group, opened on the first call
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    private StripedSender getStripedSender(GroupMap.Group group) throws NoSuchAlgorithmException, IOException {
+	StripedSender stripedSender = this.stripedSenders.get(group);
+	if (stripedSender == null) {
+	    stripedSender = new StripedSender(group.getIp(), group.getPort(), this.maxPayloadSize, this.stripeWorkers);
+	    stripedSender.setPacer(this.pacer);
+	    this.stripedSenders.put(group, stripedSender);
+	}
+	return stripedSender;
     }
 
     /**
@@ -142,23 +288,94 @@ public class Sender {
      * sendMulticast method every (default 10) seconds. Prints timestamp and the
      * payload that was sent.
      *
+     * Unlike the LoadGenerator, which measures the SendPipeline alone, this test
+     * mode goes through every optional part of the sender (NACK repairs, deltas,
+     * announcements, ACKs, striping, unicast fan-out), all the Blobs being
+     * versions of one key.
+     *
      */
 
     public void work() {
 	String metadata, payload, key;
 
-	UUID uuid = UUID.randomUUID();
+	UUID uuid;
 	Blob blob = null;
 
+	List<CompletableFuture<Blob>> publications = new ArrayList<>();
+	boolean striping = this.stripeWorkers > 1 && this.payloadLength >= STRIPING_THRESHOLD;
+
+	NackAggregator nackAggregator = null;
+	if (this.nackPort > 0) {
+	    try {
+		if (this.fanOut != null) {
+		    nackAggregator = new NackAggregator(this.nackPort, this.retransmissionStore::get, this.fanOut,
+			    this.maxPayloadSize, NackAggregator.DEFAULT_WINDOW_MILLIS);
+		} else {
+		    nackAggregator = new NackAggregator(this.nackPort, this.retransmissionStore::get, this.groupMap,
+			    this.maxPayloadSize, NackAggregator.DEFAULT_WINDOW_MILLIS);
+		}
+		nackAggregator.setSequenceLookup((stream, sequence) -> this.retransmissionStore
+			.getBySequence(stream.intValue(), sequence.intValue()));
+	    } catch (IOException e) {
+		this.logger.log(Level.WARNING, "Could not listen for NACKs on port " + this.nackPort, e);
+	    }
+	}
+
+	// the configured rate is the maximum, lowered while the receivers lose
+	// fragments
+	RateController rateController = null;
+	if (this.feedbackPort > 0) {
+	    if (this.pacer == null || this.pacer.getTargetBitsPerSecond() <= 0) {
+		this.logger.log(Level.WARNING, "FEEDBACK_PORT is ignored, the rate control needs a target bit rate");
+	    } else {
+		try {
+		    long maxBitsPerSecond = this.pacer.getTargetBitsPerSecond();
+		    rateController = new RateController(this.feedbackPort, this.pacer, maxBitsPerSecond / 100,
+			    maxBitsPerSecond, this.targetLossPermille / 1000.0, RateController.DEFAULT_CONTROL_MILLIS);
+		} catch (IOException e) {
+		    this.logger.log(Level.WARNING, "Could not listen for loss reports on port " + this.feedbackPort, e);
+		}
+	    }
+	}
+
+	// the announcements only help receivers that can NACK what they miss
+	AnnouncementCarousel carousel = null;
+	if (this.nackPort > 0 && this.announcementBitrate > 0) {
+	    try {
+		if (this.fanOut != null) {
+		    carousel = new AnnouncementCarousel(this::getAnnouncedVersions, this.fanOut,
+			    this.announcementBitrate, this.announcementPeriodMillis);
+		} else {
+		    carousel = new AnnouncementCarousel(this::getAnnouncedVersions, this.groupMap,
+			    this.announcementBitrate, this.announcementPeriodMillis);
+		}
+	    } catch (NoSuchAlgorithmException e) {
+		this.logger.log(Level.WARNING, "Could not start the announcement carousel", e);
+	    }
+	}
+
+	if (this.fanOut != null) {
+	    this.fanOut.setPacer(this.pacer);
+	}
+
+	AckCollector ackCollector = null;
+	if (this.ackPort > 0 && this.ackReceivers > 0) {
+	    try {
+		ackCollector = new AckCollector(this.ackPort, this.ackReceivers);
+	    } catch (IOException e) {
+		this.logger.log(Level.WARNING, "Could not listen for ACKs on port " + this.ackPort, e);
+	    }
+	}
+
 	this.counterThread.start();
 	// this.recoveryThread.start();
 	counterRunning = true;
 	for (int i = 0; i < this.nrOfPacketsToBeSent; i++) {
 	    payload = Utils.randomString(this.payloadLength);
 	    metadata = Utils.randomString(this.metadataLength);
+	    // every Blob is a new version of the same key
 	    key = "123_hardcoded_key";
-	    // Send the same uuid for testing
-	    uuid = UUID.fromString("38400000-8cf0-11bd-b23e-10b96e4ef00d");
+	    uuid = UUID.randomUUID();
 	    nrPacketsSent++;
 	    String payload_with_number = Integer.toString(i) + " " + payload;
 	    String metadata_with_number = Integer.toString(i) + " " + metadata;
@@ -166,15 +383,81 @@ public class Sender {
 	    try {
 		blob = new Blob(metadata.getBytes(Charset.forName(Utils.CHARSET)),
 			payload.getBytes(Charset.forName(Utils.CHARSET)), key, uuid);
+		if (this.nackPort > 0) {
+		    // receivers without the previous version NACK the full payload
+		    blob.encodeDelta(this.lastVersions.get(key));
+		}
+		// compressed once, the repairs resend the compressed payload
+		blob.compress(PayloadCodec.DEFAULT_CODEC);
 		System.out.println(blob);
-		blobMap.put(key, blob);
-		blob.send(this.ip_address, this.portNumber);
+		GroupMap.Group group = this.groupMap.getGroup(key);
+		if (ackCollector != null) {
+		    ackCollector.expect(blob.getUuid());
+		}
+		if (this.fanOut != null) {
+		    blob.send(this.fanOut);
+		} else if (striping) {
+		    getStripedSender(group).send(blob);
+		} else {
+		    publications.add(getPipeline(group).publish(blob));
+		}
+		if (this.nackPort > 0) {
+		    // stored once published, with its sequence number
+		    Blob storedBlob = this.retransmissionStore.put(blob);
+		    if (storedBlob != null) {
+			this.lastVersions.put(key, storedBlob);
+		    } else {
+			// too large to be stored, the next version is sent in full
+			this.lastVersions.remove(key);
+		    }
+		}
 
-	    } catch (NoSuchAlgorithmException | IOException e) {
+	    } catch (NoSuchAlgorithmException | IOException | InterruptedException e) {
 		e.printStackTrace();
 	    }
 	}
+
+	// wait for the pipeline to put everything on the wire
+	for (CompletableFuture<Blob> publication : publications) {
+	    try {
+		publication.get();
+	    } catch (InterruptedException | ExecutionException e) {
+		this.logger.log(Level.WARNING, "Blob was not sent", e);
+	    }
+	}
 	counterRunning = false;
+	if (ackCollector != null) {
+	    try {
+		ackCollector.awaitCompletion(ACK_WAIT_MILLIS);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	    this.logger.log(Level.INFO, "ACKs: " + ackCollector.getReport());
+	    ackCollector.close();
+	}
+	try {
+	    for (SendPipeline pipeline : this.pipelines.values()) {
+		pipeline.close();
+	    }
+	    for (StripedSender stripedSender : this.stripedSenders.values()) {
+		stripedSender.close();
+	    }
+	    if (carousel != null) {
+		carousel.close();
+	    }
+	    if (nackAggregator != null) {
+		nackAggregator.close();
+	    }
+	    if (rateController != null) {
+		rateController.close();
+	    }
+	    // after the carousel and the repairs, that send through it
+	    if (this.fanOut != null) {
+		this.fanOut.close();
+	    }
+	} catch (IOException e) {
+	    e.printStackTrace();
+	}
 	try {
 	    this.counterThread.join();
 	    // this.recoveryThread.join();
@@ -183,7 +466,6 @@ public class Sender {
 	    e.printStackTrace();
 	}
 
-	// System.out.println(blobMap);
 
     }
 }
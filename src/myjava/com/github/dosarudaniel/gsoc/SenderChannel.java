@@ -0,0 +1,239 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.PortUnreachableException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * SenderChannel class - a long-lived DatagramChannel connected to one
+ * destination (multicast group and port). The channel is opened once and
+ * reused for every fragment sent to that destination, instead of creating a
+ * new DatagramSocket for each packet.
+ *
+ * The largest datagram that leaves the host without IP fragmentation is
+ * computed once, when the channel is opened, from the MTU of the outgoing
+ * interface (the multicast interface, or the one the destination is routed
+ * through) minus the IP and UDP headers. FragmentEncoder.getMaxPayloadSize
+ * turns it into the fragment size of a Blob. Routers with a smaller MTU on
+ * the path are not detected, see setMaxDatagramSize.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class SenderChannel implements FragmentSink, Closeable {
+    // IPv4 header without options, IPv6 header without extensions
+    public static final int IPV4_HEADER_SIZE = 20;
+    public static final int IPV6_HEADER_SIZE = 40;
+    public static final int UDP_HEADER_SIZE = 8;
+    // when the outgoing interface or its MTU is not known
+    public static final int DEFAULT_MTU = 1500;
+    // the largest UDP payload of an IPv4 datagram
+    public static final int MAX_UDP_PAYLOAD = 65507;
+
+    private final DatagramChannel channel;
+    private final InetSocketAddress destination;
+    private volatile RatePacer pacer = null;
+    private volatile int maxDatagramSize;
+
+    /**
+     * Parameterized constructor - opens a DatagramChannel and connects it to the
+     * destination
+     *
+     * @param destination      - Destination IP address (multicast) and port
+     * @param networkInterface - The outgoing interface for multicast packets, or
+     *                         null for the system default
+     * @param sendBufferSize   - SO_SNDBUF of the channel in bytes, 0 to keep the
+     *                         system default
+     * @throws IOException
+     */
+    public SenderChannel(InetSocketAddress destination, NetworkInterface networkInterface, int sendBufferSize)
+	    throws IOException {
+	this.destination = destination;
+	this.channel = DatagramChannel.open(destination.getAddress() instanceof Inet6Address
+		? StandardProtocolFamily.INET6
+		: StandardProtocolFamily.INET);
+
+	if (sendBufferSize > 0) {
+	    this.channel.setOption(StandardSocketOptions.SO_SNDBUF, Integer.valueOf(sendBufferSize));
+	}
+	if (networkInterface != null) {
+	    this.channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+	}
+	this.channel.connect(destination);
+	this.maxDatagramSize = maxDatagramSize(getMtu(networkInterface));
+    }
+
+    /**
+     * @param networkInterface - the multicast interface, or null
+     * @return the MTU of the interface the datagrams leave through
+     */
+    private int getMtu(NetworkInterface networkInterface) {
+	try {
+	    NetworkInterface outgoing = networkInterface;
+	    if (outgoing == null || !this.destination.getAddress().isMulticastAddress()) {
+		// connect() bound the channel to the address of the route to the destination
+		InetAddress local = ((InetSocketAddress) this.channel.getLocalAddress()).getAddress();
+		outgoing = NetworkInterface.getByInetAddress(local);
+	    }
+	    if (outgoing != null && outgoing.getMTU() > 0) {
+		return outgoing.getMTU();
+	    }
+	} catch (IOException e) {
+	    // not known, use the default
+	}
+	return DEFAULT_MTU;
+    }
+
+    /**
+     * @param mtu - the MTU of the outgoing interface or of the path
+     * @return the largest UDP payload that fits in one IP packet of this
+     *         destination's address family
+     */
+    public int maxDatagramSize(int mtu) {
+	return maxDatagramSize(this.destination.getAddress(), mtu);
+    }
+
+    /**
+     * @param destination - the destination address, IPv4 or IPv6
+     * @param mtu         - the MTU of the outgoing interface or of the path
+     * @return the largest UDP payload that fits in one IP packet to destination
+     */
+    public static int maxDatagramSize(InetAddress destination, int mtu) {
+	int ipHeaderSize = destination instanceof Inet6Address ? IPV6_HEADER_SIZE : IPV4_HEADER_SIZE;
+	return Math.min(MAX_UDP_PAYLOAD, mtu - ipHeaderSize - UDP_HEADER_SIZE);
+    }
+
+    /**
+     * Sends one serialized fragment
+     *
+     * @param packet - serialized fragmented Blob to send
+     * @throws IOException
+     */
+    public void send(byte[] packet) throws IOException {
+	send(ByteBuffer.wrap(packet));
+    }
+
+    /**
+     * Sends the remaining bytes of the buffer as one datagram
+     *
+     * @param packet - serialized fragmented Blob to send
+     * @throws IOException
+     */
+    public void send(ByteBuffer packet) throws IOException {
+	RatePacer currentPacer = this.pacer;
+	if (currentPacer != null) {
+	    currentPacer.acquire(packet.remaining());
+	}
+	try {
+	    this.channel.write(packet);
+	} catch (PortUnreachableException e) {
+	    // ICMP feedback from a previous unicast datagram, nobody listening
+	}
+    }
+
+    /**
+     * Sends one fragment given as a gather array, as a single datagram
+     *
+     * @param fragment - the buffers that make up the serialized fragment
+     * @throws IOException
+     */
+    @Override
+    public void send(ByteBuffer[] fragment) throws IOException {
+	RatePacer currentPacer = this.pacer;
+	if (currentPacer != null) {
+	    int length = 0;
+	    for (ByteBuffer buffer : fragment) {
+		length += buffer.remaining();
+	    }
+	    currentPacer.acquire(length);
+	}
+	try {
+	    this.channel.write(fragment);
+	} catch (PortUnreachableException e) {
+	    // ICMP feedback from a previous unicast datagram, nobody listening
+	}
+    }
+
+    /**
+     * Tries to send the remaining bytes of the buffer as one datagram, without
+     * blocking. Only for channels in non-blocking mode. The pacer is not applied,
+     * the caller paces the packets itself.
+     *
+     * @param packet - serialized fragmented Blob to send
+     * @return true if the datagram was sent, false if the socket buffer is full
+     * @throws IOException
+     */
+    public boolean trySend(ByteBuffer packet) throws IOException {
+	try {
+	    return this.channel.write(packet) > 0 || !packet.hasRemaining();
+	} catch (PortUnreachableException e) {
+	    // ICMP feedback from a previous unicast datagram, nobody listening
+	    return true;
+	}
+    }
+
+    /**
+     * @param blocking - false to switch the channel to non-blocking mode, see
+     *                 trySend
+     * @throws IOException
+     */
+    public void configureBlocking(boolean blocking) throws IOException {
+	this.channel.configureBlocking(blocking);
+    }
+
+    public RatePacer getPacer() {
+	return this.pacer;
+    }
+
+    /**
+     * @param pacer - the rate limit applied to every send, shared with other
+     *              channels if the same pacer is set on them; null to send as
+     *              fast as possible
+     */
+    public void setPacer(RatePacer pacer) {
+	this.pacer = pacer;
+    }
+
+    /**
+     * @return the largest datagram that is sent without IP fragmentation
+     */
+    public int getMaxDatagramSize() {
+	return this.maxDatagramSize;
+    }
+
+    /**
+     * @param maxDatagramSize - the largest datagram for this destination, e.g.
+     *                        maxDatagramSize(pathMtu) when a router on the path
+     *                        has a smaller MTU than the outgoing interface
+     */
+    public void setMaxDatagramSize(int maxDatagramSize) {
+	this.maxDatagramSize = maxDatagramSize;
+    }
+
+    public InetSocketAddress getDestination() {
+	return this.destination;
+    }
+
+    public int getSendBufferSize() throws IOException {
+	return this.channel.getOption(StandardSocketOptions.SO_SNDBUF).intValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+	this.channel.close();
+    }
+
+    @Override
+    public String toString() {
+	return "SenderChannel to " + this.destination;
+    }
+}
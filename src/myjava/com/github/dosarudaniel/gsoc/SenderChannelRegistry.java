@@ -0,0 +1,161 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SenderChannelRegistry class - keeps one SenderChannel per destination
+ * group/port/interface for the whole lifetime of the sender process.
+ *
+ * The send buffer size (SO_SNDBUF) is read from the SO_SNDBUF environment
+ * variable and the outgoing multicast interface from MULTICAST_INTERFACE. Both
+ * can be overwritten with the setters before the first channel is opened.
+ *
+ * PATH_MTU overrides the MTU of the outgoing interface when sizing the
+ * fragments, for paths through routers with a smaller MTU.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class SenderChannelRegistry {
+    private static SingletonLogger singletonLogger = new SingletonLogger();
+    private static Logger logger = singletonLogger.getLogger();
+
+    private static final Map<String, SenderChannel> channels = new ConcurrentHashMap<>();
+
+    private static int sendBufferSize = readEnvInt("SO_SNDBUF", 0);
+    private static String networkInterfaceName = System.getenv("MULTICAST_INTERFACE");
+    private static int pathMtu = readEnvInt("PATH_MTU", 0);
+
+    private SenderChannelRegistry() {
+	// static registry
+    }
+
+    private static int readEnvInt(String name, int defaultValue) {
+	String value = System.getenv(name);
+	if (value == null) {
+	    return defaultValue;
+	}
+	try {
+	    return Integer.parseInt(value);
+	} catch (NumberFormatException e) {
+	    logger.log(Level.WARNING, "Environment variable " + name + " is not a number.");
+	    return defaultValue;
+	}
+    }
+
+    /**
+     * Returns the channel to destinationIp:destinationPort, opening it on the
+     * first call
+     *
+     * @param destinationIp   - Destination IP address (multicast)
+     * @param destinationPort - Destination port number
+     * @return SenderChannel - the shared channel for this destination
+     * @throws IOException
+     */
+    public static SenderChannel getChannel(String destinationIp, int destinationPort) throws IOException {
+	String channelKey = destinationIp + ":" + destinationPort + "@" + networkInterfaceName;
+
+	SenderChannel channel = channels.get(channelKey);
+	if (channel != null) {
+	    return channel;
+	}
+
+	synchronized (channels) {
+	    channel = channels.get(channelKey);
+	    if (channel == null) {
+		channel = openChannel(destinationIp, destinationPort);
+		channels.put(channelKey, channel);
+		logger.log(Level.INFO, "Opened " + channel + " with SO_SNDBUF = " + channel.getSendBufferSize()
+			+ ", max datagram size = " + channel.getMaxDatagramSize());
+	    }
+	}
+	return channel;
+    }
+
+    /**
+     * Opens a new channel that is not shared through the registry, for callers
+     * that need a dedicated socket (e.g. one per worker thread)
+     *
+     * @param destinationIp   - Destination IP address (multicast)
+     * @param destinationPort - Destination port number
+     * @return SenderChannel - a new channel, to be closed by the caller
+     * @throws IOException
+     */
+    public static SenderChannel openChannel(String destinationIp, int destinationPort) throws IOException {
+	InetSocketAddress destination = new InetSocketAddress(InetAddress.getByName(destinationIp), destinationPort);
+
+	NetworkInterface networkInterface = null;
+	if (networkInterfaceName != null && !networkInterfaceName.isEmpty()) {
+	    networkInterface = NetworkInterface.getByName(networkInterfaceName);
+	    if (networkInterface == null) {
+		throw new IOException("Network interface " + networkInterfaceName + " not found");
+	    }
+	}
+
+	SenderChannel channel = new SenderChannel(destination, networkInterface, sendBufferSize);
+	if (pathMtu > 0) {
+	    channel.setMaxDatagramSize(channel.maxDatagramSize(pathMtu));
+	}
+	return channel;
+    }
+
+    /**
+     * Closes all the registered channels
+     */
+    public static void closeAll() {
+	synchronized (channels) {
+	    for (SenderChannel channel : channels.values()) {
+		try {
+		    channel.close();
+		} catch (IOException e) {
+		    logger.log(Level.WARNING, "Could not close " + channel, e);
+		}
+	    }
+	    channels.clear();
+	}
+    }
+
+    public static int getSendBufferSize() {
+	return sendBufferSize;
+    }
+
+    /**
+     * @param size - SO_SNDBUF in bytes for the channels opened from now on, 0 for
+     *             the system default
+     */
+    public static void setSendBufferSize(int size) {
+	sendBufferSize = size;
+    }
+
+    public static int getPathMtu() {
+	return pathMtu;
+    }
+
+    /**
+     * @param mtu - the MTU of the path for the channels opened from now on, 0 to
+     *            use the MTU of the outgoing interface
+     */
+    public static void setPathMtu(int mtu) {
+	pathMtu = mtu;
+    }
+
+    public static String getNetworkInterfaceName() {
+	return networkInterfaceName;
+    }
+
+    /**
+     * @param name - name of the outgoing multicast interface (e.g. "eth0") for the
+     *             channels opened from now on, null for the system default
+     */
+    public static void setNetworkInterfaceName(String name) {
+	networkInterfaceName = name;
+    }
+}
@@ -0,0 +1,223 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SequenceTracker class - receiver side of one stream of numbered Blobs (see
+ * BlobSequence): finds the sequence numbers that never arrived, i.e. the Blobs
+ * lost entirely, which no incomplete Blob would reveal.
+ *
+ * A number skipped by the stream is missing; if it does not arrive within the
+ * reorder delay (the fragments are processed by several threads, so they are
+ * not always seen in order) its Blob is counted as lost and getRepairs returns
+ * it, to be NACKed by sequence number, until it arrives or was asked maxNacks
+ * times. At most MAX_MISSING numbers are kept, a longer gap is only counted.
+ * A jump of more than MAX_GAP numbers, forward or back, restarts the tracking
+ * without counting a loss.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class SequenceTracker {
+    public static final int MAX_MISSING = 1024;
+    public static final int MAX_GAP = 1 << 16;
+
+    private final long reorderMillis;
+    private final int maxNacks;
+
+    private boolean started = false;
+    // the highest sequence number seen, compared with wraparound
+    private int highest;
+
+    /**
+     * A sequence number that was skipped
+     */
+    private static final class Missing {
+	final long detectedMillis;
+	long lastNackMillis = 0;
+	int nacks = 0;
+	boolean lost = false;
+
+	Missing(long detectedMillis) {
+	    this.detectedMillis = detectedMillis;
+	}
+    }
+
+    // oldest first
+    private final LinkedHashMap<Integer, Missing> missing = new LinkedHashMap<>();
+
+    private long received = 0;
+    private long lost = 0;
+    private long recovered = 0;
+    // lost and asked maxNacks times, or beyond MAX_MISSING
+    private long abandoned = 0;
+
+    /**
+     * Parameterized constructor
+     *
+     * @param reorderMillis - how long a skipped number may arrive late before
+     *                      its Blob is lost, also the time between two NACKs
+     * @param maxNacks      - NACKs sent for a lost Blob before giving up
+     */
+    public SequenceTracker(long reorderMillis, int maxNacks) {
+	this.reorderMillis = reorderMillis;
+	this.maxNacks = maxNacks;
+    }
+
+    /**
+     * Records a sequence number seen in a fragment, every fragment of a Blob
+     * carries the same number
+     *
+     * @param sequence - the sequence number of the Blob
+     * @param now      - the current time in milliseconds
+     */
+    public synchronized void record(int sequence, long now) {
+	if (!this.started) {
+	    restart(sequence);
+	    return;
+	}
+
+	int distance = sequence - this.highest;
+	if (distance > MAX_GAP || distance < -MAX_GAP) {
+	    restart(sequence);
+	} else if (distance > 0) {
+	    for (int skipped = this.highest + 1; skipped != sequence; skipped++) {
+		if (this.missing.size() < MAX_MISSING) {
+		    this.missing.put(Integer.valueOf(skipped), new Missing(now));
+		} else {
+		    this.lost++;
+		    this.abandoned++;
+		}
+	    }
+	    this.highest = sequence;
+	    this.received++;
+	} else if (distance < 0) {
+	    Missing late = this.missing.remove(Integer.valueOf(sequence));
+	    if (late != null) {
+		this.received++;
+		if (late.lost) {
+		    this.recovered++;
+		}
+	    }
+	}
+	// distance == 0: another fragment of the last Blob
+    }
+
+    private void restart(int sequence) {
+	for (Missing skipped : this.missing.values()) {
+	    if (skipped.lost) {
+		this.abandoned++;
+	    }
+	}
+	this.missing.clear();
+	this.highest = sequence;
+	this.started = true;
+	this.received++;
+    }
+
+    /**
+     * Marks the missing numbers older than the reorder delay as lost
+     */
+    private void expire(long now) {
+	for (Missing skipped : this.missing.values()) {
+	    if (now - skipped.detectedMillis < this.reorderMillis) {
+		// the next ones are younger
+		break;
+	    }
+	    if (!skipped.lost) {
+		skipped.lost = true;
+		this.lost++;
+	    }
+	}
+    }
+
+    /**
+     * @param now - the current time in milliseconds
+     * @return the sequence numbers to NACK now: lost, not NACKed during the
+     *         reorder delay and not given up yet
+     */
+    public synchronized List<Integer> getRepairs(long now) {
+	expire(now);
+	List<Integer> repairs = new ArrayList<>();
+	Iterator<Map.Entry<Integer, Missing>> it = this.missing.entrySet().iterator();
+	while (it.hasNext()) {
+	    Map.Entry<Integer, Missing> entry = it.next();
+	    Missing skipped = entry.getValue();
+	    if (!skipped.lost) {
+		break;
+	    }
+	    if (now - skipped.lastNackMillis < this.reorderMillis) {
+		continue;
+	    }
+	    if (skipped.nacks >= this.maxNacks) {
+		it.remove();
+		this.abandoned++;
+		continue;
+	    }
+	    skipped.nacks++;
+	    skipped.lastNackMillis = now;
+	    repairs.add(entry.getKey());
+	}
+	return repairs;
+    }
+
+    /**
+     * @return the Blobs of the stream that should have arrived
+     */
+    public synchronized long getExpected() {
+	return this.received + getLost() - this.recovered;
+    }
+
+    /**
+     * @return the Blobs of the stream that arrived, at least partly
+     */
+    public synchronized long getReceived() {
+	return this.received;
+    }
+
+    /**
+     * @return the Blobs of the stream that did not arrive within the reorder
+     *         delay
+     */
+    public synchronized long getLost() {
+	expire(System.currentTimeMillis());
+	return this.lost;
+    }
+
+    /**
+     * @return the lost Blobs that arrived later, e.g. repaired
+     */
+    public synchronized long getRecovered() {
+	return this.recovered;
+    }
+
+    /**
+     * @return the lost Blobs that are not expected anymore
+     */
+    public synchronized long getAbandoned() {
+	return this.abandoned;
+    }
+
+    /**
+     * @return the skipped sequence numbers that may still arrive
+     */
+    public synchronized int getMissing() {
+	return this.missing.size();
+    }
+
+    public synchronized int getHighest() {
+	return this.highest;
+    }
+
+    @Override
+    public synchronized String toString() {
+	return "SequenceTracker [highest " + this.highest + ", received " + this.received + ", lost " + this.lost
+		+ ", recovered " + this.recovered + ", abandoned " + this.abandoned + ", missing "
+		+ this.missing.size() + "]";
+    }
+}
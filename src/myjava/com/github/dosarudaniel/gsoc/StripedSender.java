@@ -0,0 +1,185 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import myjava.com.github.dosarudaniel.gsoc.Utils.Pair;
+
+/**
+ * StripedSender class - sends one large Blob with several threads in
+ * parallel.
+ *
+ * The payload is split into as many stripes as there are workers, aligned to
+ * the fragment size so that the fragments are the same as the ones of
+ * Blob.send. Each worker has its own FragmentEncoder and its own channel and
+ * encodes (packet checksum included) and sends its stripe independently of
+ * the others, so the time to put a Blob on the wire scales with the number of
+ * cores.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class StripedSender implements Closeable {
+    // 0 to size the fragments of every Blob to the MTU
+    private final int maxPayloadSize;
+    // numbers the sent Blobs
+    private BlobSequence sequence = null;
+    private final int nrWorkers;
+    private final ExecutorService executorService;
+    private final BlockingQueue<Worker> workers;
+    private final List<SenderChannel> channels = new ArrayList<>();
+
+    /**
+     * The per-thread state: an encoder and a channel
+     */
+    private static final class Worker {
+	final FragmentEncoder encoder;
+	final SenderChannel channel;
+
+	Worker(FragmentEncoder encoder, SenderChannel channel) {
+	    this.encoder = encoder;
+	    this.channel = channel;
+	}
+    }
+
+    /**
+     * Parameterized constructor
+     *
+     * @param ip_address     - Destination multicast IP
+     * @param portNumber     - Destination port number
+     * @param maxPayloadSize - the maximum payload supported by a fragmented packet,
+     *                       0 for the largest one that fits in the channel's
+     *                       datagrams
+     * @param nrWorkers      - number of sending threads
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public StripedSender(String ip_address, int portNumber, int maxPayloadSize, int nrWorkers)
+	    throws IOException, NoSuchAlgorithmException {
+	if (maxPayloadSize < 0) {
+	    throw new IllegalArgumentException("The maximum payload size must be 0 (sized to the MTU) or above, not "
+		    + maxPayloadSize);
+	}
+	this.maxPayloadSize = maxPayloadSize;
+	this.nrWorkers = nrWorkers;
+	this.executorService = Executors.newFixedThreadPool(nrWorkers);
+	this.workers = new ArrayBlockingQueue<>(nrWorkers);
+
+	for (int i = 0; i < nrWorkers; i++) {
+	    SenderChannel channel = SenderChannelRegistry.openChannel(ip_address, portNumber);
+	    this.channels.add(channel);
+	    this.workers.add(new Worker(new FragmentEncoder(), channel));
+	    this.sequence = BlobSequence.forDestination(channel.getDestination());
+	}
+    }
+
+    /**
+     * @param pacer - the rate limit shared by all the workers, null to send as
+     *              fast as possible
+     */
+    public void setPacer(RatePacer pacer) {
+	for (SenderChannel channel : this.channels) {
+	    channel.setPacer(pacer);
+	}
+    }
+
+    /**
+     * Sends the Blob, the metadata and every payload stripe in parallel. Returns
+     * when all the fragments were sent.
+     *
+     * @param blob - the Blob to send
+     * @throws IOException
+     */
+    public void send(Blob blob) throws IOException {
+	if (this.sequence != null) {
+	    this.sequence.assign(blob);
+	}
+	int metadataLength = blob.getMetadataLength();
+	int payloadLength = blob.getTransmittedPayloadLength(blob.getDataCode());
+	int fragmentSize = getMaxPayloadSize(blob);
+
+	List<Future<Void>> stripes = new ArrayList<>();
+
+	if (fragmentSize > payloadLength + metadataLength) {
+	    // no need to fragment the Blob
+	    stripes.add(submit(blob, null, Blob.SMALL_BLOB_CODE, fragmentSize));
+	} else {
+	    stripes.add(submit(blob, new Pair(0, metadataLength), Blob.METADATA_CODE, fragmentSize));
+
+	    int nrFragments = (payloadLength + fragmentSize - 1) / fragmentSize;
+	    int fragmentsPerStripe = (nrFragments + this.nrWorkers - 1) / this.nrWorkers;
+	    int stripeLength = fragmentsPerStripe * fragmentSize;
+
+	    for (int start = 0; start < payloadLength; start += stripeLength) {
+		stripes.add(submit(blob, new Pair(start, Math.min(start + stripeLength, payloadLength)),
+			blob.getDataCode(), fragmentSize));
+	    }
+	}
+
+	for (Future<Void> stripe : stripes) {
+	    try {
+		stripe.get();
+	    } catch (InterruptedException e) {
+		throw new IOException("Interrupted while sending " + blob.getUuid(), e);
+	    } catch (ExecutionException e) {
+		throw new IOException("Could not send a stripe of " + blob.getUuid(), e.getCause());
+	    }
+	}
+    }
+
+    /**
+     * @return the fragment size of the Blob, the same for all the stripes
+     */
+    private int getMaxPayloadSize(Blob blob) throws IOException {
+	if (this.maxPayloadSize > 0) {
+	    return this.maxPayloadSize;
+	}
+	Worker worker;
+	try {
+	    worker = this.workers.take();
+	} catch (InterruptedException e) {
+	    throw new IOException("Interrupted while sending " + blob.getUuid(), e);
+	}
+	try {
+	    worker.encoder.setBlob(blob);
+	    return worker.encoder.getMaxPayloadSize(worker.channel.getMaxDatagramSize());
+	} finally {
+	    this.workers.add(worker);
+	}
+    }
+
+    private Future<Void> submit(Blob blob, Pair stripe, byte packetType, int fragmentSize) {
+	return this.executorService.submit(() -> {
+	    Worker worker = this.workers.take();
+	    try {
+		worker.encoder.setBlob(blob);
+		if (packetType == Blob.SMALL_BLOB_CODE) {
+		    worker.encoder.encodeSmallBlob(worker.channel);
+		} else {
+		    worker.encoder.encode(fragmentSize, stripe, packetType, worker.channel);
+		}
+	    } finally {
+		this.workers.add(worker);
+	    }
+	    return null;
+	});
+    }
+
+    @Override
+    public void close() throws IOException {
+	this.executorService.shutdown();
+	for (SenderChannel channel : this.channels) {
+	    channel.close();
+	}
+    }
+}
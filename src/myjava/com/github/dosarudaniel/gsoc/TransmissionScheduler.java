@@ -0,0 +1,395 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import myjava.com.github.dosarudaniel.gsoc.Utils.Pair;
+
+/**
+ * TransmissionScheduler class - interleaves the fragments of many Blobs that
+ * are being sent at the same time.
+ *
+ * Instead of sending the submitted Blobs one after another, the scheduler
+ * thread sends at most quantum fragments of a Blob and then picks the next
+ * Blob again, so a small urgent object does not wait for all the fragments of
+ * a large one queued before it. The next Blob is the one with the highest
+ * priority, then the earliest deadline (for example the validity start of the
+ * object), and Blobs with the same priority and deadline are served round
+ * robin.
+ *
+ * For every Blob the queueing delay (time from submit to its first fragment
+ * on the wire) and the total send time are measured. They are logged per Blob
+ * at Level.FINE and aggregated per priority, see getStatistics().
+ *
+ * A Blob gets its sequence number (see BlobSequence) when its first fragment
+ * is sent, not when it is submitted, so that the numbers follow the order of
+ * the Blobs on the wire: a receiver that sees number n does not NACK the
+ * lower numbers of Blobs still waiting in the queue.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class TransmissionScheduler implements Closeable {
+    private SingletonLogger singletonLogger = new SingletonLogger();
+    private Logger logger = this.singletonLogger.getLogger();
+
+    public static final int DEFAULT_QUANTUM = 16;
+    public static final int DEFAULT_PRIORITY = 0;
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    // 0 to size the fragments of every Blob to the MTU
+    private final int maxPayloadSize;
+    private final int quantum;
+    private final SenderChannel channel;
+    // numbers the Blobs in the order they start on the wire
+    private final BlobSequence sequence;
+    private final FragmentEncoder encoder;
+
+    private final PriorityQueue<Transmission> queue = new PriorityQueue<>(
+	    Comparator.comparingInt((Transmission t) -> -t.priority).thenComparingLong(t -> t.deadline)
+		    .thenComparingLong(t -> t.turn));
+    // incremented every time a Blob goes (back) in the queue
+    private long turn = 0;
+
+    private final TreeMap<Integer, Statistics> statistics = new TreeMap<>();
+
+    private final Thread schedulerThread;
+    private volatile boolean running = true;
+
+    /**
+     * A Blob being sent and the position of the next fragment to send
+     */
+    private static final class Transmission {
+	final Blob blob;
+	final int priority;
+	final long deadline;
+	final long submitTime = System.nanoTime();
+	final CompletableFuture<Blob> future = new CompletableFuture<>();
+
+	long turn;
+	long firstFragmentTime = -1;
+	// set with the first fragment
+	int fragmentSize;
+	byte packetType = Blob.METADATA_CODE;
+	int offset = 0;
+
+	Transmission(Blob blob, int priority, long deadline) {
+	    this.blob = blob;
+	    this.priority = priority;
+	    this.deadline = deadline;
+	}
+    }
+
+    /**
+     * Queueing delay and send time of the Blobs of one priority
+     */
+    public static final class Statistics {
+	private long blobs = 0;
+	private long totalQueueingDelay = 0;
+	private long maxQueueingDelay = 0;
+	private long totalSendTime = 0;
+	private long maxSendTime = 0;
+
+	void add(long queueingDelay, long sendTime) {
+	    this.blobs++;
+	    this.totalQueueingDelay += queueingDelay;
+	    this.maxQueueingDelay = Math.max(this.maxQueueingDelay, queueingDelay);
+	    this.totalSendTime += sendTime;
+	    this.maxSendTime = Math.max(this.maxSendTime, sendTime);
+	}
+
+	public long getBlobs() {
+	    return this.blobs;
+	}
+
+	/**
+	 * @return the average time in nanoseconds from submit to the first fragment
+	 */
+	public double getAverageQueueingDelay() {
+	    return this.blobs > 0 ? (double) this.totalQueueingDelay / this.blobs : 0;
+	}
+
+	public long getMaxQueueingDelay() {
+	    return this.maxQueueingDelay;
+	}
+
+	/**
+	 * @return the average time in nanoseconds from submit to the last fragment
+	 */
+	public double getAverageSendTime() {
+	    return this.blobs > 0 ? (double) this.totalSendTime / this.blobs : 0;
+	}
+
+	public long getMaxSendTime() {
+	    return this.maxSendTime;
+	}
+
+	@Override
+	public String toString() {
+	    return String.format("%d blobs, queueing delay avg %.3f ms max %.3f ms, send time avg %.3f ms max %.3f ms",
+		    Long.valueOf(this.blobs), getAverageQueueingDelay() / 1e6, this.maxQueueingDelay / 1e6,
+		    getAverageSendTime() / 1e6, this.maxSendTime / 1e6);
+	}
+    }
+
+    /**
+     * Parameterized constructor - creates a scheduler with the default quantum
+     *
+     * @param ip_address     - Destination multicast IP
+     * @param portNumber     - Destination port number
+     * @param maxPayloadSize - the maximum payload supported by a fragmented packet,
+     *                       0 for the largest one that fits in the channel's
+     *                       datagrams
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public TransmissionScheduler(String ip_address, int portNumber, int maxPayloadSize)
+	    throws IOException, NoSuchAlgorithmException {
+	this(ip_address, portNumber, maxPayloadSize, DEFAULT_QUANTUM);
+    }
+
+    /**
+     * Parameterized constructor
+     *
+     * @param ip_address     - Destination multicast IP
+     * @param portNumber     - Destination port number
+     * @param maxPayloadSize - the maximum payload supported by a fragmented packet,
+     *                       0 for the largest one that fits in the channel's
+     *                       datagrams
+     * @param quantum        - number of fragments of a Blob sent before the next
+     *                       Blob is picked, at least 1
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public TransmissionScheduler(String ip_address, int portNumber, int maxPayloadSize, int quantum)
+	    throws IOException, NoSuchAlgorithmException {
+	if (maxPayloadSize < 0) {
+	    throw new IllegalArgumentException("The maximum payload size must be 0 (sized to the MTU) or above, not "
+		    + maxPayloadSize);
+	}
+	if (quantum < 1) {
+	    throw new IllegalArgumentException("The quantum must be at least 1 fragment, not " + quantum);
+	}
+	this.maxPayloadSize = maxPayloadSize;
+	this.quantum = quantum;
+	this.channel = SenderChannelRegistry.openChannel(ip_address, portNumber);
+	this.sequence = BlobSequence.forDestination(this.channel.getDestination());
+	this.encoder = new FragmentEncoder();
+
+	this.schedulerThread = new Thread(this::scheduleLoop, "TransmissionScheduler");
+	this.schedulerThread.setDaemon(true);
+	this.schedulerThread.start();
+    }
+
+    /**
+     * Queues a Blob to be sent with the given priority and deadline
+     *
+     * @param blob     - the Blob to send
+     * @param priority - Blobs with a higher priority are sent first
+     * @param deadline - among Blobs of the same priority, the ones with an
+     *                 earlier deadline are sent first (e.g. the validity start
+     *                 in milliseconds), NO_DEADLINE if none
+     * @return a future completed with the Blob once all its fragments were sent
+     */
+    public CompletableFuture<Blob> submit(Blob blob, int priority, long deadline) {
+	Transmission transmission = new Transmission(blob, priority, deadline);
+	synchronized (this.queue) {
+	    if (!this.running) {
+		transmission.future.completeExceptionally(new IOException("TransmissionScheduler is closed"));
+		return transmission.future;
+	    }
+	    transmission.turn = this.turn++;
+	    this.queue.add(transmission);
+	    this.queue.notify();
+	}
+	return transmission.future;
+    }
+
+    /**
+     * Queues a Blob with the default priority and no deadline
+     *
+     * @param blob - the Blob to send
+     * @return a future completed with the Blob once all its fragments were sent
+     */
+    public CompletableFuture<Blob> submit(Blob blob) {
+	return submit(blob, DEFAULT_PRIORITY, NO_DEADLINE);
+    }
+
+    private void scheduleLoop() {
+	while (this.running) {
+	    Transmission transmission;
+	    synchronized (this.queue) {
+		while (this.running && this.queue.isEmpty()) {
+		    try {
+			this.queue.wait();
+		    } catch (InterruptedException e) {
+			return;
+		    }
+		}
+		transmission = this.queue.poll();
+	    }
+	    if (transmission == null) {
+		continue;
+	    }
+
+	    try {
+		if (sendQuantum(transmission)) {
+		    completed(transmission);
+		} else {
+		    synchronized (this.queue) {
+			// goes behind the Blobs with the same priority and deadline
+			transmission.turn = this.turn++;
+			this.queue.add(transmission);
+		    }
+		}
+	    } catch (IOException e) {
+		this.logger.log(Level.WARNING, "Could not send blob " + transmission.blob.getUuid(), e);
+		transmission.future.completeExceptionally(e);
+	    }
+	}
+    }
+
+    /**
+     * Sends the next quantum fragments of the Blob
+     *
+     * @return true if the Blob was completely sent
+     */
+    private boolean sendQuantum(Transmission transmission) throws IOException {
+	if (transmission.firstFragmentTime < 0) {
+	    transmission.firstFragmentTime = System.nanoTime();
+	    this.sequence.assign(transmission.blob);
+	}
+	this.encoder.setBlob(transmission.blob);
+	if (transmission.fragmentSize == 0) {
+	    // the same for all the quanta, so that they are aligned
+	    transmission.fragmentSize = this.maxPayloadSize > 0 ? this.maxPayloadSize
+		    : this.encoder.getMaxPayloadSize(this.channel.getMaxDatagramSize());
+	}
+	int fragmentSize = transmission.fragmentSize;
+
+	int metadataLength = transmission.blob.getMetadataLength();
+	int payloadLength = transmission.blob.getTransmittedPayloadLength(transmission.blob.getDataCode());
+
+	if (fragmentSize > payloadLength + metadataLength) {
+	    // no need to fragment the Blob
+	    this.encoder.encodeSmallBlob(this.channel);
+	    return true;
+	}
+
+	int budget = this.quantum;
+	while (budget > 0) {
+	    int length = transmission.packetType == Blob.METADATA_CODE ? metadataLength : payloadLength;
+	    int end = (int) Math.min(length, transmission.offset + (long) budget * fragmentSize);
+
+	    if (transmission.offset < end) {
+		this.encoder.encode(fragmentSize, new Pair(transmission.offset, end), transmission.packetType,
+			this.channel);
+		budget -= (end - transmission.offset + fragmentSize - 1) / fragmentSize;
+		transmission.offset = end;
+	    } else if (transmission.offset < length) {
+		// cannot happen with a fragment size and a quantum of at least 1
+		throw new IOException("No progress sending " + transmission.blob.getUuid() + " at offset "
+			+ transmission.offset);
+	    }
+
+	    if (transmission.offset >= length) {
+		if (transmission.packetType != Blob.METADATA_CODE) {
+		    return true;
+		}
+		// the delta of the payload if there is one
+		transmission.packetType = transmission.blob.getDataCode();
+		transmission.offset = 0;
+	    }
+	}
+	return false;
+    }
+
+    private void completed(Transmission transmission) {
+	long now = System.nanoTime();
+	long queueingDelay = transmission.firstFragmentTime - transmission.submitTime;
+	long sendTime = now - transmission.submitTime;
+
+	synchronized (this.statistics) {
+	    this.statistics.computeIfAbsent(Integer.valueOf(transmission.priority), p -> new Statistics())
+		    .add(queueingDelay, sendTime);
+	}
+	if (this.logger.isLoggable(Level.FINE)) {
+	    this.logger.log(Level.FINE,
+		    String.format("Blob %s (priority %d) queued for %.3f ms, sent in %.3f ms",
+			    transmission.blob.getUuid(), Integer.valueOf(transmission.priority), queueingDelay / 1e6,
+			    sendTime / 1e6));
+	}
+	transmission.future.complete(transmission.blob);
+    }
+
+    /**
+     * @return a copy of the queueing delay statistics, by priority
+     */
+    public TreeMap<Integer, Statistics> getStatistics() {
+	TreeMap<Integer, Statistics> copy = new TreeMap<>();
+	synchronized (this.statistics) {
+	    for (Integer priority : this.statistics.keySet()) {
+		Statistics source = this.statistics.get(priority);
+		Statistics statisticsCopy = new Statistics();
+		statisticsCopy.blobs = source.blobs;
+		statisticsCopy.totalQueueingDelay = source.totalQueueingDelay;
+		statisticsCopy.maxQueueingDelay = source.maxQueueingDelay;
+		statisticsCopy.totalSendTime = source.totalSendTime;
+		statisticsCopy.maxSendTime = source.maxSendTime;
+		copy.put(priority, statisticsCopy);
+	    }
+	}
+	return copy;
+    }
+
+    /**
+     * @return the number of Blobs waiting or being sent
+     */
+    public int getQueuedBlobs() {
+	synchronized (this.queue) {
+	    return this.queue.size();
+	}
+    }
+
+    /**
+     * @param pacer - the rate limit of the scheduler, null to send as fast as
+     *              possible
+     */
+    public void setPacer(RatePacer pacer) {
+	this.channel.setPacer(pacer);
+    }
+
+    /**
+     * Stops the scheduler thread and closes the channel. Blobs that were not
+     * completely sent yet have their future completed exceptionally.
+     */
+    @Override
+    public void close() throws IOException {
+	synchronized (this.queue) {
+	    this.running = false;
+	    this.queue.notify();
+	}
+	try {
+	    this.schedulerThread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+
+	IOException closed = new IOException("TransmissionScheduler was closed");
+	synchronized (this.queue) {
+	    for (Transmission transmission : this.queue) {
+		transmission.future.completeExceptionally(closed);
+	    }
+	    this.queue.clear();
+	}
+	this.channel.close();
+    }
+}
@@ -0,0 +1,280 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.PortUnreachableException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * UnicastFanOut class - sends the fragments to a list of receivers by unicast,
+ * for the networks that do not route multicast. The fragments are encoded
+ * once, as for a multicast group, and sent to every receiver through one
+ * unconnected DatagramChannel.
+ *
+ * The fragments are copied in a batch of BATCH_SIZE reusable buffers; a full
+ * batch (or flush) is sent fragment by fragment, each fragment to all the
+ * receivers in turn, so the same buffer serves all the destinations while it
+ * is hot in the cache. The first receiver of a batch rotates, so that no
+ * receiver is always served last.
+ *
+ * The Sender, the NackAggregator (repairs) and the AnnouncementCarousel share
+ * one fan-out: send and flush are synchronized, a fragment is whole in its
+ * slot whatever thread batched it.
+ *
+ * The receivers are read from the UNICAST_RECEIVERS environment variable, as
+ * "host:port" entries separated by ','. The MulticastReceivers receive the
+ * unicast datagrams sent to their port.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class UnicastFanOut implements FragmentSink, Closeable {
+    private static SingletonLogger singletonLogger = new SingletonLogger();
+    private static Logger logger = singletonLogger.getLogger();
+
+    public static final int BATCH_SIZE = 32;
+    // initial capacity of a batch buffer, a larger fragment grows it
+    private static final int INITIAL_BUFFER_CAPACITY = 2048;
+
+    private final DatagramChannel channel;
+    private final List<InetSocketAddress> receivers;
+    private final int maxDatagramSize;
+    private volatile RatePacer pacer = null;
+    // the receivers get a single stream of Blobs
+    private final BlobSequence sequence = new BlobSequence();
+
+    private final ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+    private int batchLength = 0;
+    private int firstReceiver = 0;
+
+    private long fragmentsSent = 0;
+    private long datagramsSent = 0;
+    private long bytesSent = 0;
+
+    /**
+     * Parameterized constructor - opens the channel
+     *
+     * @param receivers      - the destinations of every fragment
+     * @param sendBufferSize - SO_SNDBUF of the channel in bytes, 0 to keep the
+     *                       system default
+     * @throws IOException
+     */
+    public UnicastFanOut(List<InetSocketAddress> receivers, int sendBufferSize) throws IOException {
+	if (receivers.isEmpty()) {
+	    throw new IOException("No unicast receiver");
+	}
+	this.receivers = new ArrayList<>(receivers);
+	this.channel = DatagramChannel.open();
+	if (sendBufferSize > 0) {
+	    this.channel.setOption(StandardSocketOptions.SO_SNDBUF, Integer.valueOf(sendBufferSize));
+	}
+
+	for (int i = 0; i < BATCH_SIZE; i++) {
+	    this.batch[i] = ByteBuffer.allocateDirect(INITIAL_BUFFER_CAPACITY);
+	}
+
+	int smallest = SenderChannel.MAX_UDP_PAYLOAD;
+	for (InetSocketAddress receiver : this.receivers) {
+	    smallest = Math.min(smallest, maxDatagramSize(receiver));
+	}
+	this.maxDatagramSize = smallest;
+    }
+
+    /**
+     * @param receiver - a destination
+     * @return the largest datagram that leaves for the receiver without IP
+     *         fragmentation, from the PATH_MTU override if set, else from the
+     *         MTU of the interface it is routed through
+     */
+    private static int maxDatagramSize(InetSocketAddress receiver) {
+	int pathMtu = SenderChannelRegistry.getPathMtu();
+	if (pathMtu > 0) {
+	    return SenderChannel.maxDatagramSize(receiver.getAddress(), pathMtu);
+	}
+
+	int mtu = SenderChannel.DEFAULT_MTU;
+	try (DatagramSocket probe = new DatagramSocket()) {
+	    // no packet is sent, connect only looks up the route
+	    probe.connect(receiver);
+	    NetworkInterface outgoing = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+	    if (outgoing != null && outgoing.getMTU() > 0) {
+		mtu = outgoing.getMTU();
+	    }
+	} catch (IOException e) {
+	    // not known, use the default
+	}
+	return SenderChannel.maxDatagramSize(receiver.getAddress(), mtu);
+    }
+
+    /**
+     * @return the receivers from UNICAST_RECEIVERS, empty if it is not set
+     */
+    public static List<InetSocketAddress> receiversFromEnv() {
+	String envValue = System.getenv("UNICAST_RECEIVERS");
+	if (envValue == null || envValue.trim().isEmpty()) {
+	    return Collections.emptyList();
+	}
+	return parseReceivers(envValue);
+    }
+
+    /**
+     * @param receivers - "host:port" entries separated by ','
+     * @return the receivers, the invalid entries are logged and skipped
+     */
+    public static List<InetSocketAddress> parseReceivers(String receivers) {
+	List<InetSocketAddress> addresses = new ArrayList<>();
+	for (String entry : receivers.split(",")) {
+	    entry = entry.trim();
+	    if (entry.isEmpty()) {
+		continue;
+	    }
+	    int colon = entry.lastIndexOf(':');
+	    try {
+		if (colon <= 0) {
+		    throw new NumberFormatException("expected host:port");
+		}
+		InetSocketAddress address = new InetSocketAddress(entry.substring(0, colon),
+			Integer.parseInt(entry.substring(colon + 1)));
+		if (address.isUnresolved()) {
+		    throw new NumberFormatException("unknown host");
+		}
+		addresses.add(address);
+	    } catch (IllegalArgumentException e) {
+		logger.log(Level.WARNING, "Ignoring the unicast receiver " + entry + ": " + e.getMessage());
+	    }
+	}
+	return addresses;
+    }
+
+    /**
+     * Copies one fragment in the batch, and sends the batch if it is full
+     *
+     * @param fragment - the buffers that make up the serialized fragment
+     * @throws IOException
+     */
+    @Override
+    public synchronized void send(ByteBuffer[] fragment) throws IOException {
+	int length = 0;
+	for (ByteBuffer buffer : fragment) {
+	    length += buffer.remaining();
+	}
+	ByteBuffer slot = this.batch[this.batchLength];
+	if (slot.capacity() < length) {
+	    slot = ByteBuffer.allocateDirect(length);
+	    this.batch[this.batchLength] = slot;
+	}
+
+	slot.clear();
+	for (ByteBuffer buffer : fragment) {
+	    slot.put(buffer);
+	}
+	slot.flip();
+
+	if (++this.batchLength == BATCH_SIZE) {
+	    flush();
+	}
+    }
+
+    /**
+     * Sends the batched fragments to all the receivers. To be called after the
+     * last fragment of a Blob.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+	int nrReceivers = this.receivers.size();
+	for (int i = 0; i < this.batchLength; i++) {
+	    ByteBuffer slot = this.batch[i];
+	    int length = slot.remaining();
+	    for (int r = 0; r < nrReceivers; r++) {
+		RatePacer currentPacer = this.pacer;
+		if (currentPacer != null) {
+		    currentPacer.acquire(length);
+		}
+		slot.position(0);
+		try {
+		    this.channel.send(slot, this.receivers.get((this.firstReceiver + r) % nrReceivers));
+		} catch (PortUnreachableException e) {
+		    // ICMP feedback from a previous datagram, the receiver is not running
+		}
+	    }
+	    this.bytesSent += (long) length * nrReceivers;
+	}
+	this.fragmentsSent += this.batchLength;
+	this.datagramsSent += (long) this.batchLength * nrReceivers;
+
+	this.batchLength = 0;
+	this.firstReceiver = (this.firstReceiver + 1) % nrReceivers;
+    }
+
+    /**
+     * @return the largest datagram that reaches all the receivers without IP
+     *         fragmentation
+     */
+    public int getMaxDatagramSize() {
+	return this.maxDatagramSize;
+    }
+
+    public List<InetSocketAddress> getReceivers() {
+	return Collections.unmodifiableList(this.receivers);
+    }
+
+    /**
+     * @return the numbering of the Blobs sent to the receivers
+     */
+    public BlobSequence getSequence() {
+	return this.sequence;
+    }
+
+    public RatePacer getPacer() {
+	return this.pacer;
+    }
+
+    /**
+     * @param pacer - the rate limit of the datagrams, counting every copy sent
+     *              to a receiver; null to send as fast as possible
+     */
+    public void setPacer(RatePacer pacer) {
+	this.pacer = pacer;
+    }
+
+    /**
+     * @return the number of fragments encoded and sent
+     */
+    public synchronized long getFragmentsSent() {
+	return this.fragmentsSent;
+    }
+
+    /**
+     * @return the number of datagrams sent, one per fragment and receiver
+     */
+    public synchronized long getDatagramsSent() {
+	return this.datagramsSent;
+    }
+
+    public synchronized long getBytesSent() {
+	return this.bytesSent;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+	flush();
+	this.channel.close();
+    }
+
+    @Override
+    public String toString() {
+	return "UnicastFanOut to " + this.receivers;
+    }
+}
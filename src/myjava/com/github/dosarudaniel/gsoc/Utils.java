@@ -2,13 +2,11 @@ package myjava.com.github.dosarudaniel.gsoc;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -20,6 +18,9 @@ import java.util.concurrent.ThreadLocalRandom;
 
 public class Utils {
     public final static int PACKET_MAX_SIZE = 65536;
+    // the largest payload a receiver rebuilds from a compressed payload or a
+    // delta, whose length comes from the network
+    public final static int MAX_BLOB_PAYLOAD_LENGTH = 256 * 1024 * 1024;
     public final static String CHARSET = "UTF-8";
     public final static String CHECKSUM_TYPE = "MD5";
     static final String AB = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
@@ -27,33 +28,64 @@ public class Utils {
     // Field size (in bytes)
     public final static int SIZE_OF_FRAGMENT_OFFSET = 4;
     public final static int SIZE_OF_PACKET_TYPE = 1;
+    // packet checksum algorithm (high nibble), Blob checksum algorithm (low
+    // nibble), see ChecksumAlgorithm
+    public final static int SIZE_OF_CHECKSUM_ALGORITHMS = 1;
+    // stream of the sender (random, 0 if the packet is not sequenced) and
+    // sequence number of the Blob in the stream, see BlobSequence
+    public final static int SIZE_OF_STREAM = 2;
+    public final static int SIZE_OF_SEQUENCE = 4;
     public final static int SIZE_OF_UUID = 16;
     public final static int SIZE_OF_BLOB_PAYLOAD_LENGTH = 4;
     public final static int SIZE_OF_KEY_LENGTH = 2;
     public final static int SIZE_OF_PAYLOAD_CHECKSUM = 16;
     // public final static int SIZE_OF_KEY = ???;
     // public final static int SIZE_OF_PAYLOAD = ???;
+    // the longest packet checksum, the actual length depends on the algorithm
     public final static int SIZE_OF_PACKET_CHECKSUM = 16;
+    // PARITY_CODE payload: protected packet type (1 byte), number of fragments in
+    // the group (2 bytes), followed by the XOR of the fragments
+    public final static int SIZE_OF_PARITY_PREFIX = 3;
+    // compressed payload: codec id (1 byte), uncompressed length (4 bytes),
+    // followed by the compressed payload
+    public final static int SIZE_OF_COMPRESSION_PREFIX = 5;
+    // delta payload: base uuid (16 bytes), payload length (4 bytes), payload
+    // checksum (16 bytes), followed by the instructions, see DeltaCodec
+    public final static int SIZE_OF_DELTA_PREFIX = SIZE_OF_UUID + 4 + SIZE_OF_PAYLOAD_CHECKSUM;
+    // ANNOUNCEMENT_CODE payload: metadata length (4 bytes), metadata checksum
+    // (16 bytes); the header carries the payload length and checksum
+    public final static int SIZE_OF_ANNOUNCEMENT = 4 + SIZE_OF_PAYLOAD_CHECKSUM;
+    // MULTI_BLOB_CODE payload: for every Blob, the entry length (2 bytes)
+    // followed by its SMALL_BLOB_CODE packet without the packet checksum; the
+    // header carries the number of Blobs
+    public final static int SIZE_OF_MULTI_BLOB_ENTRY_LENGTH = 2;
 
     public final static int SIZE_OF_FRAGMENTED_BLOB_HEADER = SIZE_OF_FRAGMENT_OFFSET + SIZE_OF_PACKET_TYPE
-	    + SIZE_OF_UUID + SIZE_OF_BLOB_PAYLOAD_LENGTH + SIZE_OF_KEY_LENGTH + SIZE_OF_PAYLOAD_CHECKSUM;
+	    + SIZE_OF_CHECKSUM_ALGORITHMS + SIZE_OF_STREAM + SIZE_OF_SEQUENCE + SIZE_OF_UUID
+	    + SIZE_OF_BLOB_PAYLOAD_LENGTH + SIZE_OF_KEY_LENGTH + SIZE_OF_PAYLOAD_CHECKSUM;
     public final static int SIZE_OF_FRAGMENTED_BLOB_HEADER_AND_TRAILER = SIZE_OF_FRAGMENTED_BLOB_HEADER
 	    + SIZE_OF_PACKET_CHECKSUM;
 
     // Fragment Offset:-- 0 ........ 3
     // Packet Type: ----- 4
-    // UUID: ------------ 5 ........ 20
-    // blobPayloadLength: 21 ....... 24
-    // keyLength:-------- 25 ....... 26
-    // payloadChecksum:-- 27........ 42
-    // key: ------------- 43 ....... 43+x-1
-    // payload: --------- 43+x ..... 43+x+y-1
-    // packetChecksum: -- 43+x+y ... 58+x+y
+    // Checksum Algs: --- 5
+    // Stream: ---------- 6 ........ 7
+    // Sequence: -------- 8 ........ 11
+    // UUID: ------------ 12 ....... 27
+    // blobPayloadLength: 28 ....... 31
+    // keyLength:-------- 32 ....... 33
+    // payloadChecksum:-- 34........ 49
+    // key: ------------- 50 ....... 50+x-1
+    // payload: --------- 50+x ..... 50+x+y-1
+    // packetChecksum: -- 50+x+y ... 50+x+y+z-1 (z = 4, 8 or 16)
 
     // Start indexes of the fields in the serialized byte[]
     public final static int FRAGMENT_OFFSET_START_INDEX = 0;
     public final static int PACKET_TYPE_START_INDEX = FRAGMENT_OFFSET_START_INDEX + SIZE_OF_FRAGMENT_OFFSET;
-    public final static int UUID_START_INDEX = PACKET_TYPE_START_INDEX + SIZE_OF_PACKET_TYPE;
+    public final static int CHECKSUM_ALGORITHMS_START_INDEX = PACKET_TYPE_START_INDEX + SIZE_OF_PACKET_TYPE;
+    public final static int STREAM_START_INDEX = CHECKSUM_ALGORITHMS_START_INDEX + SIZE_OF_CHECKSUM_ALGORITHMS;
+    public final static int SEQUENCE_START_INDEX = STREAM_START_INDEX + SIZE_OF_STREAM;
+    public final static int UUID_START_INDEX = SEQUENCE_START_INDEX + SIZE_OF_SEQUENCE;
     public final static int BLOB_PAYLOAD_LENGTH_START_INDEX = UUID_START_INDEX + SIZE_OF_UUID;
     public final static int KEY_LENGTH_START_INDEX = BLOB_PAYLOAD_LENGTH_START_INDEX + SIZE_OF_BLOB_PAYLOAD_LENGTH;
     public final static int PAYLOAD_CHECKSUM_START_INDEX = KEY_LENGTH_START_INDEX + SIZE_OF_KEY_LENGTH;
@@ -63,6 +95,34 @@ public class Utils {
     // public final static int PACKET_CHECKSUM_START_INDEX = PAYLOAD_START_INDEX +
     // SIZE_OF_PAYLOAD (unknown);
 
+    // Compact (v2) header, see FragmentEncoder.setHeaderVersion. The first byte
+    // of a v1 packet is the high byte of a positive fragment offset, so it never
+    // has the high bit set.
+    //
+    // Version: --------- 0 (0x82)
+    // Packet Type: ----- 1 (with DESCRIPTOR_FLAG if the descriptor follows)
+    // Checksum Algs: --- 2
+    // Session: --------- 3 ........ 4 (random, per sending process)
+    // Blob id: --------- varint (per Blob, unique in the session)
+    // Fragment Offset:-- varint (number of Blobs in a MULTI_BLOB packet)
+    // descriptor, if DESCRIPTOR_FLAG:
+    // UUID: ------------ 16 bytes
+    // Stream: ---------- 2 bytes
+    // Sequence: -------- varint
+    // blobPayloadLength: varint
+    // keyLength: ------- varint
+    // key: ------------- keyLength bytes
+    // payloadChecksum:-- length of the Blob checksum algorithm
+    // then the payload and the packet checksum, as in v1
+    public final static byte HEADER_V2 = (byte) 0x82;
+    public final static int SIZE_OF_SESSION = 2;
+    public final static int V2_PACKET_TYPE_INDEX = 1;
+    public final static int V2_CHECKSUM_ALGORITHMS_INDEX = 2;
+    public final static int V2_SESSION_INDEX = 3;
+    public final static int SIZE_OF_V2_FIXED_HEADER = V2_SESSION_INDEX + SIZE_OF_SESSION;
+    // the longest varint of a long
+    public final static int MAX_SIZE_OF_VARINT = 10;
+
     public static class Pair {
 	public int first;
 	public int second;
@@ -85,6 +145,56 @@ public class Utils {
 	}
     }
 
+    /**
+     * Inserts [pair.first, pair.second) in a sorted list of byte ranges, merging
+     * it with the ranges it overlaps or touches
+     *
+     * @param ranges - sorted list of disjoint ranges, e.g. the received ranges of
+     *               a Blob's metadata or payload
+     * @param pair   - the newly received interval
+     */
+    public static void addRange(ArrayList<Pair> ranges, Pair pair) {
+	int first = pair.first;
+	int second = pair.second;
+
+	int i = 0;
+	while (i < ranges.size()) {
+	    Pair range = ranges.get(i);
+	    if (range.second < first) {
+		i++;
+	    } else if (range.first > second) {
+		break;
+	    } else {
+		first = Math.min(first, range.first);
+		second = Math.max(second, range.second);
+		ranges.remove(i);
+	    }
+	}
+	ranges.add(i, new Pair(first, second));
+    }
+
+    /**
+     * Computes the gaps of a sorted list of disjoint ranges in [0, length)
+     *
+     * @param ranges - sorted list of disjoint ranges, as kept by addRange
+     * @param length - the total length of the data
+     * @return the ranges of [0, length) not covered by ranges
+     */
+    public static ArrayList<Pair> getMissingRanges(ArrayList<Pair> ranges, int length) {
+	ArrayList<Pair> missingRanges = new ArrayList<>();
+	int covered = 0;
+	for (Pair range : ranges) {
+	    if (range.first > covered) {
+		missingRanges.add(new Pair(covered, range.first));
+	    }
+	    covered = Math.max(covered, range.second);
+	}
+	if (covered < length) {
+	    missingRanges.add(new Pair(covered, length));
+	}
+	return missingRanges;
+    }
+
     /**
      * Calculates the CHECKSUM_TYPE checksum of the byte[] data Default
      * CHECKSUM_TYPE - MD5
@@ -98,6 +208,27 @@ public class Utils {
 	return mDigest.digest();
     }
 
+    /**
+     * Calculates the checksum of the byte[] data with the given algorithm, padded
+     * to SIZE_OF_PAYLOAD_CHECKSUM bytes
+     *
+     * @param data      - the metadata or payload of a Blob
+     * @param algorithm - the checksum algorithm
+     * @return byte[] - the checksum of the data
+     */
+    public static byte[] calculateChecksum(byte[] data, ChecksumAlgorithm algorithm) {
+	return algorithm.blobChecksum(data);
+    }
+
+    /**
+     * @param packetAlgorithm - the algorithm of the packet checksum
+     * @param blobAlgorithm   - the algorithm of the metadata / payload checksum
+     * @return the value of the ChecksumAlgorithms header field
+     */
+    public static byte checksumAlgorithms(ChecksumAlgorithm packetAlgorithm, ChecksumAlgorithm blobAlgorithm) {
+	return (byte) (packetAlgorithm.getId() << 4 | blobAlgorithm.getId());
+    }
+
     /**
      * Converts a byte[] into uuid
      * 
@@ -131,18 +262,18 @@ public class Utils {
      * @return String - A random content string of length len
      */
     public static String randomString(int len) {
-	StringBuilder sb = new StringBuilder(len);
+	ThreadLocalRandom random = ThreadLocalRandom.current();
+	char[] chars = new char[len];
 	for (int i = 0; i < len; i++) {
-	    int randomNumber = ThreadLocalRandom.current().nextInt(0, AB.length());
-	    sb.append(AB.charAt(randomNumber));
+	    chars[i] = AB.charAt(random.nextInt(AB.length()));
 	}
 
-	return sb.toString();
+	return new String(chars);
     }
 
     /**
      * Sends multicast message that contains the serialized version of a
-     * fragmentedBlob
+     * fragmentedBlob, through the long-lived channel of the destination
      *
      * @param packet          - serialized fragmented Blob to send
      * @param destinationIp   - Destination IP address (multicast)
@@ -152,11 +283,7 @@ public class Utils {
      */
     public static void sendFragmentMulticast(byte[] packet, String destinationIp, int destinationPort)
 	    throws IOException, NoSuchAlgorithmException {
-	try (DatagramSocket socket = new DatagramSocket()) {
-	    InetAddress group = InetAddress.getByName(destinationIp);
-	    DatagramPacket datagramPacket = new DatagramPacket(packet, packet.length, group, destinationPort);
-	    socket.send(datagramPacket);
-	}
+	SenderChannelRegistry.getChannel(destinationIp, destinationPort).send(packet);
     }
 
     // Java has only signed data types, be aware of negatives values
@@ -172,6 +299,42 @@ public class Utils {
 	return new byte[] { (byte) (value >>> 8), (byte) value };
     }
 
+    /**
+     * Writes an unsigned LEB128 varint: 7 bits per byte, low bits first, the high
+     * bit set on all the bytes but the last
+     *
+     * @param buffer - where the varint goes
+     * @param value  - a non-negative value
+     */
+    public static void putVarint(ByteBuffer buffer, long value) {
+	long remaining = value;
+	while ((remaining & ~0x7FL) != 0) {
+	    buffer.put((byte) ((remaining & 0x7F) | 0x80));
+	    remaining >>>= 7;
+	}
+	buffer.put((byte) remaining);
+    }
+
+    /**
+     * Reads a varint written by putVarint
+     *
+     * @param buffer - positioned on the varint, moved after it
+     * @return the value
+     * @throws IOException if the varint is longer than MAX_SIZE_OF_VARINT
+     * @throws java.nio.BufferUnderflowException if the buffer ends in the varint
+     */
+    public static long getVarint(ByteBuffer buffer) throws IOException {
+	long value = 0;
+	for (int shift = 0; shift < 64; shift += 7) {
+	    byte b = buffer.get();
+	    value |= (long) (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0) {
+		return value;
+	    }
+	}
+	throw new IOException("Varint too long");
+    }
+
     public static short shortFromByteArray(byte[] bytes) {
 	return (short) ((bytes[0] & 0xFF) << 8 | (bytes[1] & 0xFF));
     }
@@ -0,0 +1,165 @@
+package myjava.com.github.dosarudaniel.gsoc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * XxHash64 class - streaming implementation of the 64 bit xxHash (seed 0),
+ * a fast non-cryptographic hash used as ChecksumAlgorithm.XXHASH64.
+ *
+ * The input is consumed in 32 byte stripes by four independent accumulators,
+ * the bytes that do not fill a stripe are kept until the next update or
+ * digest, so the result does not depend on how the data is split between the
+ * update calls. The 8 byte digest is written in big endian order.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public final class XxHash64 implements ChecksumAlgorithm.Hasher {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE_LENGTH = 32;
+
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long totalLength;
+
+    // the bytes of an incomplete stripe
+    private final ByteBuffer stripe = ByteBuffer.allocate(STRIPE_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+
+    public XxHash64() {
+	reset();
+    }
+
+    public void reset() {
+	this.v1 = PRIME1 + PRIME2;
+	this.v2 = PRIME2;
+	this.v3 = 0;
+	this.v4 = -PRIME1;
+	this.totalLength = 0;
+	this.stripe.clear();
+    }
+
+    @Override
+    public void update(byte[] data, int offset, int length) {
+	update(ByteBuffer.wrap(data, offset, length));
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+	ByteOrder order = buffer.order();
+	buffer.order(ByteOrder.LITTLE_ENDIAN);
+	try {
+	    int position = buffer.position();
+	    int limit = buffer.limit();
+	    this.totalLength += limit - position;
+
+	    if (this.stripe.position() > 0) {
+		// complete the pending stripe first
+		int length = Math.min(this.stripe.remaining(), limit - position);
+		buffer.limit(position + length);
+		this.stripe.put(buffer);
+		buffer.limit(limit);
+		position += length;
+		if (this.stripe.hasRemaining()) {
+		    return;
+		}
+		consumeStripe(this.stripe, 0);
+		this.stripe.clear();
+	    }
+
+	    // the accumulators are kept in local variables for the bulk of the data
+	    long acc1 = this.v1;
+	    long acc2 = this.v2;
+	    long acc3 = this.v3;
+	    long acc4 = this.v4;
+	    for (; position + STRIPE_LENGTH <= limit; position += STRIPE_LENGTH) {
+		acc1 = round(acc1, buffer.getLong(position));
+		acc2 = round(acc2, buffer.getLong(position + 8));
+		acc3 = round(acc3, buffer.getLong(position + 16));
+		acc4 = round(acc4, buffer.getLong(position + 24));
+	    }
+	    this.v1 = acc1;
+	    this.v2 = acc2;
+	    this.v3 = acc3;
+	    this.v4 = acc4;
+
+	    buffer.position(position);
+	    this.stripe.put(buffer);
+	} finally {
+	    buffer.order(order);
+	}
+    }
+
+    private void consumeStripe(ByteBuffer buffer, int position) {
+	this.v1 = round(this.v1, buffer.getLong(position));
+	this.v2 = round(this.v2, buffer.getLong(position + 8));
+	this.v3 = round(this.v3, buffer.getLong(position + 16));
+	this.v4 = round(this.v4, buffer.getLong(position + 24));
+    }
+
+    /**
+     * @return the hash of all the bytes added since the last reset
+     */
+    public long getValue() {
+	long hash;
+	if (this.totalLength >= STRIPE_LENGTH) {
+	    hash = Long.rotateLeft(this.v1, 1) + Long.rotateLeft(this.v2, 7) + Long.rotateLeft(this.v3, 12)
+		    + Long.rotateLeft(this.v4, 18);
+	    hash = merge(hash, this.v1);
+	    hash = merge(hash, this.v2);
+	    hash = merge(hash, this.v3);
+	    hash = merge(hash, this.v4);
+	} else {
+	    hash = PRIME5;
+	}
+	hash += this.totalLength;
+
+	int length = this.stripe.position();
+	int position = 0;
+	for (; position + 8 <= length; position += 8) {
+	    hash ^= round(0, this.stripe.getLong(position));
+	    hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+	}
+	if (position + 4 <= length) {
+	    hash ^= (this.stripe.getInt(position) & 0xFFFFFFFFL) * PRIME1;
+	    hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+	    position += 4;
+	}
+	for (; position < length; position++) {
+	    hash ^= (this.stripe.get(position) & 0xFFL) * PRIME5;
+	    hash = Long.rotateLeft(hash, 11) * PRIME1;
+	}
+
+	hash ^= hash >>> 33;
+	hash *= PRIME2;
+	hash ^= hash >>> 29;
+	hash *= PRIME3;
+	hash ^= hash >>> 32;
+	return hash;
+    }
+
+    @Override
+    public void digest(byte[] output, int offset) {
+	long value = getValue();
+	for (int i = 7; i >= 0; i--) {
+	    output[offset + i] = (byte) value;
+	    value >>>= 8;
+	}
+	reset();
+    }
+
+    private static long round(long accumulator, long input) {
+	return Long.rotateLeft(accumulator + input * PRIME2, 31) * PRIME1;
+    }
+
+    private static long merge(long hash, long accumulator) {
+	return (hash ^ round(0, accumulator)) * PRIME1 + PRIME4;
+    }
+}
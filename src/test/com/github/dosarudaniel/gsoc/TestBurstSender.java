@@ -10,7 +10,8 @@ import myjava.com.github.dosarudaniel.gsoc.BurstSender;
 
 /**
  * Test the BurstSender unit by scheduling a send NR_OF_PACKETS_TO_BE_SENT
- * multicast messages every TIME_INTERVAL_SECONDS
+ * multicast messages every TIME_INTERVAL_SECONDS, or by running a calibration
+ * with NR_THREADS sender threads
  * 
  * @author dosarudaniel@gmail.com
  * @since 2019-03-07
@@ -22,23 +23,27 @@ public class TestBurstSender {
      * Schedules a BurstSender to send NR_OF_PACKETS_TO_BE_SENT multicast messages
      * every TIME_INTERVAL_SECONDS
      *
-     * @param args multicastIpAddress and portNumber
+     * @param args multicastIpAddress, portNumber, payload size, rate, time to
+     *             run and optionally the number of calibration threads
      * @throws IOException
      * @throws SecurityException
      * @throws NumberFormatException
      */
     public static void main(String[] args) throws NumberFormatException, SecurityException, IOException {
-	if (args.length != 5) {
+	if (args.length != 5 && args.length != 6) {
 	    String usage = args.length + "Usage:\n";
 	    usage += "\tjava -cp bin " + TestBurstSender.class.getCanonicalName();
 	    usage += "  <IP>  <PORT_NUMBER>  ";
-	    usage += "<MAX_PAYLOAD_SIZE>  <RATE>  <TIME_TO_RUN>";
+	    usage += "<MAX_PAYLOAD_SIZE>  <RATE>  <TIME_TO_RUN>  [<NR_CALIBRATION_THREADS>]";
 	    System.out.println(usage);
 	    return;
 	}
 
 	BurstSender bS = new BurstSender(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]),
 		Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+	if (args.length == 6) {
+	    bS.setCalibration(Integer.parseInt(args[5]));
+	}
 	bS.work();
     }
 }
@@ -0,0 +1,105 @@
+package test.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import myjava.com.github.dosarudaniel.gsoc.Blob;
+import myjava.com.github.dosarudaniel.gsoc.ChecksumAlgorithm;
+import myjava.com.github.dosarudaniel.gsoc.FragmentEncoder;
+import myjava.com.github.dosarudaniel.gsoc.FragmentedBlob;
+import myjava.com.github.dosarudaniel.gsoc.Utils;
+
+/**
+ * Measures the CPU cost of the checksums: encoding and decoding of one
+ * fragment and the verification of a whole Blob, for every packet / Blob
+ * checksum algorithm pair. MD5 / MD5 is the cost of the fixed MD5 checksums.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class TestChecksumBenchmark {
+    static final int ROUNDS = 20;
+
+    /**
+     * Runs the benchmark and prints one line per algorithm pair
+     *
+     * @param args fragment payload size and Blob payload size
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+	if (args.length != 2) {
+	    String usage = "Usage:\n";
+	    usage += "\tjava -cp bin " + TestChecksumBenchmark.class.getCanonicalName();
+	    usage += " <FRAGMENT_MAX_PAYLOAD_SIZE> <PAYLOAD_LENGTH>\n\n";
+	    usage += "Example:\n";
+	    usage += "\tjava -cp bin test.com.github.dosarudaniel.gsoc.TestChecksumBenchmark 1200 2000000\n";
+	    usage += "\t |\n";
+	    usage += "\t --> Encodes and decodes a 2 MB Blob in 1200 B fragments with every checksum algorithm.";
+	    System.out.println(usage);
+	    return;
+	}
+
+	int maxPayloadSize = Integer.parseInt(args[0]);
+	int payloadLength = Integer.parseInt(args[1]);
+	byte[] metadata = Utils.randomString(1000).getBytes(Utils.CHARSET);
+	byte[] payload = Utils.randomString(payloadLength).getBytes(Utils.CHARSET);
+	Blob blob = new Blob(metadata, payload, "benchmark/checksum", UUID.randomUUID());
+
+	System.out.println(String.format("%-9s %-9s %14s %14s %14s", "packet", "blob", "encode ns/frag",
+		"decode ns/frag", "blob ns/MB"));
+
+	for (ChecksumAlgorithm packetAlgorithm : ChecksumAlgorithm.values()) {
+	    for (ChecksumAlgorithm blobAlgorithm : ChecksumAlgorithm.values()) {
+		blob.setChecksumAlgorithm(blobAlgorithm);
+		FragmentEncoder encoder = new FragmentEncoder();
+		encoder.setPacketChecksumAlgorithm(packetAlgorithm);
+		encoder.setBlob(blob);
+
+		// keep a serialized copy of every fragment for the decoding
+		List<byte[]> packets = new ArrayList<>();
+		encoder.encodeBlob(maxPayloadSize, fragment -> {
+		    int length = 0;
+		    for (ByteBuffer buffer : fragment) {
+			length += buffer.remaining();
+		    }
+		    ByteBuffer packet = ByteBuffer.allocate(length);
+		    for (ByteBuffer buffer : fragment) {
+			packet.put(buffer);
+		    }
+		    packets.add(packet.array());
+		});
+
+		long encodeNanos = Long.MAX_VALUE;
+		long decodeNanos = Long.MAX_VALUE;
+		long blobNanos = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+		    long start = System.nanoTime();
+		    encoder.encodeBlob(maxPayloadSize, fragment -> {
+			// the fragment is only checksummed
+		    });
+		    encodeNanos = Math.min(encodeNanos, System.nanoTime() - start);
+
+		    start = System.nanoTime();
+		    for (byte[] packet : packets) {
+			new FragmentedBlob(packet, packet.length);
+		    }
+		    decodeNanos = Math.min(decodeNanos, System.nanoTime() - start);
+
+		    start = System.nanoTime();
+		    Utils.calculateChecksum(payload, blobAlgorithm);
+		    blobNanos = Math.min(blobNanos, System.nanoTime() - start);
+		}
+
+		System.out.println(String.format("%-9s %-9s %14d %14d %14d", packetAlgorithm, blobAlgorithm,
+			Long.valueOf(encodeNanos / packets.size()), Long.valueOf(decodeNanos / packets.size()),
+			Long.valueOf(blobNanos * 1_000_000L / payload.length)));
+	    }
+	}
+    }
+}
@@ -0,0 +1,184 @@
+package test.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import myjava.com.github.dosarudaniel.gsoc.Blob;
+import myjava.com.github.dosarudaniel.gsoc.FragmentEncoder;
+import myjava.com.github.dosarudaniel.gsoc.SenderChannel;
+import myjava.com.github.dosarudaniel.gsoc.UnicastFanOut;
+import myjava.com.github.dosarudaniel.gsoc.Utils;
+
+/**
+ * Measures the send throughput of the unicast fan-out for 1, 2, 4, ... local
+ * receivers: the fragments encoded once and sent to every receiver by
+ * UnicastFanOut, against one encoding per receiver through its own
+ * SenderChannel. The receivers only count the datagrams.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class TestFanOutBenchmark {
+    static final int BLOBS = 50;
+
+    /**
+     * A local receiver that counts the datagrams it gets
+     */
+    static final class CountingReceiver extends Thread {
+	final DatagramChannel channel;
+	final AtomicLong datagrams = new AtomicLong();
+
+	CountingReceiver() throws IOException {
+	    this.channel = DatagramChannel.open();
+	    this.channel.setOption(StandardSocketOptions.SO_RCVBUF, Integer.valueOf(8 * 1024 * 1024));
+	    this.channel.bind(new InetSocketAddress("127.0.0.1", 0));
+	    setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+	    ByteBuffer buffer = ByteBuffer.allocateDirect(Utils.PACKET_MAX_SIZE);
+	    try {
+		while (true) {
+		    buffer.clear();
+		    this.channel.receive(buffer);
+		    this.datagrams.incrementAndGet();
+		}
+	    } catch (IOException e) {
+		// closed
+	    }
+	}
+
+	InetSocketAddress getAddress() throws IOException {
+	    return (InetSocketAddress) this.channel.getLocalAddress();
+	}
+    }
+
+    /**
+     * Runs the benchmark and prints one line per number of receivers
+     *
+     * @param args fragment payload size, Blob payload size and the largest
+     *             number of receivers
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+	if (args.length != 3) {
+	    String usage = "Usage:\n";
+	    usage += "\tjava -cp bin " + TestFanOutBenchmark.class.getCanonicalName();
+	    usage += " <FRAGMENT_MAX_PAYLOAD_SIZE> <PAYLOAD_LENGTH> <MAX_RECEIVERS>\n\n";
+	    usage += "Example:\n";
+	    usage += "\tjava -cp bin test.com.github.dosarudaniel.gsoc.TestFanOutBenchmark 1400 1000000 16\n";
+	    usage += "\t |\n";
+	    usage += "\t --> Sends 1 MB Blobs in 1400 B fragments to 1, 2, 4, 8 and 16 local receivers.";
+	    System.out.println(usage);
+	    return;
+	}
+
+	int maxPayloadSize = Integer.parseInt(args[0]);
+	int payloadLength = Integer.parseInt(args[1]);
+	int maxReceivers = Integer.parseInt(args[2]);
+	byte[] metadata = Utils.randomString(1000).getBytes(Utils.CHARSET);
+	byte[] payload = Utils.randomString(payloadLength).getBytes(Utils.CHARSET);
+	Blob blob = new Blob(metadata, payload, "benchmark/fanout", UUID.randomUUID());
+	FragmentEncoder encoder = new FragmentEncoder(blob);
+
+	// warm up the encoder and the channels before the first measurement
+	CountingReceiver warmUp = new CountingReceiver();
+	warmUp.start();
+	try (UnicastFanOut fanOut = new UnicastFanOut(Collections.singletonList(warmUp.getAddress()), 0)) {
+	    for (int i = 0; i < BLOBS; i++) {
+		encoder.encodeBlob(maxPayloadSize, fanOut);
+	    }
+	}
+	warmUp.channel.close();
+
+	System.out.println(String.format("%9s %14s %14s %16s %14s %16s", "receivers", "fan-out Mb/s",
+		"per receiver", "fan-out delivered", "re-encode Mb/s", "re-encode delivered"));
+
+	for (int nrReceivers = 1; nrReceivers <= maxReceivers; nrReceivers *= 2) {
+	    List<CountingReceiver> receivers = new ArrayList<>();
+	    List<InetSocketAddress> addresses = new ArrayList<>();
+	    for (int i = 0; i < nrReceivers; i++) {
+		CountingReceiver receiver = new CountingReceiver();
+		receiver.start();
+		receivers.add(receiver);
+		addresses.add(receiver.getAddress());
+	    }
+
+	    // encoded once, sent to every receiver
+	    long start = System.nanoTime();
+	    long fanOutDatagrams;
+	    try (UnicastFanOut fanOut = new UnicastFanOut(addresses, 0)) {
+		for (int i = 0; i < BLOBS; i++) {
+		    encoder.encodeBlob(maxPayloadSize, fanOut);
+		    fanOut.flush();
+		}
+		fanOutDatagrams = fanOut.getDatagramsSent();
+	    }
+	    long fanOutNanos = System.nanoTime() - start;
+	    long fanOutReceived = settle(receivers);
+
+	    // encoded again for every receiver
+	    List<SenderChannel> channels = new ArrayList<>();
+	    for (InetSocketAddress address : addresses) {
+		channels.add(new SenderChannel(address, null, 0));
+	    }
+	    start = System.nanoTime();
+	    for (int i = 0; i < BLOBS; i++) {
+		for (SenderChannel channel : channels) {
+		    encoder.encodeBlob(maxPayloadSize, channel);
+		}
+	    }
+	    long reencodeNanos = System.nanoTime() - start;
+	    long reencodeReceived = settle(receivers) - fanOutReceived;
+	    for (SenderChannel channel : channels) {
+		channel.close();
+	    }
+	    for (CountingReceiver receiver : receivers) {
+		receiver.channel.close();
+	    }
+
+	    double sentBits = 8.0 * BLOBS * (metadata.length + payload.length) * nrReceivers;
+	    double fanOutMbps = sentBits / fanOutNanos * 1000;
+	    System.out.println(String.format("%9d %14.1f %14.1f %15.1f%% %14.1f %18.1f%%", Integer.valueOf(nrReceivers),
+		    Double.valueOf(fanOutMbps), Double.valueOf(fanOutMbps / nrReceivers),
+		    Double.valueOf(100.0 * fanOutReceived / fanOutDatagrams),
+		    Double.valueOf(sentBits / reencodeNanos * 1000),
+		    Double.valueOf(100.0 * reencodeReceived / fanOutDatagrams)));
+	}
+    }
+
+    /**
+     * @return the datagrams received so far by all the receivers, once they
+     *         stopped receiving
+     */
+    private static long settle(List<CountingReceiver> receivers) {
+	long received = -1;
+	long total = 0;
+	while (total != received) {
+	    received = total;
+	    try {
+		Thread.sleep(200);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		break;
+	    }
+	    total = 0;
+	    for (CountingReceiver receiver : receivers) {
+		total += receiver.datagrams.get();
+	    }
+	}
+	return total;
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * test.com.github.dosarudaniel.gsoc provides the classes necessary to test the
+ * Sender and Receiver from the myjava.com.github.dosarudaniel.gsoc package
+ */
+package test.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import myjava.com.github.dosarudaniel.gsoc.Blob;
+import myjava.com.github.dosarudaniel.gsoc.BlobDictionary;
+import myjava.com.github.dosarudaniel.gsoc.FragmentEncoder;
+import myjava.com.github.dosarudaniel.gsoc.FragmentedBlob;
+import myjava.com.github.dosarudaniel.gsoc.PayloadCodec;
+import myjava.com.github.dosarudaniel.gsoc.Utils;
+import myjava.com.github.dosarudaniel.gsoc.Utils.Pair;
+
+/**
+ * Test the forward error correction without the network: a Blob is encoded
+ * with parity groups of FEC_GROUP_SIZE fragments, some DATA fragments are
+ * dropped and the rest is reassembled. One loss per group is rebuilt from the
+ * parity, two losses in a group are not.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class TestFec {
+    static final int FEC_GROUP_SIZE = 4;
+    static final int METADATA_LENGTH = 1000;
+    static final int PAYLOAD_LENGTH = 100_000;
+    static final int MAX_DATAGRAM_SIZE = 1472;
+
+    static int nrTest = 0;
+    static int nrFailed = 0;
+
+    static void check(boolean passed, String description) {
+	nrTest++;
+	if (!passed) {
+	    nrFailed++;
+	}
+	System.out.println("Test nr " + nrTest + ": ............... " + (passed ? "PASSED" : "FAILED") + " ("
+		+ description + ")");
+    }
+
+    /**
+     * @return the fragments of the Blob, resolved in the order they were sent
+     */
+    static List<FragmentedBlob> encode(Blob blob, int headerVersion) throws NoSuchAlgorithmException, IOException {
+	FragmentEncoder encoder = new FragmentEncoder(blob);
+	encoder.setHeaderVersion(headerVersion);
+	encoder.setFecGroupSize(FEC_GROUP_SIZE);
+
+	List<byte[]> packets = new ArrayList<>();
+	encoder.encodeBlob(encoder.getMaxPayloadSize(MAX_DATAGRAM_SIZE), fragment -> {
+	    int length = 0;
+	    for (ByteBuffer buffer : fragment) {
+		if (buffer != null) {
+		    length += buffer.remaining();
+		}
+	    }
+	    ByteBuffer packet = ByteBuffer.allocate(length);
+	    for (ByteBuffer buffer : fragment) {
+		if (buffer != null) {
+		    packet.put(buffer.duplicate());
+		}
+	    }
+	    packets.add(packet.array());
+	});
+
+	// the v2 fragments without descriptor need the ones before them
+	InetAddress source = InetAddress.getLoopbackAddress();
+	BlobDictionary dictionary = new BlobDictionary();
+	List<FragmentedBlob> fragments = new ArrayList<>();
+	for (byte[] data : packets) {
+	    FragmentedBlob fragment = new FragmentedBlob(data, data.length);
+	    if (!dictionary.resolve(fragment, new DatagramPacket(data, data.length, source, 5000))) {
+		throw new IOException("Fragment sent before its descriptor");
+	    }
+	    dictionary.register(fragment, source);
+	    fragments.add(fragment);
+	}
+	return fragments;
+    }
+
+    /**
+     * @param fragments - the fragments of a Blob
+     * @param dropped   - indexes of the DATA fragments to drop, in the order
+     *                  they were sent
+     * @return the Blob reassembled from the other fragments
+     */
+    static Blob receive(List<FragmentedBlob> fragments, List<Integer> dropped)
+	    throws NoSuchAlgorithmException, IOException {
+	Blob blob = null;
+	int dataIndex = 0;
+	for (FragmentedBlob fragment : fragments) {
+	    if (fragment.getPachetType() == Blob.DATA_CODE && dropped.contains(Integer.valueOf(dataIndex++))) {
+		continue;
+	    }
+	    if (blob == null) {
+		blob = new Blob(fragment.getKey(), fragment.getUuid());
+	    }
+	    blob.addFragmentedBlob(fragment);
+	}
+	return blob;
+    }
+
+    static int countData(List<FragmentedBlob> fragments) {
+	int nrData = 0;
+	for (FragmentedBlob fragment : fragments) {
+	    if (fragment.getPachetType() == Blob.DATA_CODE) {
+		nrData++;
+	    }
+	}
+	return nrData;
+    }
+
+    /**
+     * Drops one DATA fragment per parity group, a different one in every group
+     */
+    static void checkOneLossPerGroup(Blob blob, byte[] payload, int headerVersion, String description)
+	    throws NoSuchAlgorithmException, IOException {
+	List<FragmentedBlob> fragments = encode(blob, headerVersion);
+	int nrData = countData(fragments);
+	List<Integer> dropped = new ArrayList<>();
+	for (int group = 0; group * FEC_GROUP_SIZE < nrData; group++) {
+	    dropped.add(Integer.valueOf(Math.min(group * FEC_GROUP_SIZE + group % FEC_GROUP_SIZE, nrData - 1)));
+	}
+
+	Blob received = receive(fragments, dropped);
+	check(received != null && received.isComplete() && received.getRecoveredFragments() == dropped.size()
+		&& Arrays.equals(received.getPayload(), payload), description);
+    }
+
+    /**
+     * @param args - none
+     */
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+	byte[] metadata = Utils.randomString(METADATA_LENGTH).getBytes(Utils.CHARSET);
+	byte[] payload = Utils.randomString(PAYLOAD_LENGTH).getBytes(Utils.CHARSET);
+
+	Blob blob = new Blob(metadata, payload, "fec/test/key", UUID.randomUUID());
+	List<FragmentedBlob> fragments = encode(blob, 1);
+	int nrParity = 0;
+	for (FragmentedBlob fragment : fragments) {
+	    if (fragment.getPachetType() == Blob.PARITY_CODE) {
+		nrParity++;
+	    }
+	}
+	int nrData = countData(fragments);
+	check(nrData > FEC_GROUP_SIZE && nrParity >= (nrData + FEC_GROUP_SIZE - 1) / FEC_GROUP_SIZE,
+		"a parity packet per group of " + FEC_GROUP_SIZE + " DATA fragments");
+
+	Blob received = receive(fragments, new ArrayList<>());
+	check(received.isComplete() && received.getRecoveredFragments() == 0
+		&& Arrays.equals(received.getPayload(), payload), "nothing to rebuild without loss");
+
+	checkOneLossPerGroup(blob, payload, 1, "one loss per group rebuilt, v1 header");
+	checkOneLossPerGroup(blob, payload, 2, "one loss per group rebuilt, v2 header");
+
+	Blob compressedBlob = new Blob(metadata, payload, "fec/test/compressed", UUID.randomUUID());
+	check(compressedBlob.compress(PayloadCodec.DEFLATE), "the payload compresses");
+	checkOneLossPerGroup(compressedBlob, payload, 1, "one loss per group rebuilt, compressed payload");
+
+	// the parity of a group cannot rebuild two of its fragments
+	received = receive(fragments, Arrays.asList(Integer.valueOf(0), Integer.valueOf(1)));
+	int fragmentSize = 0;
+	for (FragmentedBlob fragment : fragments) {
+	    if (fragment.getPachetType() == Blob.DATA_CODE) {
+		fragmentSize = fragment.getPayload().length;
+		break;
+	    }
+	}
+	ArrayList<Pair> missing = received.getMissingPayloadBlocks();
+	check(!received.isComplete() && received.getRecoveredFragments() == 0 && missing.size() == 1
+		&& missing.get(0).first == 0 && missing.get(0).second == 2 * fragmentSize,
+		"two losses in a group are not rebuilt");
+
+	System.out.println(nrFailed == 0 ? "All " + nrTest + " tests PASSED" : nrFailed + " of " + nrTest
+		+ " tests FAILED");
+	if (nrFailed > 0) {
+	    System.exit(1);
+	}
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * test.com.github.dosarudaniel.gsoc provides the classes necessary to test the
+ * Sender and Receiver from the myjava.com.github.dosarudaniel.gsoc package
+ */
+package test.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import myjava.com.github.dosarudaniel.gsoc.Blob;
+import myjava.com.github.dosarudaniel.gsoc.BlobDictionary;
+import myjava.com.github.dosarudaniel.gsoc.FragmentEncoder;
+import myjava.com.github.dosarudaniel.gsoc.FragmentedBlob;
+import myjava.com.github.dosarudaniel.gsoc.RatePacer;
+import myjava.com.github.dosarudaniel.gsoc.Utils;
+
+/**
+ * Test the compact (v2) header without the network: varints, detection of the
+ * header version, encoding of a Blob and its reassembly through a
+ * BlobDictionary, with the descriptors in order and after the fragments that
+ * need them. Also compares the goodput of the v1 and v2 headers.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class TestHeaderV2 {
+    static final int METADATA_LENGTH = 1000;
+    static final int PAYLOAD_LENGTH = 100_000;
+    static final int MAX_DATAGRAM_SIZE = 1472;
+
+    static int nrTest = 0;
+    static int nrFailed = 0;
+
+    static void check(boolean passed, String description) {
+	nrTest++;
+	if (!passed) {
+	    nrFailed++;
+	}
+	System.out.println("Test nr " + nrTest + ": ............... " + (passed ? "PASSED" : "FAILED") + " ("
+		+ description + ")");
+    }
+
+    /**
+     * @return the serialized fragments of the Blob
+     */
+    static List<byte[]> encode(Blob blob, int headerVersion, int maxDatagramSize)
+	    throws NoSuchAlgorithmException, IOException {
+	FragmentEncoder encoder = new FragmentEncoder(blob);
+	encoder.setHeaderVersion(headerVersion);
+	encoder.setFecGroupSize(0);
+
+	List<byte[]> packets = new ArrayList<>();
+	encoder.encodeBlob(encoder.getMaxPayloadSize(maxDatagramSize), fragment -> {
+	    int length = 0;
+	    for (ByteBuffer buffer : fragment) {
+		if (buffer != null) {
+		    length += buffer.remaining();
+		}
+	    }
+	    ByteBuffer packet = ByteBuffer.allocate(length);
+	    for (ByteBuffer buffer : fragment) {
+		if (buffer != null) {
+		    packet.put(buffer.duplicate());
+		}
+	    }
+	    packets.add(packet.array());
+	});
+	return packets;
+    }
+
+    /**
+     * Reassembles the packets in the given order, as the MulticastReceiver does
+     *
+     * @return the Blob, null if no fragment could be resolved
+     */
+    static Blob receive(List<byte[]> packets, BlobDictionary dictionary)
+	    throws IOException, NoSuchAlgorithmException {
+	InetAddress source = InetAddress.getLoopbackAddress();
+	Blob[] blob = new Blob[1];
+	List<DatagramPacket> queue = new ArrayList<>();
+	for (byte[] data : packets) {
+	    queue.add(new DatagramPacket(data, data.length, source, 5000));
+	}
+	while (!queue.isEmpty()) {
+	    DatagramPacket packet = queue.remove(0);
+	    FragmentedBlob fragment = new FragmentedBlob(packet.getData(), packet.getLength());
+	    if (!dictionary.resolve(fragment, packet)) {
+		continue;
+	    }
+	    queue.addAll(0, dictionary.register(fragment, source));
+	    if (blob[0] == null) {
+		blob[0] = new Blob(fragment.getKey(), fragment.getUuid());
+	    }
+	    blob[0].addFragmentedBlob(fragment);
+	}
+	return blob[0];
+    }
+
+    static int wireBytes(List<byte[]> packets) {
+	int bytes = 0;
+	for (byte[] packet : packets) {
+	    bytes += packet.length + RatePacer.IP_UDP_OVERHEAD;
+	}
+	return bytes;
+    }
+
+    /**
+     * @param args - none
+     */
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+	// varints
+	long[] values = { 0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, Long.MAX_VALUE };
+	int[] sizes = { 1, 1, 1, 2, 2, 3, 5, 9 };
+	boolean roundTrips = true;
+	ByteBuffer buffer = ByteBuffer.allocate(Utils.MAX_SIZE_OF_VARINT);
+	for (int i = 0; i < values.length; i++) {
+	    buffer.clear();
+	    Utils.putVarint(buffer, values[i]);
+	    int size = buffer.position();
+	    buffer.flip();
+	    roundTrips &= size == sizes[i] && Utils.getVarint(buffer) == values[i] && !buffer.hasRemaining();
+	}
+	check(roundTrips, "varint round trips and sizes");
+
+	boolean truncated = false;
+	try {
+	    Utils.getVarint(ByteBuffer.wrap(new byte[] { (byte) 0x80, (byte) 0x80 }));
+	} catch (BufferUnderflowException e) {
+	    truncated = true;
+	}
+	boolean tooLong = false;
+	byte[] continued = new byte[Utils.MAX_SIZE_OF_VARINT + 1];
+	Arrays.fill(continued, (byte) 0x80);
+	try {
+	    Utils.getVarint(ByteBuffer.wrap(continued));
+	} catch (IOException e) {
+	    tooLong = true;
+	}
+	check(truncated && tooLong, "truncated and too long varints are rejected");
+
+	Blob blob = new Blob(Utils.randomString(METADATA_LENGTH).getBytes(Utils.CHARSET),
+		Utils.randomString(PAYLOAD_LENGTH).getBytes(Utils.CHARSET), "v2/test/key", UUID.randomUUID());
+	List<byte[]> v1Packets = encode(blob, 1, MAX_DATAGRAM_SIZE);
+	List<byte[]> v2Packets = encode(blob, 2, MAX_DATAGRAM_SIZE);
+
+	// detection of the header version
+	boolean detected = true;
+	for (byte[] packet : v1Packets) {
+	    detected &= !FragmentedBlob.isHeaderV2(packet, packet.length);
+	}
+	for (byte[] packet : v2Packets) {
+	    detected &= FragmentedBlob.isHeaderV2(packet, packet.length);
+	}
+	check(detected, "v1 and v2 packets are told apart");
+
+	// some v2 fragments travel without descriptor
+	List<byte[]> withDescriptor = new ArrayList<>();
+	List<byte[]> withoutDescriptor = new ArrayList<>();
+	for (byte[] packet : v2Packets) {
+	    FragmentedBlob fragment = new FragmentedBlob(packet, packet.length);
+	    (fragment.hasDescriptor() ? withDescriptor : withoutDescriptor).add(packet);
+	}
+	check(!withDescriptor.isEmpty() && !withoutDescriptor.isEmpty() && !new FragmentedBlob(
+		withoutDescriptor.get(0), withoutDescriptor.get(0).length).isResolved(),
+		"v2 fragments without descriptor are unresolved");
+
+	Blob received = receive(v1Packets, new BlobDictionary());
+	check(received != null && received.isComplete() && received.equals(blob), "v1 encode and reassembly");
+
+	BlobDictionary dictionary = new BlobDictionary();
+	received = receive(v2Packets, dictionary);
+	check(received != null && received.isComplete() && received.equals(blob) && dictionary.getNrParked() == 0,
+		"v2 encode and reassembly, descriptors in order");
+
+	// the fragments without descriptor first: all parked, then given back
+	List<byte[]> late = new ArrayList<>(withoutDescriptor);
+	late.addAll(withDescriptor);
+	dictionary = new BlobDictionary();
+	Blob unresolved = receive(withoutDescriptor, dictionary);
+	int parked = dictionary.getNrParked();
+	dictionary = new BlobDictionary();
+	received = receive(late, dictionary);
+	check(unresolved == null && parked == withoutDescriptor.size() && dictionary.getNrParked() == 0
+		&& received != null && received.isComplete() && received.equals(blob),
+		"v2 reassembly with the descriptors after the fragments");
+
+	// goodput: Blob bytes per byte on the wire, IP and UDP headers included
+	int blobBytes = METADATA_LENGTH + PAYLOAD_LENGTH;
+	for (int maxDatagramSize : new int[] { MAX_DATAGRAM_SIZE, 512 }) {
+	    List<byte[]> v1 = encode(blob, 1, maxDatagramSize);
+	    List<byte[]> v2 = encode(blob, 2, maxDatagramSize);
+	    double v1Goodput = (double) blobBytes / wireBytes(v1);
+	    double v2Goodput = (double) blobBytes / wireBytes(v2);
+	    System.out.println(String.format(
+		    "Datagrams of %d bytes: v1 %d packets, goodput %.2f %%; v2 %d packets, goodput %.2f %% (%+.2f %%)",
+		    Integer.valueOf(maxDatagramSize), Integer.valueOf(v1.size()), Double.valueOf(100 * v1Goodput),
+		    Integer.valueOf(v2.size()), Double.valueOf(100 * v2Goodput),
+		    Double.valueOf(100 * (v2Goodput / v1Goodput - 1))));
+	    check(v2Goodput > v1Goodput, "v2 goodput above v1 with datagrams of " + maxDatagramSize + " bytes");
+	}
+
+	System.out.println(nrFailed == 0 ? "All " + nrTest + " tests PASSED" : nrFailed + " of " + nrTest
+		+ " tests FAILED");
+	if (nrFailed > 0) {
+	    System.exit(1);
+	}
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * test.com.github.dosarudaniel.gsoc provides the classes necessary to test the
+ * Sender and Receiver from the myjava.com.github.dosarudaniel.gsoc package
+ */
+package test.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+
+import myjava.com.github.dosarudaniel.gsoc.LoadGenerator;
+import myjava.com.github.dosarudaniel.gsoc.RatePacer;
+
+/**
+ * Benchmark the protocol with synthetic Blobs published at a fixed rate, see
+ * LoadGenerator
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class TestLoadGenerator {
+
+    /**
+     * Publishes synthetic Blobs and prints the goodput and the send latencies
+     *
+     * @param args multicastIpAddress, portNumber and the load parameters
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws NoSuchAlgorithmException, IOException, InterruptedException {
+	if (args.length != 8 && args.length != 9) {
+	    String usage = "Usage:\n";
+	    usage += "\tjava -cp bin " + TestLoadGenerator.class.getCanonicalName();
+	    usage += "  <IP> <PORT_NUMBER> <FRAGMENT_MAX_PAYLOAD_SIZE> ";
+	    usage += "<MEDIAN_PAYLOAD_SIZE> <SIGMA> <NR_KEYS> <BLOBS_PER_SECOND> <TIME_TO_RUN> [RATE_MBPS]\n\n";
+	    usage += "Example:\n";
+	    usage += "\tjava -cp bin test.com.github.dosarudaniel.gsoc.TestLoadGenerator 230.0.0.0 5000 1400 2000000 0.5 100 10 30\n";
+	    usage += "\t |\n";
+	    usage += "\t --> Sends 10 Blobs per second for 30 seconds, on 100 keys, with lognormal payload sizes of median 2 MB. ";
+	    System.out.println(usage);
+	    return;
+	}
+
+	LoadGenerator generator = new LoadGenerator(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+		Integer.parseInt(args[3]), Double.parseDouble(args[4]), Integer.parseInt(args[5]),
+		Double.parseDouble(args[6]), Integer.parseInt(args[7]));
+
+	// optional pacing of the fragments, in Mbps
+	if (args.length == 9) {
+	    generator.setPacer(new RatePacer((long) (Double.parseDouble(args[8]) * 1_000_000), 0));
+	}
+
+	generator.work();
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * test.com.github.dosarudaniel.gsoc provides the classes necessary to test the
+ * Sender and Receiver from the myjava.com.github.dosarudaniel.gsoc package
+ */
+package test.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import myjava.com.github.dosarudaniel.gsoc.Blob;
+import myjava.com.github.dosarudaniel.gsoc.DeltaCodec;
+import myjava.com.github.dosarudaniel.gsoc.FragmentEncoder;
+import myjava.com.github.dosarudaniel.gsoc.FragmentSink;
+import myjava.com.github.dosarudaniel.gsoc.FragmentedBlob;
+import myjava.com.github.dosarudaniel.gsoc.PayloadCodec;
+import myjava.com.github.dosarudaniel.gsoc.Utils;
+import myjava.com.github.dosarudaniel.gsoc.Utils.Pair;
+
+/**
+ * Test the encodings of the payload without the network: the DEFLATE
+ * compression and the delta against the previous version of the key, alone
+ * and through the fragments of a Blob, the rejection of corrupted compressed
+ * payloads and the fallback to the full payload when the base of a delta is
+ * missing.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class TestPayloadCodecs {
+    static final int METADATA_LENGTH = 1000;
+    static final int PAYLOAD_LENGTH = 100_000;
+    static final int MAX_DATAGRAM_SIZE = 1472;
+
+    static int nrTest = 0;
+    static int nrFailed = 0;
+
+    static void check(boolean passed, String description) {
+	nrTest++;
+	if (!passed) {
+	    nrFailed++;
+	}
+	System.out.println("Test nr " + nrTest + ": ............... " + (passed ? "PASSED" : "FAILED") + " ("
+		+ description + ")");
+    }
+
+    /**
+     * Encodes a range of the Blob
+     *
+     * @param blob         - the Blob
+     * @param missingBlock - the range, null for the whole Blob as it is sent
+     * @param packetType   - the form of the range, see FragmentEncoder.encode
+     * @return the fragments
+     */
+    static List<FragmentedBlob> encode(Blob blob, Pair missingBlock, byte packetType)
+	    throws NoSuchAlgorithmException, IOException {
+	FragmentEncoder encoder = new FragmentEncoder(blob);
+	encoder.setHeaderVersion(1);
+	encoder.setFecGroupSize(0);
+
+	List<byte[]> packets = new ArrayList<>();
+	int maxPayloadSize = encoder.getMaxPayloadSize(MAX_DATAGRAM_SIZE);
+	FragmentSink sink = fragment -> {
+	    int length = 0;
+	    for (ByteBuffer buffer : fragment) {
+		if (buffer != null) {
+		    length += buffer.remaining();
+		}
+	    }
+	    ByteBuffer packet = ByteBuffer.allocate(length);
+	    for (ByteBuffer buffer : fragment) {
+		if (buffer != null) {
+		    packet.put(buffer.duplicate());
+		}
+	    }
+	    packets.add(packet.array());
+	};
+	if (missingBlock == null) {
+	    encoder.encodeBlob(maxPayloadSize, sink);
+	} else {
+	    encoder.encode(maxPayloadSize, missingBlock, packetType, sink);
+	}
+
+	List<FragmentedBlob> fragments = new ArrayList<>();
+	for (byte[] packet : packets) {
+	    fragments.add(new FragmentedBlob(packet, packet.length));
+	}
+	return fragments;
+    }
+
+    static Blob receive(Blob blob, List<FragmentedBlob> fragments) throws NoSuchAlgorithmException, IOException {
+	for (FragmentedBlob fragment : fragments) {
+	    blob.addFragmentedBlob(fragment);
+	}
+	return blob;
+    }
+
+    static boolean decodeFails(byte[] transmitted) {
+	try {
+	    PayloadCodec.decode(transmitted);
+	    return false;
+	} catch (IOException e) {
+	    return true;
+	}
+    }
+
+    /**
+     * @param args - none
+     */
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+	byte[] metadata = Utils.randomString(METADATA_LENGTH).getBytes(Utils.CHARSET);
+	byte[] payload = Utils.randomString(PAYLOAD_LENGTH).getBytes(Utils.CHARSET);
+
+	// DEFLATE
+	byte[] compressed = PayloadCodec.DEFLATE.encode(payload);
+	check(compressed != null && compressed.length < payload.length
+		&& Arrays.equals(PayloadCodec.decode(compressed), payload), "DEFLATE compress and decompress");
+
+	byte[] random = new byte[PAYLOAD_LENGTH];
+	new Random(1).nextBytes(random);
+	check(PayloadCodec.DEFLATE.encode(random) == null && PayloadCodec.NONE.encode(payload) == null,
+		"incompressible payloads are sent as they are");
+
+	Blob blob = new Blob(metadata, payload, "codec/test/compressed", UUID.randomUUID());
+	blob.compress(PayloadCodec.DEFLATE);
+	Blob received = receive(new Blob(blob.getKey(), blob.getUuid()), encode(blob, null, Blob.DATA_CODE));
+	check(blob.isCompressed() && received.isComplete() && Arrays.equals(received.getPayload(), payload),
+		"compressed Blob through its fragments");
+
+	// corrupted compressed payloads
+	byte[] corrupted = compressed.clone();
+	for (int i = Utils.SIZE_OF_COMPRESSION_PREFIX; i < corrupted.length; i += 7) {
+	    corrupted[i] ^= 0x5A;
+	}
+	check(decodeFails(corrupted), "corrupted compressed payload throws IOException");
+	check(decodeFails(Arrays.copyOf(compressed, compressed.length / 2)),
+		"truncated compressed payload throws IOException");
+	byte[] unknownCodec = compressed.clone();
+	unknownCodec[0] = 100;
+	check(decodeFails(unknownCodec), "unknown codec throws IOException");
+	byte[] tooLong = compressed.clone();
+	ByteBuffer.wrap(tooLong).putInt(1, Utils.MAX_BLOB_PAYLOAD_LENGTH + 1);
+	check(decodeFails(tooLong), "uncompressed length above MAX_BLOB_PAYLOAD_LENGTH throws IOException");
+
+	// delta against the previous version
+	Blob base = new Blob(metadata, payload, "codec/test/delta", UUID.randomUUID());
+	byte[] newPayload = payload.clone();
+	for (int i = 0; i < newPayload.length; i += 10_000) {
+	    newPayload[i] = (byte) 'Z';
+	}
+	Blob newVersion = new Blob(metadata, newPayload, base.getKey(), UUID.randomUUID());
+	byte[] delta = DeltaCodec.encode(base.getUuid(), payload, newPayload, newVersion.getPayloadChecksum());
+	check(delta != null && delta.length < newPayload.length / 10
+		&& base.getUuid().equals(DeltaCodec.getBaseUuid(delta))
+		&& Arrays.equals(DeltaCodec.apply(payload, delta), newPayload), "delta encode and apply");
+
+	check(newVersion.encodeDelta(base) && newVersion.isDelta(), "the new version is sent as a delta");
+	List<FragmentedBlob> deltaFragments = encode(newVersion, null, Blob.DATA_CODE);
+	received = new Blob(newVersion.getKey(), newVersion.getUuid());
+	received.setDeltaBases(uuid -> uuid.equals(base.getUuid()) ? base : null);
+	receive(received, deltaFragments);
+	check(received.isComplete() && Arrays.equals(received.getPayload(), newPayload),
+		"delta Blob rebuilt from the cached base");
+
+	// the base is not in the cache (yet): the delta is dropped for the full
+	// payload, that a NACK asks for
+	received = new Blob(newVersion.getKey(), newVersion.getUuid());
+	received.setDeltaBases(uuid -> null);
+	receive(received, deltaFragments);
+	boolean waiting = !received.isComplete();
+	receive(received, deltaFragments);
+	boolean deltaIgnored = !received.isComplete();
+	receive(received, encode(newVersion, new Pair(0, newVersion.getTransmittedPayloadLength(Blob.DATA_CODE)),
+		Blob.DATA_CODE));
+	check(waiting && deltaIgnored && received.isComplete() && Arrays.equals(received.getPayload(), newPayload),
+		"delta received before its base, completed by the full payload");
+
+	// a base with the same UUID but another content
+	Blob wrongBase = new Blob(metadata, random, base.getKey(), base.getUuid());
+	received = new Blob(newVersion.getKey(), newVersion.getUuid());
+	received.setDeltaBases(uuid -> wrongBase);
+	receive(received, deltaFragments);
+	check(!received.isComplete(), "delta that does not fit its base is not accepted");
+
+	byte[] deltaTooLong = delta.clone();
+	ByteBuffer.wrap(deltaTooLong).putInt(Utils.SIZE_OF_UUID, Utils.MAX_BLOB_PAYLOAD_LENGTH + 1);
+	boolean rejected = false;
+	try {
+	    DeltaCodec.apply(payload, deltaTooLong);
+	} catch (IOException e) {
+	    rejected = true;
+	}
+	check(rejected, "delta payload length above MAX_BLOB_PAYLOAD_LENGTH throws IOException");
+
+	System.out.println(nrFailed == 0 ? "All " + nrTest + " tests PASSED" : nrFailed + " of " + nrTest
+		+ " tests FAILED");
+	if (nrFailed > 0) {
+	    System.exit(1);
+	}
+    }
+}
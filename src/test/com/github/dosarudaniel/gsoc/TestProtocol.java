@@ -0,0 +1,250 @@
+/**
+ * test.com.github.dosarudaniel.gsoc provides the classes necessary to test the
+ * Sender and Receiver from the myjava.com.github.dosarudaniel.gsoc package
+ */
+package test.com.github.dosarudaniel.gsoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import myjava.com.github.dosarudaniel.gsoc.Blob;
+import myjava.com.github.dosarudaniel.gsoc.FragmentEncoder;
+import myjava.com.github.dosarudaniel.gsoc.FragmentSink;
+import myjava.com.github.dosarudaniel.gsoc.FragmentedBlob;
+import myjava.com.github.dosarudaniel.gsoc.Nack;
+import myjava.com.github.dosarudaniel.gsoc.SequenceTracker;
+import myjava.com.github.dosarudaniel.gsoc.Utils;
+import myjava.com.github.dosarudaniel.gsoc.Utils.Pair;
+
+/**
+ * Test the protocol without the network: the serialization of the NACKs, the
+ * packing of small Blobs in MULTI_BLOB_CODE packets and the detection of the
+ * Blobs lost entirely from their sequence numbers.
+ *
+ * @author dosarudaniel@gmail.com
+ * @since 2019-08-01
+ *
+ */
+public class TestProtocol {
+    static final long REORDER_MILLIS = 100;
+    static final int MAX_NACKS = 2;
+
+    static int nrTest = 0;
+    static int nrFailed = 0;
+
+    static void check(boolean passed, String description) {
+	nrTest++;
+	if (!passed) {
+	    nrFailed++;
+	}
+	System.out.println("Test nr " + nrTest + ": ............... " + (passed ? "PASSED" : "FAILED") + " ("
+		+ description + ")");
+    }
+
+    static ArrayList<Pair> ranges(int... bounds) {
+	ArrayList<Pair> ranges = new ArrayList<>();
+	for (int i = 0; i < bounds.length; i += 2) {
+	    ranges.add(new Pair(bounds[i], bounds[i + 1]));
+	}
+	return ranges;
+    }
+
+    static Nack roundTrip(Nack nack) throws IOException {
+	byte[] serialized = nack.serialize();
+	return new Nack(serialized, serialized.length);
+    }
+
+    static void checkNacks() throws IOException {
+	UUID uuid = UUID.randomUUID();
+	Nack nack = roundTrip(new Nack(uuid, ranges(0, 1000), ranges(0, 1400, 4200, 5600, 99_000, 100_000)));
+	check(nack.getUuid().equals(uuid) && !nack.isDelta()
+		&& nack.getMetadataRanges().toString().equals("[(0,1000)]")
+		&& nack.getPayloadRanges().toString().equals("[(0,1400), (4200,5600), (99000,100000)]")
+		&& nack.getSequences().isEmpty(), "NACK ranges round trip");
+
+	nack = roundTrip(new Nack(uuid, null, ranges(1400, 2800), true));
+	check(nack.isDelta() && nack.getMetadataRanges().isEmpty()
+		&& nack.getPayloadRanges().toString().equals("[(1400,2800)]"), "NACK of delta ranges round trip");
+
+	nack = roundTrip(new Nack(1234, Arrays.asList(Integer.valueOf(3), Integer.valueOf(4))));
+	check(nack.getUuid().equals(Nack.NO_UUID) && nack.getSequences().toString().equals("[(1234,3), (1234,4)]"),
+		"NACK by sequence number round trip");
+
+	ArrayList<Pair> many = new ArrayList<>();
+	for (int i = 0; i < Nack.MAX_RANGES + 10; i++) {
+	    many.add(new Pair(i * 10, i * 10 + 5));
+	}
+	nack = roundTrip(new Nack(uuid, null, many));
+	check(nack.getPayloadRanges().size() == Nack.MAX_RANGES, "NACK limited to MAX_RANGES ranges");
+
+	byte[] corrupted = new Nack(uuid, ranges(0, 1000), null).serialize();
+	corrupted[Utils.SIZE_OF_UUID] ^= 1;
+	boolean rejected = false;
+	try {
+	    new Nack(corrupted, corrupted.length);
+	} catch (IOException e) {
+	    rejected = true;
+	}
+	boolean truncated = false;
+	try {
+	    new Nack(corrupted, 10);
+	} catch (IOException e) {
+	    truncated = true;
+	}
+	check(rejected && truncated, "corrupted and truncated NACKs are rejected");
+    }
+
+    /**
+     * Packs the Blobs in MULTI_BLOB_CODE packets
+     *
+     * @return the serialized packets
+     */
+    static List<byte[]> pack(List<Blob> blobs, int headerVersion, int maxPayloadSize)
+	    throws NoSuchAlgorithmException, IOException {
+	FragmentEncoder encoder = new FragmentEncoder();
+	encoder.setHeaderVersion(headerVersion);
+
+	List<byte[]> packets = new ArrayList<>();
+	FragmentSink sink = fragment -> {
+	    int length = 0;
+	    for (ByteBuffer buffer : fragment) {
+		if (buffer != null) {
+		    length += buffer.remaining();
+		}
+	    }
+	    ByteBuffer packet = ByteBuffer.allocate(length);
+	    for (ByteBuffer buffer : fragment) {
+		if (buffer != null) {
+		    packet.put(buffer.duplicate());
+		}
+	    }
+	    packets.add(packet.array());
+	};
+	for (Blob blob : blobs) {
+	    encoder.setBlob(blob);
+	    if (!encoder.appendToMultiBlob(maxPayloadSize)) {
+		encoder.flushMultiBlob(sink);
+		if (!encoder.appendToMultiBlob(maxPayloadSize)) {
+		    throw new IOException("Blob " + blob.getKey() + " cannot be packed");
+		}
+	    }
+	}
+	encoder.flushMultiBlob(sink);
+	return packets;
+    }
+
+    /**
+     * @return the Blobs of the packets, in the order they were packed
+     */
+    static List<Blob> unpack(List<byte[]> packets) throws NoSuchAlgorithmException, IOException {
+	List<Blob> blobs = new ArrayList<>();
+	for (byte[] packet : packets) {
+	    FragmentedBlob fragment = new FragmentedBlob(packet, packet.length);
+	    List<FragmentedBlob> entries = FragmentedBlob.isMultiBlob(packet, packet.length) ? fragment.unpack()
+		    : Arrays.asList(fragment);
+	    for (FragmentedBlob entry : entries) {
+		Blob blob = new Blob(entry.getKey(), entry.getUuid());
+		blob.addFragmentedBlob(entry);
+		blobs.add(blob);
+	    }
+	}
+	return blobs;
+    }
+
+    static boolean sameBlobs(List<Blob> sent, List<Blob> received) throws NoSuchAlgorithmException, IOException {
+	if (sent.size() != received.size()) {
+	    return false;
+	}
+	for (int i = 0; i < sent.size(); i++) {
+	    Blob blob = received.get(i);
+	    if (!blob.isComplete() || !blob.getKey().equals(sent.get(i).getKey())
+		    || !blob.getUuid().equals(sent.get(i).getUuid())
+		    || !Arrays.equals(blob.getMetadata(), sent.get(i).getMetadata())
+		    || !Arrays.equals(blob.getPayload(), sent.get(i).getPayload())) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    static void checkMultiBlobs() throws NoSuchAlgorithmException, IOException {
+	List<Blob> blobs = new ArrayList<>();
+	for (int i = 0; i < 5; i++) {
+	    blobs.add(new Blob(("metadata " + i).getBytes(Utils.CHARSET),
+		    Utils.randomString(50 + 20 * i).getBytes(Utils.CHARSET), "multi/blob/" + i, UUID.randomUUID()));
+	}
+
+	for (int headerVersion = 1; headerVersion <= 2; headerVersion++) {
+	    List<byte[]> packets = pack(blobs, headerVersion, 1400);
+	    check(packets.size() == 1 && FragmentedBlob.isMultiBlob(packets.get(0), packets.get(0).length)
+		    && sameBlobs(blobs, unpack(packets)), "multi blob packet unpacks, v" + headerVersion + " header");
+	}
+
+	// 2 Blobs per packet, the last one alone is a plain SMALL_BLOB_CODE packet
+	List<byte[]> packets = pack(blobs, 1, 400);
+	check(packets.size() == 3 && FragmentedBlob.isMultiBlob(packets.get(0), packets.get(0).length)
+		&& !FragmentedBlob.isMultiBlob(packets.get(2), packets.get(2).length)
+		&& sameBlobs(blobs, unpack(packets)),
+		"Blobs spread over several packets");
+
+	byte[] packet = packets.get(2);
+	boolean notMulti = false;
+	try {
+	    new FragmentedBlob(packet, packet.length).unpack();
+	} catch (IOException e) {
+	    notMulti = true;
+	}
+	check(notMulti, "unpack of a packet that is not a multi blob throws IOException");
+    }
+
+    static void checkSequences() {
+	SequenceTracker tracker = new SequenceTracker(REORDER_MILLIS, MAX_NACKS);
+	for (int sequence : new int[] { 1, 2, 5 }) {
+	    tracker.record(sequence, 0);
+	}
+	check(tracker.getMissing() == 2 && tracker.getHighest() == 5 && tracker.getRepairs(REORDER_MILLIS - 1).isEmpty(),
+		"gap 3-4 found, not NACKed within the reorder delay");
+	check(tracker.getRepairs(REORDER_MILLIS).toString().equals("[3, 4]"), "gap 3-4 NACKed after the reorder delay");
+
+	tracker.record(3, REORDER_MILLIS + 10);
+	check(tracker.getMissing() == 1 && tracker.getRecovered() == 1
+		&& tracker.getRepairs(2 * REORDER_MILLIS).toString().equals("[4]"), "a late 3 clears it from the gap");
+
+	check(tracker.getRepairs(3 * REORDER_MILLIS).isEmpty() && tracker.getMissing() == 0
+		&& tracker.getAbandoned() == 1, "4 is given up after " + MAX_NACKS + " NACKs");
+
+	// fragments seen out of order by the receiver threads are not a loss
+	tracker = new SequenceTracker(REORDER_MILLIS, MAX_NACKS);
+	for (int sequence : new int[] { 1, 3, 3, 2, 4 }) {
+	    tracker.record(sequence, 0);
+	}
+	check(tracker.getMissing() == 0 && tracker.getRepairs(REORDER_MILLIS).isEmpty() && tracker.getReceived() == 4,
+		"reordered sequence within the delay is not a gap");
+
+	tracker = new SequenceTracker(REORDER_MILLIS, MAX_NACKS);
+	tracker.record(10, 0);
+	tracker.record(10 + SequenceTracker.MAX_GAP + 1, 0);
+	check(tracker.getMissing() == 0 && tracker.getHighest() == 10 + SequenceTracker.MAX_GAP + 1,
+		"a jump beyond MAX_GAP restarts the stream");
+    }
+
+    /**
+     * @param args - none
+     */
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+	checkNacks();
+	checkMultiBlobs();
+	checkSequences();
+
+	System.out.println(nrFailed == 0 ? "All " + nrTest + " tests PASSED" : nrFailed + " of " + nrTest
+		+ " tests FAILED");
+	if (nrFailed > 0) {
+	    System.exit(1);
+	}
+    }
+}
@@ -29,12 +29,12 @@ public class TestSender {
      */
     public static void main(String[] args) throws NumberFormatException, SecurityException, IOException {
 
-	if (args.length != 7) {
+	if (args.length != 7 && args.length != 8) {
 	    String usage = "Usage:\n";
 	    usage += "\tjava -cp bin " + TestBurstSender.class.getCanonicalName();
 	    usage += "  <IP> <PORT_NUMBER> ";
 	    usage += "<FRAGMENT_MAX_PAYLOAD_SIZE> ";
-	    usage += "<KEY_LENGTH> <METADATA_LENGTH> <PAYLOAD_LENGTH> <NR_OF_PACKETS_TO_BE_SENT>\n\n";
+	    usage += "<KEY_LENGTH> <METADATA_LENGTH> <PAYLOAD_LENGTH> <NR_OF_PACKETS_TO_BE_SENT> [RATE_MBPS]\n\n";
 	    usage += "Example:\n";
 	    usage += "\tjava -cp bin test.com.github.dosarudaniel.gsoc.TestSender 230.0.0.0 5000 512 50 150 1024 100\n";
 	    usage += "\t |\n";
@@ -43,9 +43,15 @@ public class TestSender {
 	    return;
 	}
 
+	// optional pacing of the fragments, in Mbps
+	long bitsPerSecond = 0;
+	if (args.length == 8) {
+	    bitsPerSecond = (long) (Double.parseDouble(args[7]) * 1_000_000);
+	}
+
 	Sender sender = new Sender(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]),
 		Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]),
-		Integer.parseInt(args[6]));
+		Integer.parseInt(args[6]), bitsPerSecond);
 	sender.work();
     }
 }